@@ -11,6 +11,8 @@ import com.google.inject.Provider;
 import com.google.inject.Singleton;
 import lombok.extern.slf4j.Slf4j;
 
+import java.util.function.LongSupplier;
+
 import static com.google.common.base.Preconditions.checkArgument;
 
 @Slf4j
@@ -34,6 +36,14 @@ public class GuavaRateLimiters {
         return rateLimiter;
     }
 
+    /**
+     * Time source in microseconds backed by the same stopwatch as the rate limiters, controllable in tests.
+     */
+    public LongSupplier createMicrosTimer() {
+        SleepingStopwatch stopwatch = stopwatchProvider.get();
+        return stopwatch::readMicros;
+    }
+
     public static Module module() {
         return new AbstractModule() {
             @Override
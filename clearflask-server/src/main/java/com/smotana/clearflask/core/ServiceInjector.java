@@ -57,12 +57,15 @@ import com.smotana.clearflask.security.limiter.challenge.CaptchaChallenger;
 import com.smotana.clearflask.security.limiter.challenge.LocalChallengeLimiter;
 import com.smotana.clearflask.security.limiter.rate.LocalRateLimiter;
 import com.smotana.clearflask.store.ConfigAwsCredentialsProvider;
+import com.smotana.clearflask.store.Reindexer;
 import com.smotana.clearflask.store.dynamo.DefaultDynamoDbProvider;
 import com.smotana.clearflask.store.dynamo.SingleTableProvider;
 import com.smotana.clearflask.store.elastic.DefaultElasticSearchProvider;
 import com.smotana.clearflask.store.elastic.ElasticUtil;
+import com.smotana.clearflask.store.elastic.SharedIndexPromoter;
 import com.smotana.clearflask.store.github.GitHubClientProviderImpl;
 import com.smotana.clearflask.store.github.GitHubStoreImpl;
+import com.smotana.clearflask.store.impl.DynamoCacheInvalidationBus;
 import com.smotana.clearflask.store.impl.DynamoCertStore;
 import com.smotana.clearflask.store.impl.DynamoDraftStore;
 import com.smotana.clearflask.store.impl.DynamoElasticAccountStore;
@@ -73,6 +76,7 @@ import com.smotana.clearflask.store.impl.DynamoNotificationStore;
 import com.smotana.clearflask.store.impl.DynamoProjectStore;
 import com.smotana.clearflask.store.impl.DynamoTokenVerifyStore;
 import com.smotana.clearflask.store.impl.DynamoVoteStore;
+import com.smotana.clearflask.store.impl.LocalCacheInvalidationBus;
 import com.smotana.clearflask.store.impl.ResourceLegalStore;
 import com.smotana.clearflask.store.impl.S3ContentStore;
 import com.smotana.clearflask.store.mysql.DefaultMysqlProvider;
@@ -190,6 +194,11 @@ public enum ServiceInjector {
                 install(DefaultElasticSearchProvider.module());
                 install(DefaultMysqlProvider.module());
                 install(S3ContentStore.module());
+                if (env == Environment.PRODUCTION_AWS) {
+                    install(DynamoCacheInvalidationBus.module());
+                } else {
+                    install(LocalCacheInvalidationBus.module());
+                }
                 install(DynamoProjectStore.module());
                 install(DynamoElasticAccountStore.module());
                 install(DynamoElasticUserStore.module());
@@ -208,7 +217,9 @@ public enum ServiceInjector {
                 install(ResourceLegalStore.module());
                 install(SingleTableProvider.module());
                 install(MysqlUtil.module());
+                install(Reindexer.module());
                 install(ElasticUtil.module());
+                install(SharedIndexPromoter.module());
                 install(DefaultServerSecret.module(Names.named("cursor")));
                 install(WebhookServiceImpl.module());
                 install(DynamoCouponStore.module());
@@ -0,0 +1,136 @@
+// SPDX-FileCopyrightText: 2019-2022 Matus Faro <matus@smotana.com>
+// SPDX-License-Identifier: Apache-2.0
+package com.smotana.clearflask.core.push;
+
+import com.google.common.util.concurrent.RateLimiter;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.smotana.clearflask.util.LogUtil;
+import lombok.extern.slf4j.Slf4j;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Delivers notifications for a single channel (in-app, email, browser push) with a fixed number of threads, a bounded
+ * queue and a rate limit on the number of recipients per second.
+ * <p>
+ * Submitting blocks while the queue is full, pushing back on whoever is fanning out notifications. Once shutdown has
+ * begun, new notifications are dropped and counted.
+ */
+@Slf4j
+class NotificationChannelExecutor {
+
+    private final String name;
+    private final ThreadPoolExecutor executor;
+    private final RateLimiter rateLimiter;
+    private final AtomicLong submittedCounter = new AtomicLong();
+    private final AtomicLong completedCounter = new AtomicLong();
+    private final AtomicLong failedCounter = new AtomicLong();
+    private final AtomicLong rejectedCounter = new AtomicLong();
+    private final AtomicLong recipientCounter = new AtomicLong();
+    private final AtomicLong queueLatencyTotalMillis = new AtomicLong();
+    private final AtomicLong queueLatencyMaxMillis = new AtomicLong();
+
+    NotificationChannelExecutor(String name, int threads, int queueSize, double rateLimitPerSecond) {
+        this.name = name;
+        this.rateLimiter = RateLimiter.create(rateLimitPerSecond);
+        this.executor = new ThreadPoolExecutor(
+                threads, threads, 0L, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<>(queueSize),
+                new ThreadFactoryBuilder().setNameFormat("NotificationServiceImpl-" + name + "-%d").build(),
+                (runnable, executor) -> {
+                    try {
+                        // Wait for space, but give up once shutdown begins rather than blocking it
+                        while (!executor.getQueue().offer(runnable, 100, TimeUnit.MILLISECONDS)) {
+                            if (executor.isShutdown()) {
+                                throw new RejectedExecutionException("Notification channel " + name + " is shut down");
+                            }
+                        }
+                    } catch (InterruptedException ex) {
+                        Thread.currentThread().interrupt();
+                        throw new RejectedExecutionException("Interrupted while waiting on notification channel " + name, ex);
+                    }
+                    // Shut down while queueing, workers may already be gone
+                    if (executor.isShutdown() && executor.getQueue().remove(runnable)) {
+                        throw new RejectedExecutionException("Notification channel " + name + " is shut down");
+                    }
+                });
+    }
+
+    /**
+     * Queues delivery to a batch of recipients, blocking if the queue is full. Dropped if shutdown has begun.
+     */
+    void submit(int recipientCount, Runnable task) {
+        if (executor.isShutdown()) {
+            reject(recipientCount);
+            return;
+        }
+        long enqueuedAt = System.currentTimeMillis();
+        try {
+            executor.execute(() -> {
+                long queueLatencyMillis = System.currentTimeMillis() - enqueuedAt;
+                queueLatencyTotalMillis.addAndGet(queueLatencyMillis);
+                queueLatencyMaxMillis.accumulateAndGet(queueLatencyMillis, Math::max);
+                if (recipientCount > 0) {
+                    rateLimiter.acquire(recipientCount);
+                }
+                try {
+                    task.run();
+                    completedCounter.incrementAndGet();
+                    recipientCounter.addAndGet(recipientCount);
+                } catch (Throwable th) {
+                    failedCounter.incrementAndGet();
+                    log.warn("Failed to deliver notifications on channel {}", name, th);
+                }
+            });
+        } catch (RejectedExecutionException ex) {
+            reject(recipientCount);
+            return;
+        }
+        submittedCounter.incrementAndGet();
+    }
+
+    private void reject(int recipientCount) {
+        rejectedCounter.incrementAndGet();
+        if (LogUtil.rateLimitAllowLog("notificationChannelExecutor-rejected")) {
+            log.warn("Notification channel {} is shut down, dropping notifications to {} recipients", name, recipientCount);
+        }
+    }
+
+    int getQueueDepth() {
+        return executor.getQueue().size();
+    }
+
+    String getStats() {
+        long dequeuedCount = completedCounter.get() + failedCounter.get();
+        return name
+                + " queueDepth " + getQueueDepth()
+                + " active " + executor.getActiveCount()
+                + " submitted " + submittedCounter.get()
+                + " completed " + completedCounter.get()
+                + " failed " + failedCounter.get()
+                + " rejected " + rejectedCounter.get()
+                + " recipients " + recipientCounter.get()
+                + " avgQueueLatencyMs " + (dequeuedCount == 0 ? 0 : queueLatencyTotalMillis.get() / dequeuedCount)
+                + " maxQueueLatencyMs " + queueLatencyMaxMillis.get();
+    }
+
+    void shutdown() {
+        executor.shutdown();
+    }
+
+    /**
+     * Waits until the deadline for queued notifications to be delivered, afterwards interrupts any remaining.
+     */
+    void awaitTermination(Instant deadline) throws InterruptedException {
+        long remainingMillis = Math.max(0L, Duration.between(Instant.now(), deadline).toMillis());
+        if (!executor.awaitTermination(remainingMillis, TimeUnit.MILLISECONDS)) {
+            log.warn("Notification channel {} did not drain in time, dropping {} queued tasks",
+                    name, executor.shutdownNow().size());
+        }
+    }
+}
@@ -2,14 +2,12 @@
 // SPDX-License-Identifier: Apache-2.0
 package com.smotana.clearflask.core.push;
 
-import com.google.common.base.Predicates;
 import com.google.common.base.Strings;
 import com.google.common.collect.ImmutableList;
-import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Iterables;
+import com.google.common.collect.Maps;
 import com.google.common.collect.Sets;
-import com.google.common.util.concurrent.ListeningExecutorService;
-import com.google.common.util.concurrent.MoreExecutors;
 import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import com.google.inject.AbstractModule;
 import com.google.inject.Inject;
@@ -39,7 +37,9 @@ import com.smotana.clearflask.core.push.message.OnStatusOrResponseChange.Subscri
 import com.smotana.clearflask.core.push.message.OnTeammateInvite;
 import com.smotana.clearflask.core.push.message.OnTrialEnded;
 import com.smotana.clearflask.core.push.provider.BrowserPushService;
+import com.smotana.clearflask.core.push.provider.BrowserPushService.BrowserPush;
 import com.smotana.clearflask.core.push.provider.EmailService;
+import com.smotana.clearflask.core.push.provider.EmailService.Email;
 import com.smotana.clearflask.store.AccountStore.Account;
 import com.smotana.clearflask.store.CommentStore.CommentModel;
 import com.smotana.clearflask.store.IdeaStore.IdeaModel;
@@ -52,24 +52,27 @@ import com.smotana.clearflask.store.UserStore.UserModel;
 import com.smotana.clearflask.store.VoteStore;
 import com.smotana.clearflask.store.VoteStore.ListResponse;
 import com.smotana.clearflask.store.VoteStore.TransactionModel;
+import com.smotana.clearflask.util.Extern;
+import com.smotana.clearflask.util.LogUtil;
 import com.smotana.clearflask.web.Application;
 import com.smotana.clearflask.web.security.Sanitizer;
-import lombok.AllArgsConstructor;
-import lombok.Builder;
-import lombok.NonNull;
-import lombok.Value;
 import lombok.extern.slf4j.Slf4j;
 
 import java.time.Duration;
 import java.time.Instant;
-import java.util.Objects;
+import java.util.List;
 import java.util.Optional;
 import java.util.Set;
-import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.function.BiConsumer;
-import java.util.stream.Collectors;
+import java.util.function.BiFunction;
+import java.util.function.Consumer;
+import java.util.function.Function;
 
 import static com.google.common.base.Preconditions.checkArgument;
 import static com.google.common.base.Preconditions.checkState;
@@ -99,6 +102,69 @@ public class NotificationServiceImpl extends ManagedService implements Notificat
 
         @DefaultValue("false")
         boolean notifyPaymentFailedBecauseNoPaymentMethod();
+
+        /**
+         * Threads for notifications to a single recipient such as replies, logins and billing emails.
+         */
+        @DefaultValue("4")
+        int workerThreads();
+
+        /**
+         * Once full, further notifications are dropped.
+         */
+        @DefaultValue("10000")
+        int workerQueueSize();
+
+        /**
+         * Threads for finding subscribers of a post. These block while channel queues are full.
+         */
+        @DefaultValue("2")
+        int fanOutThreads();
+
+        @DefaultValue("1000")
+        int fanOutQueueSize();
+
+        /**
+         * Subscribers are delivered to in batches of this size.
+         */
+        @DefaultValue("25")
+        int recipientBatchSize();
+
+        @DefaultValue("2")
+        int inAppThreads();
+
+        @DefaultValue("1000")
+        int inAppQueueSize();
+
+        @DefaultValue("500")
+        double inAppRateLimitPerSecond();
+
+        @DefaultValue("2")
+        int emailThreads();
+
+        @DefaultValue("1000")
+        int emailQueueSize();
+
+        /**
+         * Keep below the email provider's sending rate.
+         */
+        @DefaultValue("10")
+        double emailRateLimitPerSecond();
+
+        @DefaultValue("2")
+        int browserPushThreads();
+
+        @DefaultValue("1000")
+        int browserPushQueueSize();
+
+        @DefaultValue("100")
+        double browserPushRateLimitPerSecond();
+
+        /**
+         * On shutdown, how long to wait in total for queued notifications to be delivered.
+         */
+        @DefaultValue("PT30S")
+        Duration drainTimeout();
     }
 
     @Inject
@@ -146,19 +212,65 @@ public class NotificationServiceImpl extends ManagedService implements Notificat
     @Inject
     private Sanitizer sanitizer;
 
-    private ListeningExecutorService executor;
+    private final AtomicLong droppedCounter = new AtomicLong();
+    private ThreadPoolExecutor executor;
+    private ThreadPoolExecutor fanOutExecutor;
+    private NotificationChannelExecutor inAppChannel;
+    private NotificationChannelExecutor emailChannel;
+    private NotificationChannelExecutor browserPushChannel;
 
     @Override
     protected void serviceStart() throws Exception {
-        executor = MoreExecutors.listeningDecorator(new ThreadPoolExecutor(
-                2, Integer.MAX_VALUE, 60L, TimeUnit.SECONDS, new SynchronousQueue<>(),
-                new ThreadFactoryBuilder().setNameFormat("NotificationServiceImpl-worker-%d").build()));
+        executor = new ThreadPoolExecutor(
+                config.workerThreads(), config.workerThreads(), 0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(config.workerQueueSize()),
+                new ThreadFactoryBuilder().setNameFormat("NotificationServiceImpl-worker-%d").build());
+        fanOutExecutor = new ThreadPoolExecutor(
+                config.fanOutThreads(), config.fanOutThreads(), 0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(config.fanOutQueueSize()),
+                new ThreadFactoryBuilder().setNameFormat("NotificationServiceImpl-fanout-%d").build());
+        inAppChannel = new NotificationChannelExecutor("inapp",
+                config.inAppThreads(), config.inAppQueueSize(), config.inAppRateLimitPerSecond());
+        emailChannel = new NotificationChannelExecutor("email",
+                config.emailThreads(), config.emailQueueSize(), config.emailRateLimitPerSecond());
+        browserPushChannel = new NotificationChannelExecutor("browserpush",
+                config.browserPushThreads(), config.browserPushQueueSize(), config.browserPushRateLimitPerSecond());
     }
 
     @Override
     protected void serviceStop() throws Exception {
-        executor.shutdownNow();
-        executor.awaitTermination(30, TimeUnit.SECONDS);
+        Instant deadline = Instant.now().plus(config.drainTimeout());
+
+        // Stop accepting new notifications and let fan-outs finish queueing into channels
+        executor.shutdown();
+        fanOutExecutor.shutdown();
+        awaitTermination(executor, "worker", deadline);
+        awaitTermination(fanOutExecutor, "fanout", deadline);
+
+        // Drain channels
+        ImmutableList<NotificationChannelExecutor> channels = ImmutableList.of(inAppChannel, emailChannel, browserPushChannel);
+        channels.forEach(NotificationChannelExecutor::shutdown);
+        for (NotificationChannelExecutor channel : channels) {
+            channel.awaitTermination(deadline);
+        }
+    }
+
+    private void awaitTermination(ThreadPoolExecutor executor, String name, Instant deadline) throws InterruptedException {
+        long remainingMillis = Math.max(0L, Duration.between(Instant.now(), deadline).toMillis());
+        if (!executor.awaitTermination(remainingMillis, TimeUnit.MILLISECONDS)) {
+            log.warn("Notification {} executor did not drain in time, dropping {} queued tasks",
+                    name, executor.shutdownNow().size());
+        }
+    }
+
+    @Extern
+    public String getNotificationQueueStats() {
+        return "worker queueDepth " + executor.getQueue().size() + " active " + executor.getActiveCount()
+                + "\nfanout queueDepth " + fanOutExecutor.getQueue().size() + " active " + fanOutExecutor.getActiveCount()
+                + "\ndropped " + droppedCounter.get()
+                + "\n" + inAppChannel.getStats()
+                + "\n" + emailChannel.getStats()
+                + "\n" + browserPushChannel.getStats();
     }
 
     @Override
@@ -167,7 +279,7 @@ public class NotificationServiceImpl extends ManagedService implements Notificat
             log.debug("Not enabled, skipping");
             return;
         }
-        submit(() -> {
+        submitFanOut(() -> {
             checkArgument(statusChanged || responseChanged);
 
             Optional<IdeaStatus> changedStatus;
@@ -199,14 +311,9 @@ public class NotificationServiceImpl extends ManagedService implements Notificat
 
             String link = "https://" + Project.getHostname(configAdmin, configApp) + "/post/" + idea.getIdeaId();
 
-            Set<String> userSeen = Sets.newHashSet();
-            BiConsumer<SubscriptionAction, UserModel> sendToUser = (subscriptionAction, user) -> {
-                if (!userSeen.add(user.getUserId())) {
-                    return;
-                }
-
-                try {
-                    notificationStore.notificationCreate(new NotificationModel(
+            BiConsumer<SubscriptionAction, ImmutableList<UserModel>> sendToUsers = (subscriptionAction, users) -> sendToRecipients(
+                    users,
+                    user -> new NotificationModel(
                             idea.getProjectId(),
                             user.getUserId(),
                             notificationStore.genNotificationId(),
@@ -216,40 +323,38 @@ public class NotificationServiceImpl extends ManagedService implements Notificat
                             Instant.now().plus(config.notificationExpiry()).getEpochSecond(),
                             onStatusOrResponseChange.inAppDescription(
                                     user, idea, configAdmin, subscriptionAction,
-                                    link, changedStatus, changedResponse)));
-                } catch (Exception ex) {
-                    log.warn("Failed to send in-app notification", ex);
-                }
-                Optional<String> authTokenOpt = Optional.empty();
-                try {
-                    if (user.isEmailNotify() && !Strings.isNullOrEmpty(user.getEmail())) {
-                        if (!authTokenOpt.isPresent()) {
-                            authTokenOpt = Optional.of(userStore.createToken(user.getProjectId(), user.getUserId(), config.autoLoginExpiry()));
-                        }
-                        emailService.send(onStatusOrResponseChange.email(
-                                user, idea, configAdmin, subscriptionAction,
-                                link, changedStatus, changedResponse, authTokenOpt.get()));
-                    }
-                } catch (Exception ex) {
-                    log.warn("Failed to send email notification", ex);
-                }
-                try {
-                    if (!Strings.isNullOrEmpty(user.getBrowserPushToken())) {
-                        if (!authTokenOpt.isPresent()) {
-                            authTokenOpt = Optional.of(userStore.createToken(user.getProjectId(), user.getUserId(), config.autoLoginExpiry()));
-                        }
-                        browserPushService.send(onStatusOrResponseChange.browserPush(
-                                user, idea, configAdmin, subscriptionAction,
-                                link, changedStatus, changedResponse, authTokenOpt.get()));
-                    }
-                } catch (Exception ex) {
-                    log.warn("Failed to send browser push notification", ex);
-                }
-            };
-            Subscribers subscribers = getSubscribers(idea, senderOpt);
-            subscribers.usersExpressed.forEach(user -> sendToUser.accept(EXPRESSED, user));
-            subscribers.usersFunded.forEach(user -> sendToUser.accept(FUNDED, user));
-            subscribers.usersVoted.forEach(user -> sendToUser.accept(VOTED, user));
+                                    link, changedStatus, changedResponse)),
+                    (user, authToken) -> onStatusOrResponseChange.email(
+                            user, idea, configAdmin, subscriptionAction,
+                            link, changedStatus, changedResponse, authToken),
+                    (user, authToken) -> onStatusOrResponseChange.browserPush(
+                            user, idea, configAdmin, subscriptionAction,
+                            link, changedStatus, changedResponse, authToken));
+
+            // Subscribers are streamed page by page. A user is notified once, with funding taking precedence over
+            // voting. Funders are few, so they are remembered for the duration of this fan-out to skip them as voters.
+            // As before, users who have only expressed are not notified.
+            String projectId = idea.getProjectId();
+            String ideaId = idea.getIdeaId();
+            Optional<String> skipUserIdOpt = senderOpt.map(UserModel::getUserId);
+            Set<String> fundedUserIds = Sets.newHashSet();
+            if (idea.getFundersCount() != null && idea.getFundersCount() != 0) {
+                forEachSubscriberPage(projectId, skipUserIdOpt,
+                        cursorOpt -> voteStore.fundListByTarget(projectId, ideaId, cursorOpt),
+                        VoteStore.FundModel::getUserId,
+                        users -> {
+                            users.forEach(user -> fundedUserIds.add(user.getUserId()));
+                            sendToUsers.accept(FUNDED, users);
+                        });
+            }
+            if (idea.getVotersCount() != null && idea.getVotersCount() != 0) {
+                forEachSubscriberPage(projectId, skipUserIdOpt,
+                        cursorOpt -> voteStore.voteListByTarget(projectId, ideaId, cursorOpt),
+                        VoteStore.VoteModel::getUserId,
+                        users -> sendToUsers.accept(VOTED, users.stream()
+                                .filter(user -> !fundedUserIds.contains(user.getUserId()))
+                                .collect(ImmutableList.toImmutableList())));
+            }
         });
     }
 
@@ -558,7 +663,7 @@ public class NotificationServiceImpl extends ManagedService implements Notificat
                 .isPresent()) {
             return;
         }
-        submit(() -> {
+        submitFanOut(() -> {
             String projectId = project.getProjectId();
             ConfigAdmin configAdmin = project.getVersionedConfigAdmin().getConfig();
             String link = "https://"
@@ -566,58 +671,22 @@ public class NotificationServiceImpl extends ManagedService implements Notificat
                     + "/post/"
                     + idea.getIdeaId();
 
-            Optional<String> cursor = Optional.empty();
-            do {
-                ListResponse<VoteStore.VoteModel> subscriptionsBatch = voteStore.voteListByTarget(projectId, idea.getCategoryId(), cursor);
-                cursor = subscriptionsBatch.getCursorOpt();
-
-                ImmutableMap<String, UserModel> subscribersBatch = userStore.getUsers(
-                        projectId,
-                        subscriptionsBatch.getItems().stream()
-                                .map(VoteStore.VoteModel::getUserId)
-                                .collect(ImmutableList.toImmutableList()));
-
-                try {
-                    notificationStore.notificationsCreate(subscribersBatch.values().stream()
-                            .map(user -> new NotificationModel(
-                                    projectId,
-                                    user.getUserId(),
-                                    notificationStore.genNotificationId(),
-                                    idea.getIdeaId(),
-                                    null,
-                                    idea.getCreated(),
-                                    Instant.now().plus(this.config.notificationExpiry()).getEpochSecond(),
-                                    onPostCreated.inAppDescription(notifySubscribers, configAdmin, user)))
-                            .collect(ImmutableList.toImmutableList()));
-                } catch (Exception ex) {
-                    log.warn("Failed to send in-app notification", ex);
-                }
-
-                subscribersBatch.values().forEach(user -> {
-                    Optional<String> authTokenOpt = Optional.empty();
-                    try {
-                        if (user.isEmailNotify() && !Strings.isNullOrEmpty(user.getEmail())) {
-                            if (!authTokenOpt.isPresent()) {
-                                authTokenOpt = Optional.of(userStore.createToken(user.getProjectId(), user.getUserId(), this.config.autoLoginExpiry()));
-                            }
-                            emailService.send(onPostCreated.email(notifySubscribers, configAdmin, user, link, authTokenOpt.get()));
-                        }
-                    } catch (Exception ex) {
-                        log.warn("Failed to send email notification", ex);
-                    }
-                    try {
-                        if (!Strings.isNullOrEmpty(user.getBrowserPushToken())) {
-                            if (!authTokenOpt.isPresent()) {
-                                authTokenOpt = Optional.of(userStore.createToken(user.getProjectId(), user.getUserId(), this.config.autoLoginExpiry()));
-                            }
-                            browserPushService.send(onPostCreated.browserPush(notifySubscribers, configAdmin, user, link, authTokenOpt.get()));
-                        }
-                    } catch (Exception ex) {
-                        log.warn("Failed to send browser push notification", ex);
-                    }
-                });
-
-            } while (cursor.isPresent());
+            forEachSubscriberPage(projectId, Optional.empty(),
+                    cursorOpt -> voteStore.voteListByTarget(projectId, idea.getCategoryId(), cursorOpt),
+                    VoteStore.VoteModel::getUserId,
+                    users -> sendToRecipients(
+                        users,
+                        user -> new NotificationModel(
+                                projectId,
+                                user.getUserId(),
+                                notificationStore.genNotificationId(),
+                                idea.getIdeaId(),
+                                null,
+                                idea.getCreated(),
+                                Instant.now().plus(this.config.notificationExpiry()).getEpochSecond(),
+                                onPostCreated.inAppDescription(notifySubscribers, configAdmin, user)),
+                        (user, authToken) -> onPostCreated.email(notifySubscribers, configAdmin, user, link, authToken),
+                        (user, authToken) -> onPostCreated.browserPush(notifySubscribers, configAdmin, user, link, authToken)));
         });
     }
 
@@ -638,77 +707,109 @@ public class NotificationServiceImpl extends ManagedService implements Notificat
         });
     }
 
-    private Subscribers getSubscribers(IdeaModel idea, Optional<UserModel> senderOpt) {
-        String skipUserId = senderOpt.map(UserModel::getUserId).orElse("");
-        ImmutableSet.Builder<String> userIdsFundBuilder = ImmutableSet.builder();
-        if (idea.getFundersCount() != null && idea.getFundersCount() != 0) {
-            ListResponse<VoteStore.FundModel> resultFund = null;
-            do {
-                resultFund = voteStore.fundListByTarget(idea.getProjectId(), idea.getIdeaId(), Optional.ofNullable(resultFund).flatMap(ListResponse::getCursorOpt));
-                userIdsFundBuilder.addAll(resultFund.getItems().stream()
-                        .map(VoteStore.FundModel::getUserId)
-                        .filter(Predicates.not(skipUserId::equals))
-                        .collect(Collectors.toSet()));
-            } while (resultFund.getCursorOpt().isPresent());
-        }
-        ImmutableSet<String> userIdsFund = userIdsFundBuilder.build();
-
-        ImmutableSet.Builder<String> userIdsVoteBuilder = ImmutableSet.builder();
-        if (idea.getVotersCount() != null && idea.getVotersCount() != 0) {
-            ListResponse<VoteStore.VoteModel> resultVote = null;
-            do {
-                resultVote = voteStore.voteListByTarget(idea.getProjectId(), idea.getIdeaId(), Optional.ofNullable(resultVote).flatMap(ListResponse::getCursorOpt));
-                userIdsVoteBuilder.addAll(resultVote.getItems().stream()
-                        .map(VoteStore.VoteModel::getUserId)
-                        .filter(Predicates.not(skipUserId::equals))
-                        .collect(Collectors.toSet()));
-            } while (resultVote.getCursorOpt().isPresent());
-        }
-        ImmutableSet<String> userIdsVote = userIdsVoteBuilder.build();
-
-        ImmutableSet.Builder<String> userIdsExpressBuilder = ImmutableSet.builder();
-        if (!idea.getExpressions().isEmpty()) {
-            ListResponse<VoteStore.ExpressModel> resultExpress = null;
-            do {
-                resultExpress = voteStore.expressListByTarget(idea.getProjectId(), idea.getIdeaId(), Optional.ofNullable(resultExpress).flatMap(ListResponse::getCursorOpt));
-                userIdsExpressBuilder.addAll(resultExpress.getItems().stream()
-                        .map(VoteStore.ExpressModel::getUserId)
-                        .filter(Predicates.not(skipUserId::equals))
-                        .collect(Collectors.toSet()));
-            } while (resultExpress.getCursorOpt().isPresent());
-        }
-        ImmutableSet<String> userIdsExpress = userIdsExpressBuilder.build();
-
-        ImmutableSet<String> userIds = ImmutableSet.<String>builder()
-                .addAll(userIdsExpress)
-                .addAll(userIdsFund)
-                .addAll(userIdsVote)
-                .build();
-        if (userIds.isEmpty()) {
-            return new Subscribers(ImmutableSet.of(), ImmutableSet.of(), ImmutableSet.of());
+    /**
+     * Fetches one page of subscriptions and its users at a time; memory is bounded by the page size as the consumer
+     * blocks while channel queues are full.
+     */
+    private <T> void forEachSubscriberPage(
+            String projectId,
+            Optional<String> skipUserIdOpt,
+            Function<Optional<String>, ListResponse<T>> pageFetcher,
+            Function<T, String> userIdGetter,
+            Consumer<ImmutableList<UserModel>> consumer) {
+        Optional<String> cursorOpt = Optional.empty();
+        do {
+            ListResponse<T> page = pageFetcher.apply(cursorOpt);
+            cursorOpt = page.getCursorOpt();
+
+            ImmutableSet<String> userIds = page.getItems().stream()
+                    .map(userIdGetter)
+                    .filter(userId -> skipUserIdOpt.isEmpty() || !skipUserIdOpt.get().equals(userId))
+                    .collect(ImmutableSet.toImmutableSet());
+            if (userIds.isEmpty()) {
+                continue;
+            }
+            ImmutableList<UserModel> users = ImmutableList.copyOf(userStore.getUsers(projectId, userIds).values());
+            if (!users.isEmpty()) {
+                consumer.accept(users);
+            }
+        } while (cursorOpt.isPresent());
+    }
+
+    /**
+     * Queues in-app, email and browser push notifications to subscribers in batches, blocking while channel queues
+     * are full.
+     */
+    private void sendToRecipients(
+            ImmutableList<UserModel> users,
+            Function<UserModel, NotificationModel> inAppMapper,
+            BiFunction<UserModel, String, Email> emailMapper,
+            BiFunction<UserModel, String, BrowserPush> browserPushMapper) {
+        for (List<UserModel> batch : Iterables.partition(users, config.recipientBatchSize())) {
+            inAppChannel.submit(batch.size(), () -> notificationStore.notificationsCreate(batch.stream()
+                    .map(inAppMapper)
+                    .collect(ImmutableList.toImmutableList())));
+
+            // Users receiving both an email and a browser push share one auto-login token, created by whichever
+            // channel gets to them first
+            ConcurrentMap<String, String> authTokenByUserId = Maps.newConcurrentMap();
+
+            ImmutableList<UserModel> emailBatch = batch.stream()
+                    .filter(user -> user.isEmailNotify() && !Strings.isNullOrEmpty(user.getEmail()))
+                    .collect(ImmutableList.toImmutableList());
+            if (!emailBatch.isEmpty()) {
+                emailChannel.submit(emailBatch.size(), () -> emailBatch.forEach(user -> {
+                    try {
+                        emailService.send(emailMapper.apply(user, getAuthToken(authTokenByUserId, user)));
+                    } catch (Exception ex) {
+                        log.warn("Failed to send email notification", ex);
+                    }
+                }));
+            }
+
+            ImmutableList<UserModel> browserPushBatch = batch.stream()
+                    .filter(user -> !Strings.isNullOrEmpty(user.getBrowserPushToken()))
+                    .collect(ImmutableList.toImmutableList());
+            if (!browserPushBatch.isEmpty()) {
+                browserPushChannel.submit(browserPushBatch.size(), () -> browserPushBatch.forEach(user -> {
+                    try {
+                        browserPushService.send(browserPushMapper.apply(user, getAuthToken(authTokenByUserId, user)));
+                    } catch (Exception ex) {
+                        log.warn("Failed to send browser push notification", ex);
+                    }
+                }));
+            }
         }
-        ImmutableMap<String, UserModel> usersById = userStore.getUsers(idea.getProjectId(), userIds);
-
-        return new Subscribers(
-                userIdsFund.stream()
-                        .map(usersById::get).filter(Objects::nonNull).collect(ImmutableSet.toImmutableSet()),
-                userIdsVote.stream()
-                        .filter(object -> !userIdsFund.contains(object))
-                        .map(usersById::get).filter(Objects::nonNull).collect(ImmutableSet.toImmutableSet()),
-                userIdsExpress.stream()
-                        .filter(object -> !userIdsFund.contains(object))
-                        .filter(object -> !userIdsExpress.contains(object))
-                        .map(usersById::get).filter(Objects::nonNull).collect(ImmutableSet.toImmutableSet()));
+    }
+
+    private String getAuthToken(ConcurrentMap<String, String> authTokenByUserId, UserModel user) {
+        return authTokenByUserId.computeIfAbsent(user.getUserId(), userId ->
+                userStore.createToken(user.getProjectId(), userId, config.autoLoginExpiry()));
     }
 
     private void submit(Runnable task) {
-        executor.submit(() -> {
-            try {
-                task.run();
-            } catch (Throwable th) {
-                log.warn("Failed to complete task", th);
+        submit(executor, task);
+    }
+
+    private void submitFanOut(Runnable task) {
+        submit(fanOutExecutor, task);
+    }
+
+    private void submit(ThreadPoolExecutor executor, Runnable task) {
+        try {
+            executor.execute(() -> {
+                try {
+                    task.run();
+                } catch (Throwable th) {
+                    log.warn("Failed to complete task", th);
+                }
+            });
+        } catch (RejectedExecutionException ex) {
+            droppedCounter.incrementAndGet();
+            if (LogUtil.rateLimitAllowLog("notificationService-queue-full")) {
+                log.warn("Notification queue full, dropping notification", ex);
             }
-        });
+        }
     }
 
     public static Module module() {
@@ -721,16 +822,4 @@ public class NotificationServiceImpl extends ManagedService implements Notificat
             }
         };
     }
-
-    @Value
-    @Builder(toBuilder = true)
-    @AllArgsConstructor
-    private static class Subscribers {
-        @NonNull
-        private final ImmutableSet<UserModel> usersExpressed;
-        @NonNull
-        private final ImmutableSet<UserModel> usersFunded;
-        @NonNull
-        private final ImmutableSet<UserModel> usersVoted;
-    }
 }
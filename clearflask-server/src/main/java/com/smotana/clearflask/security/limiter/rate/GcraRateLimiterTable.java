@@ -0,0 +1,139 @@
+// SPDX-FileCopyrightText: 2019-2022 Matus Faro <matus@smotana.com>
+// SPDX-License-Identifier: Apache-2.0
+package com.smotana.clearflask.security.limiter.rate;
+
+import java.util.Arrays;
+import java.util.function.LongSupplier;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * Fixed size table of rate limiters using the generic cell rate algorithm (GCRA).
+ * <p>
+ * Each limiter is a single long, its empty time: the time at which it would hold no stored permits. A request is
+ * allowed if the empty time is not in the future, after which the empty time is clamped to at most capacity in the
+ * past and pushed forward by the permits taken. This behaves the same as a Guava bursty rate limiter with a zero
+ * timeout, including allowing a request to borrow beyond the stored permits.
+ * <p>
+ * Limiters are keyed by a 64-bit hash of the target and tier, stored next to the empty time in flat primitive arrays.
+ * The table is split into stripes each guarded by its own lock; all tiers of a target land in the same stripe so a
+ * multi-tier check takes a single lock. When a probe window is full, the limiter with the oldest empty time, the one
+ * idle the longest, is evicted, keeping memory bounded.
+ */
+class GcraRateLimiterTable {
+
+    private static final int STRIPES = 64;
+    private static final int PROBE_MAX = 8;
+    private static final double MICROS_PER_SECOND = 1_000_000d;
+
+    private final LongSupplier microsTimer;
+    private final int slotsPerStripe;
+    private final long[] keys;
+    private final long[] emptyTimes;
+    private final Object[] locks;
+
+    GcraRateLimiterTable(int capacity, LongSupplier microsTimer) {
+        checkArgument(capacity >= STRIPES * PROBE_MAX, "Capacity %s must be at least %s", capacity, STRIPES * PROBE_MAX);
+        this.microsTimer = microsTimer;
+        this.slotsPerStripe = capacity / STRIPES;
+        this.keys = new long[slotsPerStripe * STRIPES];
+        this.emptyTimes = new long[slotsPerStripe * STRIPES];
+        this.locks = new Object[STRIPES];
+        for (int i = 0; i < STRIPES; i++) {
+            locks[i] = new Object();
+        }
+    }
+
+    /**
+     * Takes permits from each tier in order, stopping at the first tier without enough permits. Tiers before it keep
+     * their permits taken, same as acquiring from independent limiters one at a time.
+     *
+     * @param altPermCap Alternating permits per second and capacity in seconds for each tier
+     */
+    boolean tryAcquire(String target, int permits, double prechargedInSeconds, double[] altPermCap) {
+        long targetHash = hash(target);
+        int stripe = (int) (targetHash >>> 58);
+        long now = microsTimer.getAsLong();
+        synchronized (locks[stripe]) {
+            for (int i = 0; i < altPermCap.length; i += 2) {
+                double permitsPerSecond = altPermCap[i];
+                double capacityInSeconds = altPermCap[i + 1];
+                long key = tierKey(targetHash, permitsPerSecond, capacityInSeconds);
+                int slot = findSlot(stripe, key, now - (long) (Math.min(capacityInSeconds, prechargedInSeconds) * MICROS_PER_SECOND));
+                long emptyTime = emptyTimes[slot];
+                if (emptyTime > now) {
+                    return false;
+                }
+                emptyTimes[slot] = Math.max(now - (long) (capacityInSeconds * MICROS_PER_SECOND), emptyTime)
+                        + (long) (permits * MICROS_PER_SECOND / permitsPerSecond);
+            }
+        }
+        return true;
+    }
+
+    void clear() {
+        for (int stripe = 0; stripe < STRIPES; stripe++) {
+            synchronized (locks[stripe]) {
+                Arrays.fill(keys, stripe * slotsPerStripe, (stripe + 1) * slotsPerStripe, 0L);
+            }
+        }
+    }
+
+    /**
+     * Finds the slot of the key within the stripe, taking over an empty or the most idle slot if not present.
+     */
+    private int findSlot(int stripe, long key, long initialEmptyTime) {
+        int stripeStart = stripe * slotsPerStripe;
+        int start = (int) Long.remainderUnsigned(key, slotsPerStripe);
+        int victim = -1;
+        for (int probe = 0; probe < PROBE_MAX; probe++) {
+            int slot = stripeStart + (start + probe) % slotsPerStripe;
+            long slotKey = keys[slot];
+            if (slotKey == key) {
+                return slot;
+            }
+            if (slotKey == 0L) {
+                victim = slot;
+                break;
+            }
+            if (victim == -1 || emptyTimes[slot] < emptyTimes[victim]) {
+                victim = slot;
+            }
+        }
+        keys[victim] = key;
+        emptyTimes[victim] = initialEmptyTime;
+        return victim;
+    }
+
+    private static long tierKey(long targetHash, double permitsPerSecond, double capacityInSeconds) {
+        long key = mix(targetHash
+                ^ mix(Double.doubleToLongBits(permitsPerSecond))
+                ^ Long.rotateLeft(mix(Double.doubleToLongBits(capacityInSeconds)), 32));
+        // Zero marks an empty slot
+        return key == 0L ? 1L : key;
+    }
+
+    /**
+     * 64-bit FNV-1a over the characters, avoids allocating on every request.
+     */
+    private static long hash(String target) {
+        long hash = 0xcbf29ce484222325L;
+        for (int i = 0; i < target.length(); i++) {
+            hash ^= target.charAt(i);
+            hash *= 0x100000001b3L;
+        }
+        return mix(hash);
+    }
+
+    /**
+     * Murmur3 finalizer to spread bits across the whole long.
+     */
+    private static long mix(long value) {
+        value ^= value >>> 33;
+        value *= 0xff51afd7ed558ccdL;
+        value ^= value >>> 33;
+        value *= 0xc4ceb9fe1a85ec53L;
+        value ^= value >>> 33;
+        return value;
+    }
+}
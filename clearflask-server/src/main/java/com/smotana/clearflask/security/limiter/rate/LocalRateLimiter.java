@@ -2,8 +2,6 @@
 // SPDX-License-Identifier: Apache-2.0
 package com.smotana.clearflask.security.limiter.rate;
 
-import com.google.common.cache.Cache;
-import com.google.common.cache.CacheBuilder;
 import com.google.common.util.concurrent.GuavaRateLimiters;
 import com.google.inject.AbstractModule;
 import com.google.inject.Inject;
@@ -14,13 +12,14 @@ import com.kik.config.ice.annotations.DefaultValue;
 import com.smotana.clearflask.util.Extern;
 import lombok.extern.slf4j.Slf4j;
 
-import java.time.Duration;
-import java.util.concurrent.ConcurrentMap;
-import java.util.concurrent.ExecutionException;
-import java.util.concurrent.TimeUnit;
-
 import static com.google.common.base.Preconditions.checkArgument;
 
+/**
+ * In-memory rate limiter, limits are kept per node.
+ * <p>
+ * State of all targets is held in a fixed size {@link GcraRateLimiterTable}, so memory stays bounded regardless of how
+ * many targets are seen, e.g. during a scraping attack.
+ */
 @Slf4j
 @Singleton
 public class LocalRateLimiter implements RateLimiter {
@@ -28,21 +27,29 @@ public class LocalRateLimiter implements RateLimiter {
     public interface Config {
         @DefaultValue("true")
         boolean enabled();
-    }
 
-    private final ConcurrentMap<Double, Cache<String, com.google.common.util.concurrent.RateLimiter>> rateLimiters = CacheBuilder.newBuilder()
-            .expireAfterAccess(Duration.ofDays(30))
-            .<Double, Cache<String, com.google.common.util.concurrent.RateLimiter>>build()
-            .asMap();
+        /**
+         * Maximum number of limiters held, each tier of a target takes one. Takes effect on restart.
+         */
+        @DefaultValue("524288")
+        int capacity();
+    }
 
     @Inject
     private Config config;
     @Inject
     private GuavaRateLimiters guavaRateLimiters;
 
+    private GcraRateLimiterTable table;
+
+    @Inject
+    private void setup() {
+        table = new GcraRateLimiterTable(config.capacity(), guavaRateLimiters.createMicrosTimer());
+    }
+
     @Override
     public boolean tryAcquire(String target, int permits, double prechargedDurationInSeconds, double permitsPerSecond, double capacityInSeconds) {
-        return getRateLimiter(target, permitsPerSecond, prechargedDurationInSeconds, capacityInSeconds).tryAcquire(permits);
+        return table.tryAcquire(target, permits, prechargedDurationInSeconds, new double[]{permitsPerSecond, capacityInSeconds});
     }
 
     @Override
@@ -53,34 +60,13 @@ public class LocalRateLimiter implements RateLimiter {
         }
         checkArgument(altPermCap.length % 2 == 0);
 
-        for (int i = 0; i < altPermCap.length; i += 2) {
-            if (!getRateLimiter(target, prechargedDurationInSeconds, altPermCap[i], altPermCap[i + 1]).tryAcquire(permits)) {
-                return false;
-            }
-        }
-        return true;
+        return table.tryAcquire(target, permits, prechargedDurationInSeconds, altPermCap);
     }
 
     @Extern
     @Override
     public void clearAll() {
-        rateLimiters.clear();
-    }
-
-    private com.google.common.util.concurrent.RateLimiter getRateLimiter(String target, double prechargedDuration, double permitsPerSecond, double capacityInSeconds) {
-        Cache<String, com.google.common.util.concurrent.RateLimiter> rateLimiterCache = rateLimiters.get(capacityInSeconds);
-        if (rateLimiterCache == null) {
-            rateLimiterCache = rateLimiters.computeIfAbsent(capacityInSeconds, capacityInSec -> CacheBuilder.newBuilder()
-                    .expireAfterAccess(capacityInSec.longValue(), TimeUnit.SECONDS)
-                    .maximumSize(100000)
-                    .build());
-        }
-        try {
-            return rateLimiterCache.get(target, () -> guavaRateLimiters.create(
-                    permitsPerSecond, capacityInSeconds, Math.min(capacityInSeconds, prechargedDuration)));
-        } catch (ExecutionException ex) {
-            throw new RuntimeException(ex);
-        }
+        table.clear();
     }
 
     public static Module module() {
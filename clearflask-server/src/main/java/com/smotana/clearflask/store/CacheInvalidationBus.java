@@ -0,0 +1,61 @@
+// SPDX-FileCopyrightText: 2019-2022 Matus Faro <matus@smotana.com>
+// SPDX-License-Identifier: Apache-2.0
+package com.smotana.clearflask.store;
+
+import com.google.common.collect.ImmutableSet;
+import io.dataspray.singletable.DynamoTable;
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.NonNull;
+import lombok.Value;
+
+import java.util.function.Consumer;
+
+import static io.dataspray.singletable.TableType.Primary;
+
+/**
+ * Propagates invalidation of in-memory caches to all server nodes.
+ * <p>
+ * Publish after persisting a write and before updating the local cache; some implementations also deliver the
+ * invalidation back to the publishing node.
+ */
+public interface CacheInvalidationBus {
+
+    void publish(String cacheName, ImmutableSet<String> keys);
+
+    default void publish(String cacheName, String key) {
+        publish(cacheName, ImmutableSet.of(key));
+    }
+
+    /**
+     * Listener is called with keys that should be invalidated from the named cache.
+     */
+    void subscribe(String cacheName, Consumer<ImmutableSet<String>> listener);
+
+    @Value
+    @Builder(toBuilder = true)
+    @AllArgsConstructor
+    @DynamoTable(type = Primary, partitionKeys = {"channel"}, rangePrefix = "cacheInvalidation", rangeKeys = {"eventId"})
+    class CacheInvalidationEvent {
+        @NonNull
+        String channel;
+
+        /**
+         * Sortable by time of publishing
+         */
+        @NonNull
+        String eventId;
+
+        @NonNull
+        String nodeId;
+
+        @NonNull
+        String cacheName;
+
+        @NonNull
+        ImmutableSet<String> keys;
+
+        @NonNull
+        long ttlInEpochSec;
+    }
+}
@@ -182,6 +182,11 @@ public interface ProjectStore {
          * Currently only for ElasticSearch schema updates
          */
         Long projectVersion;
+
+        /**
+         * {@link com.smotana.clearflask.util.ConfigSchemaUpgrader#CURRENT_VERSION} the config was last upgraded to.
+         */
+        Long configUpgradeVersion;
     }
 
     @Value
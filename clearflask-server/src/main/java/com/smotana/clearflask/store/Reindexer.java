@@ -0,0 +1,518 @@
+// SPDX-FileCopyrightText: 2019-2022 Matus Faro <matus@smotana.com>
+// SPDX-License-Identifier: Apache-2.0
+package com.smotana.clearflask.store;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Iterables;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.inject.AbstractModule;
+import com.google.inject.Inject;
+import com.google.inject.Module;
+import com.google.inject.Provider;
+import com.google.inject.Singleton;
+import com.kik.config.ice.ConfigSystem;
+import com.kik.config.ice.annotations.DefaultValue;
+import com.smotana.clearflask.store.elastic.ElasticUtil;
+import com.smotana.clearflask.store.elastic.ElasticUtil.IndexMigrationWrites;
+import com.smotana.clearflask.store.mysql.MysqlUtil;
+import com.smotana.clearflask.util.Extern;
+import com.smotana.clearflask.util.LogUtil;
+import lombok.NonNull;
+import lombok.Value;
+import lombok.extern.slf4j.Slf4j;
+import org.elasticsearch.action.admin.indices.alias.IndicesAliasesRequest;
+import org.elasticsearch.action.admin.indices.alias.IndicesAliasesRequest.AliasActions;
+import org.elasticsearch.action.admin.indices.delete.DeleteIndexRequest;
+import org.elasticsearch.action.admin.indices.refresh.RefreshRequest;
+import org.elasticsearch.action.admin.indices.settings.put.UpdateSettingsRequest;
+import org.elasticsearch.action.bulk.BackoffPolicy;
+import org.elasticsearch.action.bulk.BulkProcessor;
+import org.elasticsearch.action.bulk.BulkRequest;
+import org.elasticsearch.action.bulk.BulkResponse;
+import org.elasticsearch.action.delete.DeleteRequest;
+import org.elasticsearch.action.get.MultiGetItemResponse;
+import org.elasticsearch.action.get.MultiGetRequest;
+import org.elasticsearch.action.index.IndexRequest;
+import org.elasticsearch.action.support.WriteRequest;
+import org.elasticsearch.client.RequestOptions;
+import org.elasticsearch.client.RestHighLevelClient;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.unit.ByteSizeUnit;
+import org.elasticsearch.common.unit.ByteSizeValue;
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.common.xcontent.XContentType;
+import org.elasticsearch.index.query.QueryBuilder;
+import org.elasticsearch.index.reindex.DeleteByQueryRequest;
+import org.jooq.Query;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Collection;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Repopulates search indexes from DynamoDB in bulk.
+ * <p>
+ * Items are read once and fed to an Elasticsearch {@link BulkProcessor} and to batched MySQL upserts, each with a
+ * bounded number of requests in flight so reading keeps going while previous batches are being written.
+ * <p>
+ * Elasticsearch can either be repopulated in place or built into a new index version which then atomically replaces
+ * the current one behind the store's alias, keeping the current index searchable until the new one is ready. Writes
+ * made to the alias by any node during the rebuild are recorded by {@link ElasticUtil#trackWrite} and copied from the
+ * current index onto the new one, both before and after the swap. Around the swap itself writes are pinned to the
+ * current index, so the final copy knows where each of them landed and never overwrites a newer write made to the new
+ * index.
+ * <p>
+ * Other nodes hear about each step over the {@link CacheInvalidationBus}, so every step waits for
+ * {@link Config#catchUpSettlePeriod()} before relying on it.
+ */
+@Slf4j
+@Singleton
+public class Reindexer {
+
+    public interface Config {
+        /**
+         * Documents per Elasticsearch bulk request.
+         */
+        @DefaultValue("1000")
+        int elasticBulkActions();
+
+        @DefaultValue("5")
+        long elasticBulkSizeMb();
+
+        /**
+         * Bulk requests in flight while the next one is being filled.
+         */
+        @DefaultValue("2")
+        int elasticConcurrentRequests();
+
+        @DefaultValue("1000")
+        int mysqlBatchSize();
+
+        /**
+         * Batches in flight while the next one is being filled.
+         */
+        @DefaultValue("2")
+        int mysqlConcurrentBatches();
+
+        @DefaultValue("PT1H")
+        Duration awaitCompletionTimeout();
+
+        /**
+         * Rounds of copying writes made during the rebuild onto the new index before swapping it in.
+         */
+        @DefaultValue("5")
+        int catchUpRoundsMax();
+
+        /**
+         * Swap in the new index once a catch-up round has fewer writes to copy than this.
+         */
+        @DefaultValue("100")
+        int catchUpSwapThreshold();
+
+        /**
+         * Time given to other nodes to hear about a step of the migration and to writes already made to reach an index
+         * and be recorded. Must be longer than the {@link CacheInvalidationBus} takes to deliver an event.
+         */
+        @DefaultValue("PT5S")
+        Duration catchUpSettlePeriod();
+    }
+
+    @Inject
+    private Config config;
+    @Inject
+    private Provider<RestHighLevelClient> elastic;
+    @Inject
+    private ElasticUtil elasticUtil;
+    @Inject
+    private MysqlUtil mysqlUtil;
+
+    private final ConcurrentMap<String, Progress> runningJobs = Maps.newConcurrentMap();
+    private final Cache<String, Progress> finishedJobs = CacheBuilder.newBuilder()
+            .maximumSize(100)
+            .expireAfterWrite(Duration.ofDays(1))
+            .build();
+
+    @Value
+    public static class ElasticTarget<T> {
+        /**
+         * Index or alias the store reads and writes.
+         */
+        @NonNull
+        String indexName;
+        /**
+         * Creates an index with the store's mapping under the given name. If present, a new index is built and swapped
+         * in, otherwise documents are indexed into the current index in place.
+         */
+        @NonNull
+        Optional<Function<String, ListenableFuture<Void>>> createIndexOpt;
+        @NonNull
+        Function<T, IndexRequest> toIndexRequest;
+    }
+
+    /**
+     * Repopulates search indexes with every item passed to the consumer by the source. Blocks until done.
+     *
+     * @param jobName Name used when reporting progress, e.g. "idea-projectId"
+     */
+    public <T> void reindex(
+            String jobName,
+            Consumer<Consumer<T>> source,
+            Optional<ElasticTarget<T>> elasticTargetOpt,
+            Optional<Function<List<T>, Collection<Query>>> toMysqlQueriesOpt) throws Exception {
+        Progress progress = new Progress(jobName);
+        if (runningJobs.putIfAbsent(jobName, progress) != null) {
+            throw new IllegalStateException("Reindex already in progress for " + jobName);
+        }
+        Optional<String> unswappedIndexOpt = Optional.empty();
+        Optional<String> migratingAliasOpt = Optional.empty();
+        try {
+            Optional<String> elasticIndexOpt = Optional.empty();
+            if (elasticTargetOpt.isPresent()) {
+                ElasticTarget<T> elasticTarget = elasticTargetOpt.get();
+                if (elasticTarget.getCreateIndexOpt().isPresent()) {
+                    String newIndexName = elasticUtil.getIndexVersionName(elasticTarget.getIndexName());
+                    elasticUtil.startIndexMigration(elasticTarget.getIndexName());
+                    migratingAliasOpt = Optional.of(elasticTarget.getIndexName());
+                    elasticTarget.getCreateIndexOpt().get().apply(newIndexName).get();
+                    // Nobody is reading the new index yet, skip refreshing until done
+                    elastic.get().indices().putSettings(new UpdateSettingsRequest(newIndexName)
+                                    .settings(Settings.builder().put("index.refresh_interval", "-1")),
+                            RequestOptions.DEFAULT);
+                    elasticIndexOpt = Optional.of(newIndexName);
+                    unswappedIndexOpt = elasticIndexOpt;
+                    // Other nodes must be recording their writes before the source is read
+                    awaitSettle();
+                } else {
+                    elasticIndexOpt = Optional.of(elasticTarget.getIndexName());
+                }
+            }
+
+            Optional<BulkProcessor> bulkProcessorOpt = elasticIndexOpt.map(index -> createBulkProcessor(jobName, progress));
+            Semaphore mysqlInFlight = new Semaphore(config.mysqlConcurrentBatches());
+            List<T> mysqlBatch = Lists.newArrayList();
+            Optional<String> elasticIndexFinalOpt = elasticIndexOpt;
+            try {
+                source.accept(item -> {
+                    progress.read.incrementAndGet();
+                    if (bulkProcessorOpt.isPresent()) {
+                        bulkProcessorOpt.get().add(elasticTargetOpt.get().getToIndexRequest().apply(item)
+                                .index(elasticIndexFinalOpt.get())
+                                .setRefreshPolicy(WriteRequest.RefreshPolicy.NONE));
+                    }
+                    if (toMysqlQueriesOpt.isPresent()) {
+                        mysqlBatch.add(item);
+                        if (mysqlBatch.size() >= config.mysqlBatchSize()) {
+                            writeMysqlBatch(progress, mysqlInFlight, toMysqlQueriesOpt.get(), mysqlBatch);
+                            mysqlBatch.clear();
+                        }
+                    }
+                });
+                if (!mysqlBatch.isEmpty()) {
+                    writeMysqlBatch(progress, mysqlInFlight, toMysqlQueriesOpt.get(), mysqlBatch);
+                }
+            } finally {
+                if (bulkProcessorOpt.isPresent()
+                        && !bulkProcessorOpt.get().awaitClose(config.awaitCompletionTimeout().toMillis(), TimeUnit.MILLISECONDS)) {
+                    throw new TimeoutException("Timed out waiting for Elasticsearch bulk requests for " + jobName);
+                }
+                if (!mysqlInFlight.tryAcquire(config.mysqlConcurrentBatches(), config.awaitCompletionTimeout().toMillis(), TimeUnit.MILLISECONDS)) {
+                    throw new TimeoutException("Timed out waiting for MySQL batches for " + jobName);
+                }
+            }
+
+            if (elasticTargetOpt.isPresent() && elasticTargetOpt.get().getCreateIndexOpt().isPresent()) {
+                String newIndexName = elasticIndexOpt.get();
+                if (progress.elasticFailed.get() > 0) {
+                    throw new IllegalStateException("Failed to index " + progress.elasticFailed.get()
+                            + " documents for " + jobName + ", keeping current index");
+                }
+                elastic.get().indices().putSettings(new UpdateSettingsRequest(newIndexName)
+                                .settings(Settings.builder().putNull("index.refresh_interval")),
+                        RequestOptions.DEFAULT);
+                elastic.get().indices().refresh(new RefreshRequest(newIndexName), RequestOptions.DEFAULT);
+                String alias = elasticTargetOpt.get().getIndexName();
+                ImmutableSet<String> previousIndices = elasticUtil.getConcreteIndices(alias);
+                boolean isLegacyIndex = previousIndices.contains(alias);
+                // Project moving out of a shared index into its own
+                Optional<String> sharedRoutingOpt = elasticUtil.getSharedIndexRouting(alias);
+
+                // Catch up on writes made during the rebuild while the current index still receives them
+                if (!previousIndices.isEmpty()) {
+                    for (int round = 0; round < config.catchUpRoundsMax(); round++) {
+                        IndexMigrationWrites writes = elasticUtil.drainIndexMigration(alias);
+                        awaitSettle();
+                        copyWrites(progress, alias, Optional.empty(), newIndexName, writes, Optional.empty());
+                        if (writes.size() < config.catchUpSwapThreshold()) {
+                            break;
+                        }
+                    }
+                }
+
+                // Send writes to the previous index until every node knows the swap is done so they can be copied over
+                // reliably, and let writes sent to the alias before pinning land before swapping
+                boolean isPinned = !isLegacyIndex && !previousIndices.isEmpty();
+                if (isPinned) {
+                    elasticUtil.pinIndexMigration(alias, previousIndices.iterator().next(), sharedRoutingOpt);
+                    awaitSettle();
+                }
+
+                swapIndex(alias, previousIndices, isLegacyIndex, newIndexName);
+                unswappedIndexOpt = Optional.empty();
+                if (isPinned) {
+                    elasticUtil.swapIndexMigration(alias);
+                    awaitSettle();
+                }
+
+                // Each recorded write knows whether it landed on the previous or the new index
+                IndexMigrationWrites writes = elasticUtil.drainIndexMigration(alias);
+                if (isLegacyIndex) {
+                    elasticUtil.finishIndexMigration(alias);
+                    migratingAliasOpt = Optional.empty();
+                    if (writes.size() > 0) {
+                        log.warn("Reindex {} may have missed {} writes made while swapping out legacy index {}",
+                                jobName, writes.size(), alias);
+                    }
+                } else if (isPinned) {
+                    awaitSettle();
+                    // Skip documents written to the new index since the swap, they are newer than the copy
+                    copyWrites(progress, previousIndices.iterator().next(), sharedRoutingOpt, alias, writes,
+                            Optional.of(elasticUtil.peekIndexMigration(alias)));
+                    elasticUtil.finishIndexMigration(alias);
+                    migratingAliasOpt = Optional.empty();
+                    // Let writes still pinned to the previous index land before deleting it
+                    awaitSettle();
+                    String[] dedicatedIndices = previousIndices.stream()
+                            .filter(index -> !elasticUtil.isSharedIndex(index))
+                            .toArray(String[]::new);
+                    if (dedicatedIndices.length > 0) {
+                        elastic.get().indices().delete(new DeleteIndexRequest(dedicatedIndices), RequestOptions.DEFAULT);
+                    }
+                    if (sharedRoutingOpt.isPresent()) {
+                        for (String sharedIndex : Sets.difference(previousIndices, ImmutableSet.copyOf(dedicatedIndices))) {
+                            elasticUtil.deleteFromSharedIndex(sharedIndex, sharedRoutingOpt.get());
+                        }
+                    }
+                }
+            }
+            if (progress.mysqlFailed.get() > 0) {
+                throw new IllegalStateException("Failed to write " + progress.mysqlFailed.get() + " rows to MySQL for " + jobName);
+            }
+        } catch (Exception ex) {
+            if (unswappedIndexOpt.isPresent()) {
+                try {
+                    elastic.get().indices().delete(new DeleteIndexRequest(unswappedIndexOpt.get()), RequestOptions.DEFAULT);
+                } catch (Exception ex2) {
+                    log.warn("Failed to delete abandoned index {}", unswappedIndexOpt.get(), ex2);
+                }
+            }
+            throw ex;
+        } finally {
+            migratingAliasOpt.ifPresent(elasticUtil::finishIndexMigration);
+            progress.finished = Instant.now();
+            runningJobs.remove(jobName, progress);
+            finishedJobs.put(jobName, progress);
+            log.info("Reindex finished {}", progress);
+        }
+    }
+
+    /**
+     * Atomically points the alias at the new index. A legacy concrete index with the alias' name is removed as part of
+     * the swap, other indices previously behind the alias are left for the caller to delete.
+     */
+    private void swapIndex(String alias, ImmutableSet<String> previousIndices, boolean isLegacyIndex, String newIndexName) throws IOException {
+        IndicesAliasesRequest request = new IndicesAliasesRequest();
+        if (isLegacyIndex) {
+            request.addAliasAction(AliasActions.removeIndex().index(alias));
+        } else if (!previousIndices.isEmpty()) {
+            request.addAliasAction(AliasActions.remove().indices(previousIndices.toArray(String[]::new)).alias(alias));
+        }
+        request.addAliasAction(AliasActions.add().index(newIndexName).alias(alias));
+        elastic.get().indices().updateAliases(request, RequestOptions.DEFAULT);
+        log.info("Swapped alias {} to index {} replacing {}", alias, newIndexName, previousIndices);
+    }
+
+    private void awaitSettle() throws InterruptedException {
+        long settleMillis = config.catchUpSettlePeriod().toMillis();
+        if (settleMillis > 0) {
+            Thread.sleep(settleMillis);
+        }
+    }
+
+    /**
+     * Copies the current state of documents written during the rebuild. Documents missing from the source index are
+     * only deleted if their last recorded write was a delete, otherwise the write has not landed and is left alone.
+     *
+     * @param newerWritesOpt If present, the alias has been swapped: only writes that landed on the previous index are
+     *                       copied, skipping documents since written to the new index directly as they are newer
+     */
+    private void copyWrites(Progress progress, String fromIndex, Optional<String> routingOpt, String toIndex, IndexMigrationWrites writes, Optional<IndexMigrationWrites> newerWritesOpt) throws IOException {
+        for (List<String> docIdsAll : Iterables.partition(writes.getDocIds(), config.elasticBulkActions())) {
+            List<String> docIds = newerWritesOpt.isPresent()
+                    ? docIdsAll.stream()
+                    .filter(writes::isWrittenToPreviousIndexOnly)
+                    .filter(docId -> !newerWritesOpt.get().isWrittenToNewIndex(docId))
+                    .collect(Collectors.toList())
+                    : docIdsAll;
+            if (docIds.isEmpty()) {
+                continue;
+            }
+            MultiGetRequest multiGetRequest = new MultiGetRequest();
+            docIds.forEach(docId -> multiGetRequest.add(new MultiGetRequest.Item(fromIndex, docId)
+                    .routing(routingOpt.orElse(null))));
+            BulkRequest bulkRequest = new BulkRequest();
+            for (MultiGetItemResponse item : elastic.get().mget(multiGetRequest, RequestOptions.DEFAULT).getResponses()) {
+                if (item.isFailed()) {
+                    progress.elasticFailed.incrementAndGet();
+                    log.warn("Failed to fetch document {} from {} for catch-up", item.getId(), fromIndex, item.getFailure().getFailure());
+                } else if (item.getResponse().isExists()) {
+                    bulkRequest.add(new IndexRequest(toIndex)
+                            .id(item.getId())
+                            .source(item.getResponse().getSourceAsBytesRef(), XContentType.JSON));
+                } else if (writes.isDeleted(item.getId())) {
+                    bulkRequest.add(new DeleteRequest(toIndex, item.getId()));
+                }
+            }
+            if (bulkRequest.numberOfActions() == 0) {
+                continue;
+            }
+            BulkResponse bulkResponse = elastic.get().bulk(bulkRequest, RequestOptions.DEFAULT);
+            long failed = Stream.of(bulkResponse.getItems()).filter(item -> item.isFailed()).count();
+            progress.caughtUp.addAndGet(bulkRequest.numberOfActions() - failed);
+            progress.elasticFailed.addAndGet(failed);
+            if (failed > 0) {
+                log.warn("Failed to copy {} documents from {} to {}: {}", failed, fromIndex, toIndex, bulkResponse.buildFailureMessage());
+            }
+        }
+        for (QueryBuilder query : newerWritesOpt.isPresent()
+                ? writes.getDeleteByQueriesToPreviousIndex()
+                : writes.getDeleteByQueries()) {
+            elastic.get().deleteByQuery(new DeleteByQueryRequest(toIndex).setQuery(query), RequestOptions.DEFAULT);
+            progress.caughtUp.incrementAndGet();
+        }
+    }
+
+    private BulkProcessor createBulkProcessor(String jobName, Progress progress) {
+        return BulkProcessor.builder(
+                        (request, bulkListener) -> elastic.get().bulkAsync(request, RequestOptions.DEFAULT, bulkListener),
+                        new BulkProcessor.Listener() {
+                            @Override
+                            public void beforeBulk(long executionId, BulkRequest request) {
+                            }
+
+                            @Override
+                            public void afterBulk(long executionId, BulkRequest request, BulkResponse response) {
+                                long failed = Stream.of(response.getItems()).filter(item -> item.isFailed()).count();
+                                progress.elasticIndexed.addAndGet(request.numberOfActions() - failed);
+                                progress.elasticFailed.addAndGet(failed);
+                                if (failed > 0 && LogUtil.rateLimitAllowLog("reindexer-bulk-item-failure")) {
+                                    log.warn("Failed to index {} documents for {}: {}", failed, jobName, response.buildFailureMessage());
+                                }
+                            }
+
+                            @Override
+                            public void afterBulk(long executionId, BulkRequest request, Throwable failure) {
+                                progress.elasticFailed.addAndGet(request.numberOfActions());
+                                if (LogUtil.rateLimitAllowLog("reindexer-bulk-failure")) {
+                                    log.warn("Failed to index {} documents for {}", request.numberOfActions(), jobName, failure);
+                                }
+                            }
+                        },
+                        "reindex-" + jobName)
+                .setBulkActions(config.elasticBulkActions())
+                .setBulkSize(new ByteSizeValue(config.elasticBulkSizeMb(), ByteSizeUnit.MB))
+                .setConcurrentRequests(config.elasticConcurrentRequests())
+                .setBackoffPolicy(BackoffPolicy.exponentialBackoff(TimeValue.timeValueMillis(100), 8))
+                .build();
+    }
+
+    private <T> void writeMysqlBatch(Progress progress, Semaphore inFlight, Function<List<T>, Collection<Query>> toMysqlQueries, List<T> items) {
+        int count = items.size();
+        Collection<Query> queries = toMysqlQueries.apply(ImmutableList.copyOf(items));
+        try {
+            inFlight.acquire();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted waiting for MySQL batches for " + progress.jobName, ex);
+        }
+        mysqlUtil.batch(queries).whenComplete((result, th) -> {
+            inFlight.release();
+            if (th != null) {
+                progress.mysqlFailed.addAndGet(count);
+                if (LogUtil.rateLimitAllowLog("reindexer-mysql-failure")) {
+                    log.warn("Failed to write {} rows to MySQL for {}", count, progress.jobName, th);
+                }
+            } else {
+                progress.mysqlWritten.addAndGet(count);
+            }
+        });
+    }
+
+    @Extern
+    public String getReindexProgress() {
+        return Stream.concat(
+                        runningJobs.values().stream(),
+                        finishedJobs.asMap().values().stream())
+                .map(Progress::toString)
+                .collect(Collectors.joining("\n"));
+    }
+
+    private static class Progress {
+        private final String jobName;
+        private final Instant started = Instant.now();
+        private final AtomicLong read = new AtomicLong();
+        private final AtomicLong elasticIndexed = new AtomicLong();
+        private final AtomicLong elasticFailed = new AtomicLong();
+        private final AtomicLong caughtUp = new AtomicLong();
+        private final AtomicLong mysqlWritten = new AtomicLong();
+        private final AtomicLong mysqlFailed = new AtomicLong();
+        private volatile Instant finished;
+
+        private Progress(String jobName) {
+            this.jobName = jobName;
+        }
+
+        @Override
+        public String toString() {
+            Duration elapsed = Duration.between(started, finished != null ? finished : Instant.now());
+            double elapsedSeconds = Math.max(1, elapsed.toMillis()) / 1000d;
+            return jobName
+                    + (finished != null ? " finished" : " running")
+                    + " elapsed " + elapsed
+                    + " read " + read.get()
+                    + " readPerSec " + Math.round(read.get() / elapsedSeconds)
+                    + " elasticIndexed " + elasticIndexed.get()
+                    + " elasticFailed " + elasticFailed.get()
+                    + " caughtUp " + caughtUp.get()
+                    + " mysqlWritten " + mysqlWritten.get()
+                    + " mysqlFailed " + mysqlFailed.get();
+        }
+    }
+
+    public static Module module() {
+        return new AbstractModule() {
+            @Override
+            protected void configure() {
+                bind(Reindexer.class).asEagerSingleton();
+                install(ConfigSystem.configModule(Config.class));
+            }
+        };
+    }
+}
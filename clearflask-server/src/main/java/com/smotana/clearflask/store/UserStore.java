@@ -72,11 +72,11 @@ public interface UserStore {
 
     UserAndIndexingFuture updateUser(String projectId, String userId, UserUpdate updates);
 
-    UserModel userVoteUpdateBloom(String projectId, String userId, String ideaId);
+    void userVoteUpdateBloom(String projectId, String userId, String ideaId);
 
-    UserModel userCommentVoteUpdateBloom(String projectId, String userId, String commentId);
+    void userCommentVoteUpdateBloom(String projectId, String userId, String commentId);
 
-    UserModel userExpressUpdateBloom(String projectId, String userId, String ideaId);
+    void userExpressUpdateBloom(String projectId, String userId, String ideaId);
 
     UserModel updateSubscription(String projectId, String userId, String categoryId, boolean subscribe);
 
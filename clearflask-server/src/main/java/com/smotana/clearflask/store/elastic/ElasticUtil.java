@@ -7,37 +7,76 @@ import com.github.rholder.retry.RetryerBuilder;
 import com.github.rholder.retry.StopStrategies;
 import com.github.rholder.retry.WaitStrategies;
 import com.google.common.annotations.VisibleForTesting;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.collect.HashMultimap;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.ImmutableSortedSet;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Multimaps;
+import com.google.common.collect.Ordering;
+import com.google.common.collect.Queues;
+import com.google.common.collect.SetMultimap;
+import com.google.common.collect.Sets;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
 import com.google.gson.Gson;
+import com.google.gson.JsonObject;
 import com.google.inject.AbstractModule;
 import com.google.inject.Inject;
 import com.google.inject.Module;
 import com.google.inject.Provider;
 import com.google.inject.Singleton;
 import com.google.inject.name.Named;
+import com.kik.config.ice.ConfigSystem;
 import com.kik.config.ice.annotations.DefaultValue;
 import com.smotana.clearflask.api.model.HistogramInterval;
 import com.smotana.clearflask.api.model.HistogramResponse;
 import com.smotana.clearflask.api.model.HistogramResponsePoints;
 import com.smotana.clearflask.api.model.Hits;
+import com.smotana.clearflask.store.CacheInvalidationBus;
+import com.smotana.clearflask.util.Extern;
+import com.smotana.clearflask.util.LogUtil;
 import com.smotana.clearflask.util.MathUtil;
 import com.smotana.clearflask.util.ServerSecret;
 import lombok.Value;
 import lombok.extern.slf4j.Slf4j;
 import org.apache.http.ConnectionClosedException;
+import org.apache.http.util.EntityUtils;
 import org.apache.lucene.search.TotalHits;
 import org.elasticsearch.ElasticsearchStatusException;
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.action.DocWriteRequest;
+import org.elasticsearch.action.admin.indices.alias.Alias;
+import org.elasticsearch.action.admin.indices.alias.IndicesAliasesRequest;
+import org.elasticsearch.action.admin.indices.alias.IndicesAliasesRequest.AliasActions;
+import org.elasticsearch.action.admin.indices.alias.get.GetAliasesRequest;
+import org.elasticsearch.action.admin.indices.delete.DeleteIndexRequest;
+import org.elasticsearch.action.admin.indices.refresh.RefreshRequest;
+import org.elasticsearch.action.bulk.BulkRequest;
 import org.elasticsearch.action.search.ClearScrollRequest;
 import org.elasticsearch.action.search.SearchRequest;
 import org.elasticsearch.action.search.SearchResponse;
 import org.elasticsearch.action.search.SearchScrollRequest;
+import org.elasticsearch.action.support.IndicesOptions;
+import org.elasticsearch.action.support.WriteRequest;
+import org.elasticsearch.action.support.master.AcknowledgedResponse;
+import org.elasticsearch.client.Request;
 import org.elasticsearch.client.RequestOptions;
+import org.elasticsearch.client.Response;
 import org.elasticsearch.client.ResponseException;
+import org.elasticsearch.client.ResponseListener;
 import org.elasticsearch.client.RestHighLevelClient;
+import org.elasticsearch.client.indices.CreateIndexRequest;
+import org.elasticsearch.client.indices.GetIndexRequest;
 import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.cluster.metadata.AliasMetadata;
 import org.elasticsearch.index.query.QueryBuilder;
+import org.elasticsearch.index.query.QueryBuilders;
+import org.elasticsearch.index.reindex.DeleteByQueryRequest;
 import org.elasticsearch.search.SearchHit;
 import org.elasticsearch.search.aggregations.Aggregation;
 import org.elasticsearch.search.aggregations.AggregationBuilders;
@@ -46,30 +85,48 @@ import org.elasticsearch.search.aggregations.bucket.histogram.DateHistogramInter
 import org.elasticsearch.search.aggregations.bucket.histogram.Histogram;
 import org.elasticsearch.search.aggregations.bucket.histogram.LongBounds;
 import org.elasticsearch.search.aggregations.bucket.histogram.ParsedDateHistogram;
+import org.elasticsearch.search.builder.PointInTimeBuilder;
 import org.elasticsearch.search.builder.SearchSourceBuilder;
 import org.elasticsearch.search.sort.SortBuilders;
 import org.elasticsearch.search.sort.SortOrder;
+import rx.Observable;
 
 import java.io.IOException;
 import java.time.Duration;
 import java.time.LocalDate;
 import java.time.ZoneOffset;
 import java.time.ZonedDateTime;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Comparator;
 import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
 import java.util.Optional;
+import java.util.Queue;
+import java.util.Set;
 import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiFunction;
+import java.util.regex.Pattern;
 
 import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkState;
 import static com.smotana.clearflask.store.dynamo.DefaultDynamoDbProvider.DYNAMO_WRITE_BATCH_MAX_SIZE_STR;
 
 @Slf4j
 @Singleton
 public class ElasticUtil {
 
+    private static final String SHARED_INDEX_SUFFIX = "_shared";
+    private static final String INDEX_MIGRATION_CHANNEL = "indexMigration";
+    private static final Pattern SHARED_INDEX_PATTERN = Pattern.compile("^[a-z_]+" + SHARED_INDEX_SUFFIX + "(_v[0-9]+)?$");
+
     public static String AUTOCOMPLETE_TOKENIZER_NAME = "autocomplete_tokenizer";
     public static ImmutableMap<String, Object> AUTOCOMPLETE_TOKENIZER = ImmutableMap.of(
             "type", "edge_ngram",
@@ -83,6 +140,44 @@ public class ElasticUtil {
             "type", "custom",
             "tokenizer", AUTOCOMPLETE_TOKENIZER_NAME);
 
+    public interface Config {
+        /**
+         * New projects share a common index per document type instead of getting dedicated indices, keeping shard
+         * count proportional to data size rather than number of projects.
+         */
+        @DefaultValue("false")
+        boolean sharedIndexEnabled();
+
+        /**
+         * Writes no longer wait on an index refresh. Instead, searches by the session that made a write are kept
+         * consistent with it until the next refresh, see {@link #readYourWrites(SearchRequest)}.
+         */
+        @DefaultValue("false")
+        boolean readYourWritesEnabled();
+
+        /**
+         * How long a session's writes are tracked for, should be at least the index refresh interval.
+         */
+        @DefaultValue("PT2S")
+        Duration readYourWritesWindow();
+
+        Observable<Duration> readYourWritesWindowObservable();
+
+        /**
+         * Searches by sessions with recent writes share refreshes of an index, and wait for the next one rather than
+         * refreshing it more often than this.
+         */
+        @DefaultValue("PT0.2S")
+        Duration readYourWritesRefreshMinInterval();
+
+        /**
+         * How long a node keeps following an index migration started by another node without hearing about it, in case
+         * the node running it went away. Must be longer than the longest rebuild.
+         */
+        @DefaultValue("PT12H")
+        Duration indexMigrationExpiry();
+    }
+
     public interface ConfigSearch {
         @DefaultValue("100")
         int pageSizeMax();
@@ -93,10 +188,148 @@ public class ElasticUtil {
         @DefaultValue(DYNAMO_WRITE_BATCH_MAX_SIZE_STR)
         int scrollSizeDefault();
 
+        /**
+         * Keep alive of the point in time between accurate cursor pages.
+         */
         @DefaultValue("PT1M")
         Duration elasticScrollKeepAlive();
     }
 
+    /**
+     * Writes made to an alias by any node while it is being migrated.
+     */
+    public static class IndexMigrationWrites {
+        private final ConcurrentMap<String, MigratedDocWrite> docIdToWrite = Maps.newConcurrentMap();
+        private final Queue<MigratedDeleteByQuery> deleteByQueries = Queues.newConcurrentLinkedQueue();
+
+        public ImmutableSet<String> getDocIds() {
+            return ImmutableSet.copyOf(docIdToWrite.keySet());
+        }
+
+        /**
+         * Whether the last recorded write was a delete.
+         */
+        public boolean isDeleted(String docId) {
+            MigratedDocWrite write = docIdToWrite.get(docId);
+            return write != null && write.isDeleted();
+        }
+
+        /**
+         * Whether the document was written to the index the alias pointed at before the swap, and not to the new one.
+         */
+        public boolean isWrittenToPreviousIndexOnly(String docId) {
+            MigratedDocWrite write = docIdToWrite.get(docId);
+            return write != null && write.isWrittenToPreviousIndex() && !write.isWrittenToNewIndex();
+        }
+
+        public boolean isWrittenToNewIndex(String docId) {
+            MigratedDocWrite write = docIdToWrite.get(docId);
+            return write != null && write.isWrittenToNewIndex();
+        }
+
+        public ImmutableList<QueryBuilder> getDeleteByQueries() {
+            return deleteByQueries.stream()
+                    .map(MigratedDeleteByQuery::getQuery)
+                    .collect(ImmutableList.toImmutableList());
+        }
+
+        public ImmutableList<QueryBuilder> getDeleteByQueriesToPreviousIndex() {
+            return deleteByQueries.stream()
+                    .filter(MigratedDeleteByQuery::isToPreviousIndex)
+                    .map(MigratedDeleteByQuery::getQuery)
+                    .collect(ImmutableList.toImmutableList());
+        }
+
+        public int size() {
+            return docIdToWrite.size() + deleteByQueries.size();
+        }
+
+        private void recordWrite(String docId, boolean deleted, boolean toPreviousIndex) {
+            docIdToWrite.merge(docId, new MigratedDocWrite(deleted, toPreviousIndex, !toPreviousIndex),
+                    (prev, next) -> new MigratedDocWrite(
+                            next.isDeleted(),
+                            prev.isWrittenToPreviousIndex() || next.isWrittenToPreviousIndex(),
+                            prev.isWrittenToNewIndex() || next.isWrittenToNewIndex()));
+        }
+
+        private void recordDeleteByQuery(QueryBuilder query, boolean toPreviousIndex) {
+            deleteByQueries.add(new MigratedDeleteByQuery(query, toPreviousIndex));
+        }
+    }
+
+    @Value
+    private static class MigratedDocWrite {
+        boolean deleted;
+        boolean writtenToPreviousIndex;
+        boolean writtenToNewIndex;
+    }
+
+    @Value
+    private static class MigratedDeleteByQuery {
+        QueryBuilder query;
+        boolean toPreviousIndex;
+    }
+
+    /**
+     * State of an index migration as seen by one node. Only the node running the migration records writes, other
+     * nodes forward theirs to it over the {@link CacheInvalidationBus}.
+     */
+    private static class IndexMigration {
+        /**
+         * Present only on the node running the migration.
+         */
+        private volatile Optional<IndexMigrationWrites> writesOpt;
+        /**
+         * If set, writes are sent to this concrete index instead of the alias.
+         */
+        private volatile Optional<PinnedIndex> pinnedIndexOpt = Optional.empty();
+        /**
+         * Whether the alias points at the new index, so unpinned writes land there.
+         */
+        private volatile boolean swapped = false;
+
+        private IndexMigration(Optional<IndexMigrationWrites> writesOpt) {
+            this.writesOpt = writesOpt;
+        }
+    }
+
+    @Value
+    private static class PinnedIndex {
+        String index;
+        Optional<String> routingOpt;
+    }
+
+    private enum IndexMigrationEventType {
+        START,
+        PIN,
+        SWAP,
+        FINISH,
+        WRITE
+    }
+
+    /**
+     * Sent over the {@link CacheInvalidationBus} serialized as a key of the {@link #INDEX_MIGRATION_CHANNEL} cache.
+     */
+    @Value
+    private static class IndexMigrationEvent {
+        IndexMigrationEventType type;
+        String alias;
+        /**
+         * Pinned index for {@link IndexMigrationEventType#PIN}
+         */
+        String index;
+        String routing;
+        /**
+         * Written doc id to whether it was deleted for {@link IndexMigrationEventType#WRITE}
+         */
+        Map<String, Boolean> docIdToDeleted;
+        /**
+         * Delete by queries as JSON for {@link IndexMigrationEventType#WRITE}
+         */
+        List<String> deleteByQueries;
+        boolean toPreviousIndex;
+    }
+
     @Value
     public static class SearchResponseWithCursor {
         private final SearchResponse searchResponse;
@@ -105,11 +338,43 @@ public class ElasticUtil {
 
     @VisibleForTesting
     enum PaginationType {
-        SCROLL,
+        /**
+         * Requires ElasticSearch 7.12 or newer for the _shard_doc tiebreaker.
+         */
+        POINT_IN_TIME,
         SEARCH_AFTER,
-        FROM
+        FROM,
+        /**
+         * Only to continue scroll cursors issued before point in time was used.
+         */
+        SCROLL_LEGACY
+    }
+
+    /**
+     * Refresh of an index on behalf of sessions searching for their own writes.
+     */
+    @Value
+    private static class ReadYourWritesRefresh {
+        long startMillis;
+        CompletableFuture<Void> future;
+    }
+
+    private static class SessionWrites {
+        /**
+         * Aliases written to that may not have been refreshed since.
+         */
+        private final Set<String> unrefreshedAliases = Sets.newConcurrentHashSet();
+        private final SetMultimap<String, String> deletedDocIdsByAlias = Multimaps.synchronizedSetMultimap(HashMultimap.create());
+    }
+
+    @Value
+    private static class PointInTimeCursor {
+        String pitId;
+        Object[] searchAfter;
     }
 
+    @Inject
+    private Config config;
     @Inject
     @Named("cursor")
     private ServerSecret serverSecretCursor;
@@ -117,11 +382,536 @@ public class ElasticUtil {
     private Gson gson;
     @Inject
     private Provider<RestHighLevelClient> elastic;
+    @Inject
+    private CacheInvalidationBus cacheInvalidationBus;
+
+    /**
+     * Migrations run by this node.
+     */
+    private final ConcurrentMap<String, IndexMigration> indexMigrations = Maps.newConcurrentMap();
+    /**
+     * Migrations run by other nodes.
+     */
+    private Cache<String, IndexMigration> remoteIndexMigrations;
+    private final ThreadLocal<Optional<String>> readYourWritesSessionOpt = ThreadLocal.withInitial(Optional::empty);
+    private Cache<String, SessionWrites> readYourWritesSessions;
+    /**
+     * Keyed by the concrete indices behind an alias, so projects sharing an index also share its refreshes.
+     */
+    private final ConcurrentMap<String, ReadYourWritesRefresh> readYourWritesRefreshes = Maps.newConcurrentMap();
+    private final Cache<String, String> aliasToRefreshKey = CacheBuilder.newBuilder()
+            .expireAfterWrite(Duration.ofMinutes(1))
+            .build();
+    private final AtomicLong readYourWritesRefreshCounter = new AtomicLong();
+
+    @Inject
+    private void setup() {
+        config.readYourWritesWindowObservable().subscribe(v -> setupReadYourWritesSessions());
+        setupReadYourWritesSessions();
+        remoteIndexMigrations = CacheBuilder.newBuilder()
+                .expireAfterWrite(config.indexMigrationExpiry())
+                .build();
+        cacheInvalidationBus.subscribe(INDEX_MIGRATION_CHANNEL, events -> events.forEach(this::receiveIndexMigrationEvent));
+    }
+
+    private void setupReadYourWritesSessions() {
+        readYourWritesSessions = CacheBuilder.newBuilder()
+                .expireAfterWrite(config.readYourWritesWindow())
+                .build();
+    }
 
+    /**
+     * Name of the alias reads and writes go through. The physical index behind it is versioned, see
+     * {@link #getIndexVersionName(String)}.
+     */
     public String getIndexName(String indexName, String projectId) {
         return indexName + "-" + projectId;
     }
 
+    /**
+     * Name of a new physical index to be placed behind an alias.
+     */
+    public String getIndexVersionName(String alias) {
+        return alias + "_v" + System.currentTimeMillis();
+    }
+
+    public CreateIndexRequest createIndexRequest(String indexName, Optional<String> aliasOpt) {
+        CreateIndexRequest request = new CreateIndexRequest(indexName);
+        aliasOpt.ifPresent(alias -> request.alias(new Alias(alias)));
+        return request;
+    }
+
+    /**
+     * Shared index holding documents of small projects, each project reads and writes through a filtered alias routed
+     * by its project id.
+     */
+    public String getSharedIndexName(String indexName) {
+        return indexName + SHARED_INDEX_SUFFIX;
+    }
+
+    public boolean isSharedIndex(String concreteIndex) {
+        return SHARED_INDEX_PATTERN.matcher(concreteIndex).matches();
+    }
+
+    /**
+     * Creates the project's alias, unless it or a legacy index of the same name already exists. In shared index mode,
+     * the alias is placed on the shared index, otherwise on a new dedicated index.
+     *
+     * @param createIndex Creates a physical index with given name and alias
+     */
+    public ListenableFuture<Void> createProjectIndexIfNotExists(String indexName, String projectId, BiFunction<String, Optional<String>, ListenableFuture<Void>> createIndex) {
+        String alias = getIndexName(indexName, projectId);
+        try {
+            if (elastic.get().indices().exists(new GetIndexRequest(alias), RequestOptions.DEFAULT)) {
+                return Futures.immediateFuture(null);
+            }
+            if (!config.sharedIndexEnabled()) {
+                return createIndex.apply(getIndexVersionName(alias), Optional.of(alias));
+            }
+            String sharedAlias = getSharedIndexName(indexName);
+            ImmutableSet<String> sharedIndices = getConcreteIndices(sharedAlias);
+            if (sharedIndices.isEmpty()) {
+                log.info("Creating shared ElasticSearch index {}", sharedAlias);
+                createIndex.apply(getIndexVersionName(sharedAlias), Optional.of(sharedAlias)).get();
+                sharedIndices = getConcreteIndices(sharedAlias);
+            }
+            // If two nodes raced to create the shared index, consistently pick the same one
+            String sharedIndex = Ordering.natural().min(sharedIndices);
+            elastic.get().indices().updateAliases(new IndicesAliasesRequest()
+                            .addAliasAction(AliasActions.add()
+                                    .index(sharedIndex)
+                                    .alias(alias)
+                                    .routing(projectId)
+                                    .filter(QueryBuilders.termQuery("projectId", projectId))),
+                    RequestOptions.DEFAULT);
+            return Futures.immediateFuture(null);
+        } catch (Exception ex) {
+            return Futures.immediateFailedFuture(ex);
+        }
+    }
+
+    /**
+     * Routing of a filtered alias on a shared index, empty for aliases of dedicated indices.
+     */
+    public Optional<String> getSharedIndexRouting(String alias) throws IOException {
+        return elastic.get().indices().getAlias(new GetAliasesRequest(alias), RequestOptions.DEFAULT)
+                .getAliases()
+                .entrySet()
+                .stream()
+                .filter(e -> isSharedIndex(e.getKey()))
+                .flatMap(e -> e.getValue().stream())
+                .map(AliasMetadata::getSearchRouting)
+                .filter(Objects::nonNull)
+                .findFirst();
+    }
+
+    /**
+     * Deletes a project's documents from a shared index.
+     */
+    public void deleteFromSharedIndex(String sharedIndex, String projectId) throws IOException {
+        elastic.get().deleteByQuery(new DeleteByQueryRequest(sharedIndex)
+                        .setRouting(projectId)
+                        .setQuery(QueryBuilders.termQuery("projectId", projectId)),
+                RequestOptions.DEFAULT);
+    }
+
+    /**
+     * Starts recording writes made to an alias by every node while a new index is being built for it, so they can be
+     * copied over before and after the new index is swapped in.
+     * <p>
+     * Other nodes learn about the migration, pinning and swap over the {@link CacheInvalidationBus} and forward their
+     * writes the same way, so callers must wait longer than the bus takes to deliver before relying on a change having
+     * reached every node, or on every write having been recorded.
+     */
+    public void startIndexMigration(String alias) {
+        if (indexMigrations.putIfAbsent(alias, new IndexMigration(Optional.of(new IndexMigrationWrites()))) != null) {
+            throw new IllegalStateException("Index migration already in progress for " + alias);
+        }
+        publishIndexMigrationEvent(new IndexMigrationEvent(IndexMigrationEventType.START, alias, null, null, null, null, false));
+    }
+
+    /**
+     * Returns writes recorded since the last call and keeps recording.
+     */
+    public IndexMigrationWrites drainIndexMigration(String alias) {
+        IndexMigrationWrites[] drained = new IndexMigrationWrites[1];
+        IndexMigration migration = indexMigrations.computeIfPresent(alias, (a, m) -> {
+            drained[0] = m.writesOpt.get();
+            m.writesOpt = Optional.of(new IndexMigrationWrites());
+            return m;
+        });
+        checkState(migration != null, "No index migration in progress for %s", alias);
+        return drained[0];
+    }
+
+    /**
+     * Sends writes from every node to the given concrete index rather than the alias until the swap is done. Used
+     * while swapping the alias so every write recorded as going to the previous index is known to have landed there,
+     * even if it executes after the swap.
+     */
+    public void pinIndexMigration(String alias, String index, Optional<String> routingOpt) {
+        IndexMigration migration = indexMigrations.get(alias);
+        checkState(migration != null, "No index migration in progress for %s", alias);
+        migration.pinnedIndexOpt = Optional.of(new PinnedIndex(index, routingOpt));
+        publishIndexMigrationEvent(new IndexMigrationEvent(IndexMigrationEventType.PIN, alias, index, routingOpt.orElse(null), null, null, false));
+    }
+
+    /**
+     * Marks the alias as pointing at the new index and stops pinning, writes recorded from now on land on the new
+     * index. Other nodes keep pinning until they hear about it.
+     */
+    public void swapIndexMigration(String alias) {
+        IndexMigration migration = indexMigrations.get(alias);
+        checkState(migration != null, "No index migration in progress for %s", alias);
+        migration.swapped = true;
+        migration.pinnedIndexOpt = Optional.empty();
+        publishIndexMigrationEvent(new IndexMigrationEvent(IndexMigrationEventType.SWAP, alias, null, null, null, null, false));
+    }
+
+    /**
+     * Writes recorded since the last drain, without draining them.
+     */
+    public IndexMigrationWrites peekIndexMigration(String alias) {
+        IndexMigration migration = indexMigrations.get(alias);
+        checkState(migration != null, "No index migration in progress for %s", alias);
+        return migration.writesOpt.get();
+    }
+
+    public void finishIndexMigration(String alias) {
+        if (indexMigrations.remove(alias) != null) {
+            publishIndexMigrationEvent(new IndexMigrationEvent(IndexMigrationEventType.FINISH, alias, null, null, null, null, false));
+        }
+    }
+
+    /**
+     * Records the write if its index is being migrated by any node or if it was made on behalf of a session. Must wrap
+     * every write request to an alias.
+     */
+    public <R extends DocWriteRequest<?>> R trackWrite(R request) {
+        trackSessionWrite(request);
+        trackMigrationWrites(ImmutableList.of(request));
+        return request;
+    }
+
+    public BulkRequest trackWrite(BulkRequest request) {
+        if (readYourWritesSessionOpt.get().isPresent()) {
+            request.requests().forEach(this::trackSessionWrite);
+        }
+        trackMigrationWrites(request.requests());
+        return request;
+    }
+
+    public DeleteByQueryRequest trackWrite(DeleteByQueryRequest request) {
+        if (indexMigrations.isEmpty() && remoteIndexMigrations.size() == 0) {
+            return request;
+        }
+        QueryBuilder query = request.getSearchRequest().source().query();
+        for (String index : request.indices()) {
+            boolean[] toPreviousIndex = new boolean[1];
+            IndexMigration migration = computeIndexMigrationIfPresent(index, (alias, m) -> {
+                toPreviousIndex[0] = m.pinnedIndexOpt.isPresent() || !m.swapped;
+                m.writesOpt.ifPresent(writes -> writes.recordDeleteByQuery(query, toPreviousIndex[0]));
+                m.pinnedIndexOpt.ifPresent(pinnedIndex -> {
+                    request.indices(pinnedIndex.getIndex());
+                    pinnedIndex.getRoutingOpt().ifPresent(request::setRouting);
+                });
+                return m;
+            });
+            if (migration != null && migration.writesOpt.isEmpty()) {
+                publishIndexMigrationEvent(new IndexMigrationEvent(IndexMigrationEventType.WRITE, index, null, null,
+                        null, ImmutableList.of(query.toString()), toPreviousIndex[0]));
+            }
+        }
+        return request;
+    }
+
+    private void trackMigrationWrites(Collection<? extends DocWriteRequest<?>> requests) {
+        if (indexMigrations.isEmpty() && remoteIndexMigrations.size() == 0) {
+            return;
+        }
+        // Alias to whether the write landed on the previous index to doc id to whether it was deleted
+        Map<String, Map<Boolean, Map<String, Boolean>>> forwardWrites = Maps.newHashMap();
+        for (DocWriteRequest<?> request : requests) {
+            String index = request.index();
+            boolean deleted = request.opType() == DocWriteRequest.OpType.DELETE;
+            boolean[] toPreviousIndex = new boolean[1];
+            IndexMigration migration = computeIndexMigrationIfPresent(index, (alias, m) -> {
+                toPreviousIndex[0] = m.pinnedIndexOpt.isPresent() || !m.swapped;
+                m.writesOpt.ifPresent(writes -> writes.recordWrite(request.id(), deleted, toPreviousIndex[0]));
+                m.pinnedIndexOpt.ifPresent(pinnedIndex -> {
+                    request.index(pinnedIndex.getIndex());
+                    if (request.routing() == null) {
+                        pinnedIndex.getRoutingOpt().ifPresent(request::routing);
+                    }
+                });
+                return m;
+            });
+            if (migration != null && migration.writesOpt.isEmpty()) {
+                forwardWrites.computeIfAbsent(index, i -> Maps.newHashMap())
+                        .computeIfAbsent(toPreviousIndex[0], t -> Maps.newHashMap())
+                        .put(request.id(), deleted);
+            }
+        }
+        forwardWrites.forEach((alias, writesByTarget) -> writesByTarget.forEach((toPreviousIndex, docIdToDeleted) ->
+                publishIndexMigrationEvent(new IndexMigrationEvent(IndexMigrationEventType.WRITE, alias, null, null,
+                        docIdToDeleted, null, toPreviousIndex))));
+    }
+
+    private IndexMigration computeIndexMigrationIfPresent(String alias, BiFunction<String, IndexMigration, IndexMigration> remappingFunction) {
+        IndexMigration migration = indexMigrations.computeIfPresent(alias, remappingFunction);
+        if (migration == null) {
+            migration = remoteIndexMigrations.asMap().computeIfPresent(alias, remappingFunction);
+        }
+        return migration;
+    }
+
+    private void publishIndexMigrationEvent(IndexMigrationEvent event) {
+        cacheInvalidationBus.publish(INDEX_MIGRATION_CHANNEL, gson.toJson(event));
+    }
+
+    private void receiveIndexMigrationEvent(String eventStr) {
+        IndexMigrationEvent event;
+        try {
+            event = gson.fromJson(eventStr, IndexMigrationEvent.class);
+        } catch (Exception ex) {
+            log.warn("Failed to parse index migration event {}", eventStr, ex);
+            return;
+        }
+        String alias = event.getAlias();
+        // Buses delivering back to the publisher echo the running node's own events, it already applied them
+        if (event.getType() != IndexMigrationEventType.WRITE && indexMigrations.containsKey(alias)) {
+            return;
+        }
+        switch (event.getType()) {
+            case START:
+                remoteIndexMigrations.put(alias, new IndexMigration(Optional.empty()));
+                break;
+            case PIN:
+                // Also covers nodes that started after the migration did
+                remoteIndexMigrations.asMap().compute(alias, (a, m) -> {
+                    IndexMigration migration = m != null ? m : new IndexMigration(Optional.empty());
+                    migration.pinnedIndexOpt = Optional.of(new PinnedIndex(event.getIndex(), Optional.ofNullable(event.getRouting())));
+                    return migration;
+                });
+                break;
+            case SWAP:
+                remoteIndexMigrations.asMap().compute(alias, (a, m) -> {
+                    IndexMigration migration = m != null ? m : new IndexMigration(Optional.empty());
+                    migration.swapped = true;
+                    migration.pinnedIndexOpt = Optional.empty();
+                    return migration;
+                });
+                break;
+            case FINISH:
+                remoteIndexMigrations.invalidate(alias);
+                break;
+            case WRITE:
+                indexMigrations.computeIfPresent(alias, (a, m) -> {
+                    m.writesOpt.ifPresent(writes -> {
+                        if (event.getDocIdToDeleted() != null) {
+                            event.getDocIdToDeleted().forEach((docId, deleted) ->
+                                    writes.recordWrite(docId, deleted, event.isToPreviousIndex()));
+                        }
+                        if (event.getDeleteByQueries() != null) {
+                            event.getDeleteByQueries().forEach(query ->
+                                    writes.recordDeleteByQuery(QueryBuilders.wrapperQuery(query), event.isToPreviousIndex()));
+                        }
+                    });
+                    return m;
+                });
+                break;
+        }
+    }
+
+    /**
+     * Refresh policy for writes made on behalf of a request.
+     */
+    public WriteRequest.RefreshPolicy getWriteRefreshPolicy(boolean forceRefresh) {
+        if (forceRefresh) {
+            return WriteRequest.RefreshPolicy.IMMEDIATE;
+        }
+        return config.readYourWritesEnabled()
+                ? WriteRequest.RefreshPolicy.NONE
+                : WriteRequest.RefreshPolicy.WAIT_UNTIL;
+    }
+
+    /**
+     * Sets the session the current thread is serving, writes tracked while set are made visible to searches by the
+     * same session.
+     */
+    public void setReadYourWritesSession(Optional<String> sessionKeyOpt) {
+        readYourWritesSessionOpt.set(sessionKeyOpt);
+    }
+
+    /**
+     * Clears the session once the current thread is done serving it.
+     */
+    public void clearReadYourWritesSession() {
+        readYourWritesSessionOpt.remove();
+    }
+
+    private void trackSessionWrite(DocWriteRequest<?> request) {
+        Optional<String> sessionKeyOpt = readYourWritesSessionOpt.get();
+        if (sessionKeyOpt.isEmpty() || !config.readYourWritesEnabled()) {
+            return;
+        }
+        SessionWrites writes;
+        try {
+            writes = readYourWritesSessions.get(sessionKeyOpt.get(), SessionWrites::new);
+        } catch (ExecutionException ex) {
+            throw new RuntimeException(ex);
+        }
+        if (request.opType() == DocWriteRequest.OpType.DELETE) {
+            writes.deletedDocIdsByAlias.put(request.index(), request.id());
+        } else {
+            writes.unrefreshedAliases.add(request.index());
+        }
+        // Put the same instance back on every write to extend the window
+        readYourWritesSessions.put(sessionKeyOpt.get(), writes);
+    }
+
+    /**
+     * Makes the current session's recent writes visible to a search against aliases it wrote to. Documents the session
+     * deleted are excluded from the query. If the session created or updated documents since the last refresh, the
+     * search waits for a refresh of the index started after the search was; only the writing session pays for it and
+     * only when it searches within the window.
+     * <p>
+     * Created and updated documents are not merged into results by id instead, since whether they match the query
+     * cannot be known until they are searchable.
+     */
+    public SearchRequest readYourWrites(SearchRequest searchRequest) {
+        Optional<String> sessionKeyOpt = readYourWritesSessionOpt.get();
+        if (sessionKeyOpt.isEmpty() || !config.readYourWritesEnabled()) {
+            return searchRequest;
+        }
+        SessionWrites writes = readYourWritesSessions.getIfPresent(sessionKeyOpt.get());
+        if (writes == null) {
+            return searchRequest;
+        }
+        ImmutableSet.Builder<String> deletedDocIdsBuilder = ImmutableSet.builder();
+        for (String alias : searchRequest.indices()) {
+            if (writes.unrefreshedAliases.remove(alias)) {
+                awaitReadYourWritesRefresh(alias);
+            }
+            synchronized (writes.deletedDocIdsByAlias) {
+                deletedDocIdsBuilder.addAll(writes.deletedDocIdsByAlias.get(alias));
+            }
+        }
+        ImmutableSet<String> deletedDocIds = deletedDocIdsBuilder.build();
+        if (!deletedDocIds.isEmpty()) {
+            if (searchRequest.source() == null) {
+                searchRequest.source(new SearchSourceBuilder());
+            }
+            QueryBuilder query = searchRequest.source().query();
+            searchRequest.source().query(QueryBuilders.boolQuery()
+                    .must(query != null ? query : QueryBuilders.matchAllQuery())
+                    .mustNot(QueryBuilders.idsQuery().addIds(deletedDocIds.toArray(String[]::new))));
+        }
+        return searchRequest;
+    }
+
+    /**
+     * Waits for a refresh of the alias' indices that starts no earlier than now. Concurrent callers share one refresh,
+     * and refreshes of the same indices start at least {@link Config#readYourWritesRefreshMinInterval()} apart.
+     */
+    private void awaitReadYourWritesRefresh(String alias) {
+        long nowMillis = System.currentTimeMillis();
+        long minIntervalMillis = config.readYourWritesRefreshMinInterval().toMillis();
+        boolean[] isOwner = new boolean[1];
+        ReadYourWritesRefresh refresh = readYourWritesRefreshes.compute(getReadYourWritesRefreshKey(alias), (key, last) -> {
+            if (last != null && last.getStartMillis() >= nowMillis) {
+                return last;
+            }
+            isOwner[0] = true;
+            return new ReadYourWritesRefresh(
+                    last == null ? nowMillis : Math.max(nowMillis, last.getStartMillis() + minIntervalMillis),
+                    new CompletableFuture<>());
+        });
+        if (!isOwner[0]) {
+            try {
+                refresh.getFuture().get();
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            } catch (ExecutionException ex) {
+                // Owner logs the failure
+            }
+            return;
+        }
+        try {
+            long delayMillis = refresh.getStartMillis() - System.currentTimeMillis();
+            if (delayMillis > 0) {
+                Thread.sleep(delayMillis);
+            }
+            readYourWritesRefreshCounter.incrementAndGet();
+            elastic.get().indices().refresh(new RefreshRequest(alias), RequestOptions.DEFAULT);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        } catch (IOException ex) {
+            if (LogUtil.rateLimitAllowLog("elasticUtil-read-your-writes-refresh-failed")) {
+                log.warn("Failed to refresh {} for read your writes", alias, ex);
+            }
+        } finally {
+            refresh.getFuture().complete(null);
+        }
+    }
+
+    private String getReadYourWritesRefreshKey(String alias) {
+        try {
+            return aliasToRefreshKey.get(alias, () -> String.join(",", ImmutableSortedSet.copyOf(getConcreteIndices(alias))));
+        } catch (ExecutionException ex) {
+            return alias;
+        }
+    }
+
+    @Extern
+    public long getReadYourWritesRefreshCount() {
+        return readYourWritesRefreshCounter.get();
+    }
+
+    /**
+     * Resolves an index or alias to the concrete indices behind it, empty if neither exists.
+     */
+    public ImmutableSet<String> getConcreteIndices(String indexOrAlias) throws IOException {
+        return ImmutableSet.copyOf(elastic.get().indices().get(
+                new GetIndexRequest(indexOrAlias).indicesOptions(IndicesOptions.lenientExpandOpen()),
+                RequestOptions.DEFAULT).getIndices());
+    }
+
+    /**
+     * Deletes the index or, if it is an alias, all indices behind it.
+     */
+    public void deleteIndexAsync(String indexOrAlias, ActionListener<AcknowledgedResponse> listener) {
+        elastic.get().indices().getAsync(
+                new GetIndexRequest(indexOrAlias).indicesOptions(IndicesOptions.lenientExpandOpen()),
+                RequestOptions.DEFAULT,
+                ActionListener.wrap(getIndexResponse -> {
+                    if (getIndexResponse.getIndices().length == 0) {
+                        listener.onResponse(AcknowledgedResponse.of(true));
+                        return;
+                    }
+                    String[] sharedIndices = Arrays.stream(getIndexResponse.getIndices())
+                            .filter(this::isSharedIndex)
+                            .toArray(String[]::new);
+                    if (sharedIndices.length > 0) {
+                        // Never delete a shared index, only the project's documents through its filtered alias
+                        elastic.get().deleteByQueryAsync(
+                                new DeleteByQueryRequest(indexOrAlias).setQuery(QueryBuilders.matchAllQuery()),
+                                RequestOptions.DEFAULT,
+                                ActionListener.wrap(deleteResponse -> elastic.get().indices().updateAliasesAsync(
+                                        new IndicesAliasesRequest().addAliasAction(AliasActions.remove()
+                                                .indices(sharedIndices)
+                                                .alias(indexOrAlias)),
+                                        RequestOptions.DEFAULT,
+                                        listener), listener::onFailure));
+                        return;
+                    }
+                    elastic.get().indices().deleteAsync(
+                            new DeleteIndexRequest(getIndexResponse.getIndices()),
+                            RequestOptions.DEFAULT,
+                            listener);
+                }, listener::onFailure));
+    }
+
     public <T> T retry(Callable<T> callable) {
         try {
             return RetryerBuilder.<T>newBuilder()
@@ -154,6 +944,7 @@ public class ElasticUtil {
             ConfigSearch configSearch,
             ImmutableSet<String> sourceIncludes) {
         checkArgument(searchRequest.source() != null);
+        readYourWrites(searchRequest);
 
         Optional<String> cursorDecryptedOpt = cursorOpt.map(serverSecretCursor::decryptString);
 
@@ -165,12 +956,17 @@ public class ElasticUtil {
         }
 
         PaginationType paginationType = choosePaginationType(useAccurateCursor, sortFields);
+        TimeValue keepAlive = TimeValue.timeValueMillis(configSearch.elasticScrollKeepAlive().toMillis());
         SearchResponse searchResponse;
         try {
-            if (useAccurateCursor && cursorDecryptedOpt.isPresent()) {
+            if (paginationType == PaginationType.POINT_IN_TIME
+                    && cursorDecryptedOpt.isPresent()
+                    && !cursorDecryptedOpt.get().startsWith("{")) {
+                // Scroll cursor handed out before switching to point in time, finish it off
+                paginationType = PaginationType.SCROLL_LEGACY;
                 searchResponse = elastic.get().scroll(new SearchScrollRequest()
                                 .scrollId(cursorDecryptedOpt.get())
-                                .scroll(TimeValue.timeValueMillis(configSearch.elasticScrollKeepAlive().toMillis())),
+                                .scroll(keepAlive),
                         RequestOptions.DEFAULT);
             } else {
                 // Set sorting and order
@@ -192,8 +988,19 @@ public class ElasticUtil {
 
                 // Set cursor
                 switch (paginationType) {
-                    case SCROLL:
-                        searchRequest.scroll(TimeValue.timeValueMillis(configSearch.elasticScrollKeepAlive().toMillis()));
+                    case POINT_IN_TIME:
+                        PointInTimeCursor pitCursor = cursorDecryptedOpt.isPresent()
+                                ? gson.fromJson(cursorDecryptedOpt.get(), PointInTimeCursor.class)
+                                : new PointInTimeCursor(openPointInTime(searchRequest.indices(), keepAlive), null);
+                        // Point in time already determines the indices
+                        searchRequest.indices(new String[0]);
+                        searchRequest.source()
+                                .pointInTimeBuilder(new PointInTimeBuilder(pitCursor.getPitId()).setKeepAlive(keepAlive))
+                                // Tiebreaker to resume exactly where the previous page left off
+                                .sort(SortBuilders.fieldSort("_shard_doc").order(SortOrder.ASC));
+                        if (pitCursor.getSearchAfter() != null) {
+                            searchRequest.source().searchAfter(pitCursor.getSearchAfter());
+                        }
                         break;
                     case SEARCH_AFTER:
                         cursorDecryptedOpt.ifPresent(cursorDecrypted -> searchRequest.source().searchAfter(gson.fromJson(cursorDecrypted, Object[].class)));
@@ -217,7 +1024,16 @@ public class ElasticUtil {
         boolean mayHaveMoreResults = hits.length >= paginationSize;
         Optional<String> cursorOptNew = Optional.empty();
         switch (paginationType) {
-            case SCROLL:
+            case POINT_IN_TIME:
+                if (mayHaveMoreResults) {
+                    cursorOptNew = Optional.of(gson.toJson(new PointInTimeCursor(
+                            searchResponse.pointInTimeId(),
+                            hits[hits.length - 1].getSortValues())));
+                } else {
+                    closePointInTime(searchResponse.pointInTimeId());
+                }
+                break;
+            case SCROLL_LEGACY:
                 if (mayHaveMoreResults) {
                     cursorOptNew = Optional.ofNullable(searchResponse.getScrollId());
                 } else {
@@ -248,6 +1064,31 @@ public class ElasticUtil {
                 cursorOptNew.map(serverSecretCursor::encryptString));
     }
 
+    private String openPointInTime(String[] indices, TimeValue keepAlive) throws IOException {
+        Request request = new Request("POST", "/" + String.join(",", indices) + "/_pit");
+        request.addParameter("keep_alive", keepAlive.getStringRep());
+        Response response = elastic.get().getLowLevelClient().performRequest(request);
+        return gson.fromJson(EntityUtils.toString(response.getEntity()), JsonObject.class)
+                .get("id").getAsString();
+    }
+
+    private void closePointInTime(String pitId) {
+        Request request = new Request("DELETE", "/_pit");
+        request.setJsonEntity(gson.toJson(ImmutableMap.of("id", pitId)));
+        elastic.get().getLowLevelClient().performRequestAsync(request, new ResponseListener() {
+            @Override
+            public void onSuccess(Response response) {
+            }
+
+            @Override
+            public void onFailure(Exception ex) {
+                if (LogUtil.rateLimitAllowLog("elasticUtil-close-pit-failed")) {
+                    log.warn("Failed to close point in time", ex);
+                }
+            }
+        });
+    }
+
     public HistogramResponse histogram(
             String indexName,
             String aggregateFieldName,
@@ -348,8 +1189,8 @@ public class ElasticUtil {
             boolean useAccurateCursor,
             ImmutableList<String> sortFields) {
         if (useAccurateCursor) {
-            // Since we want accurate pagination, use scroll pagination
-            return PaginationType.SCROLL;
+            // Since we want accurate pagination, search a point in time without holding a scroll context
+            return PaginationType.POINT_IN_TIME;
         } else if (!sortFields.isEmpty()) {
             // Since sort fields are present, use search_after pagination
             return PaginationType.SEARCH_AFTER;
@@ -366,6 +1207,7 @@ public class ElasticUtil {
             @Override
             protected void configure() {
                 bind(ElasticUtil.class).asEagerSingleton();
+                install(ConfigSystem.configModule(Config.class));
             }
         };
     }
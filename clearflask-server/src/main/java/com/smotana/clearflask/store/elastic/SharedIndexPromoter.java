@@ -0,0 +1,286 @@
+// SPDX-FileCopyrightText: 2019-2022 Matus Faro <matus@smotana.com>
+// SPDX-License-Identifier: Apache-2.0
+package com.smotana.clearflask.store.elastic;
+
+import com.amazonaws.services.dynamodbv2.document.spec.DeleteItemSpec;
+import com.amazonaws.services.dynamodbv2.document.spec.PutItemSpec;
+import com.amazonaws.services.dynamodbv2.model.ConditionalCheckFailedException;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.util.concurrent.ListenableScheduledFuture;
+import com.google.common.util.concurrent.ListeningScheduledExecutorService;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.inject.AbstractModule;
+import com.google.inject.Inject;
+import com.google.inject.Module;
+import com.google.inject.Provider;
+import com.google.inject.Singleton;
+import com.google.inject.multibindings.Multibinder;
+import com.kik.config.ice.ConfigSystem;
+import com.kik.config.ice.annotations.DefaultValue;
+import com.smotana.clearflask.core.ManagedService;
+import com.smotana.clearflask.store.CommentStore;
+import com.smotana.clearflask.store.IdeaStore;
+import com.smotana.clearflask.store.UserStore;
+import com.smotana.clearflask.store.dynamo.SingleTableProvider;
+import com.smotana.clearflask.store.impl.DynamoElasticCommentStore;
+import com.smotana.clearflask.store.impl.DynamoElasticIdeaStore;
+import com.smotana.clearflask.store.impl.DynamoElasticUserStore;
+import com.smotana.clearflask.util.Extern;
+import com.smotana.clearflask.util.LogUtil;
+import io.dataspray.singletable.DynamoTable;
+import io.dataspray.singletable.Expression;
+import io.dataspray.singletable.ExpressionBuilder;
+import io.dataspray.singletable.SingleTable;
+import io.dataspray.singletable.TableSchema;
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.NonNull;
+import lombok.Value;
+import lombok.extern.slf4j.Slf4j;
+import org.elasticsearch.action.search.SearchRequest;
+import org.elasticsearch.client.RequestOptions;
+import org.elasticsearch.client.RestHighLevelClient;
+import org.elasticsearch.search.aggregations.AggregationBuilders;
+import org.elasticsearch.search.aggregations.bucket.terms.Terms;
+import org.elasticsearch.search.builder.SearchSourceBuilder;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static io.dataspray.singletable.TableType.Primary;
+
+/**
+ * Moves projects that outgrew a shared index into their own dedicated index.
+ * <p>
+ * Promotion rebuilds the project's documents into a new index and swaps the project's alias over, see
+ * {@link com.smotana.clearflask.store.Reindexer}. Each promotion is done under a lease in DynamoDB so nodes with
+ * promotion enabled never promote at the same time.
+ */
+@Slf4j
+@Singleton
+public class SharedIndexPromoter extends ManagedService {
+
+    public interface Config {
+        @DefaultValue("false")
+        boolean enabled();
+
+        @DefaultValue("PT1H")
+        Duration checkFrequency();
+
+        /**
+         * Projects with more documents of a type in a shared index are promoted.
+         */
+        @DefaultValue("10000")
+        long promoteDocCount();
+
+        /**
+         * Projects promoted per type in a single check.
+         */
+        @DefaultValue("10")
+        int promoteMaxPerCheck();
+
+        /**
+         * Must be longer than the longest promotion. A lease left behind by a node that went away blocks promotions
+         * until it expires.
+         */
+        @DefaultValue("PT6H")
+        Duration leaseDuration();
+    }
+
+    private static final String LEASE_NAME = "promotion";
+
+    @Value
+    @Builder(toBuilder = true)
+    @AllArgsConstructor
+    @DynamoTable(type = Primary, partitionKeys = {"leaseName"}, rangePrefix = "sharedIndexPromoterLease")
+    public static class PromotionLease {
+        @NonNull
+        String leaseName;
+
+        @NonNull
+        String nodeId;
+
+        @NonNull
+        long expiresAtEpochMs;
+
+        @NonNull
+        long ttlInEpochSec;
+    }
+
+    @FunctionalInterface
+    private interface Promotion {
+        void promote(String projectId) throws Exception;
+    }
+
+    @Inject
+    private Config config;
+    @Inject
+    private Provider<RestHighLevelClient> elastic;
+    @Inject
+    private ElasticUtil elasticUtil;
+    @Inject
+    private IdeaStore ideaStore;
+    @Inject
+    private UserStore userStore;
+    @Inject
+    private CommentStore commentStore;
+    @Inject
+    private SingleTable singleTable;
+
+    private final String nodeId = UUID.randomUUID().toString();
+    private final AtomicLong promotedCounter = new AtomicLong();
+    private TableSchema<PromotionLease> leaseSchema;
+    private ListeningScheduledExecutorService checkExecutor;
+    private ListenableScheduledFuture<?> checkSchedule;
+
+    @Inject
+    private void setup() {
+        leaseSchema = singleTable.parseTableSchema(PromotionLease.class);
+    }
+
+    @Override
+    protected ImmutableSet<Class> serviceDependencies() {
+        return ImmutableSet.of(DefaultElasticSearchProvider.class, SingleTableProvider.class);
+    }
+
+    @Override
+    protected void serviceStart() throws Exception {
+        checkExecutor = MoreExecutors.listeningDecorator(Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder()
+                .setNameFormat("SharedIndexPromoter-check-%d").build()));
+        checkSchedule = checkExecutor.scheduleWithFixedDelay(
+                () -> {
+                    if (config.enabled()) {
+                        check();
+                    }
+                },
+                config.checkFrequency().toMillis(),
+                config.checkFrequency().toMillis(),
+                TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    protected void serviceStop() throws Exception {
+        checkSchedule.cancel(false);
+        checkExecutor.shutdown();
+        checkExecutor.awaitTermination(30, TimeUnit.SECONDS);
+    }
+
+    @Extern
+    public long getPromotedCount() {
+        return promotedCounter.get();
+    }
+
+    @Extern
+    public void check() {
+        ImmutableMap.<String, Promotion>of(
+                DynamoElasticIdeaStore.IDEA_INDEX, projectId -> ideaStore.repopulateIndex(projectId, true, true, false),
+                DynamoElasticUserStore.USER_INDEX, projectId -> userStore.repopulateIndex(projectId, true, true, false),
+                DynamoElasticCommentStore.COMMENT_INDEX, projectId -> commentStore.repopulateIndex(projectId, true, true, false)
+        ).forEach((indexName, promotion) -> {
+            try {
+                checkIndex(indexName, promotion);
+            } catch (Exception ex) {
+                if (LogUtil.rateLimitAllowLog("sharedIndexPromoter-check-failed")) {
+                    log.warn("Failed to check shared index for {}", indexName, ex);
+                }
+            }
+        });
+    }
+
+    private void checkIndex(String indexName, Promotion promotion) throws Exception {
+        String sharedAlias = elasticUtil.getSharedIndexName(indexName);
+        if (elasticUtil.getConcreteIndices(sharedAlias).isEmpty()) {
+            return;
+        }
+        Terms projects = elastic.get().search(new SearchRequest(sharedAlias)
+                                .source(new SearchSourceBuilder()
+                                        .size(0)
+                                        .aggregation(AggregationBuilders.terms("projects")
+                                                .field("projectId")
+                                                .minDocCount(config.promoteDocCount())
+                                                .size(config.promoteMaxPerCheck()))),
+                        RequestOptions.DEFAULT)
+                .getAggregations()
+                .get("projects");
+        for (Terms.Bucket bucket : projects.getBuckets()) {
+            String projectId = bucket.getKeyAsString();
+            if (!tryAcquireLease()) {
+                log.info("Skipping promotion of project {} {} documents, another node is promoting", projectId, indexName);
+                return;
+            }
+            log.info("Promoting project {} with {} {} documents to a dedicated index", projectId, bucket.getDocCount(), indexName);
+            try {
+                promotion.promote(projectId);
+                promotedCounter.incrementAndGet();
+            } catch (Exception ex) {
+                log.warn("Failed to promote project {} {} documents to a dedicated index", projectId, indexName, ex);
+            } finally {
+                releaseLease();
+            }
+        }
+    }
+
+    /**
+     * Takes the lease unless another node holds an unexpired one.
+     */
+    private boolean tryAcquireLease() {
+        Instant now = Instant.now();
+        Instant expiresAt = now.plus(config.leaseDuration());
+        ExpressionBuilder expressionBuilder = leaseSchema.expressionBuilder();
+        Expression expression = expressionBuilder
+                .condition("attribute_not_exists(" + expressionBuilder.fieldMapping("nodeId") + ")" +
+                        " OR " + expressionBuilder.fieldMapping("nodeId") + " = " + expressionBuilder.valueMapping("nodeId", nodeId) +
+                        " OR " + expressionBuilder.fieldMapping("expiresAtEpochMs") + " < " + expressionBuilder.valueMapping("expiresAtEpochMs", now.toEpochMilli()))
+                .build();
+        try {
+            leaseSchema.table().putItem(new PutItemSpec()
+                    .withItem(leaseSchema.toItem(new PromotionLease(
+                            LEASE_NAME,
+                            nodeId,
+                            expiresAt.toEpochMilli(),
+                            expiresAt.getEpochSecond())))
+                    .withConditionExpression(expression.conditionExpression().orElse(null))
+                    .withNameMap(expression.nameMap().orElse(null))
+                    .withValueMap(expression.valMap().orElse(null)));
+            return true;
+        } catch (ConditionalCheckFailedException ex) {
+            return false;
+        }
+    }
+
+    private void releaseLease() {
+        Expression expression = leaseSchema.expressionBuilder()
+                .conditionFieldEquals("nodeId", nodeId)
+                .build();
+        try {
+            leaseSchema.table().deleteItem(new DeleteItemSpec()
+                    .withPrimaryKey(leaseSchema.primaryKey(Map.of(
+                            "leaseName", LEASE_NAME)))
+                    .withConditionExpression(expression.conditionExpression().orElse(null))
+                    .withNameMap(expression.nameMap().orElse(null))
+                    .withValueMap(expression.valMap().orElse(null)));
+        } catch (ConditionalCheckFailedException ex) {
+            log.warn("Promotion lease was taken over by another node before release, consider raising leaseDuration");
+        } catch (Exception ex) {
+            log.warn("Failed to release promotion lease, promotions are blocked until it expires", ex);
+        }
+    }
+
+    public static Module module() {
+        return new AbstractModule() {
+            @Override
+            protected void configure() {
+                bind(SharedIndexPromoter.class).asEagerSingleton();
+                Multibinder.newSetBinder(binder(), ManagedService.class).addBinding().to(SharedIndexPromoter.class).asEagerSingleton();
+                install(ConfigSystem.configModule(Config.class));
+            }
+        };
+    }
+}
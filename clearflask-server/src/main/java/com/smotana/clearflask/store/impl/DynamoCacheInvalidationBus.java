@@ -0,0 +1,315 @@
+// SPDX-FileCopyrightText: 2019-2022 Matus Faro <matus@smotana.com>
+// SPDX-License-Identifier: Apache-2.0
+package com.smotana.clearflask.store.impl;
+
+import com.amazonaws.services.dynamodbv2.document.RangeKeyCondition;
+import com.amazonaws.services.dynamodbv2.document.spec.PutItemSpec;
+import com.amazonaws.services.dynamodbv2.document.spec.QuerySpec;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Maps;
+import com.google.common.util.concurrent.ListenableScheduledFuture;
+import com.google.common.util.concurrent.ListeningScheduledExecutorService;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.inject.AbstractModule;
+import com.google.inject.Inject;
+import com.google.inject.Module;
+import com.google.inject.Singleton;
+import com.google.inject.multibindings.Multibinder;
+import com.kik.config.ice.ConfigSystem;
+import com.kik.config.ice.annotations.DefaultValue;
+import com.smotana.clearflask.core.ManagedService;
+import com.smotana.clearflask.store.CacheInvalidationBus;
+import com.smotana.clearflask.store.dynamo.SingleTableProvider;
+import com.smotana.clearflask.util.Extern;
+import com.smotana.clearflask.util.LogUtil;
+import io.dataspray.singletable.SingleTable;
+import io.dataspray.singletable.TableSchema;
+import lombok.extern.slf4j.Slf4j;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.stream.Collectors;
+import java.util.stream.StreamSupport;
+
+/**
+ * Invalidation events are written to DynamoDB and every node polls for events published by other nodes.
+ * <p>
+ * Events are spread across several partitions of a channel by hashing the cache name and key. Each poll continues
+ * reading a partition after the last event it has seen. Since event ids are ordered by the publisher's clock, a node
+ * with a lagging clock may publish behind that position, so the whole lookback window is also re-read once per
+ * lookback period; already seen events are skipped.
+ * <p>
+ * Each poll is one strongly consistent query per partition, usually returning nothing and costing a single read unit;
+ * at the defaults that is 8 read units per second per node plus 4 more per lookback period for the rescan. This cost
+ * is fixed regardless of how many projects and accounts are cached, which is what lets {@link DynamoProjectStore}
+ * and {@link DynamoElasticAccountStore} keep their caches for up to an hour instead of reloading every hot entry
+ * each minute; their expiry only bounds staleness when an invalidation is lost.
+ */
+@Slf4j
+@Singleton
+public class DynamoCacheInvalidationBus extends ManagedService implements CacheInvalidationBus {
+
+    private static final int EVENT_ID_MILLIS_LENGTH = 13;
+
+    public interface Config {
+        /**
+         * All nodes sharing a channel receive each other's invalidations.
+         */
+        @DefaultValue("default")
+        String channel();
+
+        /**
+         * Partitions each channel is spread across. All nodes sharing a channel must use the same value.
+         */
+        @DefaultValue("4")
+        int channelShards();
+
+        @DefaultValue("PT0.5S")
+        Duration pollFrequency();
+
+        /**
+         * Must be larger than clock skew between nodes.
+         */
+        @DefaultValue("PT10S")
+        Duration pollLookback();
+
+        /**
+         * Events read from a partition per poll, the rest are read by following polls.
+         */
+        @DefaultValue("1000")
+        int pollMaxEvents();
+
+        @DefaultValue("PT5M")
+        Duration eventExpiry();
+    }
+
+    @Inject
+    private Config config;
+    @Inject
+    private SingleTable singleTable;
+
+    private final String nodeId = UUID.randomUUID().toString();
+    private final ConcurrentMap<String, List<Consumer<ImmutableSet<String>>>> listeners = Maps.newConcurrentMap();
+    private final AtomicLong publishedCounter = new AtomicLong();
+    private final AtomicLong receivedCounter = new AtomicLong();
+    private TableSchema<CacheInvalidationEvent> eventSchema;
+    private Cache<String, Boolean> seenEventIds;
+    private ListeningScheduledExecutorService pollExecutor;
+    private ListenableScheduledFuture<?> pollSchedule;
+    /**
+     * Only accessed from the poll thread.
+     */
+    private final Map<Integer, ShardCursor> shardCursors = Maps.newHashMap();
+
+    private static class ShardCursor {
+        private String lastEventId = "";
+        /**
+         * Events published in the same millisecond as the last seen event may sort before it, so the next poll
+         * re-reads that millisecond unless the last poll returned a full page that did not get past it.
+         */
+        private boolean rereadLastMillis = true;
+        private Optional<String> rescanEventIdOpt = Optional.empty();
+        private Instant nextRescan = Instant.EPOCH;
+    }
+
+    @Inject
+    private void setup() {
+        eventSchema = singleTable.parseTableSchema(CacheInvalidationEvent.class);
+        // Must outlive the lookback window so neither the rescan nor the cursor re-delivers an event
+        seenEventIds = CacheBuilder.newBuilder()
+                .expireAfterWrite(config.pollLookback().multipliedBy(2))
+                .build();
+    }
+
+    @Override
+    protected ImmutableSet<Class> serviceDependencies() {
+        return ImmutableSet.of(SingleTableProvider.class);
+    }
+
+    @Override
+    protected void serviceStart() throws Exception {
+        pollExecutor = MoreExecutors.listeningDecorator(Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder()
+                .setNameFormat("DynamoCacheInvalidationBus-poll-%d").build()));
+        pollSchedule = pollExecutor.scheduleWithFixedDelay(
+                this::poll,
+                config.pollFrequency().toMillis(),
+                config.pollFrequency().toMillis(),
+                TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    protected void serviceStop() throws Exception {
+        pollSchedule.cancel(false);
+        pollExecutor.shutdown();
+        pollExecutor.awaitTermination(30, TimeUnit.SECONDS);
+    }
+
+    @Override
+    public void publish(String cacheName, ImmutableSet<String> keys) {
+        if (keys.isEmpty()) {
+            return;
+        }
+        Instant now = Instant.now();
+        int channelShards = Math.max(1, config.channelShards());
+        keys.stream()
+                .collect(Collectors.groupingBy(
+                        key -> Math.floorMod(Objects.hash(cacheName, key), channelShards),
+                        ImmutableSet.toImmutableSet()))
+                .forEach((shard, shardKeys) -> {
+                    CacheInvalidationEvent event = new CacheInvalidationEvent(
+                            getShardChannel(shard),
+                            toEventIdPrefix(now) + "-" + UUID.randomUUID(),
+                            nodeId,
+                            cacheName,
+                            shardKeys,
+                            now.plus(config.eventExpiry()).getEpochSecond());
+                    try {
+                        eventSchema.table().putItem(new PutItemSpec()
+                                .withItem(eventSchema.toItem(event)));
+                        publishedCounter.incrementAndGet();
+                    } catch (Exception ex) {
+                        // Write has already been persisted, other nodes will catch up when their caches expire
+                        if (LogUtil.rateLimitAllowLog("cacheInvalidationBus-publish-failed")) {
+                            log.warn("Failed to publish cache invalidation for {} keys {}", cacheName, shardKeys, ex);
+                        }
+                    }
+                });
+    }
+
+    @Override
+    public void subscribe(String cacheName, Consumer<ImmutableSet<String>> listener) {
+        listeners.computeIfAbsent(cacheName, n -> new CopyOnWriteArrayList<>())
+                .add(listener);
+    }
+
+    @Extern
+    public long getPublishedCount() {
+        return publishedCounter.get();
+    }
+
+    @Extern
+    public long getReceivedCount() {
+        return receivedCounter.get();
+    }
+
+    @Extern
+    public synchronized void poll() {
+        int channelShards = Math.max(1, config.channelShards());
+        for (int shard = 0; shard < channelShards; shard++) {
+            try {
+                pollShard(shard);
+            } catch (Exception ex) {
+                if (LogUtil.rateLimitAllowLog("cacheInvalidationBus-poll-failed")) {
+                    log.warn("Failed to poll cache invalidations for shard {}", shard, ex);
+                }
+            }
+        }
+    }
+
+    private void pollShard(int shard) {
+        Instant now = Instant.now();
+        String windowStartEventId = toEventIdPrefix(now.minus(config.pollLookback()));
+        ShardCursor cursor = shardCursors.computeIfAbsent(shard, s -> new ShardCursor());
+
+        // Continue from the last seen event
+        String afterEventId = cursor.rereadLastMillis
+                ? getEventIdMillisPrefix(cursor.lastEventId)
+                : cursor.lastEventId;
+        List<CacheInvalidationEvent> events = query(shard, max(afterEventId, windowStartEventId));
+        if (!events.isEmpty()) {
+            cursor.lastEventId = max(cursor.lastEventId, events.get(events.size() - 1).getEventId());
+        }
+        cursor.rereadLastMillis = events.size() < config.pollMaxEvents();
+        events.forEach(this::receive);
+
+        // Re-read the window for events published behind the cursor by nodes with a lagging clock
+        if (cursor.rescanEventIdOpt.isEmpty() && !now.isBefore(cursor.nextRescan)) {
+            cursor.rescanEventIdOpt = Optional.of(windowStartEventId);
+            cursor.nextRescan = now.plus(config.pollLookback());
+        }
+        if (cursor.rescanEventIdOpt.isPresent()) {
+            List<CacheInvalidationEvent> rescanEvents = query(shard, max(cursor.rescanEventIdOpt.get(), windowStartEventId));
+            rescanEvents.forEach(this::receive);
+            if (rescanEvents.size() < config.pollMaxEvents()) {
+                cursor.rescanEventIdOpt = Optional.empty();
+            } else {
+                cursor.rescanEventIdOpt = Optional.of(rescanEvents.get(rescanEvents.size() - 1).getEventId());
+            }
+        }
+    }
+
+    private List<CacheInvalidationEvent> query(int shard, String afterEventId) {
+        return StreamSupport.stream(eventSchema.table().query(new QuerySpec()
+                                .withHashKey(eventSchema.partitionKey(Map.of(
+                                        "channel", getShardChannel(shard))))
+                                .withRangeKeyCondition(new RangeKeyCondition(eventSchema.rangeKeyName())
+                                        .gt(eventSchema.rangeValuePartial(Map.of(
+                                                "eventId", afterEventId))))
+                                .withMaxResultSize(config.pollMaxEvents())
+                                .withConsistentRead(true))
+                        .pages()
+                        .spliterator(), false)
+                .flatMap(p -> StreamSupport.stream(p.spliterator(), false))
+                .map(eventSchema::fromItem)
+                .collect(Collectors.toList());
+    }
+
+    private void receive(CacheInvalidationEvent event) {
+        if (nodeId.equals(event.getNodeId())
+                || seenEventIds.asMap().putIfAbsent(event.getEventId(), Boolean.TRUE) != null) {
+            return;
+        }
+        receivedCounter.incrementAndGet();
+        listeners.getOrDefault(event.getCacheName(), List.of())
+                .forEach(listener -> listener.accept(event.getKeys()));
+    }
+
+    /**
+     * First shard keeps the plain channel name so a single shard matches the unsharded layout.
+     */
+    private String getShardChannel(int shard) {
+        return shard == 0 ? config.channel() : config.channel() + "-" + shard;
+    }
+
+    private static String max(String a, String b) {
+        return a.compareTo(b) >= 0 ? a : b;
+    }
+
+    private static String toEventIdPrefix(Instant instant) {
+        return String.format("%013d", instant.toEpochMilli());
+    }
+
+    /**
+     * Sorts before every event id published in the same millisecond.
+     */
+    private static String getEventIdMillisPrefix(String eventId) {
+        return eventId.length() > EVENT_ID_MILLIS_LENGTH
+                ? eventId.substring(0, EVENT_ID_MILLIS_LENGTH)
+                : eventId;
+    }
+
+    public static Module module() {
+        return new AbstractModule() {
+            @Override
+            protected void configure() {
+                bind(CacheInvalidationBus.class).to(DynamoCacheInvalidationBus.class).asEagerSingleton();
+                Multibinder.newSetBinder(binder(), ManagedService.class).addBinding().to(DynamoCacheInvalidationBus.class).asEagerSingleton();
+                install(ConfigSystem.configModule(Config.class));
+            }
+        };
+    }
+}
@@ -52,9 +52,12 @@ import com.smotana.clearflask.api.model.AccountSearchSuperAdmin;
 import com.smotana.clearflask.api.model.SubscriptionStatus;
 import com.smotana.clearflask.core.ManagedService;
 import com.smotana.clearflask.store.AccountStore;
+import com.smotana.clearflask.store.CacheInvalidationBus;
 import com.smotana.clearflask.store.IdeaStore;
 import com.smotana.clearflask.store.ProjectStore;
 import com.smotana.clearflask.store.ProjectStore.SearchEngine;
+import com.smotana.clearflask.store.Reindexer;
+import com.smotana.clearflask.store.Reindexer.ElasticTarget;
 import com.smotana.clearflask.store.UserStore;
 import com.smotana.clearflask.store.elastic.ActionListeners;
 import com.smotana.clearflask.store.elastic.ElasticUtil;
@@ -77,7 +80,6 @@ import io.dataspray.singletable.SingleTable;
 import io.dataspray.singletable.TableSchema;
 import lombok.extern.slf4j.Slf4j;
 import org.elasticsearch.ElasticsearchStatusException;
-import org.elasticsearch.action.admin.indices.delete.DeleteIndexRequest;
 import org.elasticsearch.action.delete.DeleteRequest;
 import org.elasticsearch.action.index.IndexRequest;
 import org.elasticsearch.action.search.SearchRequest;
@@ -85,7 +87,6 @@ import org.elasticsearch.action.support.WriteRequest;
 import org.elasticsearch.action.update.UpdateRequest;
 import org.elasticsearch.client.RequestOptions;
 import org.elasticsearch.client.RestHighLevelClient;
-import org.elasticsearch.client.indices.CreateIndexRequest;
 import org.elasticsearch.client.indices.GetIndexRequest;
 import org.elasticsearch.common.xcontent.XContentType;
 import org.elasticsearch.index.query.QueryBuilder;
@@ -95,6 +96,8 @@ import org.elasticsearch.search.SearchHit;
 import org.elasticsearch.search.builder.SearchSourceBuilder;
 import org.jooq.DSLContext;
 import org.jooq.Query;
+import org.jooq.Record;
+import org.jooq.Result;
 import org.jooq.impl.DSL;
 import org.jooq.impl.SQLDataType;
 
@@ -108,6 +111,7 @@ import java.util.List;
 import java.util.Map;
 import java.util.Optional;
 import java.util.concurrent.CompletionStage;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.function.Consumer;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
@@ -124,6 +128,8 @@ import static com.smotana.clearflask.util.ExplicitNull.orNull;
 public class DynamoElasticAccountStore extends ManagedService implements AccountStore {
 
     private static final String ACCOUNT_INDEX = "account";
+    private static final String ACCOUNT_CACHE = "account";
+    private static final String SESSION_CACHE = "accountSession";
 
     public interface Config {
         /**
@@ -135,8 +141,27 @@ public class DynamoElasticAccountStore extends ManagedService implements Account
         @DefaultValue("true")
         boolean enableConfigCacheRead();
 
-        @DefaultValue("PT1M")
+        /**
+         * Safety net for a lost invalidation, account changes are already published on the
+         * {@link CacheInvalidationBus}.
+         */
+        @DefaultValue("PT1H")
         Duration configCacheExpireAfterWrite();
+
+        @DefaultValue("true")
+        boolean sessionCacheEnabled();
+
+        @DefaultValue("100000")
+        long sessionCacheMaximumSize();
+
+        @DefaultValue("PT1M")
+        Duration sessionCacheExpireAfterWrite();
+
+        /**
+         * Unknown session ids are cached separately to avoid hitting DynamoDB for invalid cookies.
+         */
+        @DefaultValue("PT10S")
+        Duration sessionCacheNotFoundExpireAfterWrite();
     }
 
     @Inject
@@ -163,11 +188,15 @@ public class DynamoElasticAccountStore extends ManagedService implements Account
     @Inject
     private MysqlUtil mysqlUtil;
     @Inject
+    private Reindexer reindexer;
+    @Inject
     private UserStore userStore;
     @Inject
     private IdeaStore ideaStore;
     @Inject
     private ProjectStore projectStore;
+    @Inject
+    private CacheInvalidationBus cacheInvalidationBus;
 
     private TableSchema<Account> accountSchema;
     private IndexSchema<Account> accountByApiKeySchema;
@@ -177,6 +206,9 @@ public class DynamoElasticAccountStore extends ManagedService implements Account
     private TableSchema<AccountSession> sessionBySessionIdSchema;
     private IndexSchema<AccountSession> sessionByAccountIdSchema;
     private Cache<String, Optional<Account>> accountCache;
+    private Cache<String, AccountSession> sessionCache;
+    private Cache<String, Boolean> sessionNotFoundCache;
+    private final AtomicLong sessionCacheReadsSavedCounter = new AtomicLong();
 
     @Override
     protected ImmutableSet<Class> serviceDependencies() {
@@ -188,6 +220,21 @@ public class DynamoElasticAccountStore extends ManagedService implements Account
         accountCache = CacheBuilder.newBuilder()
                 .expireAfterWrite(config.configCacheExpireAfterWrite())
                 .build();
+        cacheInvalidationBus.subscribe(ACCOUNT_CACHE, accountCache::invalidateAll);
+        sessionCache = CacheBuilder.newBuilder()
+                .maximumSize(config.sessionCacheMaximumSize())
+                .expireAfterWrite(config.sessionCacheExpireAfterWrite())
+                .recordStats()
+                .build();
+        sessionNotFoundCache = CacheBuilder.newBuilder()
+                .maximumSize(config.sessionCacheMaximumSize())
+                .expireAfterWrite(config.sessionCacheNotFoundExpireAfterWrite())
+                .recordStats()
+                .build();
+        cacheInvalidationBus.subscribe(SESSION_CACHE, sessionIds -> {
+            sessionCache.invalidateAll(sessionIds);
+            sessionNotFoundCache.invalidateAll(sessionIds);
+        });
 
         accountSchema = singleTable.parseTableSchema(Account.class);
         accountByApiKeySchema = singleTable.parseGlobalSecondaryIndexSchema(1, Account.class);
@@ -214,29 +261,7 @@ public class DynamoElasticAccountStore extends ManagedService implements Account
         if (!exists) {
             log.info("Creating ElasticSearch index {}", ACCOUNT_INDEX);
             try {
-                SettableFuture<Void> indexingFuture = SettableFuture.create();
-                elastic.get().indices().createAsync(new CreateIndexRequest(ACCOUNT_INDEX).mapping(gson.toJson(ImmutableMap.of(
-                                "dynamic", "false",
-                                "properties", ImmutableMap.builder()
-                                        .put("name", ImmutableMap.of(
-                                                "type", "text",
-                                                "index_prefixes", ImmutableMap.of()))
-                                        .put("email", ImmutableMap.of(
-                                                "type", "text",
-                                                "index_prefixes", ImmutableMap.of()))
-                                        .put("status", ImmutableMap.of(
-                                                "type", "keyword"))
-                                        .put("planid", ImmutableMap.of(
-                                                "type", "keyword"))
-                                        .put("created", ImmutableMap.of(
-                                                "type", "date",
-                                                "format", "epoch_second"))
-                                        .put("projectIds", ImmutableMap.of(
-                                                "type", "keyword"))
-                                        .build())), XContentType.JSON),
-                        RequestOptions.DEFAULT,
-                        ActionListeners.fromFuture(indexingFuture, elasticUtil::isIndexAlreadyExistsException));
-                return indexingFuture;
+                return createIndexElasticSearchNamed(elasticUtil.getIndexVersionName(ACCOUNT_INDEX), Optional.of(ACCOUNT_INDEX));
             } catch (ElasticsearchStatusException ex) {
                 if (!"resource_already_exists_exception".equals(ex.getResourceType())) {
                     throw ex;
@@ -246,6 +271,32 @@ public class DynamoElasticAccountStore extends ManagedService implements Account
         return Futures.immediateFuture(null);
     }
 
+    private ListenableFuture<Void> createIndexElasticSearchNamed(String indexName, Optional<String> aliasOpt) {
+        SettableFuture<Void> indexingFuture = SettableFuture.create();
+        elastic.get().indices().createAsync(elasticUtil.createIndexRequest(indexName, aliasOpt).mapping(gson.toJson(ImmutableMap.of(
+                        "dynamic", "false",
+                        "properties", ImmutableMap.builder()
+                                .put("name", ImmutableMap.of(
+                                        "type", "text",
+                                        "index_prefixes", ImmutableMap.of()))
+                                .put("email", ImmutableMap.of(
+                                        "type", "text",
+                                        "index_prefixes", ImmutableMap.of()))
+                                .put("status", ImmutableMap.of(
+                                        "type", "keyword"))
+                                .put("planid", ImmutableMap.of(
+                                        "type", "keyword"))
+                                .put("created", ImmutableMap.of(
+                                        "type", "date",
+                                        "format", "epoch_second"))
+                                .put("projectIds", ImmutableMap.of(
+                                        "type", "keyword"))
+                                .build())), XContentType.JSON),
+                RequestOptions.DEFAULT,
+                ActionListeners.fromFuture(indexingFuture, elasticUtil::isIndexAlreadyExistsException));
+        return indexingFuture;
+    }
+
     @Extern
     public void createIndexMysql() throws IOException {
         log.info("Creating Mysql table {}", ACCOUNT_INDEX);
@@ -406,35 +457,27 @@ public class DynamoElasticAccountStore extends ManagedService implements Account
     public void repopulateIndex(boolean deleteExistingIndex, boolean repopulateElasticSearch, boolean repopulateMysql) throws Exception {
         log.info("Repopulating index for accounts deleteExistingIndex {} repopulateElasticSearch {} repopulateMysql {}",
                 deleteExistingIndex, repopulateElasticSearch, repopulateMysql);
+        Optional<ElasticTarget<Account>> elasticTargetOpt = Optional.empty();
         if (repopulateElasticSearch) {
             boolean indexAlreadyExists = elastic.get().indices().exists(new GetIndexRequest(ACCOUNT_INDEX), RequestOptions.DEFAULT);
-            if (indexAlreadyExists && deleteExistingIndex) {
-                elastic.get().indices().delete(
-                        new DeleteIndexRequest(ACCOUNT_INDEX),
-                        RequestOptions.DEFAULT);
-            }
-            if (!indexAlreadyExists || deleteExistingIndex) {
-                createIndexElasticSearch().get();
-            }
+            elasticTargetOpt = Optional.of(new ElasticTarget<Account>(
+                    ACCOUNT_INDEX,
+                    !indexAlreadyExists || deleteExistingIndex
+                            ? Optional.of(newIndexName -> createIndexElasticSearchNamed(newIndexName, Optional.empty()))
+                            : Optional.empty(),
+                    this::accountToEsIndexRequest));
         }
         if (repopulateMysql && deleteExistingIndex) {
             mysql.get().deleteFrom(JooqAccount.ACCOUNT).execute();
         }
 
-        listAllAccounts(account -> {
-            if (repopulateElasticSearch) {
-                try {
-                    elastic.get().index(accountToEsIndexRequest(account), RequestOptions.DEFAULT);
-                } catch (IOException ex) {
-                    if (LogUtil.rateLimitAllowLog("dynamoelsaticaccountstore-reindex-failure")) {
-                        log.warn("Failed to re-index account {}", account.getAccountId(), ex);
-                    }
-                }
-            }
-            if (repopulateMysql) {
-                accountToMysqlQuery(account).execute();
-            }
-        });
+        reindexer.<Account>reindex(
+                "account",
+                this::listAllAccounts,
+                elasticTargetOpt,
+                repopulateMysql ? Optional.of(accounts -> ImmutableList.of(mysqlUtil.upsert(JooqAccount.ACCOUNT, accounts.stream()
+                        .map(this::accountToMysqlRecord)
+                        .collect(ImmutableList.toImmutableList())))) : Optional.empty());
     }
 
     @Override
@@ -514,23 +557,23 @@ public class DynamoElasticAccountStore extends ManagedService implements Account
             accountIdsStream = Arrays.stream(hits).map(SearchHit::getId);
             cursorOptNext = searchResponseWithCursor.getCursorOpt();
         } else {
-            int offset = mysqlUtil.offset(cursorOpt);
-            int pageSize = mysqlUtil.pageSizeMax(configSearch, pageSizeOpt);
-            List<String> accountIds = mysql.get().select(JooqAccount.ACCOUNT.ACCOUNTID)
+            MysqlUtil.Seek seek = mysqlUtil.seek(configSearch, pageSizeOpt, cursorOpt, ImmutableList.of(), JooqAccount.ACCOUNT.ACCOUNTID);
+            Result<Record> records = mysql.get().select(seek.selectFields(JooqAccount.ACCOUNT.ACCOUNTID))
                     .from(JooqAccount.ACCOUNT)
                     .where(searchTextOpt.map(searchText ->
                                     JooqAccount.ACCOUNT.EMAIL.likeIgnoreCase("%" + searchTextOpt.get() + "%")
                                             .or(JooqAccount.ACCOUNT.NAME.likeIgnoreCase("%" + searchTextOpt.get() + "%"))
                                             .or(JooqAccount.ACCOUNT.PLANID.likeIgnoreCase("%" + searchTextOpt.get() + "%")))
-                            .orElseGet(DSL::noCondition))
-                    .offset(offset)
-                    .limit(pageSize)
-                    .fetch(JooqAccount.ACCOUNT.ACCOUNTID);
-            if (accountIds.isEmpty()) {
+                            .orElseGet(DSL::noCondition), seek.getCondition())
+                    .orderBy(seek.getSortFields())
+                    .offset(seek.getOffset())
+                    .limit(seek.getLimit())
+                    .fetch();
+            if (records.isEmpty()) {
                 return new SearchAccountsResponse(ImmutableList.of(), Optional.empty());
             }
-            accountIdsStream = accountIds.stream();
-            cursorOptNext = mysqlUtil.nextCursor(configSearch, cursorOpt, pageSizeOpt, accountIds.size());
+            accountIdsStream = records.stream().map(record -> record.get(JooqAccount.ACCOUNT.ACCOUNTID));
+            cursorOptNext = mysqlUtil.nextCursor(seek, records);
         }
 
         ImmutableList<Account> accounts = singleTable.retryUnprocessed(dynamoDoc.batchGetItem(new TableKeysAndAttributes(accountSchema.tableName())
@@ -596,16 +639,16 @@ public class DynamoElasticAccountStore extends ManagedService implements Account
                         .withValueMap(expression.valMap().orElse(null))
                         .withReturnValues(ReturnValue.ALL_NEW))
                 .getItem());
-        accountCache.put(accountId, Optional.of(account));
+        updateAccountCache(account);
 
         SettableFuture<Void> indexingFuture = SettableFuture.create();
         SearchEngine searchEngine = configApp.defaultSearchEngine();
         if (searchEngine.isWriteElastic()) {
-            elastic.get().updateAsync(new UpdateRequest(ACCOUNT_INDEX, accountId)
+            elastic.get().updateAsync(elasticUtil.trackWrite(new UpdateRequest(ACCOUNT_INDEX, accountId)
                             .doc(gson.toJson(ImmutableMap.of(
                                     "planid", planid
                             )), XContentType.JSON)
-                            .setRefreshPolicy(config.elasticForceRefresh() ? WriteRequest.RefreshPolicy.IMMEDIATE : WriteRequest.RefreshPolicy.WAIT_UNTIL),
+                            .setRefreshPolicy(config.elasticForceRefresh() ? WriteRequest.RefreshPolicy.IMMEDIATE : WriteRequest.RefreshPolicy.WAIT_UNTIL)),
                     RequestOptions.DEFAULT,
                     searchEngine.isReadElastic() ? ActionListeners.onFailureRetry(indexingFuture, f -> indexAccount(f, accountId))
                             : ActionListeners.onFailureRetry(() -> indexAccount(accountId)));
@@ -660,7 +703,7 @@ public class DynamoElasticAccountStore extends ManagedService implements Account
                             .withValueMap(new ValueMap().with(":addons", accountSchema.toDynamoValue("addons", addons)))
                             .withReturnValues(ReturnValue.ALL_NEW))
                     .getItem());
-            accountCache.put(accountId, Optional.of(account));
+            updateAccountCache(account);
             return account;
         } else {
             if (addons.isEmpty()) {
@@ -686,7 +729,7 @@ public class DynamoElasticAccountStore extends ManagedService implements Account
                             .withValueMap(expression.valMap().orElse(null))
                             .withReturnValues(ReturnValue.ALL_NEW))
                     .getItem());
-            accountCache.put(accountId, Optional.of(account));
+            updateAccountCache(account);
             return account;
         }
     }
@@ -704,16 +747,16 @@ public class DynamoElasticAccountStore extends ManagedService implements Account
                         .withValueMap(new ValueMap().withStringSet(":projectId", projectId))
                         .withReturnValues(ReturnValue.ALL_NEW))
                 .getItem());
-        accountCache.put(accountId, Optional.of(account));
+        updateAccountCache(account);
 
         SettableFuture<Void> indexingFuture = SettableFuture.create();
         SearchEngine searchEngine = configApp.defaultSearchEngine();
         if (searchEngine.isWriteElastic()) {
-            elastic.get().updateAsync(new UpdateRequest(ACCOUNT_INDEX, accountId)
+            elastic.get().updateAsync(elasticUtil.trackWrite(new UpdateRequest(ACCOUNT_INDEX, accountId)
                             .doc(gson.toJson(ImmutableMap.of(
                                     "projectIds", orNull(account.getProjectIds())
                             )), XContentType.JSON)
-                            .setRefreshPolicy(config.elasticForceRefresh() ? WriteRequest.RefreshPolicy.IMMEDIATE : WriteRequest.RefreshPolicy.WAIT_UNTIL),
+                            .setRefreshPolicy(config.elasticForceRefresh() ? WriteRequest.RefreshPolicy.IMMEDIATE : WriteRequest.RefreshPolicy.WAIT_UNTIL)),
                     RequestOptions.DEFAULT,
                     searchEngine.isReadElastic() ? ActionListeners.onFailureRetry(indexingFuture, f -> indexAccount(f, accountId))
                             : ActionListeners.onFailureRetry(() -> indexAccount(accountId)));
@@ -738,16 +781,16 @@ public class DynamoElasticAccountStore extends ManagedService implements Account
                         .withValueMap(new ValueMap().withStringSet(":projectId", projectId))
                         .withReturnValues(ReturnValue.ALL_NEW))
                 .getItem());
-        accountCache.put(accountId, Optional.of(account));
+        updateAccountCache(account);
 
         SettableFuture<Void> indexingFuture = SettableFuture.create();
         SearchEngine searchEngine = configApp.defaultSearchEngine();
         if (searchEngine.isWriteElastic()) {
-            elastic.get().updateAsync(new UpdateRequest(ACCOUNT_INDEX, accountId)
+            elastic.get().updateAsync(elasticUtil.trackWrite(new UpdateRequest(ACCOUNT_INDEX, accountId)
                             .doc(gson.toJson(ImmutableMap.of(
                                     "projectIds", orNull(account.getProjectIds())
                             )), XContentType.JSON)
-                            .setRefreshPolicy(config.elasticForceRefresh() ? WriteRequest.RefreshPolicy.IMMEDIATE : WriteRequest.RefreshPolicy.WAIT_UNTIL),
+                            .setRefreshPolicy(config.elasticForceRefresh() ? WriteRequest.RefreshPolicy.IMMEDIATE : WriteRequest.RefreshPolicy.WAIT_UNTIL)),
                     RequestOptions.DEFAULT,
                     searchEngine.isReadElastic() ? ActionListeners.onFailureRetry(indexingFuture, f -> indexAccount(f, accountId))
                             : ActionListeners.onFailureRetry(() -> indexAccount(accountId)));
@@ -761,7 +804,7 @@ public class DynamoElasticAccountStore extends ManagedService implements Account
 
     @Override
     public Account addExternalProject(String accountId, String projectId) {
-        return accountSchema.fromItem(accountSchema.table().updateItem(new UpdateItemSpec()
+        Account account = accountSchema.fromItem(accountSchema.table().updateItem(new UpdateItemSpec()
                         .withPrimaryKey(accountSchema.primaryKey(Map.of("accountId", accountId)))
                         .withConditionExpression("attribute_exists(#partitionKey)")
                         .withUpdateExpression("ADD #externalProjectIds :projectId")
@@ -771,11 +814,13 @@ public class DynamoElasticAccountStore extends ManagedService implements Account
                         .withValueMap(new ValueMap().withStringSet(":projectId", projectId))
                         .withReturnValues(ReturnValue.ALL_NEW))
                 .getItem());
+        updateAccountCache(account);
+        return account;
     }
 
     @Override
     public Account removeExternalProject(String accountId, String projectId) {
-        return accountSchema.fromItem(accountSchema.table().updateItem(new UpdateItemSpec()
+        Account account = accountSchema.fromItem(accountSchema.table().updateItem(new UpdateItemSpec()
                         .withPrimaryKey(accountSchema.primaryKey(Map.of("accountId", accountId)))
                         .withConditionExpression("attribute_exists(#partitionKey)")
                         .withUpdateExpression("DELETE #externalProjectIds :projectId")
@@ -785,6 +830,8 @@ public class DynamoElasticAccountStore extends ManagedService implements Account
                         .withValueMap(new ValueMap().withStringSet(":projectId", projectId))
                         .withReturnValues(ReturnValue.ALL_NEW))
                 .getItem());
+        updateAccountCache(account);
+        return account;
     }
 
     @Extern
@@ -813,7 +860,7 @@ public class DynamoElasticAccountStore extends ManagedService implements Account
                         .withValueMap(expression.valMap().orElse(null))
                         .withReturnValues(ReturnValue.ALL_NEW))
                 .getItem());
-        accountCache.put(accountId, Optional.of(account));
+        updateAccountCache(account);
         return account;
     }
 
@@ -830,16 +877,16 @@ public class DynamoElasticAccountStore extends ManagedService implements Account
                         .withValueMap(new ValueMap().withString(":name", name))
                         .withReturnValues(ReturnValue.ALL_NEW))
                 .getItem());
-        accountCache.put(accountId, Optional.of(account));
+        updateAccountCache(account);
 
         SettableFuture<Void> indexingFuture = SettableFuture.create();
         SearchEngine searchEngine = configApp.defaultSearchEngine();
         if (searchEngine.isWriteElastic()) {
-            elastic.get().updateAsync(new UpdateRequest(ACCOUNT_INDEX, accountId)
+            elastic.get().updateAsync(elasticUtil.trackWrite(new UpdateRequest(ACCOUNT_INDEX, accountId)
                             .doc(gson.toJson(ImmutableMap.of(
                                     "name", account.getName()
                             )), XContentType.JSON)
-                            .setRefreshPolicy(config.elasticForceRefresh() ? WriteRequest.RefreshPolicy.IMMEDIATE : WriteRequest.RefreshPolicy.WAIT_UNTIL),
+                            .setRefreshPolicy(config.elasticForceRefresh() ? WriteRequest.RefreshPolicy.IMMEDIATE : WriteRequest.RefreshPolicy.WAIT_UNTIL)),
                     RequestOptions.DEFAULT,
                     searchEngine.isReadElastic() ? ActionListeners.onFailureRetry(indexingFuture, f -> indexAccount(f, accountId))
                             : ActionListeners.onFailureRetry(() -> indexAccount(accountId)));
@@ -872,7 +919,7 @@ public class DynamoElasticAccountStore extends ManagedService implements Account
                         .withValueMap(new ValueMap().withString(":password", password))
                         .withReturnValues(ReturnValue.ALL_NEW))
                 .getItem());
-        accountCache.put(accountId, Optional.of(account));
+        updateAccountCache(account);
         revokeSessions(account.getAccountId(), sessionToLeaveOpt);
         return account;
     }
@@ -910,16 +957,16 @@ public class DynamoElasticAccountStore extends ManagedService implements Account
                 .build()));
         revokeSessions(accountId, sessionIdToLeave);
         Account account = accountOld.toBuilder().email(emailNew).build();
-        accountCache.put(accountId, Optional.of(account));
+        updateAccountCache(account);
 
         SettableFuture<Void> indexingFuture = SettableFuture.create();
         SearchEngine searchEngine = configApp.defaultSearchEngine();
         if (searchEngine.isWriteElastic()) {
-            elastic.get().updateAsync(new UpdateRequest(ACCOUNT_INDEX, accountId)
+            elastic.get().updateAsync(elasticUtil.trackWrite(new UpdateRequest(ACCOUNT_INDEX, accountId)
                             .doc(gson.toJson(ImmutableMap.of(
                                     "email", account.getEmail()
                             )), XContentType.JSON)
-                            .setRefreshPolicy(config.elasticForceRefresh() ? WriteRequest.RefreshPolicy.IMMEDIATE : WriteRequest.RefreshPolicy.WAIT_UNTIL),
+                            .setRefreshPolicy(config.elasticForceRefresh() ? WriteRequest.RefreshPolicy.IMMEDIATE : WriteRequest.RefreshPolicy.WAIT_UNTIL)),
                     RequestOptions.DEFAULT,
                     searchEngine.isReadElastic() ? ActionListeners.onFailureRetry(indexingFuture, f -> indexAccount(f, accountId))
                             : ActionListeners.onFailureRetry(() -> indexAccount(accountId)));
@@ -960,7 +1007,7 @@ public class DynamoElasticAccountStore extends ManagedService implements Account
                         .withValueMap(expression.valMap().orElse(null))
                         .withReturnValues(ReturnValue.ALL_NEW))
                 .getItem());
-        accountCache.put(accountId, Optional.of(account));
+        updateAccountCache(account);
         return account;
     }
 
@@ -976,16 +1023,16 @@ public class DynamoElasticAccountStore extends ManagedService implements Account
                         .withValueMap(new ValueMap().with(":status", accountSchema.toDynamoValue("status", status)))
                         .withReturnValues(ReturnValue.ALL_NEW))
                 .getItem());
-        accountCache.put(accountId, Optional.of(account));
+        updateAccountCache(account);
 
         SettableFuture<Void> indexingFuture = SettableFuture.create();
         SearchEngine searchEngine = configApp.defaultSearchEngine();
         if (searchEngine.isWriteElastic()) {
-            elastic.get().updateAsync(new UpdateRequest(ACCOUNT_INDEX, accountId)
+            elastic.get().updateAsync(elasticUtil.trackWrite(new UpdateRequest(ACCOUNT_INDEX, accountId)
                             .doc(gson.toJson(ImmutableMap.of(
                                     "status", account.getStatus()
                             )), XContentType.JSON)
-                            .setRefreshPolicy(config.elasticForceRefresh() ? WriteRequest.RefreshPolicy.IMMEDIATE : WriteRequest.RefreshPolicy.WAIT_UNTIL),
+                            .setRefreshPolicy(config.elasticForceRefresh() ? WriteRequest.RefreshPolicy.IMMEDIATE : WriteRequest.RefreshPolicy.WAIT_UNTIL)),
                     RequestOptions.DEFAULT,
                     searchEngine.isReadElastic() ? ActionListeners.onFailureRetry(indexingFuture, f -> indexAccount(f, accountId))
                             : ActionListeners.onFailureRetry(() -> indexAccount(accountId)));
@@ -1021,7 +1068,7 @@ public class DynamoElasticAccountStore extends ManagedService implements Account
                             .withValueMap(new ValueMap().with(":attrs", accountSchema.toDynamoValue("attrs", attrs)))
                             .withReturnValues(ReturnValue.ALL_NEW))
                     .getItem());
-            accountCache.put(accountId, Optional.of(account));
+            updateAccountCache(account);
             return account;
         } else {
             if (attrs.isEmpty()) {
@@ -1047,7 +1094,7 @@ public class DynamoElasticAccountStore extends ManagedService implements Account
                             .withValueMap(expression.valMap().orElse(null))
                             .withReturnValues(ReturnValue.ALL_NEW))
                     .getItem());
-            accountCache.put(accountId, Optional.of(account));
+            updateAccountCache(account);
             return account;
         }
     }
@@ -1064,14 +1111,15 @@ public class DynamoElasticAccountStore extends ManagedService implements Account
                         "email", email))));
         accountSchema.table().deleteItem(new DeleteItemSpec()
                 .withPrimaryKey(accountSchema.primaryKey(Map.of("accountId", accountId))));
+        cacheInvalidationBus.publish(ACCOUNT_CACHE, accountId);
         accountCache.invalidate(accountId);
         revokeSessions(accountId);
 
         SettableFuture<Void> indexingFuture = SettableFuture.create();
         SearchEngine searchEngine = configApp.defaultSearchEngine();
         if (searchEngine.isWriteElastic()) {
-            elastic.get().deleteAsync(new DeleteRequest(ACCOUNT_INDEX, accountId)
-                            .setRefreshPolicy(config.elasticForceRefresh() ? WriteRequest.RefreshPolicy.IMMEDIATE : WriteRequest.RefreshPolicy.WAIT_UNTIL),
+            elastic.get().deleteAsync(elasticUtil.trackWrite(new DeleteRequest(ACCOUNT_INDEX, accountId)
+                            .setRefreshPolicy(config.elasticForceRefresh() ? WriteRequest.RefreshPolicy.IMMEDIATE : WriteRequest.RefreshPolicy.WAIT_UNTIL)),
                     RequestOptions.DEFAULT,
                     searchEngine.isReadElastic() ? ActionListeners.onFailureRetry(indexingFuture, f -> indexAccount(f, accountId))
                             : ActionListeners.onFailureRetry(() -> indexAccount(accountId)));
@@ -1096,14 +1144,31 @@ public class DynamoElasticAccountStore extends ManagedService implements Account
         AccountSession accountSession = new AccountSession(genSessionId(), account.getAccountId(), account.getEmail(), ttlInEpochSec);
         sessionBySessionIdSchema.table().putItem(new PutItemSpec()
                 .withItem(sessionBySessionIdSchema.toItem(accountSession)));
+        cacheSession(accountSession.getSessionId(), Optional.of(accountSession));
         return accountSession;
     }
 
     @Extern
     @Override
     public Optional<AccountSession> getSession(String sessionId) {
-        return getSession(sessionId, false)
+        if (config.sessionCacheEnabled()) {
+            if (sessionNotFoundCache.getIfPresent(sessionId) != null) {
+                // Both eventually and strongly consistent reads were saved
+                sessionCacheReadsSavedCounter.addAndGet(2);
+                return Optional.empty();
+            }
+            AccountSession accountSessionCached = sessionCache.getIfPresent(sessionId);
+            if (accountSessionCached != null
+                    && accountSessionCached.getTtlInEpochSec() >= Instant.now().getEpochSecond()) {
+                sessionCacheReadsSavedCounter.incrementAndGet();
+                return Optional.of(accountSessionCached);
+            }
+        }
+
+        Optional<AccountSession> accountSessionOpt = getSession(sessionId, false)
                 .or(() -> getSession(sessionId, true));
+        cacheSession(sessionId, accountSessionOpt);
+        return accountSessionOpt;
     }
 
     private Optional<AccountSession> getSession(String sessionId, boolean consistentRead) {
@@ -1123,7 +1188,7 @@ public class DynamoElasticAccountStore extends ManagedService implements Account
 
     @Override
     public AccountSession refreshSession(AccountSession accountSession, long ttlInEpochSec) {
-        return sessionBySessionIdSchema.fromItem(sessionBySessionIdSchema.table().updateItem(new UpdateItemSpec()
+        AccountSession accountSessionRefreshed = sessionBySessionIdSchema.fromItem(sessionBySessionIdSchema.table().updateItem(new UpdateItemSpec()
                         .withPrimaryKey(sessionBySessionIdSchema.primaryKey(accountSession))
                         .withConditionExpression("attribute_exists(#partitionKey)")
                         .withUpdateExpression("SET #ttlInEpochSec = :ttlInEpochSec")
@@ -1133,6 +1198,10 @@ public class DynamoElasticAccountStore extends ManagedService implements Account
                         .withValueMap(new ValueMap().withLong(":ttlInEpochSec", ttlInEpochSec))
                         .withReturnValues(ReturnValue.ALL_NEW))
                 .getItem());
+        // Other nodes may hold the session with the previous expiry
+        cacheInvalidationBus.publish(SESSION_CACHE, accountSessionRefreshed.getSessionId());
+        cacheSession(accountSessionRefreshed.getSessionId(), Optional.of(accountSessionRefreshed));
+        return accountSessionRefreshed;
     }
 
     @Extern
@@ -1141,6 +1210,7 @@ public class DynamoElasticAccountStore extends ManagedService implements Account
         sessionBySessionIdSchema.table().deleteItem(new DeleteItemSpec()
                 .withPrimaryKey(sessionBySessionIdSchema.primaryKey(Map.of(
                         "sessionId", sessionId))));
+        invalidateSessions(ImmutableSet.of(sessionId));
     }
 
     @Extern
@@ -1174,9 +1244,39 @@ public class DynamoElasticAccountStore extends ManagedService implements Account
                                     "sessionId", sessionId)))
                             .forEach(tableWriteItems::addPrimaryKeyToDelete);
                     singleTable.retryUnprocessed(dynamoDoc.batchWriteItem(tableWriteItems));
+                    invalidateSessions(ImmutableSet.copyOf(sessionIdsBatch));
                 });
     }
 
+    @Extern
+    public String getSessionCacheStats() {
+        return "found " + sessionCache.stats() + " notFound " + sessionNotFoundCache.stats();
+    }
+
+    @Extern
+    public long getSessionCacheReadsSaved() {
+        return sessionCacheReadsSavedCounter.get();
+    }
+
+    private void cacheSession(String sessionId, Optional<AccountSession> accountSessionOpt) {
+        if (!config.sessionCacheEnabled()) {
+            return;
+        }
+        if (accountSessionOpt.isPresent()) {
+            sessionNotFoundCache.invalidate(sessionId);
+            sessionCache.put(sessionId, accountSessionOpt.get());
+        } else {
+            sessionCache.invalidate(sessionId);
+            sessionNotFoundCache.put(sessionId, Boolean.TRUE);
+        }
+    }
+
+    private void invalidateSessions(ImmutableSet<String> sessionIds) {
+        cacheInvalidationBus.publish(SESSION_CACHE, sessionIds);
+        sessionCache.invalidateAll(sessionIds);
+        sessionNotFoundCache.invalidateAll(sessionIds);
+    }
+
     private void indexAccount(String accountId) {
         indexAccount(SettableFuture.create(), accountId);
     }
@@ -1186,7 +1286,7 @@ public class DynamoElasticAccountStore extends ManagedService implements Account
         if (!accountOpt.isPresent()) {
             SearchEngine searchEngine = configApp.defaultSearchEngine();
             if (searchEngine.isWriteElastic()) {
-                elastic.get().deleteAsync(new DeleteRequest(ACCOUNT_INDEX, accountId),
+                elastic.get().deleteAsync(elasticUtil.trackWrite(new DeleteRequest(ACCOUNT_INDEX, accountId)),
                         RequestOptions.DEFAULT, ActionListeners.fromFuture(indexingFuture));
             }
             if (searchEngine.isWriteMysql()) {
@@ -1202,7 +1302,7 @@ public class DynamoElasticAccountStore extends ManagedService implements Account
     private void indexAccount(SettableFuture<Void> indexingFuture, Account account) {
         SearchEngine searchEngine = configApp.defaultSearchEngine();
         if (searchEngine.isWriteElastic()) {
-            elastic.get().indexAsync(accountToEsIndexRequest(account),
+            elastic.get().indexAsync(elasticUtil.trackWrite(accountToEsIndexRequest(account)),
                     RequestOptions.DEFAULT,
                     searchEngine.isReadElastic()
                             ? ActionListeners.fromFuture(indexingFuture)
@@ -1219,6 +1319,14 @@ public class DynamoElasticAccountStore extends ManagedService implements Account
     }
 
     private Query accountToMysqlQuery(Account account) {
+        JooqAccountRecord record = accountToMysqlRecord(account);
+        return mysql.get().insertInto(JooqAccount.ACCOUNT, JooqAccount.ACCOUNT.fields())
+                .values(record)
+                .onDuplicateKeyUpdate()
+                .set(record);
+    }
+
+    private JooqAccountRecord accountToMysqlRecord(Account account) {
         JooqAccountRecord record = mysql.get().newRecord(JooqAccount.ACCOUNT);
         record.setAccountid(account.getAccountId());
         record.setName(account.getName());
@@ -1226,10 +1334,7 @@ public class DynamoElasticAccountStore extends ManagedService implements Account
         record.setStatus(account.getStatus().name());
         record.setPlanid(account.getPlanid());
         record.setCreated(account.getCreated());
-        return mysql.get().insertInto(JooqAccount.ACCOUNT, JooqAccount.ACCOUNT.fields())
-                .values(record)
-                .onDuplicateKeyUpdate()
-                .set(record);
+        return record;
     }
 
     private IndexRequest accountToEsIndexRequest(Account account) {
@@ -1278,6 +1383,14 @@ public class DynamoElasticAccountStore extends ManagedService implements Account
         return migrated;
     }
 
+    /**
+     * Call after persisting changes to an account.
+     */
+    private void updateAccountCache(Account account) {
+        cacheInvalidationBus.publish(ACCOUNT_CACHE, account.getAccountId());
+        accountCache.put(account.getAccountId(), Optional.of(account));
+    }
+
     public static Module module() {
         return new AbstractModule() {
             @Override
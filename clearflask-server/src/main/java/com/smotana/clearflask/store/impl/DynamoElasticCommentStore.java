@@ -18,6 +18,8 @@ import com.amazonaws.services.dynamodbv2.document.spec.QuerySpec;
 import com.amazonaws.services.dynamodbv2.document.spec.UpdateItemSpec;
 import com.amazonaws.services.dynamodbv2.model.ReturnValue;
 import com.google.common.base.Strings;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableSet;
@@ -25,9 +27,14 @@ import com.google.common.collect.Iterables;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
 import com.google.common.collect.Sets;
+import com.google.common.collect.Streams;
 import com.google.common.util.concurrent.Futures;
 import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ListenableScheduledFuture;
+import com.google.common.util.concurrent.ListeningScheduledExecutorService;
+import com.google.common.util.concurrent.MoreExecutors;
 import com.google.common.util.concurrent.SettableFuture;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import com.google.gson.Gson;
 import com.google.inject.AbstractModule;
 import com.google.inject.Inject;
@@ -45,15 +52,19 @@ import com.smotana.clearflask.api.model.HistogramResponse;
 import com.smotana.clearflask.api.model.HistogramSearchAdmin;
 import com.smotana.clearflask.api.model.Hits;
 import com.smotana.clearflask.core.ManagedService;
+import com.smotana.clearflask.store.CacheInvalidationBus;
 import com.smotana.clearflask.store.CommentStore;
 import com.smotana.clearflask.store.IdeaStore;
 import com.smotana.clearflask.store.IdeaStore.IdeaAndIndexingFuture;
 import com.smotana.clearflask.store.ProjectStore;
 import com.smotana.clearflask.store.ProjectStore.SearchEngine;
+import com.smotana.clearflask.store.Reindexer;
+import com.smotana.clearflask.store.Reindexer.ElasticTarget;
 import com.smotana.clearflask.store.UserStore;
 import com.smotana.clearflask.store.VoteStore;
 import com.smotana.clearflask.store.VoteStore.VoteValue;
 import com.smotana.clearflask.store.elastic.ActionListeners;
+import com.smotana.clearflask.store.elastic.DefaultElasticSearchProvider;
 import com.smotana.clearflask.store.elastic.ElasticScript;
 import com.smotana.clearflask.store.elastic.ElasticUtil;
 import com.smotana.clearflask.store.mysql.CompletionStageUtil;
@@ -61,6 +72,7 @@ import com.smotana.clearflask.store.mysql.DefaultMysqlProvider;
 import com.smotana.clearflask.store.mysql.MoreSQLDataType;
 import com.smotana.clearflask.store.mysql.MysqlCustomFunction;
 import com.smotana.clearflask.store.mysql.MysqlUtil;
+import com.smotana.clearflask.store.mysql.MysqlUtil.SeekField;
 import com.smotana.clearflask.store.mysql.model.routines.JooqVoteWilson;
 import com.smotana.clearflask.store.mysql.model.tables.JooqComment;
 import com.smotana.clearflask.store.mysql.model.tables.JooqCommentParentId;
@@ -77,17 +89,20 @@ import io.dataspray.singletable.Expression;
 import io.dataspray.singletable.IndexSchema;
 import io.dataspray.singletable.SingleTable;
 import io.dataspray.singletable.TableSchema;
+import lombok.NonNull;
+import lombok.Value;
 import lombok.extern.slf4j.Slf4j;
-import org.elasticsearch.action.admin.indices.delete.DeleteIndexRequest;
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.action.bulk.BulkItemResponse;
+import org.elasticsearch.action.bulk.BulkRequest;
+import org.elasticsearch.action.bulk.BulkResponse;
 import org.elasticsearch.action.delete.DeleteRequest;
 import org.elasticsearch.action.index.IndexRequest;
 import org.elasticsearch.action.search.SearchRequest;
 import org.elasticsearch.action.search.SearchResponse;
-import org.elasticsearch.action.support.WriteRequest;
 import org.elasticsearch.action.update.UpdateRequest;
 import org.elasticsearch.client.RequestOptions;
 import org.elasticsearch.client.RestHighLevelClient;
-import org.elasticsearch.client.indices.CreateIndexRequest;
 import org.elasticsearch.client.indices.GetIndexRequest;
 import org.elasticsearch.common.document.DocumentField;
 import org.elasticsearch.common.xcontent.XContentType;
@@ -101,9 +116,10 @@ import org.elasticsearch.search.sort.SortOrder;
 import org.jooq.Condition;
 import org.jooq.DSLContext;
 import org.jooq.JoinType;
-import org.jooq.Queries;
+import org.jooq.Query;
+import org.jooq.Record;
+import org.jooq.Result;
 import org.jooq.SelectField;
-import org.jooq.SortField;
 import org.jooq.Table;
 import org.jooq.impl.DSL;
 import org.jooq.impl.SQLDataType;
@@ -111,7 +127,7 @@ import org.jooq.util.mysql.MySQLDataType;
 import rx.Observable;
 
 import javax.ws.rs.core.Response;
-import java.io.IOException;
+import java.time.Duration;
 import java.time.Instant;
 import java.util.Arrays;
 import java.util.Collection;
@@ -121,6 +137,11 @@ import java.util.Objects;
 import java.util.Optional;
 import java.util.Set;
 import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.function.Consumer;
 import java.util.function.Predicate;
 import java.util.stream.Collectors;
@@ -162,10 +183,88 @@ public class DynamoElasticCommentStore extends ManagedService implements Comment
 
         @DefaultValue("true")
         boolean enableHistograms();
+
+        @DefaultValue("true")
+        boolean commentThreadCacheEnabled();
+
+        @DefaultValue("10000")
+        long commentThreadCacheMaxSize();
+
+        Observable<Long> commentThreadCacheMaxSizeObservable();
+
+        @DefaultValue("PT1M")
+        Duration commentThreadCacheExpireAfterWrite();
+
+        Observable<Duration> commentThreadCacheExpireAfterWriteObservable();
+
+        /**
+         * Threads read shortly after a write to any of their posts are not cached as the search index may not have
+         * caught up yet. Should cover the index refresh interval.
+         */
+        @DefaultValue("PT2S")
+        Duration commentThreadCacheSettlePeriod();
+
+        /**
+         * Coalesce search index updates caused by votes and periodically flush
+         * them in bulk, one update per comment with its score computed once, instead of
+         * a scripted search index update per vote.
+         * The vote and the comment counters in DynamoDB are still written synchronously.
+         */
+        @DefaultValue("false")
+        boolean voteWriteBehindEnabled();
+
+        /**
+         * Bounds how stale comment scores in the search index can get.
+         */
+        @DefaultValue("PT2S")
+        Duration voteWriteBehindFlushFrequency();
+
+        /**
+         * Flush early if this many comments are awaiting an index update.
+         */
+        @DefaultValue("10000")
+        long voteWriteBehindFlushMaxPendingComments();
     }
 
-    private static final String COMMENT_INDEX = "comment";
+    public static final String COMMENT_INDEX = "comment";
     private static final String COMMENT_PARENT_ID_INDEX = "comment_parent_id";
+    private static final String COMMENT_THREAD_CACHE = "commentThread";
+
+    @Value
+    private static class CommentThreadKey {
+        @NonNull
+        String projectId;
+        @NonNull
+        String ideaId;
+        @NonNull
+        ImmutableSet<String> mergedPostIds;
+        @NonNull
+        Optional<String> parentCommentIdOpt;
+    }
+
+    /**
+     * Comments of a thread as of the given versions of each post, in order of ideaId followed by mergedPostIds.
+     */
+    @Value
+    private static class CommentThread {
+        @NonNull
+        ImmutableList<Long> postVersions;
+        @NonNull
+        ImmutableSet<CommentModel> comments;
+    }
+
+    @Value
+    private static class PostVersion {
+        long version;
+        long writtenAtMillis;
+    }
+
+    @Value
+    private static class CommentKey {
+        String projectId;
+        String ideaId;
+        String commentId;
+    }
 
     @Inject
     private Config config;
@@ -203,10 +302,22 @@ public class DynamoElasticCommentStore extends ManagedService implements Comment
     private Provider<DSLContext> mysql;
     @Inject
     private MysqlUtil mysqlUtil;
+    @Inject
+    private Reindexer reindexer;
+    @Inject
+    private CacheInvalidationBus cacheInvalidationBus;
 
     private TableSchema<CommentModel> commentSchema;
     private IndexSchema<CommentModel> commentByProjectIdSchema;
     private WilsonScoreInterval wilsonScoreInterval;
+    private Cache<CommentThreadKey, CommentThread> commentThreadCache;
+    private Cache<String, PostVersion> postVersions;
+    private final AtomicLong postVersionCounter = new AtomicLong();
+    private final ConcurrentMap<CommentKey, List<SettableFuture<Void>>> pendingVoteIndexUpdates = Maps.newConcurrentMap();
+    private ListeningScheduledExecutorService voteWriteBehindExecutor;
+    private ListenableScheduledFuture<?> voteWriteBehindSchedule;
+    /** An early flush is already queued, don't queue another one for every vote until it runs */
+    private final AtomicBoolean voteWriteBehindFlushScheduled = new AtomicBoolean();
 
     @Inject
     private void setup() {
@@ -216,11 +327,30 @@ public class DynamoElasticCommentStore extends ManagedService implements Comment
         config.scoreWilsonConfidenceLevelObservable().subscribe(scoreWilsonConfidenceLevel -> wilsonScoreInterval =
                 new WilsonScoreInterval(scoreWilsonConfidenceLevel));
         wilsonScoreInterval = new WilsonScoreInterval(config.scoreWilsonConfidenceLevel());
+
+        Stream.of(config.commentThreadCacheMaxSizeObservable(),
+                        config.commentThreadCacheExpireAfterWriteObservable())
+                .forEach(o -> o.subscribe(v -> setupCommentThreadCache()));
+        setupCommentThreadCache();
+        cacheInvalidationBus.subscribe(COMMENT_THREAD_CACHE, postKeys -> postKeys.forEach(this::bumpPostVersion));
+    }
+
+    private void setupCommentThreadCache() {
+        commentThreadCache = CacheBuilder.newBuilder()
+                .maximumSize(config.commentThreadCacheMaxSize())
+                .expireAfterWrite(config.commentThreadCacheExpireAfterWrite())
+                .build();
+        // Must outlive threads, an evicted post version is recreated with a new version to be safe
+        postVersions = CacheBuilder.newBuilder()
+                .maximumSize(config.commentThreadCacheMaxSize() * 4)
+                .expireAfterAccess(config.commentThreadCacheExpireAfterWrite().multipliedBy(2))
+                .build();
     }
 
     @Override
     protected ImmutableSet<Class> serviceDependencies() {
-        return ImmutableSet.of(DefaultMysqlProvider.class);
+        // Pending vote index updates are flushed on stop
+        return ImmutableSet.of(DefaultMysqlProvider.class, DefaultElasticSearchProvider.class);
     }
 
     @Override
@@ -231,6 +361,29 @@ public class DynamoElasticCommentStore extends ManagedService implements Comment
                 createIndexMysql();
             }
         }
+
+        if (config.voteWriteBehindEnabled()) {
+            voteWriteBehindExecutor = MoreExecutors.listeningDecorator(Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder()
+                    .setNameFormat("DynamoElasticCommentStore-vote-write-behind-%d").build()));
+            voteWriteBehindSchedule = voteWriteBehindExecutor.scheduleWithFixedDelay(
+                    this::flushVoteWriteBehind,
+                    config.voteWriteBehindFlushFrequency().toMillis(),
+                    config.voteWriteBehindFlushFrequency().toMillis(),
+                    TimeUnit.MILLISECONDS);
+        }
+    }
+
+    @Override
+    protected void serviceStop() throws Exception {
+        if (voteWriteBehindExecutor != null) {
+            voteWriteBehindSchedule.cancel(false);
+            voteWriteBehindExecutor.submit(this::flushVoteWriteBehind);
+            voteWriteBehindExecutor.shutdown();
+            voteWriteBehindExecutor.awaitTermination(30, TimeUnit.SECONDS);
+        } else {
+            // Write-behind may have been disabled at runtime with votes still pending
+            flushVoteWriteBehind();
+        }
     }
 
     @Override
@@ -266,6 +419,11 @@ public class DynamoElasticCommentStore extends ManagedService implements Comment
         mysqlUtil.createIndexIfNotExists(mysql.get().createIndex().on(JooqComment.COMMENT, JooqComment.COMMENT.PROJECTID));
         mysqlUtil.createIndexIfNotExists(mysql.get().createIndex().on(JooqComment.COMMENT, JooqComment.COMMENT.PROJECTID, JooqComment.COMMENT.POSTID));
         mysqlUtil.createIndexIfNotExists(mysql.get().createIndex().on(JooqComment.COMMENT, JooqComment.COMMENT.AUTHORUSERID));
+        // Composite indexes matching each sort order for keyset pagination
+        mysqlUtil.createIndexIfNotExists(mysql.get().createIndex().on(JooqComment.COMMENT, JooqComment.COMMENT.PROJECTID, JooqComment.COMMENT.CREATED, JooqComment.COMMENT.POSTID, JooqComment.COMMENT.COMMENTID));
+        mysqlUtil.createIndexIfNotExists(mysql.get().createIndex().on(JooqComment.COMMENT, JooqComment.COMMENT.PROJECTID, JooqComment.COMMENT.EDITED, JooqComment.COMMENT.POSTID, JooqComment.COMMENT.COMMENTID));
+        mysqlUtil.createIndexIfNotExists(mysql.get().createIndex().on(JooqComment.COMMENT, JooqComment.COMMENT.PROJECTID, JooqComment.COMMENT.SCORE, JooqComment.COMMENT.POSTID, JooqComment.COMMENT.COMMENTID));
+        mysqlUtil.createFulltextIndexIfNotExists("comment_fulltext", JooqComment.COMMENT, JooqComment.COMMENT.CONTENT, JooqComment.COMMENT.AUTHORNAME);
         mysql.get().createTableIfNotExists(COMMENT_PARENT_ID_INDEX)
                 .column("projectId", SQLDataType.VARCHAR(ID_MAX_LENGTH).notNull())
                 .column("postId", SQLDataType.VARCHAR(ID_MAX_LENGTH).notNull())
@@ -282,46 +440,52 @@ public class DynamoElasticCommentStore extends ManagedService implements Comment
 
     @Extern
     public ListenableFuture<Void> createIndexElasticSearch(String projectId) {
-        SettableFuture<Void> indexingFuture = SettableFuture.create();
         if (projectStore.getSearchEngineForProject(projectId).isWriteElastic()) {
-            elastic.get().indices().createAsync(new CreateIndexRequest(elasticUtil.getIndexName(COMMENT_INDEX, projectId)).mapping(gson.toJson(ImmutableMap.of(
-                            "dynamic", "false",
-                            "properties", ImmutableMap.builder()
-                                    .put("ideaId", ImmutableMap.of(
-                                            "type", "keyword"))
-                                    .put("parentCommentIds", ImmutableMap.of(
-                                            "type", "keyword"))
-                                    .put("level", ImmutableMap.of(
-                                            "type", "integer"))
-                                    .put("childCommentCount", ImmutableMap.of(
-                                            "type", "integer"))
-                                    .put("authorUserId", ImmutableMap.of(
-                                            "type", "keyword"))
-                                    .put("authorName", ImmutableMap.of(
-                                            "type", "keyword"))
-                                    .put("authorIsMod", ImmutableMap.of(
-                                            "type", "boolean"))
-                                    .put("created", ImmutableMap.of(
-                                            "type", "date",
-                                            "format", "epoch_second"))
-                                    .put("edited", ImmutableMap.of(
-                                            "type", "date",
-                                            "format", "epoch_second"))
-                                    .put("content", ImmutableMap.of(
-                                            "type", "text",
-                                            "index_prefixes", ImmutableMap.of()))
-                                    .put("upvotes", ImmutableMap.of(
-                                            "type", "integer"))
-                                    .put("downvotes", ImmutableMap.of(
-                                            "type", "integer"))
-                                    .put("score", ImmutableMap.of(
-                                            "type", "double"))
-                                    .build())), XContentType.JSON),
-                    RequestOptions.DEFAULT,
-                    ActionListeners.fromFuture(indexingFuture, elasticUtil::isIndexAlreadyExistsException));
+            return elasticUtil.createProjectIndexIfNotExists(COMMENT_INDEX, projectId, this::createIndexElasticSearchNamed);
         } else {
-            indexingFuture.set(null); // Nothing to do here
+            return Futures.immediateFuture(null); // Nothing to do here
         }
+    }
+
+    private ListenableFuture<Void> createIndexElasticSearchNamed(String indexName, Optional<String> aliasOpt) {
+        SettableFuture<Void> indexingFuture = SettableFuture.create();
+        elastic.get().indices().createAsync(elasticUtil.createIndexRequest(indexName, aliasOpt).mapping(gson.toJson(ImmutableMap.of(
+                        "dynamic", "false",
+                        "properties", ImmutableMap.builder()
+                                .put("projectId", ImmutableMap.of(
+                                        "type", "keyword"))
+                                .put("ideaId", ImmutableMap.of(
+                                        "type", "keyword"))
+                                .put("parentCommentIds", ImmutableMap.of(
+                                        "type", "keyword"))
+                                .put("level", ImmutableMap.of(
+                                        "type", "integer"))
+                                .put("childCommentCount", ImmutableMap.of(
+                                        "type", "integer"))
+                                .put("authorUserId", ImmutableMap.of(
+                                        "type", "keyword"))
+                                .put("authorName", ImmutableMap.of(
+                                        "type", "keyword"))
+                                .put("authorIsMod", ImmutableMap.of(
+                                        "type", "boolean"))
+                                .put("created", ImmutableMap.of(
+                                        "type", "date",
+                                        "format", "epoch_second"))
+                                .put("edited", ImmutableMap.of(
+                                        "type", "date",
+                                        "format", "epoch_second"))
+                                .put("content", ImmutableMap.of(
+                                        "type", "text",
+                                        "index_prefixes", ImmutableMap.of()))
+                                .put("upvotes", ImmutableMap.of(
+                                        "type", "integer"))
+                                .put("downvotes", ImmutableMap.of(
+                                        "type", "integer"))
+                                .put("score", ImmutableMap.of(
+                                        "type", "double"))
+                                .build())), XContentType.JSON),
+                RequestOptions.DEFAULT,
+                ActionListeners.fromFuture(indexingFuture, elasticUtil::isIndexAlreadyExistsException));
         return indexingFuture;
     }
 
@@ -330,18 +494,18 @@ public class DynamoElasticCommentStore extends ManagedService implements Comment
     public void repopulateIndex(String projectId, boolean deleteExistingIndex, boolean repopulateElasticSearch, boolean repopulateMysql) throws Exception {
         log.info("Repopulating index for project {} deleteExistingIndex {} repopulateElasticSearch {} repopulateMysql {}",
                 projectId, deleteExistingIndex, repopulateElasticSearch, repopulateMysql);
+        Optional<ElasticTarget<CommentModel>> elasticTargetOpt = Optional.empty();
         if (repopulateElasticSearch) {
+            String indexName = elasticUtil.getIndexName(COMMENT_INDEX, projectId);
             boolean indexAlreadyExists = elastic.get().indices().exists(
-                    new GetIndexRequest(elasticUtil.getIndexName(COMMENT_INDEX, projectId)),
+                    new GetIndexRequest(indexName),
                     RequestOptions.DEFAULT);
-            if (indexAlreadyExists && deleteExistingIndex) {
-                elastic.get().indices().delete(
-                        new DeleteIndexRequest(elasticUtil.getIndexName(COMMENT_INDEX, projectId)),
-                        RequestOptions.DEFAULT);
-            }
-            if (!indexAlreadyExists || deleteExistingIndex) {
-                createIndexElasticSearch(projectId).get();
-            }
+            elasticTargetOpt = Optional.of(new ElasticTarget<CommentModel>(
+                    indexName,
+                    !indexAlreadyExists || deleteExistingIndex
+                            ? Optional.of(newIndexName -> createIndexElasticSearchNamed(newIndexName, Optional.empty()))
+                            : Optional.empty(),
+                    this::commentToEsIndexRequest));
         }
         if (repopulateMysql && deleteExistingIndex) {
             mysql.get().deleteFrom(JooqComment.COMMENT)
@@ -349,30 +513,23 @@ public class DynamoElasticCommentStore extends ManagedService implements Comment
                     .execute();
         }
 
-        StreamSupport.stream(commentByProjectIdSchema.index().query(new QuerySpec()
-                                .withHashKey(commentByProjectIdSchema.partitionKey(Map.of(
-                                        "projectId", projectId)))
-                                .withRangeKeyCondition(new RangeKeyCondition(commentByProjectIdSchema.rangeKeyName())
-                                        .beginsWith(commentByProjectIdSchema.rangeValuePartial(Map.of()))))
-                        .pages()
-                        .spliterator(), false)
-                .flatMap(p -> StreamSupport.stream(p.spliterator(), false))
-                .map(commentByProjectIdSchema::fromItem)
-                .filter(comment -> projectId.equals(comment.getProjectId()))
-                .forEach(comment -> {
-                    if (repopulateElasticSearch) {
-                        try {
-                            elastic.get().index(commentToEsIndexRequest(comment), RequestOptions.DEFAULT);
-                        } catch (IOException ex) {
-                            if (LogUtil.rateLimitAllowLog("dynamoelasticcommentstore-reindex-failure")) {
-                                log.warn("Failed to re-index comment id {} projectId {}", comment.getCommentId(), projectId, ex);
-                            }
-                        }
-                    }
-                    if (repopulateMysql) {
-                        commentToMysqlQuery(comment).fetchMany();
-                    }
-                });
+        reindexer.<CommentModel>reindex(
+                "comment-" + projectId,
+                consumer -> StreamSupport.stream(commentByProjectIdSchema.index().query(new QuerySpec()
+                                        .withHashKey(commentByProjectIdSchema.partitionKey(Map.of(
+                                                "projectId", projectId)))
+                                        .withRangeKeyCondition(new RangeKeyCondition(commentByProjectIdSchema.rangeKeyName())
+                                                .beginsWith(commentByProjectIdSchema.rangeValuePartial(Map.of()))))
+                                .pages()
+                                .spliterator(), false)
+                        .flatMap(p -> StreamSupport.stream(p.spliterator(), false))
+                        .map(commentByProjectIdSchema::fromItem)
+                        .filter(comment -> projectId.equals(comment.getProjectId()))
+                        .forEach(consumer),
+                elasticTargetOpt,
+                repopulateMysql ? Optional.of(comments -> comments.stream()
+                        .flatMap(comment -> commentToMysqlQuery(comment).stream())
+                        .collect(ImmutableList.toImmutableList())) : Optional.empty());
     }
 
     @Extern
@@ -410,11 +567,11 @@ public class DynamoElasticCommentStore extends ManagedService implements Comment
             SettableFuture<Void> parentIndexingFuture = SettableFuture.create();
             SearchEngine searchEngine = projectStore.getSearchEngineForProject(commentWithVote.getProjectId());
             if (searchEngine.isWriteElastic()) {
-                elastic.get().updateAsync(new UpdateRequest(elasticUtil.getIndexName(COMMENT_INDEX, commentWithVote.getProjectId()), parentCommentId)
+                elastic.get().updateAsync(elasticUtil.trackWrite(new UpdateRequest(elasticUtil.getIndexName(COMMENT_INDEX, commentWithVote.getProjectId()), parentCommentId)
                                 .doc(gson.toJson(ImmutableMap.of(
                                         "childCommentCount", parentChildCommentCount
                                 )), XContentType.JSON)
-                                .setRefreshPolicy(config.elasticForceRefresh() ? WriteRequest.RefreshPolicy.IMMEDIATE : WriteRequest.RefreshPolicy.WAIT_UNTIL),
+                                .setRefreshPolicy(elasticUtil.getWriteRefreshPolicy(config.elasticForceRefresh()))),
                         RequestOptions.DEFAULT,
                         searchEngine.isReadElastic() ? ActionListeners.onFailureRetry(parentIndexingFuture, f -> indexComment(f, commentWithVote.getProjectId(), commentWithVote.getIdeaId(), commentWithVote.getCommentId()))
                                 : ActionListeners.onFailureRetry(() -> indexComment(commentWithVote.getProjectId(), commentWithVote.getIdeaId(), commentWithVote.getCommentId())));
@@ -445,7 +602,8 @@ public class DynamoElasticCommentStore extends ManagedService implements Comment
         builder.add(indexingFuture);
         builder.add(incrementResponse.getIndexingFuture());
         parentIndexingFutureOpt.ifPresent(builder::add);
-        return new CommentAndIndexingFuture<>(commentWithVote, Futures.allAsList(builder.build()));
+        return new CommentAndIndexingFuture<>(commentWithVote, invalidateCommentThread(
+                commentWithVote.getProjectId(), commentWithVote.getIdeaId(), Futures.allAsList(builder.build())));
     }
 
     @Extern
@@ -526,20 +684,20 @@ public class DynamoElasticCommentStore extends ManagedService implements Comment
         }
 
         final ImmutableList<String> sortFieldsElastic;
-        final ImmutableList<SortField<?>> sortFieldsMysql;
+        final ImmutableList<SeekField<?>> sortFieldsMysql;
         if (commentSearchAdmin.getSortBy() != null) {
             switch (commentSearchAdmin.getSortBy()) {
                 case CREATED:
                     sortFieldsElastic = ImmutableList.of("created");
-                    sortFieldsMysql = ImmutableList.of(JooqComment.COMMENT.CREATED.sort(sortOrderMysql));
+                    sortFieldsMysql = ImmutableList.of(SeekField.of(JooqComment.COMMENT.CREATED, sortOrderMysql));
                     break;
                 case EDITED:
                     sortFieldsElastic = ImmutableList.of("edited");
-                    sortFieldsMysql = ImmutableList.of(JooqComment.COMMENT.EDITED.sort(sortOrderMysql));
+                    sortFieldsMysql = ImmutableList.of(SeekField.of(JooqComment.COMMENT.EDITED, sortOrderMysql));
                     break;
                 case TOP:
                     sortFieldsElastic = ImmutableList.of("score");
-                    sortFieldsMysql = ImmutableList.of(JooqComment.COMMENT.SCORE.sort(sortOrderMysql));
+                    sortFieldsMysql = ImmutableList.of(SeekField.of(JooqComment.COMMENT.SCORE, sortOrderMysql));
                     break;
                 default:
                     throw new ApiException(Response.Status.BAD_REQUEST,
@@ -612,25 +770,34 @@ public class DynamoElasticCommentStore extends ManagedService implements Comment
                 Optional<Condition> conditionFilterAuthorIdOpt = Optional.ofNullable(Strings.emptyToNull(commentSearchAdmin.getFilterAuthorId()))
                         .map(JooqComment.COMMENT.AUTHORUSERID::eq);
 
-                Optional<Condition> conditionSearchTextOpt = Optional.ofNullable(Strings.emptyToNull(commentSearchAdmin.getSearchText()))
+                Optional<MysqlUtil.TextSearch> fulltextSearchOpt = Optional.ofNullable(Strings.emptyToNull(commentSearchAdmin.getSearchText()))
+                        .flatMap(searchText -> mysqlUtil.fulltextSearch(searchText, JooqComment.COMMENT.CONTENT, JooqComment.COMMENT.AUTHORNAME));
+                Optional<Condition> conditionSearchTextOpt = fulltextSearchOpt.isPresent()
+                        ? fulltextSearchOpt.map(MysqlUtil.TextSearch::getCondition)
+                        : Optional.ofNullable(Strings.emptyToNull(commentSearchAdmin.getSearchText()))
                         .map(searchText -> JooqComment.COMMENT.CONTENT.like("%" + searchText + "%")
                                 .or(JooqComment.COMMENT.AUTHORNAME.like("%" + searchText + "%")));
-                primaryKeys = mysql.get().select(JooqComment.COMMENT.POSTID, JooqComment.COMMENT.COMMENTID)
+                MysqlUtil.Seek seek = sortFieldsMysql.isEmpty() && fulltextSearchOpt.isPresent()
+                        ? mysqlUtil.seekOffset(configSearch, Optional.empty(), cursorOpt, ImmutableList.of(SeekField.of(fulltextSearchOpt.get().getRelevance(), DESC)), JooqComment.COMMENT.POSTID, JooqComment.COMMENT.COMMENTID)
+                        : mysqlUtil.seek(configSearch, Optional.empty(), cursorOpt, sortFieldsMysql, JooqComment.COMMENT.POSTID, JooqComment.COMMENT.COMMENTID);
+                Result<Record> records = mysql.get().select(seek.selectFields(JooqComment.COMMENT.POSTID, JooqComment.COMMENT.COMMENTID))
                         .from(JooqComment.COMMENT)
                         .where(mysqlUtil.and(mysqlUtil.and(
                                         conditionSearchTextOpt,
                                         conditionFilterAuthorIdOpt),
-                                JooqComment.COMMENT.PROJECTID.eq(projectId)))
-                        .orderBy(sortFieldsMysql)
-                        .offset(mysqlUtil.offset(cursorOpt))
-                        .limit(mysqlUtil.pageSizeMax(configSearch, Optional.empty()))
-                        .stream()
-                        .map(hit -> commentSchema.primaryKey(ImmutableMap.of(
+                                JooqComment.COMMENT.PROJECTID.eq(projectId),
+                                seek.getCondition()))
+                        .orderBy(seek.getSortFields())
+                        .offset(seek.getOffset())
+                        .limit(seek.getLimit())
+                        .fetch();
+                primaryKeys = records.stream()
+                        .map(record -> commentSchema.primaryKey(ImmutableMap.of(
                                 "projectId", projectId,
-                                "ideaId", hit.component1(),
-                                "commentId", hit.component2())))
+                                "ideaId", record.get(JooqComment.COMMENT.POSTID),
+                                "commentId", record.get(JooqComment.COMMENT.COMMENTID))))
                         .toArray(PrimaryKey[]::new);
-                nextCursorOpt = mysqlUtil.nextCursor(configSearch, cursorOpt, Optional.empty(), primaryKeys.length);
+                nextCursorOpt = mysqlUtil.nextCursor(seek, records);
             }
 
             if (primaryKeys.length == 0) {
@@ -648,6 +815,34 @@ public class DynamoElasticCommentStore extends ManagedService implements Comment
 
     @Override
     public ImmutableSet<CommentModel> getCommentsForPost(String projectId, String ideaId, ImmutableSet<String> mergedPostIds, Optional<String> parentCommentIdOpt, ImmutableSet<String> excludeChildrenCommentIds) {
+        // Only the first page of a thread or a subthread is read repeatedly, subsequent pages are unique per reader
+        if (!config.commentThreadCacheEnabled() || !excludeChildrenCommentIds.isEmpty()) {
+            return getCommentsForPostUncached(projectId, ideaId, mergedPostIds, parentCommentIdOpt, excludeChildrenCommentIds);
+        }
+
+        // Versions are taken before reading so a write racing with this read leaves the thread stale
+        ImmutableList<PostVersion> postVersionsBefore = Stream.concat(Stream.of(ideaId), mergedPostIds.stream())
+                .map(postId -> getPostVersion(getPostKey(projectId, postId)))
+                .collect(ImmutableList.toImmutableList());
+        ImmutableList<Long> versions = postVersionsBefore.stream()
+                .map(PostVersion::getVersion)
+                .collect(ImmutableList.toImmutableList());
+        CommentThreadKey key = new CommentThreadKey(projectId, ideaId, mergedPostIds, parentCommentIdOpt);
+        CommentThread commentThread = commentThreadCache.getIfPresent(key);
+        if (commentThread != null && commentThread.getPostVersions().equals(versions)) {
+            return commentThread.getComments();
+        }
+
+        ImmutableSet<CommentModel> comments = getCommentsForPostUncached(projectId, ideaId, mergedPostIds, parentCommentIdOpt, excludeChildrenCommentIds);
+
+        long settledBeforeMillis = System.currentTimeMillis() - config.commentThreadCacheSettlePeriod().toMillis();
+        if (postVersionsBefore.stream().allMatch(postVersion -> postVersion.getWrittenAtMillis() < settledBeforeMillis)) {
+            commentThreadCache.put(key, new CommentThread(versions, comments));
+        }
+        return comments;
+    }
+
+    private ImmutableSet<CommentModel> getCommentsForPostUncached(String projectId, String ideaId, ImmutableSet<String> mergedPostIds, Optional<String> parentCommentIdOpt, ImmutableSet<String> excludeChildrenCommentIds) {
         // If we have a post with merged posts, we need to query them individually
         Map<String, Set<String>> postIdToCommentIds = Maps.newHashMap();
 
@@ -697,7 +892,7 @@ public class DynamoElasticCommentStore extends ManagedService implements Comment
                             .query(queryBuilder));
 
             SearchResponse searchResponse;
-            searchResponse = elasticUtil.retry(() -> elastic.get().search(searchRequest, RequestOptions.DEFAULT));
+            searchResponse = elasticUtil.retry(() -> elastic.get().search(elasticUtil.readYourWrites(searchRequest), RequestOptions.DEFAULT));
 
             for (SearchHit hit : searchResponse.getHits().getHits()) {
                 String postId = hit.field("ideaId").getValue();
@@ -802,12 +997,12 @@ public class DynamoElasticCommentStore extends ManagedService implements Comment
         SettableFuture<Void> indexingFuture = SettableFuture.create();
         SearchEngine searchEngine = projectStore.getSearchEngineForProject(projectId);
         if (searchEngine.isWriteElastic()) {
-            elastic.get().updateAsync(new UpdateRequest(elasticUtil.getIndexName(COMMENT_INDEX, projectId), commentId)
+            elastic.get().updateAsync(elasticUtil.trackWrite(new UpdateRequest(elasticUtil.getIndexName(COMMENT_INDEX, projectId), commentId)
                             .doc(gson.toJson(ImmutableMap.of(
                                     "edited", comment.getEdited().getEpochSecond(),
                                     "content", comment.getContentAsText(sanitizer)
                             )), XContentType.JSON)
-                            .setRefreshPolicy(config.elasticForceRefresh() ? WriteRequest.RefreshPolicy.IMMEDIATE : WriteRequest.RefreshPolicy.WAIT_UNTIL),
+                            .setRefreshPolicy(elasticUtil.getWriteRefreshPolicy(config.elasticForceRefresh()))),
                     RequestOptions.DEFAULT,
                     searchEngine.isReadElastic() ? ActionListeners.onFailureRetry(indexingFuture, f -> indexComment(f, comment.getProjectId(), comment.getIdeaId(), comment.getCommentId()))
                             : ActionListeners.onFailureRetry(() -> indexComment(comment.getProjectId(), comment.getIdeaId(), comment.getCommentId())));
@@ -827,7 +1022,7 @@ public class DynamoElasticCommentStore extends ManagedService implements Comment
             }
         }
 
-        return new CommentAndIndexingFuture<>(comment, indexingFuture);
+        return new CommentAndIndexingFuture<>(comment, invalidateCommentThread(projectId, ideaId, indexingFuture));
     }
 
     @Override
@@ -882,15 +1077,19 @@ public class DynamoElasticCommentStore extends ManagedService implements Comment
             userStore.userCommentVoteUpdateBloom(projectId, userId, commentId);
         }
 
+        if (config.voteWriteBehindEnabled() && voteWriteBehindExecutor != null) {
+            return new CommentAndIndexingFuture<>(comment, invalidateCommentThreadLocally(projectId, ideaId, voteIndexWriteBehind(projectId, ideaId, commentId)));
+        }
+
         SettableFuture<Void> indexingFuture = SettableFuture.create();
         SearchEngine searchEngine = projectStore.getSearchEngineForProject(projectId);
         if (searchEngine.isWriteElastic()) {
-            elastic.get().updateAsync(new UpdateRequest(elasticUtil.getIndexName(COMMENT_INDEX, projectId), commentId)
+            elastic.get().updateAsync(elasticUtil.trackWrite(new UpdateRequest(elasticUtil.getIndexName(COMMENT_INDEX, projectId), commentId)
                             .script(ElasticScript.WILSON.toScript(ImmutableMap.of(
                                     "upvoteDiff", upvoteDiff,
                                     "downvoteDiff", downvoteDiff,
                                     "z", wilsonScoreInterval.getZ())))
-                            .setRefreshPolicy(config.elasticForceRefresh() ? WriteRequest.RefreshPolicy.IMMEDIATE : WriteRequest.RefreshPolicy.WAIT_UNTIL),
+                            .setRefreshPolicy(elasticUtil.getWriteRefreshPolicy(config.elasticForceRefresh()))),
                     RequestOptions.DEFAULT,
                     searchEngine.isReadElastic() ? ActionListeners.onFailureRetry(indexingFuture, f -> indexComment(f, comment.getProjectId(), comment.getIdeaId(), comment.getCommentId()))
                             : ActionListeners.onFailureRetry(() -> indexComment(comment.getProjectId(), comment.getIdeaId(), comment.getCommentId())));
@@ -915,7 +1114,7 @@ public class DynamoElasticCommentStore extends ManagedService implements Comment
             }
         }
 
-        return new CommentAndIndexingFuture<>(comment, indexingFuture);
+        return new CommentAndIndexingFuture<>(comment, invalidateCommentThreadLocally(projectId, ideaId, indexingFuture));
     }
 
     @Extern
@@ -949,9 +1148,9 @@ public class DynamoElasticCommentStore extends ManagedService implements Comment
             updates.put("authorName", null);
             updates.put("content", null);
             updates.put("edited", comment.getEdited().getEpochSecond());
-            elastic.get().updateAsync(new UpdateRequest(elasticUtil.getIndexName(COMMENT_INDEX, projectId), commentId)
+            elastic.get().updateAsync(elasticUtil.trackWrite(new UpdateRequest(elasticUtil.getIndexName(COMMENT_INDEX, projectId), commentId)
                             .doc(gson.toJson(updates), XContentType.JSON)
-                            .setRefreshPolicy(config.elasticForceRefresh() ? WriteRequest.RefreshPolicy.IMMEDIATE : WriteRequest.RefreshPolicy.WAIT_UNTIL),
+                            .setRefreshPolicy(elasticUtil.getWriteRefreshPolicy(config.elasticForceRefresh()))),
                     RequestOptions.DEFAULT,
                     searchEngine.isReadElastic() ? ActionListeners.onFailureRetry(indexingFuture, f -> indexComment(f, comment.getProjectId(), comment.getIdeaId(), comment.getCommentId()))
                             : ActionListeners.onFailureRetry(() -> indexComment(comment.getProjectId(), comment.getIdeaId(), comment.getCommentId())));
@@ -974,7 +1173,7 @@ public class DynamoElasticCommentStore extends ManagedService implements Comment
             }
         }
 
-        return new CommentAndIndexingFuture<>(comment, indexingFuture);
+        return new CommentAndIndexingFuture<>(comment, invalidateCommentThread(projectId, ideaId, indexingFuture));
     }
 
     @Extern
@@ -990,8 +1189,8 @@ public class DynamoElasticCommentStore extends ManagedService implements Comment
         SettableFuture<Void> indexingFuture = SettableFuture.create();
         SearchEngine searchEngine = projectStore.getSearchEngineForProject(projectId);
         if (searchEngine.isWriteElastic()) {
-            elastic.get().deleteAsync(new DeleteRequest(elasticUtil.getIndexName(COMMENT_INDEX, projectId), commentId)
-                            .setRefreshPolicy(config.elasticForceRefresh() ? WriteRequest.RefreshPolicy.IMMEDIATE : WriteRequest.RefreshPolicy.WAIT_UNTIL),
+            elastic.get().deleteAsync(elasticUtil.trackWrite(new DeleteRequest(elasticUtil.getIndexName(COMMENT_INDEX, projectId), commentId)
+                            .setRefreshPolicy(elasticUtil.getWriteRefreshPolicy(config.elasticForceRefresh()))),
                     RequestOptions.DEFAULT,
                     searchEngine.isReadElastic() ? ActionListeners.onFailureRetry(indexingFuture, f -> indexComment(f, projectId, ideaId, commentId))
                             : ActionListeners.onFailureRetry(() -> indexComment(projectId, ideaId, commentId)));
@@ -1009,7 +1208,7 @@ public class DynamoElasticCommentStore extends ManagedService implements Comment
             }
         }
 
-        return indexingFuture;
+        return invalidateCommentThread(projectId, ideaId, indexingFuture);
     }
 
     @Extern
@@ -1041,8 +1240,8 @@ public class DynamoElasticCommentStore extends ManagedService implements Comment
         SettableFuture<Void> indexingFuture = SettableFuture.create();
         SearchEngine searchEngine = projectStore.getSearchEngineForProject(projectId);
         if (searchEngine.isWriteElastic()) {
-            elastic.get().deleteByQueryAsync(new DeleteByQueryRequest(elasticUtil.getIndexName(COMMENT_INDEX, projectId))
-                            .setQuery(QueryBuilders.termQuery("ideaId", ideaId)),
+            elastic.get().deleteByQueryAsync(elasticUtil.trackWrite(new DeleteByQueryRequest(elasticUtil.getIndexName(COMMENT_INDEX, projectId))
+                            .setQuery(QueryBuilders.termQuery("ideaId", ideaId))),
                     RequestOptions.DEFAULT,
                     searchEngine.isReadElastic() ? ActionListeners.fromFuture(indexingFuture)
                             : ActionListeners.logFailure());
@@ -1059,7 +1258,7 @@ public class DynamoElasticCommentStore extends ManagedService implements Comment
             }
         }
 
-        return indexingFuture;
+        return invalidateCommentThread(projectId, ideaId, indexingFuture);
     }
 
     @Extern
@@ -1092,8 +1291,7 @@ public class DynamoElasticCommentStore extends ManagedService implements Comment
         SettableFuture<Void> indexingFuture = SettableFuture.create();
         SearchEngine searchEngine = projectStore.getSearchEngineForProject(projectId);
         if (searchEngine.isWriteElastic()) {
-            elastic.get().indices().deleteAsync(new DeleteIndexRequest(elasticUtil.getIndexName(COMMENT_INDEX, projectId)),
-                    RequestOptions.DEFAULT,
+            elasticUtil.deleteIndexAsync(elasticUtil.getIndexName(COMMENT_INDEX, projectId),
                     searchEngine.isReadElastic() ? ActionListeners.fromFuture(indexingFuture)
                             : ActionListeners.logFailure());
         }
@@ -1111,6 +1309,164 @@ public class DynamoElasticCommentStore extends ManagedService implements Comment
         return indexingFuture;
     }
 
+    /**
+     * Invalidates cached threads containing the post on all nodes. Locally the post is invalidated again once
+     * indexing completes as threads read in between may not include the write yet.
+     */
+    private <T> ListenableFuture<T> invalidateCommentThread(String projectId, String postId, ListenableFuture<T> indexingFuture) {
+        cacheInvalidationBus.publish(COMMENT_THREAD_CACHE, getPostKey(projectId, postId));
+        return invalidateCommentThreadLocally(projectId, postId, indexingFuture);
+    }
+
+    /**
+     * Same as {@link #invalidateCommentThread} but only on this node. Used for votes, which are too frequent to
+     * broadcast; other nodes pick up changed vote counts once their cached thread expires.
+     */
+    private <T> ListenableFuture<T> invalidateCommentThreadLocally(String projectId, String postId, ListenableFuture<T> indexingFuture) {
+        String postKey = getPostKey(projectId, postId);
+        bumpPostVersion(postKey);
+        indexingFuture.addListener(() -> bumpPostVersion(postKey), MoreExecutors.directExecutor());
+        return indexingFuture;
+    }
+
+    private PostVersion getPostVersion(String postKey) {
+        return postVersions.asMap().computeIfAbsent(postKey, k -> new PostVersion(postVersionCounter.incrementAndGet(), 0L));
+    }
+
+    private void bumpPostVersion(String postKey) {
+        postVersions.put(postKey, new PostVersion(postVersionCounter.incrementAndGet(), System.currentTimeMillis()));
+    }
+
+    private String getPostKey(String projectId, String postId) {
+        return projectId + ":" + postId;
+    }
+
+    private ListenableFuture<Void> voteIndexWriteBehind(String projectId, String ideaId, String commentId) {
+        SettableFuture<Void> indexingFuture = SettableFuture.create();
+        pendingVoteIndexUpdates.compute(new CommentKey(projectId, ideaId, commentId), (key, indexingFutures) -> {
+            if (indexingFutures == null) {
+                indexingFutures = Lists.newArrayList();
+            }
+            indexingFutures.add(indexingFuture);
+            return indexingFutures;
+        });
+        if (pendingVoteIndexUpdates.size() >= config.voteWriteBehindFlushMaxPendingComments()
+                && voteWriteBehindExecutor != null
+                && voteWriteBehindFlushScheduled.compareAndSet(false, true)) {
+            voteWriteBehindExecutor.submit(this::flushVoteWriteBehind);
+        }
+        return indexingFuture;
+    }
+
+    @Extern
+    public long getVoteWriteBehindPendingCount() {
+        return pendingVoteIndexUpdates.size();
+    }
+
+    @Extern
+    public void flushVoteWriteBehind() {
+        voteWriteBehindFlushScheduled.set(false);
+        Map<String, Map<String, Map<String, List<SettableFuture<Void>>>>> pendingByProjectIdIdeaId = Maps.newHashMap();
+        for (CommentKey key : ImmutableList.copyOf(pendingVoteIndexUpdates.keySet())) {
+            List<SettableFuture<Void>> indexingFutures = pendingVoteIndexUpdates.remove(key);
+            if (indexingFutures != null) {
+                pendingByProjectIdIdeaId.computeIfAbsent(key.getProjectId(), p -> Maps.newHashMap())
+                        .computeIfAbsent(key.getIdeaId(), i -> Maps.newHashMap())
+                        .put(key.getCommentId(), indexingFutures);
+            }
+        }
+        pendingByProjectIdIdeaId.forEach((projectId, pendingByIdeaId) -> {
+            try {
+                flushVoteWriteBehindForProject(projectId, pendingByIdeaId);
+            } catch (Exception ex) {
+                log.warn("Failed to flush comment vote index updates for project {}", projectId, ex);
+                pendingByIdeaId.values().stream()
+                        .flatMap(pendingByCommentId -> pendingByCommentId.values().stream())
+                        .flatMap(List::stream)
+                        .forEach(f -> f.setException(ex));
+            }
+        });
+    }
+
+    private void flushVoteWriteBehindForProject(String projectId, Map<String, Map<String, List<SettableFuture<Void>>>> pendingByIdeaId) {
+        SearchEngine searchEngine = projectStore.getSearchEngineForProject(projectId);
+        // Re-read comments as DynamoDB holds the authoritative counts after all coalesced votes
+        ImmutableList<CommentModel> comments = pendingByIdeaId.entrySet().stream()
+                .flatMap(e -> Streams.stream(Iterables.partition(e.getValue().keySet(), DYNAMO_READ_BATCH_MAX_SIZE))
+                        .flatMap(commentIdsBatch -> getComments(projectId, e.getKey(), commentIdsBatch).values().stream()))
+                .collect(ImmutableList.toImmutableList());
+
+        SettableFuture<Void> indexingFutureElastic = SettableFuture.create();
+        SettableFuture<Void> indexingFutureMysql = SettableFuture.create();
+        if (searchEngine.isWriteElastic() && !comments.isEmpty()) {
+            BulkRequest bulkRequest = new BulkRequest()
+                    .setRefreshPolicy(elasticUtil.getWriteRefreshPolicy(config.elasticForceRefresh()));
+            comments.forEach(comment -> bulkRequest.add(new UpdateRequest(elasticUtil.getIndexName(COMMENT_INDEX, projectId), comment.getCommentId())
+                    .doc(gson.toJson(ImmutableMap.of(
+                            "upvotes", comment.getUpvotes(),
+                            "downvotes", comment.getDownvotes(),
+                            "score", computeCommentScore(comment.getUpvotes(), comment.getDownvotes())
+                    )), XContentType.JSON)));
+            elastic.get().bulkAsync(elasticUtil.trackWrite(bulkRequest), RequestOptions.DEFAULT, new ActionListener<>() {
+                @Override
+                public void onResponse(BulkResponse bulkResponse) {
+                    log.trace("ElasticSearch result: {}", bulkResponse);
+                    ImmutableSet<String> failedCommentIds = Arrays.stream(bulkResponse.getItems())
+                            .filter(BulkItemResponse::isFailed)
+                            .map(BulkItemResponse::getId)
+                            .collect(ImmutableSet.toImmutableSet());
+                    indexingFutureElastic.setFuture(reindexComments(projectId, comments.stream()
+                            .filter(comment -> failedCommentIds.contains(comment.getCommentId()))));
+                }
+
+                @Override
+                public void onFailure(Exception ex) {
+                    if (LogUtil.rateLimitAllowLog("dynamoelasticcommentstore-vote-write-behind-elastic-failure")) {
+                        log.info("Retrying failed comment vote index updates for project {}", projectId, ex);
+                    }
+                    indexingFutureElastic.setFuture(reindexComments(projectId, comments.stream()));
+                }
+            });
+        } else {
+            indexingFutureElastic.set(null);
+        }
+        if (searchEngine.isWriteMysql() && !comments.isEmpty()) {
+            CompletionStage<Integer> completionStage = mysqlUtil.batch(comments.stream()
+                    .map(comment -> mysql.get().update(JooqComment.COMMENT)
+                            .set(JooqComment.COMMENT.UPVOTES, (long) comment.getUpvotes())
+                            .set(JooqComment.COMMENT.DOWNVOTES, (long) comment.getDownvotes())
+                            .set(JooqComment.COMMENT.SCORE, computeCommentScore(comment.getUpvotes(), comment.getDownvotes()))
+                            .where(JooqComment.COMMENT.PROJECTID.eq(projectId)
+                                    .and(JooqComment.COMMENT.POSTID.eq(comment.getIdeaId()))
+                                    .and(JooqComment.COMMENT.COMMENTID.eq(comment.getCommentId()))))
+                    .collect(Collectors.toList()));
+            completionStage.whenComplete((result, th) -> {
+                if (th != null && LogUtil.rateLimitAllowLog("dynamoelasticcommentstore-vote-write-behind-mysql-failure")) {
+                    log.warn("Failed to flush comment vote index updates to mysql for project {}", projectId, th);
+                }
+            });
+            CompletionStageUtil.toSettableFuture(indexingFutureMysql, completionStage);
+        } else {
+            indexingFutureMysql.set(null);
+        }
+
+        ListenableFuture<Void> indexingFuture = searchEngine.isReadElastic() ? indexingFutureElastic : indexingFutureMysql;
+        pendingByIdeaId.values().stream()
+                .flatMap(pendingByCommentId -> pendingByCommentId.values().stream())
+                .flatMap(List::stream)
+                .forEach(f -> f.setFuture(indexingFuture));
+    }
+
+    private ListenableFuture<Void> reindexComments(String projectId, Stream<CommentModel> comments) {
+        List<ListenableFuture<Void>> indexingFutures = comments.map(comment -> {
+                    SettableFuture<Void> indexingFuture = SettableFuture.create();
+                    indexComment(indexingFuture, projectId, comment.getIdeaId(), comment.getCommentId());
+                    return indexingFuture;
+                })
+                .collect(Collectors.toList());
+        return Futures.transform(Futures.allAsList(indexingFutures), l -> null, MoreExecutors.directExecutor());
+    }
+
     private void indexComment(String projectId, String ideaId, String commentId) {
         indexComment(SettableFuture.create(), projectId, ideaId, commentId);
     }
@@ -1120,7 +1476,7 @@ public class DynamoElasticCommentStore extends ManagedService implements Comment
         if (!commentOpt.isPresent()) {
             SearchEngine searchEngine = projectStore.getSearchEngineForProject(projectId);
             if (searchEngine.isWriteElastic()) {
-                elastic.get().deleteAsync(new DeleteRequest(elasticUtil.getIndexName(COMMENT_INDEX, projectId), commentId),
+                elastic.get().deleteAsync(elasticUtil.trackWrite(new DeleteRequest(elasticUtil.getIndexName(COMMENT_INDEX, projectId), commentId)),
                         RequestOptions.DEFAULT,
                         searchEngine.isReadElastic()
                                 ? ActionListeners.fromFuture(indexingFuture)
@@ -1150,14 +1506,14 @@ public class DynamoElasticCommentStore extends ManagedService implements Comment
     private void indexComment(SettableFuture<Void> indexingFuture, CommentModel comment) {
         SearchEngine searchEngine = projectStore.getSearchEngineForProject(comment.getProjectId());
         if (searchEngine.isWriteElastic()) {
-            elastic.get().indexAsync(commentToEsIndexRequest(comment),
+            elastic.get().indexAsync(elasticUtil.trackWrite(commentToEsIndexRequest(comment)),
                     RequestOptions.DEFAULT,
                     searchEngine.isReadElastic()
                             ? ActionListeners.fromFuture(indexingFuture)
                             : ActionListeners.logFailure());
         }
         if (searchEngine.isWriteMysql()) {
-            CompletionStage<Integer> completionStage = mysqlUtil.sequentialBatch(commentToMysqlQuery(comment));
+            CompletionStage<Integer> completionStage = mysqlUtil.batch(commentToMysqlQuery(comment));
             if (searchEngine.isReadMysql()) {
                 CompletionStageUtil.toSettableFuture(indexingFuture, completionStage);
             } else {
@@ -1166,7 +1522,7 @@ public class DynamoElasticCommentStore extends ManagedService implements Comment
         }
     }
 
-    private Queries commentToMysqlQuery(CommentModel comment) {
+    private ImmutableList<Query> commentToMysqlQuery(CommentModel comment) {
         JooqCommentRecord commentRecord = JooqComment.COMMENT.newRecord().values(
                 comment.getProjectId(),
                 comment.getIdeaId(),
@@ -1183,29 +1539,28 @@ public class DynamoElasticCommentStore extends ManagedService implements Comment
                 (long) comment.getDownvotes(),
                 computeCommentScore(comment.getUpvotes(), comment.getDownvotes()));
 
-        Stream<JooqCommentParentIdRecord> parentCommentIdRecords = comment.getParentCommentIds().stream()
+        List<JooqCommentParentIdRecord> parentCommentIdRecords = comment.getParentCommentIds().stream()
                 .map(commentParentId -> JooqCommentParentId.COMMENT_PARENT_ID.newRecord().values(
                         comment.getProjectId(),
                         comment.getIdeaId(),
                         comment.getCommentId(),
-                        commentParentId));
-
-        return mysql.get().queries(Stream.concat(Stream.of(mysql.get().insertInto(JooqComment.COMMENT, JooqComment.COMMENT.fields())
-                                .values(commentRecord)
-                                .onDuplicateKeyUpdate()
-                                .set(commentRecord)),
-                        parentCommentIdRecords.map(parentCommentIdRecord -> mysql.get().insertInto(JooqCommentParentId.COMMENT_PARENT_ID, JooqCommentParentId.COMMENT_PARENT_ID.fields())
-                                .values(parentCommentIdRecord)
-                                .onDuplicateKeyUpdate()
-                                .set(parentCommentIdRecord)))
-                .collect(Collectors.toList()));
+                        commentParentId))
+                .collect(Collectors.toList());
+
+        ImmutableList.Builder<Query> queriesBuilder = ImmutableList.builder();
+        queriesBuilder.add(mysqlUtil.upsert(JooqComment.COMMENT, ImmutableList.of(commentRecord)));
+        if (!parentCommentIdRecords.isEmpty()) {
+            queriesBuilder.add(mysqlUtil.upsert(JooqCommentParentId.COMMENT_PARENT_ID, parentCommentIdRecords));
+        }
+        return queriesBuilder.build();
     }
 
     private IndexRequest commentToEsIndexRequest(CommentModel comment) {
         return new IndexRequest(elasticUtil.getIndexName(COMMENT_INDEX, comment.getProjectId()))
-                .setRefreshPolicy(config.elasticForceRefresh() ? WriteRequest.RefreshPolicy.IMMEDIATE : WriteRequest.RefreshPolicy.WAIT_UNTIL)
+                .setRefreshPolicy(elasticUtil.getWriteRefreshPolicy(config.elasticForceRefresh()))
                 .id(comment.getCommentId())
                 .source(gson.toJson(ImmutableMap.builder()
+                        .put("projectId", comment.getProjectId())
                         .put("ideaId", comment.getIdeaId())
                         .put("parentCommentIds", comment.getParentCommentIds())
                         .put("level", comment.getLevel())
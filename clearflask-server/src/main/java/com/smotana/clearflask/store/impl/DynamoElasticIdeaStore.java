@@ -14,7 +14,11 @@ import com.google.common.collect.*;
 import com.google.common.collect.Sets.SetView;
 import com.google.common.util.concurrent.Futures;
 import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ListenableScheduledFuture;
+import com.google.common.util.concurrent.ListeningScheduledExecutorService;
+import com.google.common.util.concurrent.MoreExecutors;
 import com.google.common.util.concurrent.SettableFuture;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import com.google.gson.Gson;
 import com.google.inject.Module;
 import com.google.inject.*;
@@ -28,17 +32,21 @@ import com.smotana.clearflask.core.ManagedService;
 import com.smotana.clearflask.store.IdeaStore;
 import com.smotana.clearflask.store.ProjectStore;
 import com.smotana.clearflask.store.ProjectStore.SearchEngine;
+import com.smotana.clearflask.store.Reindexer;
+import com.smotana.clearflask.store.Reindexer.ElasticTarget;
 import com.smotana.clearflask.store.UserStore;
 import com.smotana.clearflask.store.UserStore.UserModel;
 import com.smotana.clearflask.store.VoteStore;
 import com.smotana.clearflask.store.VoteStore.TransactionAndFundPrevious;
 import com.smotana.clearflask.store.VoteStore.VoteValue;
 import com.smotana.clearflask.store.elastic.ActionListeners;
+import com.smotana.clearflask.store.elastic.DefaultElasticSearchProvider;
 import com.smotana.clearflask.store.elastic.ElasticScript;
 import com.smotana.clearflask.store.elastic.ElasticUtil;
 import com.smotana.clearflask.store.elastic.ElasticUtil.ConfigSearch;
 import com.smotana.clearflask.store.mysql.*;
 import com.smotana.clearflask.store.mysql.MysqlUtil.Join;
+import com.smotana.clearflask.store.mysql.MysqlUtil.SeekField;
 import com.smotana.clearflask.store.mysql.model.JooqRoutines;
 import com.smotana.clearflask.store.mysql.model.tables.JooqIdea;
 import com.smotana.clearflask.store.mysql.model.tables.JooqIdeaFunders;
@@ -55,17 +63,17 @@ import io.dataspray.singletable.*;
 import lombok.Value;
 import lombok.extern.slf4j.Slf4j;
 import org.apache.lucene.search.TotalHits;
-import org.elasticsearch.action.admin.indices.delete.DeleteIndexRequest;
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.action.bulk.BulkItemResponse;
 import org.elasticsearch.action.bulk.BulkRequest;
+import org.elasticsearch.action.bulk.BulkResponse;
 import org.elasticsearch.action.delete.DeleteRequest;
 import org.elasticsearch.action.index.IndexRequest;
 import org.elasticsearch.action.search.SearchRequest;
-import org.elasticsearch.action.support.WriteRequest;
 import org.elasticsearch.action.update.UpdateRequest;
 import org.elasticsearch.client.RequestOptions;
 import org.elasticsearch.client.RestHighLevelClient;
 import org.elasticsearch.client.core.CountRequest;
-import org.elasticsearch.client.indices.CreateIndexRequest;
 import org.elasticsearch.client.indices.GetIndexRequest;
 import org.elasticsearch.common.xcontent.XContentType;
 import org.elasticsearch.index.query.*;
@@ -89,6 +97,10 @@ import java.time.Duration;
 import java.time.Instant;
 import java.util.*;
 import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.function.BiFunction;
 import java.util.function.Consumer;
 import java.util.function.Function;
@@ -100,6 +112,7 @@ import java.util.stream.StreamSupport;
 
 import static com.google.common.base.Preconditions.checkArgument;
 import static com.google.common.base.Preconditions.checkState;
+import static com.smotana.clearflask.store.dynamo.DefaultDynamoDbProvider.DYNAMO_READ_BATCH_MAX_SIZE;
 import static com.smotana.clearflask.store.dynamo.DefaultDynamoDbProvider.DYNAMO_WRITE_BATCH_MAX_SIZE;
 import static com.smotana.clearflask.store.mysql.DefaultMysqlProvider.ID_MAX_LENGTH;
 import static com.smotana.clearflask.util.ExplicitNull.orNull;
@@ -135,6 +148,29 @@ public class DynamoElasticIdeaStore extends ManagedService implements IdeaStore
         Duration searchCacheExpireAfterAccessPeriod();
 
         Observable<Duration> searchCacheExpireAfterAccessPeriodObservable();
+
+        /**
+         * Coalesce search index updates caused by votes and periodically flush
+         * them in bulk, one update per idea, instead of a search index update per vote.
+         * The vote and the idea counters in DynamoDB are still written synchronously.
+         */
+        @DefaultValue("false")
+        boolean voteWriteBehindEnabled();
+
+        @DefaultValue("PT2S")
+        Duration voteWriteBehindFlushFrequency();
+
+        /**
+         * Flush early if this many ideas are awaiting an index update.
+         */
+        @DefaultValue("10000")
+        long voteWriteBehindFlushMaxPendingIdeas();
+
+        /**
+         * Ideas per multi-row insert when bulk loading into MySQL.
+         */
+        @DefaultValue("1000")
+        int mysqlBatchSize();
     }
 
     public static final String IDEA_INDEX = "idea";
@@ -174,11 +210,18 @@ public class DynamoElasticIdeaStore extends ManagedService implements IdeaStore
     private Provider<DSLContext> mysql;
     @Inject
     private MysqlUtil mysqlUtil;
+    @Inject
+    private Reindexer reindexer;
 
     private TableSchema<IdeaModel> ideaSchema;
     private IndexSchema<IdeaModel> ideaByProjectIdSchema;
     private ExpDecayScore expDecayScoreWeek;
     private Cache<IdeaSearchKey, SearchResponse> ideaSearchCache;
+    private final ConcurrentMap<IdeaKey, PendingVoteIndexUpdate> pendingVoteIndexUpdates = Maps.newConcurrentMap();
+    private ListeningScheduledExecutorService voteWriteBehindExecutor;
+    private ListenableScheduledFuture<?> voteWriteBehindSchedule;
+    /** An early flush is already queued, don't queue another one for every vote until it runs */
+    private final AtomicBoolean voteWriteBehindFlushScheduled = new AtomicBoolean();
 
     @Inject
     private void setup() {
@@ -203,7 +246,8 @@ public class DynamoElasticIdeaStore extends ManagedService implements IdeaStore
 
     @Override
     protected ImmutableSet<Class> serviceDependencies() {
-        return ImmutableSet.of(DefaultMysqlProvider.class, DynamoElasticUserStore.class);
+        // Pending vote index updates are flushed on stop
+        return ImmutableSet.of(DefaultMysqlProvider.class, DefaultElasticSearchProvider.class, DynamoElasticUserStore.class);
     }
 
     @Override
@@ -211,6 +255,29 @@ public class DynamoElasticIdeaStore extends ManagedService implements IdeaStore
         if (configApp.createIndexesOnStartup() && configApp.defaultSearchEngine().isWriteMysql()) {
             createIndexMysql();
         }
+
+        if (config.voteWriteBehindEnabled()) {
+            voteWriteBehindExecutor = MoreExecutors.listeningDecorator(Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder()
+                    .setNameFormat("DynamoElasticIdeaStore-vote-write-behind-%d").build()));
+            voteWriteBehindSchedule = voteWriteBehindExecutor.scheduleWithFixedDelay(
+                    this::flushVoteWriteBehind,
+                    config.voteWriteBehindFlushFrequency().toMillis(),
+                    config.voteWriteBehindFlushFrequency().toMillis(),
+                    TimeUnit.MILLISECONDS);
+        }
+    }
+
+    @Override
+    protected void serviceStop() throws Exception {
+        if (voteWriteBehindExecutor != null) {
+            voteWriteBehindSchedule.cancel(false);
+            voteWriteBehindExecutor.submit(this::flushVoteWriteBehind);
+            voteWriteBehindExecutor.shutdown();
+            voteWriteBehindExecutor.awaitTermination(30, TimeUnit.SECONDS);
+        } else {
+            // Write-behind may have been disabled at runtime with votes still pending
+            flushVoteWriteBehind();
+        }
     }
 
     @Extern
@@ -274,6 +341,12 @@ public class DynamoElasticIdeaStore extends ManagedService implements IdeaStore
         mysqlUtil.createIndexIfNotExists(mysql.get().createIndex().on(JooqIdea.IDEA, JooqIdea.IDEA.CREATED));
         mysqlUtil.createIndexIfNotExists(mysql.get().createIndex().on(JooqIdea.IDEA, JooqIdea.IDEA.LASTACTIVITY));
         mysqlUtil.createIndexIfNotExists(mysql.get().createIndex().on(JooqIdea.IDEA, JooqIdea.IDEA.MERGEDTOPOSTID));
+        // Composite indexes matching each sort order for keyset pagination
+        mysqlUtil.createIndexIfNotExists(mysql.get().createIndex().on(JooqIdea.IDEA, JooqIdea.IDEA.PROJECTID, JooqIdea.IDEA.FUNDED, JooqIdea.IDEA.VOTEVALUE, JooqIdea.IDEA.EXPRESSIONSVALUE, JooqIdea.IDEA.POSTID));
+        mysqlUtil.createIndexIfNotExists(mysql.get().createIndex().on(JooqIdea.IDEA, JooqIdea.IDEA.PROJECTID, JooqIdea.IDEA.CREATED, JooqIdea.IDEA.POSTID));
+        mysqlUtil.createIndexIfNotExists(mysql.get().createIndex().on(JooqIdea.IDEA, JooqIdea.IDEA.PROJECTID, JooqIdea.IDEA.TRENDSCORE, JooqIdea.IDEA.FUNDED, JooqIdea.IDEA.VOTEVALUE, JooqIdea.IDEA.EXPRESSIONSVALUE, JooqIdea.IDEA.POSTID));
+        mysqlUtil.createIndexIfNotExists(mysql.get().createIndex().on(JooqIdea.IDEA, JooqIdea.IDEA.PROJECTID, JooqIdea.IDEA.ORDER, JooqIdea.IDEA.CREATED, JooqIdea.IDEA.POSTID));
+        mysqlUtil.createFulltextIndexIfNotExists("idea_fulltext", JooqIdea.IDEA, JooqIdea.IDEA.TITLE, JooqIdea.IDEA.DESCRIPTION);
         mysql.get().createTableIfNotExists(IDEA_TAGS_INDEX)
                 .column("projectId", SQLDataType.VARCHAR(ID_MAX_LENGTH).notNull())
                 .column("postId", SQLDataType.VARCHAR(ID_MAX_LENGTH).notNull())
@@ -300,10 +373,16 @@ public class DynamoElasticIdeaStore extends ManagedService implements IdeaStore
 
     @Extern
     public ListenableFuture<Void> createIndexElasticSearch(String projectId) {
+        return elasticUtil.createProjectIndexIfNotExists(IDEA_INDEX, projectId, this::createIndexElasticSearchNamed);
+    }
+
+    private ListenableFuture<Void> createIndexElasticSearchNamed(String indexName, Optional<String> aliasOpt) {
         SettableFuture<Void> indexingFuture = SettableFuture.create();
-        elastic.get().indices().createAsync(new CreateIndexRequest(elasticUtil.getIndexName(IDEA_INDEX, projectId)).mapping(gson.toJson(ImmutableMap.of(
+        elastic.get().indices().createAsync(elasticUtil.createIndexRequest(indexName, aliasOpt).mapping(gson.toJson(ImmutableMap.of(
                         "dynamic", "false",
                         "properties", ImmutableMap.builder()
+                                .put("projectId", ImmutableMap.of(
+                                        "type", "keyword"))
                                 .put("authorUserId", ImmutableMap.of(
                                         "type", "keyword"))
                                 .put("authorName", ImmutableMap.of(
@@ -372,18 +451,18 @@ public class DynamoElasticIdeaStore extends ManagedService implements IdeaStore
     public void repopulateIndex(String projectId, boolean deleteExistingIndex, boolean repopulateElasticSearch, boolean repopulateMysql) throws Exception {
         log.info("Repopulating index for project {} deleteExistingIndex {} repopulateElasticSearch {} repopulateMysql {}",
                 projectId, deleteExistingIndex, repopulateElasticSearch, repopulateMysql);
+        Optional<ElasticTarget<IdeaModel>> elasticTargetOpt = Optional.empty();
         if (repopulateElasticSearch) {
+            String indexName = elasticUtil.getIndexName(IDEA_INDEX, projectId);
             boolean indexAlreadyExists = elastic.get().indices().exists(
-                    new GetIndexRequest(elasticUtil.getIndexName(IDEA_INDEX, projectId)),
+                    new GetIndexRequest(indexName),
                     RequestOptions.DEFAULT);
-            if (indexAlreadyExists && deleteExistingIndex) {
-                elastic.get().indices().delete(
-                        new DeleteIndexRequest(elasticUtil.getIndexName(IDEA_INDEX, projectId)),
-                        RequestOptions.DEFAULT);
-            }
-            if (!indexAlreadyExists || deleteExistingIndex) {
-                createIndex(projectId).get();
-            }
+            elasticTargetOpt = Optional.of(new ElasticTarget<IdeaModel>(
+                    indexName,
+                    !indexAlreadyExists || deleteExistingIndex
+                            ? Optional.of(newIndexName -> createIndexElasticSearchNamed(newIndexName, Optional.empty()))
+                            : Optional.empty(),
+                    idea -> ideaToEsIndexRequest(idea, false)));
         }
         if (repopulateMysql && deleteExistingIndex) {
             mysql.get().deleteFrom(JooqIdea.IDEA)
@@ -391,30 +470,21 @@ public class DynamoElasticIdeaStore extends ManagedService implements IdeaStore
                     .execute();
         }
 
-        StreamSupport.stream(ideaByProjectIdSchema.index().query(new QuerySpec()
-                                .withHashKey(ideaByProjectIdSchema.partitionKey(Map.of(
-                                        "projectId", projectId)))
-                                .withRangeKeyCondition(new RangeKeyCondition(ideaByProjectIdSchema.rangeKeyName())
-                                        .beginsWith(ideaByProjectIdSchema.rangeValuePartial(Map.of()))))
-                        .pages()
-                        .spliterator(), false)
-                .flatMap(p -> StreamSupport.stream(p.spliterator(), false))
-                .map(ideaByProjectIdSchema::fromItem)
-                .filter(idea -> projectId.equals(idea.getProjectId()))
-                .forEach(idea -> {
-                    if (repopulateElasticSearch) {
-                        try {
-                            elastic.get().index(ideaToEsIndexRequest(idea, false), RequestOptions.DEFAULT);
-                        } catch (IOException ex) {
-                            if (LogUtil.rateLimitAllowLog("dynamoelsaticideastore-reindex-failure")) {
-                                log.warn("Failed to re-index idea {}", idea.getIdeaId(), ex);
-                            }
-                        }
-                    }
-                    if (repopulateMysql) {
-                        ideaToMysqlRecords(idea).fetchMany();
-                    }
-                });
+        reindexer.<IdeaModel>reindex(
+                "idea-" + projectId,
+                consumer -> StreamSupport.stream(ideaByProjectIdSchema.index().query(new QuerySpec()
+                                        .withHashKey(ideaByProjectIdSchema.partitionKey(Map.of(
+                                                "projectId", projectId)))
+                                        .withRangeKeyCondition(new RangeKeyCondition(ideaByProjectIdSchema.rangeKeyName())
+                                                .beginsWith(ideaByProjectIdSchema.rangeValuePartial(Map.of()))))
+                                .pages()
+                                .spliterator(), false)
+                        .flatMap(p -> StreamSupport.stream(p.spliterator(), false))
+                        .map(ideaByProjectIdSchema::fromItem)
+                        .filter(idea -> projectId.equals(idea.getProjectId()))
+                        .forEach(consumer),
+                elasticTargetOpt,
+                repopulateMysql ? Optional.of(this::ideasToMysqlQueries) : Optional.empty());
     }
 
     @Override
@@ -453,7 +523,31 @@ public class DynamoElasticIdeaStore extends ManagedService implements IdeaStore
         return indexingFuture;
     }
 
-    private Queries ideaToMysqlRecords(IdeaModel idea) {
+    /**
+     * Upserts ideas and their tags with one multi-row INSERT per table.
+     */
+    private ImmutableList<Query> ideasToMysqlQueries(Collection<IdeaModel> ideas) {
+        List<JooqIdeaRecord> ideaRecords = Lists.newArrayListWithCapacity(ideas.size());
+        List<JooqIdeaTagsRecord> tagRecords = Lists.newArrayList();
+        for (IdeaModel idea : ideas) {
+            ideaRecords.add(ideaToMysqlRecord(idea));
+            idea.getTagIds().stream()
+                    .map(tagId -> JooqIdeaTags.IDEA_TAGS.newRecord().values(
+                            idea.getProjectId(),
+                            idea.getIdeaId(),
+                            tagId))
+                    .forEach(tagRecords::add);
+        }
+
+        ImmutableList.Builder<Query> queriesBuilder = ImmutableList.builder();
+        queriesBuilder.add(mysqlUtil.upsert(JooqIdea.IDEA, ideaRecords));
+        if (!tagRecords.isEmpty()) {
+            queriesBuilder.add(mysqlUtil.upsert(JooqIdeaTags.IDEA_TAGS, tagRecords));
+        }
+        return queriesBuilder.build();
+    }
+
+    private JooqIdeaRecord ideaToMysqlRecord(IdeaModel idea) {
         JooqIdeaRecord ideaRecord = JooqIdea.IDEA.newRecord();
         ideaRecord.setProjectid(idea.getProjectId());
         ideaRecord.setPostid(idea.getIdeaId());
@@ -478,28 +572,14 @@ public class DynamoElasticIdeaStore extends ManagedService implements IdeaStore
         ideaRecord.setTrendscore(idea.getTrendScore());
         ideaRecord.setMergedtopostid(idea.getMergedToPostId());
         ideaRecord.setOrder(idea.getOrder());
-
-        Stream<JooqIdeaTagsRecord> tagRecords = idea.getTagIds().stream().map(tagId -> JooqIdeaTags.IDEA_TAGS.newRecord().values(
-                idea.getProjectId(),
-                idea.getIdeaId(),
-                tagId));
-
-        return mysql.get().queries(Stream.concat(Stream.of(mysql.get().insertInto(JooqIdea.IDEA, JooqIdea.IDEA.fields())
-                                .values(ideaRecord)
-                                .onDuplicateKeyUpdate()
-                                .set(ideaRecord)),
-                        tagRecords.map(tagRecord -> mysql.get().insertInto(JooqIdeaTags.IDEA_TAGS, JooqIdeaTags.IDEA_TAGS.fields())
-                                .values(tagRecord)
-                                .onDuplicateKeyUpdate()
-                                .set(tagRecord)))
-                .collect(Collectors.toList())
-        );
+        return ideaRecord;
     }
 
     private IndexRequest ideaToEsIndexRequest(IdeaModel idea, boolean setRefreshPolicy) {
         IndexRequest req = new IndexRequest(elasticUtil.getIndexName(IDEA_INDEX, idea.getProjectId()))
                 .id(idea.getIdeaId())
                 .source(gson.toJson(ImmutableMap.builder()
+                        .put("projectId", idea.getProjectId())
                         .put("authorUserId", idea.getAuthorUserId())
                         .put("authorName", orNull(idea.getAuthorName()))
                         .put("authorIsMod", orNull(idea.getAuthorIsMod()))
@@ -531,7 +611,7 @@ public class DynamoElasticIdeaStore extends ManagedService implements IdeaStore
                         .put("order", idea.getOrderOrDefault())
                         .build()), XContentType.JSON);
         if (setRefreshPolicy) {
-            req.setRefreshPolicy(config.elasticForceRefresh() ? WriteRequest.RefreshPolicy.IMMEDIATE : WriteRequest.RefreshPolicy.WAIT_UNTIL);
+            req.setRefreshPolicy(elasticUtil.getWriteRefreshPolicy(config.elasticForceRefresh()));
         }
         return req;
     }
@@ -539,6 +619,7 @@ public class DynamoElasticIdeaStore extends ManagedService implements IdeaStore
     @Override
     public ListenableFuture<List<Void>> createIdeas(String projectId, Iterable<IdeaModel> ideas) {
         ArrayList<ListenableFuture<Void>> indexingFutures = Lists.newArrayList();
+        SearchEngine searchEngine = projectStore.getSearchEngineForProject(projectId);
         Iterables.partition(ideas, DYNAMO_WRITE_BATCH_MAX_SIZE).forEach(ideasBatch -> {
             checkState(ideasBatch.stream().map(IdeaModel::getProjectId).allMatch(projectId::equals));
             singleTable.retryUnprocessed(dynamoDoc.batchWriteItem(new TableWriteItems(ideaSchema.tableName())
@@ -546,31 +627,32 @@ public class DynamoElasticIdeaStore extends ManagedService implements IdeaStore
                             .map(ideaSchema::toItem)
                             .collect(ImmutableList.toImmutableList()))));
 
-            SettableFuture<Void> indexingFuture = SettableFuture.create();
-            SearchEngine searchEngine = projectStore.getSearchEngineForProject(projectId);
             if (searchEngine.isWriteElastic()) {
-                elastic.get().bulkAsync(new BulkRequest()
-                                .setRefreshPolicy(config.elasticForceRefresh() ? WriteRequest.RefreshPolicy.IMMEDIATE : WriteRequest.RefreshPolicy.WAIT_UNTIL)
+                SettableFuture<Void> indexingFuture = SettableFuture.create();
+                elastic.get().bulkAsync(elasticUtil.trackWrite(new BulkRequest()
+                                .setRefreshPolicy(elasticUtil.getWriteRefreshPolicy(config.elasticForceRefresh()))
                                 .add(ideasBatch.stream()
                                         .map(idea -> ideaToEsIndexRequest(idea, false))
-                                        .collect(ImmutableList.toImmutableList())),
+                                        .collect(ImmutableList.toImmutableList()))),
                         RequestOptions.DEFAULT,
                         searchEngine.isReadElastic() ? ActionListeners.fromFuture(indexingFuture)
                                 : ActionListeners.logFailure());
+                if (searchEngine.isReadElastic()) {
+                    indexingFutures.add(indexingFuture);
+                }
             }
-            if (searchEngine.isWriteMysql()) {
-                List<CompletionStage<?>> completionStages = ideasBatch.stream()
-                        .map(this::ideaToMysqlRecords)
-                        .map(mysqlUtil::sequentialBatch)
-                        .collect(Collectors.toList());
+        });
+        // Dynamo limits batch size, but MySQL can take much larger multi-row inserts
+        if (searchEngine.isWriteMysql()) {
+            Iterables.partition(ideas, config.mysqlBatchSize()).forEach(ideasBatch -> {
+                CompletionStage<Integer> completionStage = mysqlUtil.batch(ideasToMysqlQueries(ideasBatch));
                 if (searchEngine.isReadMysql()) {
-                    CompletionStageUtil.toSettableFuture(indexingFuture, completionStages);
+                    indexingFutures.add(CompletionStageUtil.toSettableFuture(SettableFuture.create(), completionStage));
                 } else {
-                    CompletionStageUtil.logFailure(completionStages);
+                    CompletionStageUtil.logFailure(completionStage);
                 }
-            }
-            indexingFutures.add(indexingFuture);
-        });
+            });
+        }
         return Futures.allAsList(indexingFutures);
     }
 
@@ -618,9 +700,9 @@ public class DynamoElasticIdeaStore extends ManagedService implements IdeaStore
         if (searchEngine.isWriteElastic()) {
             ImmutableMap.Builder<Object, Object> updates = ImmutableMap.builder();
             updates.put("mergedToPostId", orNull(connectResponse.getIdea().getMergedToPostId()));
-            elastic.get().updateAsync(new UpdateRequest(elasticUtil.getIndexName(IDEA_INDEX, projectId), ideaId)
+            elastic.get().updateAsync(elasticUtil.trackWrite(new UpdateRequest(elasticUtil.getIndexName(IDEA_INDEX, projectId), ideaId)
                             .doc(gson.toJson(updates.build()), XContentType.JSON)
-                            .setRefreshPolicy(config.elasticForceRefresh() ? WriteRequest.RefreshPolicy.IMMEDIATE : WriteRequest.RefreshPolicy.WAIT_UNTIL),
+                            .setRefreshPolicy(elasticUtil.getWriteRefreshPolicy(config.elasticForceRefresh()))),
                     RequestOptions.DEFAULT,
                     searchEngine.isReadElastic() ? ActionListeners.onFailureRetry(indexingFuture, f -> indexIdea(f, connectResponse.getIdea()))
                             : ActionListeners.onFailureRetry(() -> indexIdea(connectResponse.getIdea())));
@@ -963,6 +1045,8 @@ public class DynamoElasticIdeaStore extends ManagedService implements IdeaStore
         Condition conditions;
         Condition conditionsRange;
         ImmutableList<Join> joins;
+        /** Present when searching by text or similarity */
+        Optional<Field<Double>> relevanceOpt;
     }
 
     private SearchIdeasConditions searchIdeasCondition(
@@ -972,7 +1056,7 @@ public class DynamoElasticIdeaStore extends ManagedService implements IdeaStore
         List<Condition> conditions = Lists.newArrayList();
         List<Condition> conditionsRange = Lists.newArrayList();
         List<Join> joins = Lists.newArrayList();
-
+        Optional<Field<Double>> relevanceOpt = Optional.empty();
 
         if (ideaSearchAdmin.getFundedByMeAndActive() == Boolean.TRUE) {
             checkArgument(requestorUserIdOpt.isPresent());
@@ -996,20 +1080,38 @@ public class DynamoElasticIdeaStore extends ManagedService implements IdeaStore
                     .limit(1)
                     .fetch(JooqIdea.IDEA.TITLE);
             if (!similarToIdeaTitleList.isEmpty()) {
-                conditions.add(mysqlUtil.similarToCondition(
+                Optional<MysqlUtil.TextSearch> similarToOpt = mysqlUtil.fulltextSimilarTo(
                         similarToIdeaTitleList.get(0),
                         JooqIdea.IDEA.TITLE,
-                        JooqIdea.IDEA.DESCRIPTION));
+                        JooqIdea.IDEA.DESCRIPTION);
+                if (similarToOpt.isPresent()) {
+                    conditions.add(similarToOpt.get().getCondition());
+                    relevanceOpt = Optional.of(similarToOpt.get().getRelevance());
+                } else {
+                    conditions.add(mysqlUtil.similarToCondition(
+                            similarToIdeaTitleList.get(0),
+                            JooqIdea.IDEA.TITLE,
+                            JooqIdea.IDEA.DESCRIPTION));
+                }
             }
             // Don't select self
             conditions.add(JooqIdea.IDEA.POSTID.ne(ideaSearchAdmin.getSimilarToIdeaId()));
         }
 
         if (!Strings.isNullOrEmpty(ideaSearchAdmin.getSearchText())) {
-            conditions.add(mysqlUtil.similarToCondition(
+            Optional<MysqlUtil.TextSearch> searchTextOpt = mysqlUtil.fulltextSearch(
                     ideaSearchAdmin.getSearchText(),
                     JooqIdea.IDEA.TITLE,
-                    JooqIdea.IDEA.DESCRIPTION));
+                    JooqIdea.IDEA.DESCRIPTION);
+            if (searchTextOpt.isPresent()) {
+                conditions.add(searchTextOpt.get().getCondition());
+                relevanceOpt = Optional.of(searchTextOpt.get().getRelevance());
+            } else {
+                conditions.add(mysqlUtil.similarToCondition(
+                        ideaSearchAdmin.getSearchText(),
+                        JooqIdea.IDEA.TITLE,
+                        JooqIdea.IDEA.DESCRIPTION));
+            }
         }
 
         if (ideaSearchAdmin.getFilterCategoryIds() != null && !ideaSearchAdmin.getFilterCategoryIds().isEmpty()) {
@@ -1061,7 +1163,8 @@ public class DynamoElasticIdeaStore extends ManagedService implements IdeaStore
         return new SearchIdeasConditions(
                 mysqlUtil.and(conditions),
                 mysqlUtil.and(conditionsRange),
-                ImmutableList.copyOf(joins));
+                ImmutableList.copyOf(joins),
+                relevanceOpt);
     }
 
     private QueryBuilder searchIdeasQuery(
@@ -1263,50 +1366,55 @@ public class DynamoElasticIdeaStore extends ManagedService implements IdeaStore
         } else {
             SearchIdeasConditions searchConditions = searchIdeasCondition(projectId, ideaSearchAdmin, requestorUserIdOpt);
 
-            final ImmutableList<SortField<?>> sortFields;
+            final MysqlUtil.Seek seek;
             if (ideaSearchAdmin.getSortBy() != null
                     && Strings.isNullOrEmpty(ideaSearchAdmin.getSimilarToIdeaId())
                     && Strings.isNullOrEmpty(ideaSearchAdmin.getSearchText())) {
                 switch (ideaSearchAdmin.getSortBy()) {
                     case TOP:
-                        sortFields = ImmutableList.of(JooqIdea.IDEA.FUNDED.sort(DESC), JooqIdea.IDEA.VOTEVALUE.sort(DESC), JooqIdea.IDEA.EXPRESSIONSVALUE.sort(DESC));
+                        seek = mysqlUtil.seek(configSearch, limitOpt, cursorOpt, ImmutableList.of(SeekField.of(JooqIdea.IDEA.FUNDED, DESC), SeekField.of(JooqIdea.IDEA.VOTEVALUE, DESC), SeekField.of(JooqIdea.IDEA.EXPRESSIONSVALUE, DESC)), JooqIdea.IDEA.POSTID);
                         break;
                     case NEW:
-                        sortFields = ImmutableList.of(JooqIdea.IDEA.CREATED.sort(DESC));
+                        seek = mysqlUtil.seek(configSearch, limitOpt, cursorOpt, ImmutableList.of(SeekField.of(JooqIdea.IDEA.CREATED, DESC)), JooqIdea.IDEA.POSTID);
                         break;
                     case TRENDING:
-                        sortFields = ImmutableList.of(JooqIdea.IDEA.TRENDSCORE.sort(DESC), JooqIdea.IDEA.FUNDED.sort(DESC), JooqIdea.IDEA.VOTEVALUE.sort(DESC), JooqIdea.IDEA.EXPRESSIONSVALUE.sort(DESC));
+                        seek = mysqlUtil.seek(configSearch, limitOpt, cursorOpt, ImmutableList.of(SeekField.of(JooqIdea.IDEA.TRENDSCORE, DESC), SeekField.of(JooqIdea.IDEA.FUNDED, DESC), SeekField.of(JooqIdea.IDEA.VOTEVALUE, DESC), SeekField.of(JooqIdea.IDEA.EXPRESSIONSVALUE, DESC)), JooqIdea.IDEA.POSTID);
                         break;
                     case RANDOM:
-                        sortFields = ImmutableList.of(DSL.rand().sort(DESC));
+                        seek = mysqlUtil.seekRandom(configSearch, limitOpt, cursorOpt);
                         break;
                     case DRAGANDDROP:
-                        sortFields = ImmutableList.of(JooqIdea.IDEA.ORDER.sort(ASC), JooqIdea.IDEA.CREATED.sort(ASC));
+                        seek = mysqlUtil.seek(configSearch, limitOpt, cursorOpt, ImmutableList.of(SeekField.of(JooqIdea.IDEA.ORDER, ASC), SeekField.of(JooqIdea.IDEA.CREATED, ASC)), JooqIdea.IDEA.POSTID);
                         break;
                     default:
                         throw new ApiException(Response.Status.BAD_REQUEST,
                                 "Sorting by '" + ideaSearchAdmin.getSortBy() + "' not supported");
                 }
+            } else if (searchConditions.getRelevanceOpt().isPresent()) {
+                seek = mysqlUtil.seekOffset(configSearch, limitOpt, cursorOpt, ImmutableList.of(SeekField.of(searchConditions.getRelevanceOpt().get(), DESC)), JooqIdea.IDEA.POSTID);
             } else if (Strings.isNullOrEmpty(ideaSearchAdmin.getSearchText())) {
-                sortFields = ImmutableList.of(JooqIdea.IDEA.FUNDED.sort(DESC), JooqIdea.IDEA.VOTEVALUE.sort(DESC), JooqIdea.IDEA.EXPRESSIONSVALUE.sort(DESC));
+                seek = mysqlUtil.seek(configSearch, limitOpt, cursorOpt, ImmutableList.of(SeekField.of(JooqIdea.IDEA.FUNDED, DESC), SeekField.of(JooqIdea.IDEA.VOTEVALUE, DESC), SeekField.of(JooqIdea.IDEA.EXPRESSIONSVALUE, DESC)), JooqIdea.IDEA.POSTID);
             } else {
-                sortFields = ImmutableList.of();
+                seek = mysqlUtil.seek(configSearch, limitOpt, cursorOpt, ImmutableList.of(), JooqIdea.IDEA.POSTID);
             }
 
-            List<String> postIds = mysql.get().selectDistinct(JooqIdea.IDEA.POSTID)
+            Result<Record> records = mysql.get().selectDistinct(seek.selectFields(JooqIdea.IDEA.POSTID))
                     .from(mysqlUtil.join(JooqIdea.IDEA, searchConditions.getJoins()))
                     .where(mysqlUtil.and(
                             searchConditions.getConditions(),
-                            searchConditions.getConditionsRange()))
-                    .orderBy(sortFields)
-                    .offset(mysqlUtil.offset(cursorOpt))
-                    .limit(mysqlUtil.pageSizeMax(configSearch, Optional.ofNullable(ideaSearchAdmin.getLimit()).map(Long::intValue)))
-                    .fetch(JooqIdea.IDEA.POSTID);
+                            searchConditions.getConditionsRange(),
+                            seek.getCondition()))
+                    .orderBy(seek.getSortFields())
+                    .offset(seek.getOffset())
+                    .limit(seek.getLimit())
+                    .fetch();
 
             searchResponse = new SearchResponse(
-                    ImmutableList.copyOf(postIds),
-                    mysqlUtil.nextCursor(configSearch, cursorOpt, limitOpt, postIds.size()),
-                    postIds.size(),
+                    records.stream()
+                            .map(record -> record.get(JooqIdea.IDEA.POSTID))
+                            .collect(ImmutableList.toImmutableList()),
+                    mysqlUtil.nextCursor(seek, records),
+                    records.size(),
                     true);
         }
 
@@ -1541,11 +1649,11 @@ public class DynamoElasticIdeaStore extends ManagedService implements IdeaStore
                         .where(JooqIdeaTags.IDEA_TAGS.PROJECTID.eq(projectId)
                                 .and(JooqIdeaTags.IDEA_TAGS.POSTID.eq(ideaId))
                                 .and(JooqIdeaTags.IDEA_TAGS.TAGID.notIn(ideaUpdateAdmin.getTagIds()))));
-                indexQueriesMysql.addAll(ideaUpdateAdmin.getTagIds().stream()
-                        .map(tagId -> (Query) mysql.get().insertInto(JooqIdeaTags.IDEA_TAGS, JooqIdeaTags.IDEA_TAGS.fields())
-                                .values(projectId, ideaId, tagId)
-                                .onDuplicateKeyIgnore())
-                        .collect(Collectors.toList()));
+                if (!ideaUpdateAdmin.getTagIds().isEmpty()) {
+                    indexQueriesMysql.add(mysqlUtil.upsert(JooqIdeaTags.IDEA_TAGS, ideaUpdateAdmin.getTagIds().stream()
+                            .map(tagId -> JooqIdeaTags.IDEA_TAGS.newRecord().values(projectId, ideaId, tagId))
+                            .collect(Collectors.toList())));
+                }
             }
         }
         if (ideaUpdateAdmin.getFundGoal() != null) {
@@ -1574,9 +1682,9 @@ public class DynamoElasticIdeaStore extends ManagedService implements IdeaStore
         SettableFuture<Void> indexingFuture = SettableFuture.create();
         if (searchEngine.isWriteElastic()) {
             if (indexUpdatesElastic.size() > 0) {
-                elastic.get().updateAsync(new UpdateRequest(elasticUtil.getIndexName(IDEA_INDEX, projectId), idea.getIdeaId())
+                elastic.get().updateAsync(elasticUtil.trackWrite(new UpdateRequest(elasticUtil.getIndexName(IDEA_INDEX, projectId), idea.getIdeaId())
                                 .doc(gson.toJson(indexUpdatesElastic), XContentType.JSON)
-                                .setRefreshPolicy(config.elasticForceRefresh() ? WriteRequest.RefreshPolicy.IMMEDIATE : WriteRequest.RefreshPolicy.WAIT_UNTIL),
+                                .setRefreshPolicy(elasticUtil.getWriteRefreshPolicy(config.elasticForceRefresh()))),
                         RequestOptions.DEFAULT,
                         searchEngine.isReadElastic() ? ActionListeners.onFailureRetry(indexingFuture, f -> indexIdea(f, projectId, ideaId))
                                 : ActionListeners.onFailureRetry(() -> indexIdea(projectId, ideaId)));
@@ -1585,28 +1693,17 @@ public class DynamoElasticIdeaStore extends ManagedService implements IdeaStore
             }
         }
         if (searchEngine.isWriteMysql()) {
-            List<CompletionStage<?>> completionStages = Lists.newArrayList();
-            if (!indexQueriesMysql.isEmpty()) {
-                indexQueriesMysql.stream()
-                        .map(Query::executeAsync)
-                        .forEach(completionStages::add);
-            }
             if (indexUpdatesMysql.changed()) {
-                CompletionStage<Integer> completionStage = mysql.get().update(JooqIdea.IDEA)
+                indexQueriesMysql.add(0, mysql.get().update(JooqIdea.IDEA)
                         .set(indexUpdatesMysql)
                         .where(JooqIdea.IDEA.PROJECTID.eq(projectId)
-                                .and(JooqIdea.IDEA.POSTID.eq(ideaId)))
-                        .executeAsync();
-                completionStages.add(completionStage);
+                                .and(JooqIdea.IDEA.POSTID.eq(ideaId))));
             }
+            CompletionStage<Integer> completionStage = mysqlUtil.batch(indexQueriesMysql);
             if (searchEngine.isReadMysql()) {
-                if (completionStages.isEmpty()) {
-                    indexingFuture.set(null);
-                } else {
-                    CompletionStageUtil.toSettableFuture(indexingFuture, completionStages);
-                }
+                CompletionStageUtil.toSettableFuture(indexingFuture, completionStage);
             } else {
-                CompletionStageUtil.logFailure(completionStages);
+                CompletionStageUtil.logFailure(completionStage);
             }
         }
 
@@ -1656,6 +1753,10 @@ public class DynamoElasticIdeaStore extends ManagedService implements IdeaStore
             userStore.userVoteUpdateBloom(projectId, userId, ideaId);
         }
 
+        if (config.voteWriteBehindEnabled() && voteWriteBehindExecutor != null) {
+            return new IdeaAndIndexingFuture(idea, voteIndexWriteBehind(projectId, ideaId, voteDiff != 0));
+        }
+
         boolean updateTrend = false;
         Map<String, Object> indexUpdatesElastic = Maps.newHashMap();
         Map<Object, Object> indexUpdatesMysql = Maps.newHashMap();
@@ -1686,7 +1787,7 @@ public class DynamoElasticIdeaStore extends ManagedService implements IdeaStore
                 } else {
                     updateRequest.doc(gson.toJson(indexUpdatesElastic), XContentType.JSON);
                 }
-                elastic.get().updateAsync(updateRequest.setRefreshPolicy(config.elasticForceRefresh() ? WriteRequest.RefreshPolicy.IMMEDIATE : WriteRequest.RefreshPolicy.WAIT_UNTIL),
+                elastic.get().updateAsync(elasticUtil.trackWrite(updateRequest.setRefreshPolicy(elasticUtil.getWriteRefreshPolicy(config.elasticForceRefresh()))),
                         RequestOptions.DEFAULT,
                         searchEngine.isReadElastic() ? ActionListeners.onFailureRetry(indexingFuture, f -> indexIdea(f, projectId, ideaId))
                                 : ActionListeners.onFailureRetry(() -> indexIdea(projectId, ideaId)));
@@ -1788,12 +1889,12 @@ public class DynamoElasticIdeaStore extends ManagedService implements IdeaStore
         SettableFuture<Void> indexingFuture = SettableFuture.create();
         SearchEngine searchEngine = projectStore.getSearchEngineForProject(projectId);
         if (searchEngine.isWriteElastic()) {
-            elastic.get().updateAsync(new UpdateRequest(elasticUtil.getIndexName(IDEA_INDEX, projectId), idea.getIdeaId())
+            elastic.get().updateAsync(elasticUtil.trackWrite(new UpdateRequest(elasticUtil.getIndexName(IDEA_INDEX, projectId), idea.getIdeaId())
                             .script(ElasticScript.EXP_DECAY.toScript(ImmutableMap.of(
                                     "decayPeriodInMillis", EXP_DECAY_PERIOD_MILLIS,
                                     "timeInMillis", System.currentTimeMillis(),
                                     "extraUpdates", indexUpdatesElastic)))
-                            .setRefreshPolicy(config.elasticForceRefresh() ? WriteRequest.RefreshPolicy.IMMEDIATE : WriteRequest.RefreshPolicy.WAIT_UNTIL),
+                            .setRefreshPolicy(elasticUtil.getWriteRefreshPolicy(config.elasticForceRefresh()))),
                     RequestOptions.DEFAULT,
                     searchEngine.isReadElastic() ? ActionListeners.onFailureRetry(indexingFuture, f -> indexIdea(f, projectId, ideaId))
                             : ActionListeners.onFailureRetry(() -> indexIdea(projectId, ideaId)));
@@ -1847,12 +1948,12 @@ public class DynamoElasticIdeaStore extends ManagedService implements IdeaStore
             Map<String, Object> indexUpdates = Maps.newHashMap();
             indexUpdates.put("expressions", idea.getExpressions().keySet());
             indexUpdates.put("expressionsValue", idea.getExpressionsValue());
-            elastic.get().updateAsync(new UpdateRequest(elasticUtil.getIndexName(IDEA_INDEX, projectId), idea.getIdeaId())
+            elastic.get().updateAsync(elasticUtil.trackWrite(new UpdateRequest(elasticUtil.getIndexName(IDEA_INDEX, projectId), idea.getIdeaId())
                             .script(ElasticScript.EXP_DECAY.toScript(ImmutableMap.of(
                                     "decayPeriodInMillis", EXP_DECAY_PERIOD_MILLIS,
                                     "timeInMillis", System.currentTimeMillis(),
                                     "extraUpdates", indexUpdates)))
-                            .setRefreshPolicy(config.elasticForceRefresh() ? WriteRequest.RefreshPolicy.IMMEDIATE : WriteRequest.RefreshPolicy.WAIT_UNTIL),
+                            .setRefreshPolicy(elasticUtil.getWriteRefreshPolicy(config.elasticForceRefresh()))),
                     RequestOptions.DEFAULT,
                     searchEngine.isReadElastic() ? ActionListeners.onFailureRetry(indexingFuture, f -> indexIdea(f, projectId, ideaId))
                             : ActionListeners.onFailureRetry(() -> indexIdea(projectId, ideaId)));
@@ -1911,12 +2012,12 @@ public class DynamoElasticIdeaStore extends ManagedService implements IdeaStore
             Map<String, Object> indexUpdates = Maps.newHashMap();
             indexUpdates.put("expressions", idea.getExpressions().keySet());
             indexUpdates.put("expressionsValue", idea.getExpressionsValue());
-            elastic.get().updateAsync(new UpdateRequest(elasticUtil.getIndexName(IDEA_INDEX, projectId), idea.getIdeaId())
+            elastic.get().updateAsync(elasticUtil.trackWrite(new UpdateRequest(elasticUtil.getIndexName(IDEA_INDEX, projectId), idea.getIdeaId())
                             .script(ElasticScript.EXP_DECAY.toScript(ImmutableMap.of(
                                     "decayPeriodInMillis", EXP_DECAY_PERIOD_MILLIS,
                                     "timeInMillis", System.currentTimeMillis(),
                                     "extraUpdates", indexUpdates)))
-                            .setRefreshPolicy(config.elasticForceRefresh() ? WriteRequest.RefreshPolicy.IMMEDIATE : WriteRequest.RefreshPolicy.WAIT_UNTIL),
+                            .setRefreshPolicy(elasticUtil.getWriteRefreshPolicy(config.elasticForceRefresh()))),
                     RequestOptions.DEFAULT,
                     searchEngine.isReadElastic() ? ActionListeners.onFailureRetry(indexingFuture, f -> indexIdea(f, projectId, ideaId))
                             : ActionListeners.onFailureRetry(() -> indexIdea(projectId, ideaId)));
@@ -2029,33 +2130,27 @@ public class DynamoElasticIdeaStore extends ManagedService implements IdeaStore
 
         SettableFuture<Void> indexingFuture = SettableFuture.create();
         if (searchEngine.isWriteElastic()) {
-            elastic.get().updateAsync(new UpdateRequest(elasticUtil.getIndexName(IDEA_INDEX, projectId), idea.getIdeaId())
+            elastic.get().updateAsync(elasticUtil.trackWrite(new UpdateRequest(elasticUtil.getIndexName(IDEA_INDEX, projectId), idea.getIdeaId())
                             .script(ElasticScript.EXP_DECAY.toScript(scriptParamsBuilder.build()))
-                            .setRefreshPolicy(config.elasticForceRefresh() ? WriteRequest.RefreshPolicy.IMMEDIATE : WriteRequest.RefreshPolicy.WAIT_UNTIL),
+                            .setRefreshPolicy(elasticUtil.getWriteRefreshPolicy(config.elasticForceRefresh()))),
                     RequestOptions.DEFAULT,
                     searchEngine.isReadElastic() ? ActionListeners.onFailureRetry(indexingFuture, f -> indexIdea(f, projectId, ideaId))
                             : ActionListeners.onFailureRetry(() -> indexIdea(projectId, ideaId)));
         }
         if (searchEngine.isWriteMysql()) {
-            List<CompletionStage<?>> completionStages = Lists.newArrayList();
-            completionStages.add(mysql.get().update(JooqIdea.IDEA)
+            indexQueriesMysql.add(0, mysql.get().update(JooqIdea.IDEA)
                     .set(indexUpdatesMysql)
                     .set(JooqIdea.IDEA.TRENDSCORE, JooqRoutines.expDecay(
                             idea.getTrendScore(),
                             EXP_DECAY_PERIOD_MILLIS,
                             System.currentTimeMillis()))
                     .where(JooqIdea.IDEA.PROJECTID.eq(projectId)
-                            .and(JooqIdea.IDEA.POSTID.eq(ideaId)))
-                    .executeAsync());
-            if (!indexQueriesMysql.isEmpty()) {
-                indexQueriesMysql.stream()
-                        .map(Query::executeAsync)
-                        .forEach(completionStages::add);
-            }
+                            .and(JooqIdea.IDEA.POSTID.eq(ideaId))));
+            CompletionStage<Integer> completionStage = mysqlUtil.batch(indexQueriesMysql);
             if (searchEngine.isReadMysql()) {
-                CompletionStageUtil.toSettableFuture(indexingFuture, completionStages);
+                CompletionStageUtil.toSettableFuture(indexingFuture, completionStage);
             } else {
-                CompletionStageUtil.logFailure(completionStages);
+                CompletionStageUtil.logFailure(completionStage);
             }
         }
 
@@ -2090,9 +2185,9 @@ public class DynamoElasticIdeaStore extends ManagedService implements IdeaStore
             if (incrementChildCount) {
                 updates.put("childCommentCount", idea.getChildCommentCount());
             }
-            elastic.get().updateAsync(new UpdateRequest(elasticUtil.getIndexName(IDEA_INDEX, projectId), idea.getIdeaId())
+            elastic.get().updateAsync(elasticUtil.trackWrite(new UpdateRequest(elasticUtil.getIndexName(IDEA_INDEX, projectId), idea.getIdeaId())
                             .doc(gson.toJson(updates.build()), XContentType.JSON)
-                            .setRefreshPolicy(config.elasticForceRefresh() ? WriteRequest.RefreshPolicy.IMMEDIATE : WriteRequest.RefreshPolicy.WAIT_UNTIL),
+                            .setRefreshPolicy(elasticUtil.getWriteRefreshPolicy(config.elasticForceRefresh()))),
                     RequestOptions.DEFAULT,
                     searchEngine.isReadElastic() ? ActionListeners.onFailureRetry(indexingFuture, f -> indexIdea(f, projectId, ideaId))
                             : ActionListeners.onFailureRetry(() -> indexIdea(projectId, ideaId)));
@@ -2135,8 +2230,8 @@ public class DynamoElasticIdeaStore extends ManagedService implements IdeaStore
         SettableFuture<Void> indexingFuture = SettableFuture.create();
         SearchEngine searchEngine = projectStore.getSearchEngineForProject(projectId);
         if (searchEngine.isWriteElastic()) {
-            elastic.get().deleteAsync(new DeleteRequest(elasticUtil.getIndexName(IDEA_INDEX, projectId), ideaId)
-                            .setRefreshPolicy(config.elasticForceRefresh() ? WriteRequest.RefreshPolicy.IMMEDIATE : WriteRequest.RefreshPolicy.WAIT_UNTIL),
+            elastic.get().deleteAsync(elasticUtil.trackWrite(new DeleteRequest(elasticUtil.getIndexName(IDEA_INDEX, projectId), ideaId)
+                            .setRefreshPolicy(elasticUtil.getWriteRefreshPolicy(config.elasticForceRefresh()))),
                     RequestOptions.DEFAULT,
                     searchEngine.isReadElastic() ? ActionListeners.onFailureRetry(indexingFuture, f -> indexIdea(f, projectId, ideaId))
                             : ActionListeners.onFailureRetry(() -> indexIdea(projectId, ideaId)));
@@ -2168,11 +2263,11 @@ public class DynamoElasticIdeaStore extends ManagedService implements IdeaStore
         SettableFuture<Void> indexingFuture = SettableFuture.create();
         SearchEngine searchEngine = projectStore.getSearchEngineForProject(projectId);
         if (searchEngine.isWriteElastic()) {
-            elastic.get().bulkAsync(new BulkRequest()
-                            .setRefreshPolicy(config.elasticForceRefresh() ? WriteRequest.RefreshPolicy.IMMEDIATE : WriteRequest.RefreshPolicy.WAIT_UNTIL)
+            elastic.get().bulkAsync(elasticUtil.trackWrite(new BulkRequest()
+                            .setRefreshPolicy(elasticUtil.getWriteRefreshPolicy(config.elasticForceRefresh()))
                             .add(ideaIds.stream()
                                     .map(ideaId -> new DeleteRequest(elasticUtil.getIndexName(IDEA_INDEX, projectId), ideaId))
-                                    .collect(ImmutableList.toImmutableList())),
+                                    .collect(ImmutableList.toImmutableList()))),
                     RequestOptions.DEFAULT,
                     searchEngine.isReadElastic() ? ActionListeners.fromFuture(indexingFuture)
                             : ActionListeners.logFailure());
@@ -2221,8 +2316,7 @@ public class DynamoElasticIdeaStore extends ManagedService implements IdeaStore
         SettableFuture<Void> indexingFuture = SettableFuture.create();
         SearchEngine searchEngine = projectStore.getSearchEngineForProject(projectId);
         if (searchEngine.isWriteElastic()) {
-            elastic.get().indices().deleteAsync(new DeleteIndexRequest(elasticUtil.getIndexName(IDEA_INDEX, projectId)),
-                    RequestOptions.DEFAULT,
+            elasticUtil.deleteIndexAsync(elasticUtil.getIndexName(IDEA_INDEX, projectId),
                     searchEngine.isReadElastic() ? ActionListeners.fromFuture(indexingFuture)
                             : ActionListeners.logFailure());
         }
@@ -2240,6 +2334,164 @@ public class DynamoElasticIdeaStore extends ManagedService implements IdeaStore
         return indexingFuture;
     }
 
+    @Value
+    private static class IdeaKey {
+        String projectId;
+        String ideaId;
+    }
+
+    /**
+     * Index update of a single idea awaiting a write-behind flush. Guarded by
+     * {@link ConcurrentMap#compute} of {@link #pendingVoteIndexUpdates}.
+     */
+    private static class PendingVoteIndexUpdate {
+        private final List<SettableFuture<Void>> indexingFutures = Lists.newArrayList();
+        /** Trend score updates collapsed via {@link ExpDecayScore#updateScore} */
+        private double trendAccumulated = Double.NEGATIVE_INFINITY;
+    }
+
+    private ListenableFuture<Void> voteIndexWriteBehind(String projectId, String ideaId, boolean updateTrend) {
+        SettableFuture<Void> indexingFuture = SettableFuture.create();
+        long now = System.currentTimeMillis();
+        pendingVoteIndexUpdates.compute(new IdeaKey(projectId, ideaId), (key, pending) -> {
+            if (pending == null) {
+                pending = new PendingVoteIndexUpdate();
+            }
+            pending.indexingFutures.add(indexingFuture);
+            if (updateTrend) {
+                pending.trendAccumulated = expDecayScoreWeek.updateScore(pending.trendAccumulated, now);
+            }
+            return pending;
+        });
+        if (pendingVoteIndexUpdates.size() >= config.voteWriteBehindFlushMaxPendingIdeas()
+                && voteWriteBehindExecutor != null
+                && voteWriteBehindFlushScheduled.compareAndSet(false, true)) {
+            voteWriteBehindExecutor.submit(this::flushVoteWriteBehind);
+        }
+        return indexingFuture;
+    }
+
+    @Extern
+    public long getVoteWriteBehindPendingCount() {
+        return pendingVoteIndexUpdates.size();
+    }
+
+    @Extern
+    public void flushVoteWriteBehind() {
+        voteWriteBehindFlushScheduled.set(false);
+        Map<String, Map<String, PendingVoteIndexUpdate>> pendingByProjectId = Maps.newHashMap();
+        for (IdeaKey key : ImmutableList.copyOf(pendingVoteIndexUpdates.keySet())) {
+            PendingVoteIndexUpdate pending = pendingVoteIndexUpdates.remove(key);
+            if (pending != null) {
+                pendingByProjectId.computeIfAbsent(key.getProjectId(), p -> Maps.newHashMap())
+                        .put(key.getIdeaId(), pending);
+            }
+        }
+        pendingByProjectId.forEach((projectId, pendingByIdeaId) -> {
+            try {
+                flushVoteWriteBehindForProject(projectId, pendingByIdeaId);
+            } catch (Exception ex) {
+                log.warn("Failed to flush vote index updates for project {}", projectId, ex);
+                pendingByIdeaId.values().stream()
+                        .flatMap(pending -> pending.indexingFutures.stream())
+                        .forEach(f -> f.setException(ex));
+            }
+        });
+    }
+
+    private void flushVoteWriteBehindForProject(String projectId, Map<String, PendingVoteIndexUpdate> pendingByIdeaId) {
+        SearchEngine searchEngine = projectStore.getSearchEngineForProject(projectId);
+        // Re-read ideas as DynamoDB holds the authoritative counts after all coalesced votes
+        ImmutableMap<String, IdeaModel> ideas = Streams.stream(Iterables.partition(pendingByIdeaId.keySet(), DYNAMO_READ_BATCH_MAX_SIZE))
+                .flatMap(ideaIdsBatch -> getIdeas(projectId, ImmutableList.copyOf(ideaIdsBatch)).values().stream())
+                .collect(ImmutableMap.toImmutableMap(IdeaModel::getIdeaId, i -> i));
+
+        SettableFuture<Void> indexingFutureElastic = SettableFuture.create();
+        SettableFuture<Void> indexingFutureMysql = SettableFuture.create();
+        if (searchEngine.isWriteElastic() && !ideas.isEmpty()) {
+            // Same policy as an unbuffered vote and the comment store's flush, so the indexing future handed to the
+            // voter promises the same visibility whether or not write-behind is enabled
+            BulkRequest bulkRequest = new BulkRequest()
+                    .setRefreshPolicy(elasticUtil.getWriteRefreshPolicy(config.elasticForceRefresh()));
+            ideas.values().forEach(idea -> {
+                double trendAccumulated = pendingByIdeaId.get(idea.getIdeaId()).trendAccumulated;
+                Map<String, Object> indexUpdates = Maps.newHashMap();
+                indexUpdates.put("voteValue", orNull(idea.getVoteValue()));
+                indexUpdates.put("votersCount", orNull(idea.getVotersCount()));
+                UpdateRequest updateRequest = new UpdateRequest(elasticUtil.getIndexName(IDEA_INDEX, projectId), idea.getIdeaId());
+                if (trendAccumulated != Double.NEGATIVE_INFINITY) {
+                    updateRequest.script(ElasticScript.EXP_DECAY.toScript(ImmutableMap.of(
+                            "decayPeriodInMillis", EXP_DECAY_PERIOD_MILLIS,
+                            "timeInMillis", expDecayScoreWeek.toEquivalentTimeInMillis(trendAccumulated),
+                            "extraUpdates", indexUpdates)));
+                } else {
+                    updateRequest.doc(gson.toJson(indexUpdates), XContentType.JSON);
+                }
+                bulkRequest.add(updateRequest);
+            });
+            elastic.get().bulkAsync(elasticUtil.trackWrite(bulkRequest), RequestOptions.DEFAULT, new ActionListener<>() {
+                @Override
+                public void onResponse(BulkResponse bulkResponse) {
+                    log.trace("ElasticSearch result: {}", bulkResponse);
+                    indexingFutureElastic.setFuture(reindexIdeas(projectId, Arrays.stream(bulkResponse.getItems())
+                            .filter(BulkItemResponse::isFailed)
+                            .map(BulkItemResponse::getId)));
+                }
+
+                @Override
+                public void onFailure(Exception ex) {
+                    if (LogUtil.rateLimitAllowLog("dynamoelsaticideastore-vote-write-behind-elastic-failure")) {
+                        log.info("Retrying failed vote index updates for project {}", projectId, ex);
+                    }
+                    indexingFutureElastic.setFuture(reindexIdeas(projectId, ideas.keySet().stream()));
+                }
+            });
+        } else {
+            indexingFutureElastic.set(null);
+        }
+        if (searchEngine.isWriteMysql() && !ideas.isEmpty()) {
+            CompletionStage<Integer> completionStage = mysqlUtil.batch(ideas.values().stream()
+                    .map(idea -> {
+                        double trendAccumulated = pendingByIdeaId.get(idea.getIdeaId()).trendAccumulated;
+                        UpdateSetMoreStep<JooqIdeaRecord> update = mysql.get().update(JooqIdea.IDEA)
+                                .set(JooqIdea.IDEA.VOTEVALUE, idea.getVoteValue())
+                                .set(JooqIdea.IDEA.VOTERSCOUNT, idea.getVotersCount());
+                        if (trendAccumulated != Double.NEGATIVE_INFINITY) {
+                            update = update.set(JooqIdea.IDEA.TRENDSCORE, JooqRoutines.expDecay(
+                                    JooqIdea.IDEA.TRENDSCORE,
+                                    DSL.val(EXP_DECAY_PERIOD_MILLIS),
+                                    DSL.val(expDecayScoreWeek.toEquivalentTimeInMillis(trendAccumulated))));
+                        }
+                        return update.where(JooqIdea.IDEA.PROJECTID.eq(projectId)
+                                .and(JooqIdea.IDEA.POSTID.eq(idea.getIdeaId())));
+                    })
+                    .collect(Collectors.toList()));
+            completionStage.whenComplete((result, th) -> {
+                if (th != null && LogUtil.rateLimitAllowLog("dynamoelsaticideastore-vote-write-behind-mysql-failure")) {
+                    log.warn("Failed to flush vote index updates to mysql for project {}", projectId, th);
+                }
+            });
+            CompletionStageUtil.toSettableFuture(indexingFutureMysql, completionStage);
+        } else {
+            indexingFutureMysql.set(null);
+        }
+
+        ListenableFuture<Void> indexingFuture = searchEngine.isReadElastic() ? indexingFutureElastic : indexingFutureMysql;
+        pendingByIdeaId.values().stream()
+                .flatMap(pending -> pending.indexingFutures.stream())
+                .forEach(f -> f.setFuture(indexingFuture));
+    }
+
+    private ListenableFuture<Void> reindexIdeas(String projectId, Stream<String> ideaIds) {
+        List<ListenableFuture<Void>> indexingFutures = ideaIds.map(ideaId -> {
+                    SettableFuture<Void> indexingFuture = SettableFuture.create();
+                    indexIdea(indexingFuture, projectId, ideaId);
+                    return indexingFuture;
+                })
+                .collect(Collectors.toList());
+        return Futures.transform(Futures.allAsList(indexingFutures), l -> null, MoreExecutors.directExecutor());
+    }
+
     private void indexIdea(String projectId, String ideaId) {
         indexIdea(SettableFuture.create(), projectId, ideaId);
     }
@@ -2249,7 +2501,7 @@ public class DynamoElasticIdeaStore extends ManagedService implements IdeaStore
         if (!ideaOpt.isPresent()) {
             SearchEngine searchEngine = projectStore.getSearchEngineForProject(projectId);
             if (searchEngine.isWriteElastic()) {
-                elastic.get().deleteAsync(new DeleteRequest(elasticUtil.getIndexName(IDEA_INDEX, projectId), ideaId),
+                elastic.get().deleteAsync(elasticUtil.trackWrite(new DeleteRequest(elasticUtil.getIndexName(IDEA_INDEX, projectId), ideaId)),
                         RequestOptions.DEFAULT,
                         searchEngine.isReadElastic()
                                 ? ActionListeners.fromFuture(indexingFuture)
@@ -2278,14 +2530,14 @@ public class DynamoElasticIdeaStore extends ManagedService implements IdeaStore
     private void indexIdea(SettableFuture<Void> indexingFuture, IdeaModel idea) {
         SearchEngine searchEngine = projectStore.getSearchEngineForProject(idea.getProjectId());
         if (searchEngine.isWriteElastic()) {
-            elastic.get().indexAsync(ideaToEsIndexRequest(idea, true),
+            elastic.get().indexAsync(elasticUtil.trackWrite(ideaToEsIndexRequest(idea, true)),
                     RequestOptions.DEFAULT,
                     searchEngine.isReadElastic()
                             ? ActionListeners.fromFuture(indexingFuture)
                             : ActionListeners.logFailure());
         }
         if (searchEngine.isWriteMysql()) {
-            CompletionStage<Integer> completionStage = mysqlUtil.sequentialBatch(ideaToMysqlRecords(idea));
+            CompletionStage<Integer> completionStage = mysqlUtil.batch(ideasToMysqlQueries(ImmutableList.of(idea)));
             if (searchEngine.isReadMysql()) {
                 CompletionStageUtil.toSettableFuture(indexingFuture, completionStage);
             } else {
@@ -3,8 +3,8 @@
 package com.smotana.clearflask.store.impl;
 
 import com.amazonaws.services.dynamodbv2.AmazonDynamoDB;
-import com.amazonaws.services.dynamodbv2.document.AttributeUpdate;
 import com.amazonaws.services.dynamodbv2.document.DynamoDB;
+import com.amazonaws.services.dynamodbv2.document.Item;
 import com.amazonaws.services.dynamodbv2.document.ItemUtils;
 import com.amazonaws.services.dynamodbv2.document.PrimaryKey;
 import com.amazonaws.services.dynamodbv2.document.RangeKeyCondition;
@@ -30,6 +30,8 @@ import com.amazonaws.services.dynamodbv2.model.TransactionCanceledException;
 import com.amazonaws.services.dynamodbv2.model.Update;
 import com.google.common.base.Charsets;
 import com.google.common.base.Strings;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
 import com.google.common.collect.ImmutableCollection;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
@@ -37,8 +39,6 @@ import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.Iterables;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
-import com.google.common.hash.BloomFilter;
-import com.google.common.hash.Funnels;
 import com.google.common.hash.HashFunction;
 import com.google.common.hash.Hashing;
 import com.google.common.util.concurrent.Futures;
@@ -68,8 +68,11 @@ import com.smotana.clearflask.api.model.UserUpdate;
 import com.smotana.clearflask.api.model.UserUpdateAdmin;
 import com.smotana.clearflask.core.ManagedService;
 import com.smotana.clearflask.store.AccountStore;
+import com.smotana.clearflask.store.CacheInvalidationBus;
 import com.smotana.clearflask.store.ProjectStore;
 import com.smotana.clearflask.store.ProjectStore.SearchEngine;
+import com.smotana.clearflask.store.Reindexer;
+import com.smotana.clearflask.store.Reindexer.ElasticTarget;
 import com.smotana.clearflask.store.UserStore;
 import com.smotana.clearflask.store.elastic.ActionListeners;
 import com.smotana.clearflask.store.elastic.ElasticUtil;
@@ -77,6 +80,7 @@ import com.smotana.clearflask.store.mysql.CompletionStageUtil;
 import com.smotana.clearflask.store.mysql.DefaultMysqlProvider;
 import com.smotana.clearflask.store.mysql.MoreSQLDataType;
 import com.smotana.clearflask.store.mysql.MysqlUtil;
+import com.smotana.clearflask.store.mysql.MysqlUtil.SeekField;
 import com.smotana.clearflask.store.mysql.model.tables.JooqUser;
 import com.smotana.clearflask.store.mysql.model.tables.records.JooqUserRecord;
 import com.smotana.clearflask.util.BloomFilters;
@@ -98,22 +102,21 @@ import io.jsonwebtoken.SignatureAlgorithm;
 import io.jsonwebtoken.UnsupportedJwtException;
 import io.jsonwebtoken.impl.compression.GzipCompressionCodec;
 import io.jsonwebtoken.security.SignatureException;
+import lombok.AllArgsConstructor;
+import lombok.Getter;
 import lombok.NonNull;
 import lombok.Value;
 import lombok.extern.slf4j.Slf4j;
 import org.apache.http.impl.client.CloseableHttpClient;
 import org.apache.http.impl.client.HttpClientBuilder;
 import org.apache.lucene.search.TotalHits;
-import org.elasticsearch.action.admin.indices.delete.DeleteIndexRequest;
 import org.elasticsearch.action.bulk.BulkRequest;
 import org.elasticsearch.action.delete.DeleteRequest;
 import org.elasticsearch.action.index.IndexRequest;
 import org.elasticsearch.action.search.SearchRequest;
-import org.elasticsearch.action.support.WriteRequest;
 import org.elasticsearch.action.update.UpdateRequest;
 import org.elasticsearch.client.RequestOptions;
 import org.elasticsearch.client.RestHighLevelClient;
-import org.elasticsearch.client.indices.CreateIndexRequest;
 import org.elasticsearch.client.indices.GetIndexRequest;
 import org.elasticsearch.common.xcontent.XContentType;
 import org.elasticsearch.index.query.BoolQueryBuilder;
@@ -125,13 +128,14 @@ import org.elasticsearch.search.sort.SortOrder;
 import org.jooq.Condition;
 import org.jooq.DSLContext;
 import org.jooq.Query;
-import org.jooq.SortField;
+import org.jooq.Record;
+import org.jooq.Result;
 import org.jooq.impl.SQLDataType;
 
 import javax.crypto.SecretKey;
 import javax.crypto.spec.SecretKeySpec;
 import javax.ws.rs.core.Response;
-import java.io.IOException;
+import java.math.BigDecimal;
 import java.time.Duration;
 import java.time.Instant;
 import java.util.Arrays;
@@ -141,9 +145,12 @@ import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
+import java.util.Set;
 import java.util.concurrent.CompletionStage;
 import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.function.Consumer;
+import java.util.function.Function;
 import java.util.function.Supplier;
 import java.util.stream.Collectors;
 import java.util.stream.StreamSupport;
@@ -165,6 +172,52 @@ public class DynamoElasticUserStore extends ManagedService implements UserStore
         String accessToken;
     }
 
+    @AllArgsConstructor
+    private enum BloomField {
+        VOTE("voteBloom", UserModel::getVoteBloom),
+        COMMENT_VOTE("commentVoteBloom", UserModel::getCommentVoteBloom),
+        EXPRESS("expressBloom", UserModel::getExpressBloom),
+        FUND("fundBloom", UserModel::getFundBloom);
+
+        @Getter
+        private final String attrName;
+        private final Function<UserModel, byte[]> getter;
+
+        /**
+         * Number set of bit indexes not yet folded into the filter.
+         */
+        public String getDeltaAttrName() {
+            return attrName + "Delta";
+        }
+
+        public byte[] getBloom(UserModel user) {
+            return getter.apply(user);
+        }
+    }
+
+    @Value
+    private static class BloomCacheKey {
+        @NonNull
+        String projectId;
+        @NonNull
+        String userId;
+        @NonNull
+        BloomField field;
+    }
+
+    @Value
+    private static class BloomUpdate {
+        @NonNull
+        BloomField field;
+        /**
+         * Present if user does not have a filter yet
+         */
+        @NonNull
+        Optional<byte[]> bloomInitialOpt;
+        @NonNull
+        ImmutableSet<BigDecimal> bitIndexes;
+    }
+
     public interface Config {
         /**
          * Intended for tests. Force immediate index refresh after write request.
@@ -196,6 +249,37 @@ public class DynamoElasticUserStore extends ManagedService implements UserStore
         @DefaultValue("50")
         long fundBloomFilterExpectedInsertions();
 
+        /**
+         * Max number of user Bloom filters kept in memory to check membership without fetching the user.
+         */
+        @DefaultValue("10000")
+        long bloomCacheMaximumSize();
+
+        @DefaultValue("PT10M")
+        Duration bloomCacheExpireAfterAccess();
+
+        /**
+         * Bloom filter updates are persisted as a set of bit indexes. Once the set reaches this size, it is
+         * folded back into the filter.
+         */
+        @DefaultValue("200")
+        long bloomDeltaCompactionThreshold();
+
+        @DefaultValue("true")
+        boolean sessionCacheEnabled();
+
+        @DefaultValue("100000")
+        long sessionCacheMaximumSize();
+
+        @DefaultValue("PT1M")
+        Duration sessionCacheExpireAfterWrite();
+
+        /**
+         * Unknown session ids are cached separately to avoid hitting DynamoDB for invalid cookies.
+         */
+        @DefaultValue("PT10S")
+        Duration sessionCacheNotFoundExpireAfterWrite();
+
         @NoDefaultValue
         SecretKey tokenSignerPrivKey();
 
@@ -210,7 +294,8 @@ public class DynamoElasticUserStore extends ManagedService implements UserStore
         boolean enableHistograms();
     }
 
-    private static final String USER_INDEX = "user";
+    public static final String USER_INDEX = "user";
+    private static final String SESSION_CACHE = "userSession";
 
     private final HashFunction hashFunction = Hashing.murmur3_128(-223823442);
 
@@ -241,6 +326,10 @@ public class DynamoElasticUserStore extends ManagedService implements UserStore
     private Provider<DSLContext> mysql;
     @Inject
     private MysqlUtil mysqlUtil;
+    @Inject
+    private Reindexer reindexer;
+    @Inject
+    private CacheInvalidationBus cacheInvalidationBus;
 
     private TableSchema<UserModel> userSchema;
     private IndexSchema<UserModel> userByProjectIdSchema;
@@ -250,9 +339,33 @@ public class DynamoElasticUserStore extends ManagedService implements UserStore
     private IndexSchema<UserSession> sessionByUserSchema;
     private TableSchema<UserCounter> userCounterSchema;
     private CloseableHttpClient client;
+    private Cache<BloomCacheKey, byte[]> bloomCache;
+    private Cache<String, UserSession> sessionCache;
+    private Cache<String, Boolean> sessionNotFoundCache;
+    private final AtomicLong sessionCacheReadsSavedCounter = new AtomicLong();
 
     @Inject
     private void setup() {
+        bloomCache = CacheBuilder.newBuilder()
+                .maximumSize(config.bloomCacheMaximumSize())
+                .expireAfterAccess(config.bloomCacheExpireAfterAccess())
+                .recordStats()
+                .build();
+        sessionCache = CacheBuilder.newBuilder()
+                .maximumSize(config.sessionCacheMaximumSize())
+                .expireAfterWrite(config.sessionCacheExpireAfterWrite())
+                .recordStats()
+                .build();
+        sessionNotFoundCache = CacheBuilder.newBuilder()
+                .maximumSize(config.sessionCacheMaximumSize())
+                .expireAfterWrite(config.sessionCacheNotFoundExpireAfterWrite())
+                .recordStats()
+                .build();
+        cacheInvalidationBus.subscribe(SESSION_CACHE, sessionIds -> {
+            sessionCache.invalidateAll(sessionIds);
+            sessionNotFoundCache.invalidateAll(sessionIds);
+        });
+
         userSchema = singleTable.parseTableSchema(UserModel.class);
         userByProjectIdSchema = singleTable.parseGlobalSecondaryIndexSchema(2, UserModel.class);
         identifierToUserIdSchema = singleTable.parseTableSchema(IdentifierUser.class);
@@ -307,12 +420,20 @@ public class DynamoElasticUserStore extends ManagedService implements UserStore
                 .execute();
         mysqlUtil.createIndexIfNotExists(mysql.get().createIndex().on(JooqUser.USER, JooqUser.USER.PROJECTID));
         mysqlUtil.createIndexIfNotExists(mysql.get().createIndex().on(JooqUser.USER, JooqUser.USER.ISMOD));
+        // Composite indexes matching each sort order for keyset pagination
+        mysqlUtil.createIndexIfNotExists(mysql.get().createIndex().on(JooqUser.USER, JooqUser.USER.PROJECTID, JooqUser.USER.CREATED, JooqUser.USER.USERID));
+        mysqlUtil.createIndexIfNotExists(mysql.get().createIndex().on(JooqUser.USER, JooqUser.USER.PROJECTID, JooqUser.USER.BALANCE, JooqUser.USER.USERID));
+        mysqlUtil.createFulltextIndexIfNotExists("user_fulltext", JooqUser.USER, JooqUser.USER.NAME, JooqUser.USER.EMAIL);
     }
 
     @Extern
     public ListenableFuture<Void> createIndexElasticSearch(String projectId) {
+        return elasticUtil.createProjectIndexIfNotExists(USER_INDEX, projectId, this::createIndexElasticSearchNamed);
+    }
+
+    private ListenableFuture<Void> createIndexElasticSearchNamed(String indexName, Optional<String> aliasOpt) {
         SettableFuture<Void> indexingFuture = SettableFuture.create();
-        elastic.get().indices().createAsync(new CreateIndexRequest(elasticUtil.getIndexName(USER_INDEX, projectId))
+        elastic.get().indices().createAsync(elasticUtil.createIndexRequest(indexName, aliasOpt)
                         .settings(gson.toJson(ImmutableMap.of(
                                 "index", ImmutableMap.of(
                                         "analysis", ImmutableMap.of(
@@ -325,6 +446,8 @@ public class DynamoElasticUserStore extends ManagedService implements UserStore
                         .mapping(gson.toJson(ImmutableMap.of(
                                 "dynamic", "false",
                                 "properties", ImmutableMap.builder()
+                                        .put("projectId", ImmutableMap.of(
+                                                "type", "keyword"))
                                         .put("name", ImmutableMap.of(
                                                 "type", "text",
                                                 "analyzer", AUTOCOMPLETE_ANALYZER_NAME,
@@ -355,18 +478,18 @@ public class DynamoElasticUserStore extends ManagedService implements UserStore
     public void repopulateIndex(String projectId, boolean deleteExistingIndex, boolean repopulateElasticSearch, boolean repopulateMysql) throws Exception {
         log.info("Repopulating index for project {} deleteExistingIndex {} repopulateElasticSearch {} repopulateMysql {}",
                 projectId, deleteExistingIndex, repopulateElasticSearch, repopulateMysql);
+        Optional<ElasticTarget<UserModel>> elasticTargetOpt = Optional.empty();
         if (repopulateElasticSearch) {
+            String indexName = elasticUtil.getIndexName(USER_INDEX, projectId);
             boolean indexAlreadyExists = elastic.get().indices().exists(
-                    new GetIndexRequest(elasticUtil.getIndexName(USER_INDEX, projectId)),
+                    new GetIndexRequest(indexName),
                     RequestOptions.DEFAULT);
-            if (indexAlreadyExists && deleteExistingIndex) {
-                elastic.get().indices().delete(
-                        new DeleteIndexRequest(elasticUtil.getIndexName(USER_INDEX, projectId)),
-                        RequestOptions.DEFAULT);
-            }
-            if (!indexAlreadyExists || deleteExistingIndex) {
-                createIndexElasticSearch(projectId).get();
-            }
+            elasticTargetOpt = Optional.of(new ElasticTarget<UserModel>(
+                    indexName,
+                    !indexAlreadyExists || deleteExistingIndex
+                            ? Optional.of(newIndexName -> createIndexElasticSearchNamed(newIndexName, Optional.empty()))
+                            : Optional.empty(),
+                    this::userToEsIndexRequest));
         }
         if (repopulateMysql && deleteExistingIndex) {
             mysql.get().deleteFrom(JooqUser.USER)
@@ -374,30 +497,23 @@ public class DynamoElasticUserStore extends ManagedService implements UserStore
                     .execute();
         }
 
-        StreamSupport.stream(userByProjectIdSchema.index().query(new QuerySpec()
-                                .withHashKey(userByProjectIdSchema.partitionKey(Map.of(
-                                        "projectId", projectId)))
-                                .withRangeKeyCondition(new RangeKeyCondition(userByProjectIdSchema.rangeKeyName())
-                                        .beginsWith(userByProjectIdSchema.rangeValuePartial(Map.of()))))
-                        .pages()
-                        .spliterator(), false)
-                .flatMap(p -> StreamSupport.stream(p.spliterator(), false))
-                .map(userByProjectIdSchema::fromItem)
-                .filter(user -> projectId.equals(user.getProjectId()))
-                .forEach(user -> {
-                    if (repopulateElasticSearch) {
-                        try {
-                            elastic.get().index(userToEsIndexRequest(user), RequestOptions.DEFAULT);
-                        } catch (IOException ex) {
-                            if (LogUtil.rateLimitAllowLog("dynamoelsaticuserstore-reindex-failure")) {
-                                log.warn("Failed to re-index user {}", user.getUserId(), ex);
-                            }
-                        }
-                    }
-                    if (repopulateMysql) {
-                        userToMysqlQuery(user).execute();
-                    }
-                });
+        reindexer.<UserModel>reindex(
+                "user-" + projectId,
+                consumer -> StreamSupport.stream(userByProjectIdSchema.index().query(new QuerySpec()
+                                        .withHashKey(userByProjectIdSchema.partitionKey(Map.of(
+                                                "projectId", projectId)))
+                                        .withRangeKeyCondition(new RangeKeyCondition(userByProjectIdSchema.rangeKeyName())
+                                                .beginsWith(userByProjectIdSchema.rangeValuePartial(Map.of()))))
+                                .pages()
+                                .spliterator(), false)
+                        .flatMap(p -> StreamSupport.stream(p.spliterator(), false))
+                        .map(userByProjectIdSchema::fromItem)
+                        .filter(user -> projectId.equals(user.getProjectId()))
+                        .forEach(consumer),
+                elasticTargetOpt,
+                repopulateMysql ? Optional.of(users -> ImmutableList.of(mysqlUtil.upsert(JooqUser.USER, users.stream()
+                        .map(this::userToMysqlRecord)
+                        .collect(ImmutableList.toImmutableList())))) : Optional.empty());
     }
 
     @Override
@@ -445,7 +561,7 @@ public class DynamoElasticUserStore extends ManagedService implements UserStore
     }
 
     private Optional<UserModel> getUser(String projectId, String userId, boolean consistentRead) {
-        return Optional.ofNullable(userSchema.fromItem(userSchema.table().getItem(new GetItemSpec()
+        return Optional.ofNullable(userFromItem(userSchema.table().getItem(new GetItemSpec()
                 .withPrimaryKey(userSchema.primaryKey(Map.of(
                         "projectId", projectId,
                         "userId", userId)))
@@ -462,7 +578,7 @@ public class DynamoElasticUserStore extends ManagedService implements UserStore
                                 "projectId", projectId,
                                 "userId", userId)))
                         .toArray(PrimaryKey[]::new))))
-                .map(userSchema::fromItem)
+                .map(this::userFromItem)
                 .collect(ImmutableMap.toImmutableMap(
                         UserModel::getUserId,
                         i -> i));
@@ -598,14 +714,14 @@ public class DynamoElasticUserStore extends ManagedService implements UserStore
                 sortOrder = org.jooq.SortOrder.DEFAULT;
             }
 
-            ImmutableList<SortField<?>> sortFields;
+            ImmutableList<SeekField<?>> sortFields;
             if (userSearchAdmin.getSortBy() != null) {
                 switch (userSearchAdmin.getSortBy()) {
                     case CREATED:
-                        sortFields = ImmutableList.of(JooqUser.USER.CREATED.sort(sortOrder));
+                        sortFields = ImmutableList.of(SeekField.of(JooqUser.USER.CREATED, sortOrder));
                         break;
                     case FUNDSAVAILABLE:
-                        sortFields = ImmutableList.of(JooqUser.USER.BALANCE.sort(sortOrder));
+                        sortFields = ImmutableList.of(SeekField.of(JooqUser.USER.BALANCE, sortOrder));
                         break;
                     case FUNDEDIDEAS:
                     case SUPPORTEDIDEAS:
@@ -620,26 +736,37 @@ public class DynamoElasticUserStore extends ManagedService implements UserStore
             }
 
             Condition conditions = JooqUser.USER.PROJECTID.eq(projectId);
+            Optional<MysqlUtil.TextSearch> searchTextOpt = Optional.empty();
             if (userSearchAdmin.getIsMod() != null) {
                 conditions = conditions.and(JooqUser.USER.ISMOD.eq(userSearchAdmin.getIsMod()));
             }
             if (!Strings.isNullOrEmpty(userSearchAdmin.getSearchText())) {
-                conditions = conditions.and(JooqUser.USER.NAME.like("%" + userSearchAdmin.getSearchText() + "%")
-                        .or(JooqUser.USER.EMAIL.like("%" + userSearchAdmin.getSearchText() + "%")));
+                searchTextOpt = mysqlUtil.fulltextSearch(userSearchAdmin.getSearchText(), JooqUser.USER.NAME, JooqUser.USER.EMAIL);
+                if (searchTextOpt.isPresent()) {
+                    conditions = conditions.and(searchTextOpt.get().getCondition());
+                } else {
+                    conditions = conditions.and(JooqUser.USER.NAME.like("%" + userSearchAdmin.getSearchText() + "%")
+                            .or(JooqUser.USER.EMAIL.like("%" + userSearchAdmin.getSearchText() + "%")));
+                }
             }
 
-            List<String> userIds = mysql.get().select(JooqUser.USER.USERID)
+            MysqlUtil.Seek seek = sortFields.isEmpty() && searchTextOpt.isPresent()
+                    ? mysqlUtil.seekOffset(configSearch, pageSizeOpt, cursorOpt, ImmutableList.of(SeekField.of(searchTextOpt.get().getRelevance(), org.jooq.SortOrder.DESC)), JooqUser.USER.USERID)
+                    : mysqlUtil.seek(configSearch, pageSizeOpt, cursorOpt, sortFields, JooqUser.USER.USERID);
+            Result<Record> records = mysql.get().select(seek.selectFields(JooqUser.USER.USERID))
                     .from(JooqUser.USER)
-                    .where(conditions)
-                    .orderBy(sortFields)
-                    .offset(mysqlUtil.offset(cursorOpt))
-                    .limit(mysqlUtil.pageSizeMax(configSearch, pageSizeOpt))
-                    .fetch(JooqUser.USER.USERID);
+                    .where(conditions, seek.getCondition())
+                    .orderBy(seek.getSortFields())
+                    .offset(seek.getOffset())
+                    .limit(seek.getLimit())
+                    .fetch();
 
             return new SearchUsersResponse(
-                    ImmutableList.copyOf(userIds),
-                    mysqlUtil.nextCursor(configSearch, cursorOpt, pageSizeOpt, userIds.size()),
-                    userIds.size(),
+                    records.stream()
+                            .map(record -> record.get(JooqUser.USER.USERID))
+                            .collect(ImmutableList.toImmutableList()),
+                    mysqlUtil.nextCursor(seek, records),
+                    records.size(),
                     true);
         }
     }
@@ -944,9 +1071,9 @@ public class DynamoElasticUserStore extends ManagedService implements UserStore
         SearchEngine searchEngine = projectStore.getSearchEngineForProject(projectId);
         if (searchEngine.isWriteElastic()) {
             if (indexUpdates.size() > 0) {
-                elastic.get().updateAsync(new UpdateRequest(elasticUtil.getIndexName(USER_INDEX, projectId), userId)
+                elastic.get().updateAsync(elasticUtil.trackWrite(new UpdateRequest(elasticUtil.getIndexName(USER_INDEX, projectId), userId)
                                 .doc(gson.toJson(indexUpdates), XContentType.JSON)
-                                .setRefreshPolicy(config.elasticForceRefresh() ? WriteRequest.RefreshPolicy.IMMEDIATE : WriteRequest.RefreshPolicy.WAIT_UNTIL),
+                                .setRefreshPolicy(elasticUtil.getWriteRefreshPolicy(config.elasticForceRefresh()))),
                         RequestOptions.DEFAULT,
                         searchEngine.isReadElastic() ? ActionListeners.onFailureRetry(indexingFuture, f -> indexUser(f, projectId, userId))
                                 : ActionListeners.onFailureRetry(() -> indexUser(projectId, userId)));
@@ -975,65 +1102,57 @@ public class DynamoElasticUserStore extends ManagedService implements UserStore
     }
 
     @Override
-    public UserModel userVoteUpdateBloom(String projectId, String userId, String ideaId) {
-        UserModel user = getUser(projectId, userId).orElseThrow(() -> new ApiException(Response.Status.NOT_FOUND, "User not found"));
-        BloomFilter<CharSequence> bloomFilter = Optional.ofNullable(user.getVoteBloom())
-                .map(bytes -> BloomFilters.fromByteArray(bytes, Funnels.stringFunnel(Charsets.UTF_8)))
-                .orElseGet(() -> BloomFilter.create(Funnels.stringFunnel(Charsets.UTF_8), config.voteBloomFilterExpectedInsertions(), config.voteBloomFilterFalsePositiveProbability()));
-        boolean bloomFilterUpdated = bloomFilter.put(ideaId);
-        if (!bloomFilterUpdated) {
-            return user;
-        }
-        return userSchema.fromItem(userSchema.table().updateItem(new UpdateItemSpec()
-                        .withPrimaryKey(userSchema.primaryKey(Map.of(
-                                "projectId", projectId,
-                                "userId", userId)))
-                        .withAttributeUpdate(new AttributeUpdate("voteBloom").put(BloomFilters.toByteArray(bloomFilter)))
-                        .withReturnValues(ReturnValue.ALL_NEW))
-                .getItem());
+    public void userVoteUpdateBloom(String projectId, String userId, String ideaId) {
+        updateBloom(projectId, userId, BloomField.VOTE, ideaId);
     }
 
     @Override
-    public UserModel userCommentVoteUpdateBloom(String projectId, String userId, String commentId) {
-        UserModel user = getUser(projectId, userId).orElseThrow(() -> new ApiException(Response.Status.NOT_FOUND, "User not found"));
-        BloomFilter<CharSequence> bloomFilter = Optional.ofNullable(user.getCommentVoteBloom())
-                .map(bytes -> BloomFilters.fromByteArray(bytes, Funnels.stringFunnel(Charsets.UTF_8)))
-                .orElseGet(() -> BloomFilter.create(Funnels.stringFunnel(Charsets.UTF_8), config.commentVoteBloomFilterExpectedInsertions(), config.commentVoteBloomFilterFalsePositiveProbability()));
-        boolean bloomFilterUpdated = bloomFilter.put(commentId);
-        if (!bloomFilterUpdated) {
-            return user;
-        }
-        return userSchema.fromItem(userSchema.table().updateItem(new UpdateItemSpec()
-                        .withPrimaryKey(userSchema.primaryKey(Map.of(
-                                "projectId", projectId,
-                                "userId", userId)))
-                        .withAttributeUpdate(new AttributeUpdate("commentVoteBloom").put(BloomFilters.toByteArray(bloomFilter)))
-                        .withReturnValues(ReturnValue.ALL_NEW))
-                .getItem());
+    public void userCommentVoteUpdateBloom(String projectId, String userId, String commentId) {
+        updateBloom(projectId, userId, BloomField.COMMENT_VOTE, commentId);
     }
 
     @Override
-    public UserModel userExpressUpdateBloom(String projectId, String userId, String ideaId) {
-        UserModel user = getUser(projectId, userId).orElseThrow(() -> new ApiException(Response.Status.NOT_FOUND, "User not found"));
-        BloomFilter<CharSequence> bloomFilter = Optional.ofNullable(user.getExpressBloom())
-                .map(bytes -> BloomFilters.fromByteArray(bytes, Funnels.stringFunnel(Charsets.UTF_8)))
-                .orElseGet(() -> BloomFilter.create(Funnels.stringFunnel(Charsets.UTF_8), config.expressBloomFilterExpectedInsertions(), config.expressBloomFilterFalsePositiveProbability()));
-        boolean bloomFilterUpdated = bloomFilter.put(ideaId);
-        if (!bloomFilterUpdated) {
-            return user;
-        }
-        return userSchema.fromItem(userSchema.table().updateItem(new UpdateItemSpec()
-                        .withPrimaryKey(userSchema.primaryKey(Map.of(
-                                "projectId", projectId,
-                                "userId", userId)))
-                        .withAttributeUpdate(new AttributeUpdate("expressBloom").put(BloomFilters.toByteArray(bloomFilter)))
-                        .withReturnValues(ReturnValue.ALL_NEW))
-                .getItem());
+    public void userExpressUpdateBloom(String projectId, String userId, String ideaId) {
+        updateBloom(projectId, userId, BloomField.EXPRESS, ideaId);
+    }
+
+    private void updateBloom(String projectId, String userId, BloomField field, String value) {
+        Optional<BloomUpdate> bloomUpdateOpt = prepareBloomUpdate(projectId, userId, field, value);
+        if (!bloomUpdateOpt.isPresent()) {
+            return;
+        }
+
+        HashMap<String, String> nameMap = Maps.newHashMap();
+        HashMap<String, Object> valMap = Maps.newHashMap();
+        List<String> setUpdates = Lists.newArrayList();
+        List<String> addUpdates = Lists.newArrayList();
+        nameMap.put("#partitionKey", userSchema.partitionKeyName());
+        addBloomUpdate(bloomUpdateOpt.get(), nameMap, valMap, setUpdates, addUpdates);
+
+        String updateExpression = (setUpdates.isEmpty() ? "" : "SET " + String.join(", ", setUpdates) + " ")
+                + "ADD " + String.join(", ", addUpdates);
+        Item item;
+        try {
+            item = userSchema.table().updateItem(new UpdateItemSpec()
+                            .withPrimaryKey(userSchema.primaryKey(Map.of(
+                                    "projectId", projectId,
+                                    "userId", userId)))
+                            .withConditionExpression("attribute_exists(#partitionKey)")
+                            .withUpdateExpression(updateExpression)
+                            .withNameMap(nameMap)
+                            .withValueMap(valMap)
+                            .withReturnValues(ReturnValue.ALL_NEW))
+                    .getItem();
+        } catch (ConditionalCheckFailedException ex) {
+            invalidateBloomCache(projectId, userId);
+            throw new ApiException(Response.Status.NOT_FOUND, "User not found", ex);
+        }
+        userFromBloomUpdatedItem(projectId, userId, item);
     }
 
     @Override
     public UserModel updateSubscription(String projectId, String userId, String categoryId, boolean subscribe) {
-        return userSchema.fromItem(userSchema.table().updateItem(new UpdateItemSpec()
+        return userFromItem(userSchema.table().updateItem(new UpdateItemSpec()
                         .withPrimaryKey(userSchema.primaryKey(Map.of(
                                 "projectId", projectId,
                                 "userId", userId)))
@@ -1053,6 +1172,7 @@ public class DynamoElasticUserStore extends ManagedService implements UserStore
         HashMap<String, Object> valMap = Maps.newHashMap();
         List<String> conditions = Lists.newArrayList();
         List<String> setUpdates = Lists.newArrayList();
+        List<String> addUpdates = Lists.newArrayList();
 
         nameMap.put("#balance", "balance");
         valMap.put(":balanceDiff", balanceDiff);
@@ -1061,16 +1181,8 @@ public class DynamoElasticUserStore extends ManagedService implements UserStore
         setUpdates.add("#balance = if_not_exists(#balance, :zero) + :balanceDiff");
 
         if (updateBloomWithIdeaIdOpt.isPresent()) {
-            UserModel user = getUser(projectId, userId).orElseThrow(() -> new ApiException(Response.Status.NOT_FOUND, "User not found"));
-            BloomFilter<CharSequence> bloomFilter = Optional.ofNullable(user.getFundBloom())
-                    .map(bytes -> BloomFilters.fromByteArray(bytes, Funnels.stringFunnel(Charsets.UTF_8)))
-                    .orElseGet(() -> BloomFilter.create(Funnels.stringFunnel(Charsets.UTF_8), config.fundBloomFilterExpectedInsertions(), config.fundBloomFilterFalsePositiveProbability()));
-            boolean bloomFilterUpdated = bloomFilter.put(updateBloomWithIdeaIdOpt.get());
-            if (bloomFilterUpdated) {
-                nameMap.put("#fundBloom", "fundBloom");
-                valMap.put(":fundBloom", BloomFilters.toByteArray(bloomFilter));
-                setUpdates.add("#fundBloom = :fundBloom");
-            }
+            prepareBloomUpdate(projectId, userId, BloomField.FUND, updateBloomWithIdeaIdOpt.get())
+                    .ifPresent(bloomUpdate -> addBloomUpdate(bloomUpdate, nameMap, valMap, setUpdates, addUpdates));
         }
 
         Optional<String> conditionExpressionOpt = Optional.empty();
@@ -1079,11 +1191,12 @@ public class DynamoElasticUserStore extends ManagedService implements UserStore
             conditionExpressionOpt = Optional.of("#balance >= :balanceDiffAbs");
         }
 
-        String updateExpression = "SET " + String.join(", ", setUpdates);
+        String updateExpression = "SET " + String.join(", ", setUpdates)
+                + (addUpdates.isEmpty() ? "" : " ADD " + String.join(", ", addUpdates));
         log.trace("updateUserBalance expression: {}", updateExpression);
         UserModel userModel;
         try {
-            userModel = userSchema.fromItem(userSchema.table().updateItem(new UpdateItemSpec()
+            userModel = userFromBloomUpdatedItem(projectId, userId, userSchema.table().updateItem(new UpdateItemSpec()
                             .withPrimaryKey(userSchema.primaryKey(Map.of(
                                     "projectId", projectId,
                                     "userId", userId)))
@@ -1104,9 +1217,9 @@ public class DynamoElasticUserStore extends ManagedService implements UserStore
         SettableFuture<Void> indexingFuture = SettableFuture.create();
         SearchEngine searchEngine = projectStore.getSearchEngineForProject(projectId);
         if (searchEngine.isWriteElastic()) {
-            elastic.get().updateAsync(new UpdateRequest(elasticUtil.getIndexName(USER_INDEX, projectId), userModel.getUserId())
+            elastic.get().updateAsync(elasticUtil.trackWrite(new UpdateRequest(elasticUtil.getIndexName(USER_INDEX, projectId), userModel.getUserId())
                             .doc(gson.toJson(Map.of("balance", userModel.getBalance())), XContentType.JSON)
-                            .setRefreshPolicy(config.elasticForceRefresh() ? WriteRequest.RefreshPolicy.IMMEDIATE : WriteRequest.RefreshPolicy.WAIT_UNTIL),
+                            .setRefreshPolicy(elasticUtil.getWriteRefreshPolicy(config.elasticForceRefresh()))),
                     RequestOptions.DEFAULT,
                     searchEngine.isReadElastic() ? ActionListeners.onFailureRetry(indexingFuture, f -> indexUser(f, projectId, userId))
                             : ActionListeners.onFailureRetry(() -> indexUser(projectId, userId)));
@@ -1127,6 +1240,153 @@ public class DynamoElasticUserStore extends ManagedService implements UserStore
         return new UserAndIndexingFuture(userModel, indexingFuture);
     }
 
+    @Extern
+    public String getBloomCacheStats() {
+        return bloomCache.stats().toString();
+    }
+
+    /**
+     * Determines which bits need to be set in a user's Bloom filter to add a value. Uses the cached filter if
+     * available, otherwise fetches the user.
+     *
+     * @return empty if the value is already present in the filter
+     */
+    private Optional<BloomUpdate> prepareBloomUpdate(String projectId, String userId, BloomField field, String value) {
+        byte[] bloomBytes = bloomCache.getIfPresent(new BloomCacheKey(projectId, userId, field));
+        if (bloomBytes == null) {
+            UserModel user = getUser(projectId, userId).orElseThrow(() -> new ApiException(Response.Status.NOT_FOUND, "User not found"));
+            cacheBlooms(user);
+            bloomBytes = field.getBloom(user);
+        }
+        byte[] bloomInitial = null;
+        if (bloomBytes == null) {
+            bloomInitial = createBloom(field);
+            bloomBytes = bloomInitial;
+        }
+        long[] bitIndexes = BloomFilters.bitIndexes(bloomBytes, value);
+        if (BloomFilters.isSet(bloomBytes, bitIndexes)) {
+            return Optional.empty();
+        }
+        byte[] bloomBytesFinal = bloomBytes;
+        return Optional.of(new BloomUpdate(
+                field,
+                Optional.ofNullable(bloomInitial),
+                Arrays.stream(bitIndexes)
+                        .filter(bitIndex -> !BloomFilters.isSet(bloomBytesFinal, bitIndex))
+                        .mapToObj(BigDecimal::valueOf)
+                        .collect(ImmutableSet.toImmutableSet())));
+    }
+
+    /**
+     * Bits are atomically added to a delta set rather than re-writing the whole filter. This avoids lost updates
+     * between concurrent writers as DynamoDB does not support bitwise operations on binary attributes.
+     */
+    private void addBloomUpdate(BloomUpdate bloomUpdate, Map<String, String> nameMap, Map<String, Object> valMap, List<String> setUpdates, List<String> addUpdates) {
+        String bloomName = "#" + bloomUpdate.getField().getAttrName();
+        String deltaName = "#" + bloomUpdate.getField().getDeltaAttrName();
+        nameMap.put(deltaName, bloomUpdate.getField().getDeltaAttrName());
+        valMap.put(":" + bloomUpdate.getField().getDeltaAttrName(), bloomUpdate.getBitIndexes());
+        addUpdates.add(deltaName + " :" + bloomUpdate.getField().getDeltaAttrName());
+        if (bloomUpdate.getBloomInitialOpt().isPresent()) {
+            nameMap.put(bloomName, bloomUpdate.getField().getAttrName());
+            valMap.put(":" + bloomUpdate.getField().getAttrName(), bloomUpdate.getBloomInitialOpt().get());
+            setUpdates.add(bloomName + " = if_not_exists(" + bloomName + ", :" + bloomUpdate.getField().getAttrName() + ")");
+        }
+    }
+
+    private UserModel userFromBloomUpdatedItem(String projectId, String userId, Item item) {
+        for (BloomField field : BloomField.values()) {
+            Set<BigDecimal> bitIndexes = item.getNumberSet(field.getDeltaAttrName());
+            byte[] bloomBytes = item.getBinary(field.getAttrName());
+            if (bitIndexes != null && bloomBytes != null && bitIndexes.size() >= config.bloomDeltaCompactionThreshold()) {
+                compactBloom(projectId, userId, field, bloomBytes, bitIndexes);
+            }
+        }
+        UserModel user = userFromItem(item);
+        cacheBlooms(user);
+        return user;
+    }
+
+    /**
+     * Folds the delta set back into the filter. Skipped if the filter was concurrently compacted by someone else.
+     * Concurrently added bits are preserved since only the folded bits are removed from the delta set.
+     */
+    private void compactBloom(String projectId, String userId, BloomField field, byte[] bloomBytes, Set<BigDecimal> bitIndexes) {
+        byte[] bloomBytesCompacted = bloomBytes.clone();
+        bitIndexes.forEach(bitIndex -> BloomFilters.set(bloomBytesCompacted, bitIndex.longValue()));
+        try {
+            userSchema.table().updateItem(new UpdateItemSpec()
+                    .withPrimaryKey(userSchema.primaryKey(Map.of(
+                            "projectId", projectId,
+                            "userId", userId)))
+                    .withConditionExpression("#bloom = :bloomPrevious")
+                    .withUpdateExpression("SET #bloom = :bloom DELETE #bloomDelta :bloomDelta")
+                    .withNameMap(new NameMap()
+                            .with("#bloom", field.getAttrName())
+                            .with("#bloomDelta", field.getDeltaAttrName()))
+                    .withValueMap(new ValueMap()
+                            .withBinary(":bloomPrevious", bloomBytes)
+                            .withBinary(":bloom", bloomBytesCompacted)
+                            .withNumberSet(":bloomDelta", bitIndexes)));
+        } catch (ConditionalCheckFailedException ex) {
+            log.trace("Bloom filter compacted concurrently, projectId {} userId {} field {}", projectId, userId, field, ex);
+        }
+    }
+
+    /**
+     * Converts a user item merging any pending Bloom filter deltas.
+     */
+    private UserModel userFromItem(Item item) {
+        if (item == null) {
+            return null;
+        }
+        for (BloomField field : BloomField.values()) {
+            Set<BigDecimal> bitIndexes = item.getNumberSet(field.getDeltaAttrName());
+            if (bitIndexes == null) {
+                continue;
+            }
+            item.removeAttribute(field.getDeltaAttrName());
+            byte[] bloomBytes = item.getBinary(field.getAttrName());
+            if (bloomBytes == null) {
+                continue;
+            }
+            byte[] bloomBytesMerged = bloomBytes.clone();
+            bitIndexes.forEach(bitIndex -> BloomFilters.set(bloomBytesMerged, bitIndex.longValue()));
+            item.withBinary(field.getAttrName(), bloomBytesMerged);
+        }
+        return userSchema.fromItem(item);
+    }
+
+    private void cacheBlooms(UserModel user) {
+        for (BloomField field : BloomField.values()) {
+            byte[] bloomBytes = field.getBloom(user);
+            if (bloomBytes != null) {
+                bloomCache.put(new BloomCacheKey(user.getProjectId(), user.getUserId(), field), bloomBytes);
+            }
+        }
+    }
+
+    private void invalidateBloomCache(String projectId, String userId) {
+        for (BloomField field : BloomField.values()) {
+            bloomCache.invalidate(new BloomCacheKey(projectId, userId, field));
+        }
+    }
+
+    private byte[] createBloom(BloomField field) {
+        switch (field) {
+            case VOTE:
+                return BloomFilters.createStringFilter(config.voteBloomFilterExpectedInsertions(), config.voteBloomFilterFalsePositiveProbability());
+            case COMMENT_VOTE:
+                return BloomFilters.createStringFilter(config.commentVoteBloomFilterExpectedInsertions(), config.commentVoteBloomFilterFalsePositiveProbability());
+            case EXPRESS:
+                return BloomFilters.createStringFilter(config.expressBloomFilterExpectedInsertions(), config.expressBloomFilterFalsePositiveProbability());
+            case FUND:
+                return BloomFilters.createStringFilter(config.fundBloomFilterExpectedInsertions(), config.fundBloomFilterFalsePositiveProbability());
+            default:
+                throw new RuntimeException("Unknown bloom field " + field);
+        }
+    }
+
     @Override
     public ListenableFuture<Void> deleteUsers(String projectId, ImmutableCollection<String> userIds) {
         if (userIds.isEmpty()) {
@@ -1162,15 +1422,18 @@ public class DynamoElasticUserStore extends ManagedService implements UserStore
         users.stream()
                 .map(UserModel::getUserId)
                 .forEach(userId -> revokeSessions(projectId, userId, Optional.empty()));
+        users.stream()
+                .map(UserModel::getUserId)
+                .forEach(userId -> invalidateBloomCache(projectId, userId));
 
         SettableFuture<Void> indexingFuture = SettableFuture.create();
         SearchEngine searchEngine = projectStore.getSearchEngineForProject(projectId);
         if (searchEngine.isWriteElastic()) {
-            elastic.get().bulkAsync(new BulkRequest()
-                            .setRefreshPolicy(config.elasticForceRefresh() ? WriteRequest.RefreshPolicy.IMMEDIATE : WriteRequest.RefreshPolicy.WAIT_UNTIL)
+            elastic.get().bulkAsync(elasticUtil.trackWrite(new BulkRequest()
+                            .setRefreshPolicy(elasticUtil.getWriteRefreshPolicy(config.elasticForceRefresh()))
                             .add(users.stream()
                                     .map(user -> new DeleteRequest(elasticUtil.getIndexName(USER_INDEX, projectId), user.getUserId()))
-                                    .collect(ImmutableList.toImmutableList())),
+                                    .collect(ImmutableList.toImmutableList()))),
                     RequestOptions.DEFAULT,
                     searchEngine.isReadElastic() ? ActionListeners.fromFuture(indexingFuture)
                             : ActionListeners.logFailure());
@@ -1445,16 +1708,42 @@ public class DynamoElasticUserStore extends ManagedService implements UserStore
                 user.getIsMod());
         sessionByIdSchema.table().putItem(new PutItemSpec()
                 .withItem(sessionByIdSchema.toItem(userSession)));
+        cacheSession(userSession.getSessionId(), Optional.of(userSession));
         return userSession;
     }
 
     @Extern
     @Override
     public Optional<UserSession> getSession(String sessionId) {
+        if (config.sessionCacheEnabled()) {
+            if (sessionNotFoundCache.getIfPresent(sessionId) != null) {
+                // Both eventually and strongly consistent reads were saved
+                sessionCacheReadsSavedCounter.addAndGet(2);
+                return Optional.empty();
+            }
+            UserSession userSessionCached = sessionCache.getIfPresent(sessionId);
+            if (userSessionCached != null
+                    && userSessionCached.getTtlInEpochSec() >= Instant.now().getEpochSecond()) {
+                sessionCacheReadsSavedCounter.incrementAndGet();
+                return Optional.of(userSessionCached);
+            }
+        }
+
+        Optional<UserSession> userSessionOpt = getSession(sessionId, false);
+        if (config.sessionCacheEnabled()) {
+            // Confirm with a consistent read before caching a session as not found, it may have just been created
+            userSessionOpt = userSessionOpt.or(() -> getSession(sessionId, true));
+        }
+        cacheSession(sessionId, userSessionOpt);
+        return userSessionOpt;
+    }
+
+    private Optional<UserSession> getSession(String sessionId, boolean consistentRead) {
         return Optional.ofNullable(sessionByIdSchema
                         .fromItem(sessionByIdSchema
                                 .table().getItem(new GetItemSpec().withPrimaryKey(sessionByIdSchema
-                                        .primaryKey(Map.of("sessionId", sessionId))))))
+                                                .primaryKey(Map.of("sessionId", sessionId)))
+                                        .withConsistentRead(consistentRead))))
                 .filter(userSession -> {
                     if (userSession.getTtlInEpochSec() < Instant.now().getEpochSecond()) {
                         log.debug("DynamoDB has an expired user session with expiry {}", userSession.getTtlInEpochSec());
@@ -1466,7 +1755,7 @@ public class DynamoElasticUserStore extends ManagedService implements UserStore
 
     @Override
     public UserSession refreshSession(UserSession userSession, long ttlInEpochSec) {
-        return sessionByIdSchema.fromItem(sessionByIdSchema.table().updateItem(new UpdateItemSpec()
+        UserSession userSessionRefreshed = sessionByIdSchema.fromItem(sessionByIdSchema.table().updateItem(new UpdateItemSpec()
                         .withPrimaryKey(sessionByIdSchema.primaryKey(userSession))
                         .withConditionExpression("attribute_exists(#partitionKey)")
                         .withUpdateExpression("SET #ttlInEpochSec = :ttlInEpochSec")
@@ -1476,18 +1765,24 @@ public class DynamoElasticUserStore extends ManagedService implements UserStore
                         .withValueMap(new ValueMap().withLong(":ttlInEpochSec", ttlInEpochSec))
                         .withReturnValues(ReturnValue.ALL_NEW))
                 .getItem());
+        // Other nodes may hold the session with the previous expiry
+        cacheInvalidationBus.publish(SESSION_CACHE, userSessionRefreshed.getSessionId());
+        cacheSession(userSessionRefreshed.getSessionId(), Optional.of(userSessionRefreshed));
+        return userSessionRefreshed;
     }
 
     @Override
     public void revokeSession(String sessionId) {
         sessionByIdSchema.table().deleteItem(new DeleteItemSpec()
                 .withPrimaryKey(sessionByIdSchema.primaryKey(Map.of("sessionId", sessionId))));
+        invalidateSessions(ImmutableSet.of(sessionId));
     }
 
     @Override
     public void revokeSession(UserSession userSession) {
         sessionByIdSchema.table().deleteItem(new DeleteItemSpec()
                 .withPrimaryKey(sessionByIdSchema.primaryKey(userSession)));
+        invalidateSessions(ImmutableSet.of(userSession.getSessionId()));
     }
 
     @Override
@@ -1512,12 +1807,44 @@ public class DynamoElasticUserStore extends ManagedService implements UserStore
                                     "sessionId", sessionId)))
                             .forEach(tableWriteItems::addPrimaryKeyToDelete);
                     singleTable.retryUnprocessed(dynamoDoc.batchWriteItem(tableWriteItems));
+                    invalidateSessions(ImmutableSet.copyOf(sessionIdsBatch));
                 });
     }
 
+    @Extern
+    public String getSessionCacheStats() {
+        return "found " + sessionCache.stats() + " notFound " + sessionNotFoundCache.stats();
+    }
+
+    @Extern
+    public long getSessionCacheReadsSaved() {
+        return sessionCacheReadsSavedCounter.get();
+    }
+
+    private void cacheSession(String sessionId, Optional<UserSession> userSessionOpt) {
+        if (!config.sessionCacheEnabled()) {
+            return;
+        }
+        if (userSessionOpt.isPresent()) {
+            sessionNotFoundCache.invalidate(sessionId);
+            sessionCache.put(sessionId, userSessionOpt.get());
+        } else {
+            sessionCache.invalidate(sessionId);
+            sessionNotFoundCache.put(sessionId, Boolean.TRUE);
+        }
+    }
+
+    private void invalidateSessions(ImmutableSet<String> sessionIds) {
+        cacheInvalidationBus.publish(SESSION_CACHE, sessionIds);
+        sessionCache.invalidateAll(sessionIds);
+        sessionNotFoundCache.invalidateAll(sessionIds);
+    }
+
     @Extern
     @Override
     public ListenableFuture<Void> deleteAllForProject(String projectId) {
+        bloomCache.asMap().keySet().removeIf(key -> projectId.equals(key.getProjectId()));
+
         // Delete users
         Iterables.partition(StreamSupport.stream(userByProjectIdSchema.index().query(new QuerySpec()
                                         .withHashKey(userByProjectIdSchema.partitionKey(Map.of(
@@ -1586,8 +1913,7 @@ public class DynamoElasticUserStore extends ManagedService implements UserStore
         SettableFuture<Void> indexingFuture = SettableFuture.create();
         SearchEngine searchEngine = projectStore.getSearchEngineForProject(projectId);
         if (searchEngine.isWriteElastic()) {
-            elastic.get().indices().deleteAsync(new DeleteIndexRequest(elasticUtil.getIndexName(USER_INDEX, projectId)),
-                    RequestOptions.DEFAULT,
+            elasticUtil.deleteIndexAsync(elasticUtil.getIndexName(USER_INDEX, projectId),
                     searchEngine.isReadElastic() ? ActionListeners.fromFuture(indexingFuture)
                             : ActionListeners.logFailure());
         }
@@ -1616,7 +1942,7 @@ public class DynamoElasticUserStore extends ManagedService implements UserStore
         if (!userOpt.isPresent()) {
             SearchEngine searchEngine = projectStore.getSearchEngineForProject(projectId);
             if (searchEngine.isWriteElastic()) {
-                elastic.get().deleteAsync(new DeleteRequest(elasticUtil.getIndexName(USER_INDEX, projectId), userId),
+                elastic.get().deleteAsync(elasticUtil.trackWrite(new DeleteRequest(elasticUtil.getIndexName(USER_INDEX, projectId), userId)),
                         RequestOptions.DEFAULT,
                         searchEngine.isReadElastic()
                                 ? ActionListeners.fromFuture(indexingFuture)
@@ -1645,7 +1971,7 @@ public class DynamoElasticUserStore extends ManagedService implements UserStore
     private void indexUser(SettableFuture<Void> indexingFuture, UserModel user) {
         SearchEngine searchEngine = projectStore.getSearchEngineForProject(user.getProjectId());
         if (searchEngine.isWriteElastic()) {
-            elastic.get().indexAsync(userToEsIndexRequest(user),
+            elastic.get().indexAsync(elasticUtil.trackWrite(userToEsIndexRequest(user)),
                     RequestOptions.DEFAULT,
                     searchEngine.isReadElastic()
                             ? ActionListeners.fromFuture(indexingFuture)
@@ -1662,7 +1988,15 @@ public class DynamoElasticUserStore extends ManagedService implements UserStore
     }
 
     private Query userToMysqlQuery(UserModel user) {
-        JooqUserRecord record = JooqUser.USER.newRecord().values(
+        JooqUserRecord record = userToMysqlRecord(user);
+        return mysql.get().insertInto(JooqUser.USER, JooqUser.USER.fields())
+                .values(record)
+                .onDuplicateKeyUpdate()
+                .set(record);
+    }
+
+    private JooqUserRecord userToMysqlRecord(UserModel user) {
+        return JooqUser.USER.newRecord().values(
                 user.getProjectId(),
                 user.getUserId(),
                 user.getName(),
@@ -1670,17 +2004,14 @@ public class DynamoElasticUserStore extends ManagedService implements UserStore
                 user.getCreated(),
                 user.getBalance(),
                 user.getIsMod());
-        return mysql.get().insertInto(JooqUser.USER, JooqUser.USER.fields())
-                .values(record)
-                .onDuplicateKeyUpdate()
-                .set(record);
     }
 
     private IndexRequest userToEsIndexRequest(UserModel user) {
         return new IndexRequest(elasticUtil.getIndexName(USER_INDEX, user.getProjectId()))
-                .setRefreshPolicy(config.elasticForceRefresh() ? WriteRequest.RefreshPolicy.IMMEDIATE : WriteRequest.RefreshPolicy.WAIT_UNTIL)
+                .setRefreshPolicy(elasticUtil.getWriteRefreshPolicy(config.elasticForceRefresh()))
                 .id(user.getUserId())
                 .source(gson.toJson(ImmutableMap.of(
+                        "projectId", user.getProjectId(),
                         "name", orNull(user.getName()),
                         "email", orNull(user.getEmail()),
                         "created", orNull(user.getCreated().getEpochSecond()),
@@ -10,10 +10,16 @@ import com.amazonaws.services.dynamodbv2.document.utils.ValueMap;
 import com.amazonaws.services.dynamodbv2.model.*;
 import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Strings;
+import com.google.common.base.Throwables;
 import com.google.common.cache.Cache;
 import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.LoadingCache;
 import com.google.common.collect.*;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.common.util.concurrent.UncheckedExecutionException;
 import com.google.gson.Gson;
+import com.google.gson.JsonElement;
 import com.google.inject.AbstractModule;
 import com.google.inject.Inject;
 import com.google.inject.Module;
@@ -21,6 +27,7 @@ import com.google.inject.Singleton;
 import com.kik.config.ice.ConfigSystem;
 import com.kik.config.ice.annotations.DefaultValue;
 import com.smotana.clearflask.api.model.*;
+import com.smotana.clearflask.store.CacheInvalidationBus;
 import com.smotana.clearflask.store.ProjectStore;
 import com.smotana.clearflask.store.ProjectStore.WebhookListener.ResourceType;
 import com.smotana.clearflask.store.VoteStore.VoteValue;
@@ -34,6 +41,7 @@ import io.dataspray.singletable.SingleTable;
 import io.dataspray.singletable.TableSchema;
 import lombok.EqualsAndHashCode;
 import lombok.ToString;
+import lombok.Value;
 import lombok.extern.slf4j.Slf4j;
 
 import javax.ws.rs.core.Response;
@@ -43,6 +51,10 @@ import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.function.Consumer;
 import java.util.function.Function;
 import java.util.function.Predicate;
@@ -64,6 +76,12 @@ public class DynamoProjectStore implements ProjectStore {
         @DefaultValue("PT1H")
         Duration slugCacheExpireAfterWrite();
 
+        /**
+         * Slugs accessed after this duration are reloaded in the background while the cached value is served.
+         */
+        @DefaultValue("PT50M")
+        Duration slugCacheRefreshAfterWrite();
+
         /**
          * During slug migration, how long to keep the old slug before releasing.
          * If changed, update documentation including in api-project.yaml.
@@ -74,9 +92,31 @@ public class DynamoProjectStore implements ProjectStore {
         @DefaultValue("true")
         boolean enableConfigCacheRead();
 
-        @DefaultValue("PT1M")
+        /**
+         * Updates invalidate other nodes over the {@link CacheInvalidationBus}, so this only limits how long a
+         * lost invalidation leaves a stale project.
+         */
+        @DefaultValue("PT1H")
         Duration configCacheExpireAfterWrite();
 
+        /**
+         * Projects accessed after this duration are reloaded in the background while the cached value is served.
+         */
+        @DefaultValue("PT15M")
+        Duration configCacheRefreshAfterWrite();
+
+        @DefaultValue("4")
+        int cacheRefreshThreads();
+
+        /**
+         * Parsed configs kept by project id and version, so reloading an unchanged project does not parse its config.
+         */
+        @DefaultValue("2000")
+        long configMaterializedCacheMaxSize();
+
+        @DefaultValue("PT10M")
+        Duration configMaterializedCacheExpireAfterAccess();
+
         @DefaultValue("P30D")
         Duration invitationExpireAfterCreation();
 
@@ -84,6 +124,9 @@ public class DynamoProjectStore implements ProjectStore {
         Duration invitationExpireAfterAccepted();
     }
 
+    private static final String SLUG_CACHE = "slug";
+    private static final String PROJECT_CACHE = "project";
+
     @Inject
     private Config config;
     @Inject
@@ -106,6 +149,8 @@ public class DynamoProjectStore implements ProjectStore {
     private ProjectUpgrader projectUpgrader;
     @Inject
     private IntercomUtil intercomUtil;
+    @Inject
+    private CacheInvalidationBus cacheInvalidationBus;
 
     private TableSchema<ProjectModel> projectSchema;
     private IndexSchema<ProjectModel> projectShardedSchema;
@@ -113,17 +158,35 @@ public class DynamoProjectStore implements ProjectStore {
     private IndexSchema<SlugModel> slugByProjectSchema;
     private TableSchema<InvitationModel> invitationSchema;
     private IndexSchema<InvitationModel> invitationByProjectSchema;
-    private Cache<String, Optional<String>> slugCache;
-    private Cache<String, Optional<Project>> projectCache;
+    private LoadingCache<String, Optional<String>> slugCache;
+    private LoadingCache<String, Optional<Project>> projectCache;
+    private Cache<String, MaterializedConfig> materializedConfigCache;
 
     @Inject
     private void setup() {
+        // Refreshes are deduplicated per key so the queue is bounded by the number of cached keys
+        ExecutorService cacheRefreshExecutor = Executors.newFixedThreadPool(config.cacheRefreshThreads(), new ThreadFactoryBuilder()
+                .setNameFormat("DynamoProjectStore-cache-refresh-%d")
+                .setDaemon(true)
+                .build());
+        // Concurrent misses for the same key wait on a single load
         slugCache = CacheBuilder.newBuilder()
                 .expireAfterWrite(config.slugCacheExpireAfterWrite())
-                .build();
+                .refreshAfterWrite(config.slugCacheRefreshAfterWrite())
+                .recordStats()
+                .build(CacheLoader.asyncReloading(CacheLoader.from(this::getProjectIdBySlugFromDb), cacheRefreshExecutor));
         projectCache = CacheBuilder.newBuilder()
                 .expireAfterWrite(config.configCacheExpireAfterWrite())
+                .refreshAfterWrite(config.configCacheRefreshAfterWrite())
+                .recordStats()
+                .build(CacheLoader.asyncReloading(CacheLoader.from(this::getProjectFromDb), cacheRefreshExecutor));
+        materializedConfigCache = CacheBuilder.newBuilder()
+                .maximumSize(config.configMaterializedCacheMaxSize())
+                .expireAfterAccess(config.configMaterializedCacheExpireAfterAccess())
+                .recordStats()
                 .build();
+        cacheInvalidationBus.subscribe(SLUG_CACHE, slugCache::invalidateAll);
+        cacheInvalidationBus.subscribe(PROJECT_CACHE, projectCache::invalidateAll);
 
         projectSchema = singleTable.parseTableSchema(ProjectModel.class);
         projectShardedSchema = singleTable.parseGlobalSecondaryIndexSchema(2, ProjectModel.class);
@@ -141,54 +204,19 @@ public class DynamoProjectStore implements ProjectStore {
             slugAltOpt = Optional.of(slug.substring(0, slug.indexOf('.')));
         }
 
-        boolean isCached = false;
-        boolean isAltCached = false;
-        if (config.enableSlugCacheRead() && useCache) {
-            Optional<String> projectIdOpt = slugCache.getIfPresent(slug);
-            isCached = projectIdOpt != null;
-            if (isCached) {
-                if (projectIdOpt.isPresent()) {
-                    // Main is present, return it
-                    return getProject(projectIdOpt.get(), useCache);
-                } else if (slugAltOpt.isEmpty()) {
-                    // Main is empty and there is no alt so return empty
-                    return Optional.empty();
-                } else {
-                    // Main is empty, but need to first check alt as well
-                }
-            }
-            if (slugAltOpt.isPresent()) {
-                Optional<String> projectIdAltOpt = slugCache.getIfPresent(slugAltOpt.get());
-                isAltCached = projectIdAltOpt != null;
-                if (isAltCached) {
-                    if (projectIdAltOpt.isPresent()) {
-                        // Alt is present, return it
-                        return getProject(projectIdAltOpt.get(), useCache);
-                    } else if (projectIdOpt != null && projectIdOpt.isEmpty()) {
-                        // Only if both are cached and empty, return empty
-                        return Optional.empty();
-                    } else {
-                        // Alt is empty, main one is not cached, continue
-                    }
-                }
-            }
+        boolean useSlugCache = config.enableSlugCacheRead() && useCache;
+        Optional<String> projectIdOpt = useSlugCache
+                ? getCached(slugCache, slug)
+                : getProjectIdBySlugFromDbAndCache(slug);
+        if (projectIdOpt.isPresent()) {
+            return getProject(projectIdOpt.get(), useCache);
         }
-        if (!isCached) {
-            Optional<SlugModel> slugModelOpt = Optional.ofNullable(slugSchema.fromItem(slugSchema.table()
-                    .getItem(new GetItemSpec().withPrimaryKey(slugSchema
-                            .primaryKey(Map.of("slug", slug))))));
-            slugCache.put(slug, slugModelOpt.map(SlugModel::getProjectId));
-            if (slugModelOpt.isPresent()) {
-                return slugModelOpt.flatMap(slugModel -> getProject(slugModel.getProjectId(), useCache));
-            }
-        }
-        if (!isAltCached && slugAltOpt.isPresent()) {
-            Optional<SlugModel> slugModelOpt = Optional.ofNullable(slugSchema.fromItem(slugSchema.table()
-                    .getItem(new GetItemSpec().withPrimaryKey(slugSchema
-                            .primaryKey(Map.of("slug", slugAltOpt.get()))))));
-            slugCache.put(slugAltOpt.get(), slugModelOpt.map(SlugModel::getProjectId));
-            if (slugModelOpt.isPresent()) {
-                return slugModelOpt.flatMap(slugModel -> getProject(slugModel.getProjectId(), useCache));
+        if (slugAltOpt.isPresent()) {
+            Optional<String> projectIdAltOpt = useSlugCache
+                    ? getCached(slugCache, slugAltOpt.get())
+                    : getProjectIdBySlugFromDbAndCache(slugAltOpt.get());
+            if (projectIdAltOpt.isPresent()) {
+                return getProject(projectIdAltOpt.get(), useCache);
             }
         }
         return Optional.empty();
@@ -198,19 +226,51 @@ public class DynamoProjectStore implements ProjectStore {
     @Override
     public Optional<Project> getProject(String projectId, boolean useCache) {
         if (config.enableConfigCacheRead() && useCache) {
-            final Optional<Project> projectCachedOpt = projectCache.getIfPresent(projectId);
-            //noinspection OptionalAssignedToNull
-            if (projectCachedOpt != null) {
-                return projectCachedOpt;
-            }
+            return getCached(projectCache, projectId);
+        }
+        Optional<Project> projectOpt = getProjectFromDb(projectId);
+        projectCache.put(projectId, projectOpt);
+        return projectOpt;
+    }
+
+    @Extern
+    public String getSlugCacheStats() {
+        return slugCache.stats().toString();
+    }
+
+    @Extern
+    public String getProjectCacheStats() {
+        return projectCache.stats().toString();
+    }
+
+    private <K, V> V getCached(LoadingCache<K, V> cache, K key) {
+        try {
+            return cache.getUnchecked(key);
+        } catch (UncheckedExecutionException ex) {
+            Throwables.throwIfUnchecked(ex.getCause());
+            throw ex;
         }
-        Optional<Project> projectOpt = Optional.ofNullable(projectSchema.fromItem(projectSchema.table()
+    }
+
+    private Optional<String> getProjectIdBySlugFromDbAndCache(String slug) {
+        Optional<String> projectIdOpt = getProjectIdBySlugFromDb(slug);
+        slugCache.put(slug, projectIdOpt);
+        return projectIdOpt;
+    }
+
+    private Optional<String> getProjectIdBySlugFromDb(String slug) {
+        return Optional.ofNullable(slugSchema.fromItem(slugSchema.table()
+                        .getItem(new GetItemSpec().withPrimaryKey(slugSchema
+                                .primaryKey(Map.of("slug", slug))))))
+                .map(SlugModel::getProjectId);
+    }
+
+    private Optional<Project> getProjectFromDb(String projectId) {
+        return Optional.ofNullable(projectSchema.fromItem(projectSchema.table()
                         .getItem(new GetItemSpec()
                                 .withPrimaryKey(projectSchema
                                         .primaryKey(Map.of("projectId", projectId))))))
                 .map(this::getProjectWithUpgrade);
-        projectCache.put(projectId, projectOpt);
-        return projectOpt;
     }
 
     @Override
@@ -288,7 +348,8 @@ public class DynamoProjectStore implements ProjectStore {
                 versionedConfigAdmin.getConfig().getSchemaVersion(),
                 ImmutableSet.of(),
                 gson.toJson(versionedConfigAdmin.getConfig()),
-                PROJECT_VERSION_LATEST);
+                PROJECT_VERSION_LATEST,
+                ConfigSchemaUpgrader.CURRENT_VERSION);
         try {
             ImmutableList.Builder<TransactWriteItem> transactionsBuilder = ImmutableList.<TransactWriteItem>builder()
                     .add(new TransactWriteItem().withPut(new Put()
@@ -322,6 +383,10 @@ public class DynamoProjectStore implements ProjectStore {
             throw ex;
         }
         ProjectImpl project = new ProjectImpl(projectModel);
+        cacheInvalidationBus.publish(PROJECT_CACHE, projectId);
+        cacheInvalidationBus.publish(SLUG_CACHE, domainOpt.isPresent()
+                ? ImmutableSet.of(subdomain, domainOpt.get())
+                : ImmutableSet.of(subdomain));
         projectCache.put(projectId, Optional.of(project));
         slugCache.put(subdomain, Optional.of(projectId));
         domainOpt.ifPresent(domain -> slugCache.put(domain, Optional.of(projectId)));
@@ -367,7 +432,7 @@ public class DynamoProjectStore implements ProjectStore {
                                 "#projectId", "projectId"))
                         .withValueMap(Map.of(
                                 ":projectId", projectId)));
-                slugCache.invalidate(slugTo);
+                invalidateSlugs(ImmutableSet.of(slugTo));
             } catch (ConditionalCheckFailedException ex) {
                 throw new ApiException(Response.Status.CONFLICT, "Slug is already taken, please choose another.", ex);
             }
@@ -390,6 +455,11 @@ public class DynamoProjectStore implements ProjectStore {
             valMap.put(":schemaVersion", versionedConfigAdmin.getConfig().getSchemaVersion());
             setUpdates.add("#schemaVersion = :schemaVersion");
 
+            // Config was upgraded when deserialized
+            nameMap.put("#configUpgradeVersion", "configUpgradeVersion");
+            valMap.put(":configUpgradeVersion", ConfigSchemaUpgrader.CURRENT_VERSION);
+            setUpdates.add("#configUpgradeVersion = :configUpgradeVersion");
+
             if (previousVersionOpt.isPresent()) {
                 valMap.put(":previousVersion", previousVersionOpt.get());
                 conditionExpressionOpt = Optional.of("#version = :previousVersion");
@@ -421,7 +491,7 @@ public class DynamoProjectStore implements ProjectStore {
                                         ":projectId", projectId))
                                 .withPrimaryKey(slugSchema.primaryKey(ImmutableMap.of(
                                         "slug", slugTo))));
-                slugCache.invalidate(slugTo);
+                invalidateSlugs(ImmutableSet.of(slugTo));
             });
             throw new ApiException(Response.Status.CONFLICT, "Project was modified by someone else while you were editing. Cannot merge changes.", ex);
         }
@@ -442,12 +512,12 @@ public class DynamoProjectStore implements ProjectStore {
                                         slugFrom,
                                         projectId,
                                         Instant.now().plus(config.slugExpireAfterMigration()).getEpochSecond()))));
-                slugCache.invalidate(slugFrom);
+                invalidateSlugs(ImmutableSet.of(slugFrom));
             } catch (ConditionalCheckFailedException ex) {
                 log.warn("Updating slug, but previous slug '{}' already doesn't exist?, switching to '{}'", slugFrom, slugTo, ex);
             }
         });
-        projectCache.invalidate(projectId);
+        invalidateProject(projectId);
     }
 
     @Override
@@ -470,7 +540,7 @@ public class DynamoProjectStore implements ProjectStore {
                         .with("#partitionKey", projectSchema.partitionKeyName()))
                 .withValueMap(new ValueMap().withStringSet(":webhookListener", packWebhookListener(listener)))
                 .withReturnValues(ReturnValue.ALL_NEW));
-        projectCache.invalidate(projectId);
+        invalidateProject(projectId);
     }
 
     @Extern
@@ -480,7 +550,7 @@ public class DynamoProjectStore implements ProjectStore {
         projectSchema.table().deleteItem(new DeleteItemSpec()
                 .withPrimaryKey(projectSchema.primaryKey(ImmutableMap.of(
                         "projectId", projectId))));
-        projectCache.invalidate(projectId);
+        invalidateProject(projectId);
 
         // Delete Slug
         Iterables.partition(StreamSupport.stream(slugByProjectSchema.index().query(new QuerySpec()
@@ -495,7 +565,9 @@ public class DynamoProjectStore implements ProjectStore {
                         .filter(slug -> projectId.equals(slug.getProjectId()))
                         .collect(ImmutableSet.toImmutableSet()), DYNAMO_WRITE_BATCH_MAX_SIZE)
                 .forEach(slugsBatch -> {
-                    slugCache.invalidateAll(slugsBatch);
+                    invalidateSlugs(slugsBatch.stream()
+                            .map(SlugModel::getSlug)
+                            .collect(ImmutableSet.toImmutableSet()));
                     TableWriteItems tableWriteItems = new TableWriteItems(slugSchema.tableName());
                     slugsBatch.stream()
                             .map(slugModel -> slugSchema.primaryKey(Map.of(
@@ -593,7 +665,7 @@ public class DynamoProjectStore implements ProjectStore {
                                 ":ttlInEpochSec", invitationSchema.toAttrValue("ttlInEpochSec",
                                         Instant.now().plus(config.invitationExpireAfterAccepted()).getEpochSecond())))))
                 .build()));
-        projectCache.invalidate(invitation.getProjectId());
+        invalidateProject(invitation.getProjectId());
         return invitation.getProjectId();
     }
 
@@ -622,6 +694,7 @@ public class DynamoProjectStore implements ProjectStore {
                                 ":adminAccountId", projectSchema.toDynamoValue("adminsAccountIds", ImmutableSet.of(adminAccountId))))
                         .withReturnValues(ReturnValue.ALL_NEW))
                 .getItem()));
+        cacheInvalidationBus.publish(PROJECT_CACHE, projectId);
         projectCache.put(projectId, Optional.of(project));
         return project;
     }
@@ -639,6 +712,7 @@ public class DynamoProjectStore implements ProjectStore {
                                 ":adminAccountId", projectSchema.toDynamoValue("adminsAccountIds", ImmutableSet.of(adminAccountId))))
                         .withReturnValues(ReturnValue.ALL_NEW))
                 .getItem()));
+        cacheInvalidationBus.publish(PROJECT_CACHE, projectId);
         projectCache.put(projectId, Optional.of(project));
         return project;
     }
@@ -660,21 +734,42 @@ public class DynamoProjectStore implements ProjectStore {
 
     private Project getProjectWithUpgrade(ProjectModel projectModel) {
         // Upgrade config schema if necessary
-        Optional<String> configUpgradedOpt = configSchemaUpgrader.upgrade(projectModel.getConfigJson());
-        if (configUpgradedOpt.isPresent()) {
+        Optional<JsonElement> configTreeOpt = Optional.empty();
+        if (!Long.valueOf(ConfigSchemaUpgrader.CURRENT_VERSION).equals(projectModel.getConfigUpgradeVersion())) {
+            JsonElement configTree = gson.fromJson(projectModel.getConfigJson(), JsonElement.class);
+            configTreeOpt = Optional.of(configTree);
+            Optional<String> configUpgradedOpt = configSchemaUpgrader.upgrade(configTree);
             projectModel = projectModel.toBuilder()
-                    .configJson(configUpgradedOpt.get())
+                    .configJson(configUpgradedOpt.orElse(projectModel.getConfigJson()))
+                    .configUpgradeVersion(ConfigSchemaUpgrader.CURRENT_VERSION)
                     .build();
             try {
-                projectSchema.table().putItem(new PutItemSpec()
-                        .withItem(projectSchema.toItem(projectModel))
-                        .withConditionExpression("#version = :version")
-                        .withNameMap(Map.of("#version", "version"))
-                        .withValueMap(Map.of(":version", projectModel.getVersion())));
+                if (configUpgradedOpt.isPresent()) {
+                    projectSchema.table().putItem(new PutItemSpec()
+                            .withItem(projectSchema.toItem(projectModel))
+                            .withConditionExpression("#version = :version")
+                            .withNameMap(Map.of("#version", "version"))
+                            .withValueMap(Map.of(":version", projectModel.getVersion())));
+                } else {
+                    // Nothing to upgrade, only stamp the version to skip checking next time
+                    projectSchema.table().updateItem(new UpdateItemSpec()
+                            .withPrimaryKey(projectSchema.primaryKey(Map.of(
+                                    "projectId", projectModel.getProjectId())))
+                            .withConditionExpression("#version = :version")
+                            .withUpdateExpression("SET #configUpgradeVersion = :configUpgradeVersion")
+                            .withNameMap(Map.of(
+                                    "#version", "version",
+                                    "#configUpgradeVersion", "configUpgradeVersion"))
+                            .withValueMap(Map.of(
+                                    ":version", projectModel.getVersion(),
+                                    ":configUpgradeVersion", ConfigSchemaUpgrader.CURRENT_VERSION)));
+                }
             } catch (ConditionalCheckFailedException ex) {
                 log.warn("Writing upgraded project failed, will let someone else upgrade it later", ex);
             }
-            projectCache.invalidate(projectModel.getProjectId());
+            if (configUpgradedOpt.isPresent()) {
+                invalidateProject(projectModel.getProjectId());
+            }
         }
 
         // Upgrade project if necessary
@@ -691,7 +786,43 @@ public class DynamoProjectStore implements ProjectStore {
                     .withUpdateExpression("SET #projectVersion = :projectVersion"));
         }
 
-        return new ProjectImpl(projectModel);
+        return new ProjectImpl(projectModel, configTreeOpt);
+    }
+
+    /**
+     * Binds both the public and admin config from a single parse of the config, reusing a previous result for the
+     * same project version.
+     *
+     * @param configTreeOpt Already parsed config, if available
+     */
+    private MaterializedConfig materializeConfig(ProjectModel projectModel, Optional<JsonElement> configTreeOpt) {
+        Callable<MaterializedConfig> materialize = () -> {
+            JsonElement configTree = configTreeOpt.orElseGet(() -> gson.fromJson(projectModel.getConfigJson(), JsonElement.class));
+            return new MaterializedConfig(
+                    new VersionedConfig(gson.fromJson(configTree, com.smotana.clearflask.api.model.Config.class), projectModel.getVersion()),
+                    new VersionedConfigAdmin(gson.fromJson(configTree, ConfigAdmin.class), projectModel.getVersion()));
+        };
+        try {
+            if (!Long.valueOf(ConfigSchemaUpgrader.CURRENT_VERSION).equals(projectModel.getConfigUpgradeVersion())) {
+                // Not upgraded yet, do not cache a config that may still change under the same version
+                return materialize.call();
+            }
+            return materializedConfigCache.get(projectModel.getProjectId() + ":" + projectModel.getVersion(), materialize);
+        } catch (ExecutionException ex) {
+            throw new RuntimeException(ex.getCause());
+        } catch (UncheckedExecutionException ex) {
+            Throwables.throwIfUnchecked(ex.getCause());
+            throw ex;
+        } catch (Exception ex) {
+            Throwables.throwIfUnchecked(ex);
+            throw new RuntimeException(ex);
+        }
+    }
+
+    @Value
+    private static class MaterializedConfig {
+        VersionedConfig versionedConfig;
+        VersionedConfigAdmin versionedConfigAdmin;
     }
 
     @EqualsAndHashCode(of = {"accountId", "projectId", "version"})
@@ -711,12 +842,17 @@ public class DynamoProjectStore implements ProjectStore {
         private final ImmutableMap<String, ImmutableSet<WebhookListener>> webhookEventToListeners;
 
         private ProjectImpl(ProjectModel projectModel) {
+            this(projectModel, Optional.empty());
+        }
+
+        private ProjectImpl(ProjectModel projectModel, Optional<JsonElement> configTreeOpt) {
             this.model = projectModel;
             this.accountId = projectModel.getAccountId();
             this.projectId = projectModel.getProjectId();
             this.version = projectModel.getVersion();
-            this.versionedConfig = new VersionedConfig(gson.fromJson(projectModel.getConfigJson(), com.smotana.clearflask.api.model.Config.class), projectModel.getVersion());
-            this.versionedConfigAdmin = new VersionedConfigAdmin(gson.fromJson(projectModel.getConfigJson(), ConfigAdmin.class), projectModel.getVersion());
+            MaterializedConfig materializedConfig = materializeConfig(projectModel, configTreeOpt);
+            this.versionedConfig = materializedConfig.getVersionedConfig();
+            this.versionedConfigAdmin = materializedConfig.getVersionedConfigAdmin();
             this.categoryExpressionToWeight = this.versionedConfig.getConfig().getContent().getCategories().stream()
                     .filter(category -> category.getSupport().getExpress() != null)
                     .filter(category -> category.getSupport().getExpress().getLimitEmojiSet() != null)
@@ -997,6 +1133,16 @@ public class DynamoProjectStore implements ProjectStore {
         return migrated;
     }
 
+    private void invalidateProject(String projectId) {
+        cacheInvalidationBus.publish(PROJECT_CACHE, projectId);
+        projectCache.invalidate(projectId);
+    }
+
+    private void invalidateSlugs(ImmutableSet<String> slugs) {
+        cacheInvalidationBus.publish(SLUG_CACHE, slugs);
+        slugCache.invalidateAll(slugs);
+    }
+
     public static Module module() {
         return new AbstractModule() {
             @Override
@@ -0,0 +1,51 @@
+// SPDX-FileCopyrightText: 2019-2022 Matus Faro <matus@smotana.com>
+// SPDX-License-Identifier: Apache-2.0
+package com.smotana.clearflask.store.impl;
+
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Maps;
+import com.google.inject.AbstractModule;
+import com.google.inject.Module;
+import com.google.inject.Singleton;
+import com.smotana.clearflask.store.CacheInvalidationBus;
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.List;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.Consumer;
+
+/**
+ * In-JVM loopback delivering invalidations to all subscribers including the publisher. Intended for single node
+ * deployments and tests.
+ */
+@Slf4j
+@Singleton
+public class LocalCacheInvalidationBus implements CacheInvalidationBus {
+
+    private final ConcurrentMap<String, List<Consumer<ImmutableSet<String>>>> listeners = Maps.newConcurrentMap();
+
+    @Override
+    public void publish(String cacheName, ImmutableSet<String> keys) {
+        if (keys.isEmpty()) {
+            return;
+        }
+        listeners.getOrDefault(cacheName, List.of())
+                .forEach(listener -> listener.accept(keys));
+    }
+
+    @Override
+    public void subscribe(String cacheName, Consumer<ImmutableSet<String>> listener) {
+        listeners.computeIfAbsent(cacheName, n -> new CopyOnWriteArrayList<>())
+                .add(listener);
+    }
+
+    public static Module module() {
+        return new AbstractModule() {
+            @Override
+            protected void configure() {
+                bind(CacheInvalidationBus.class).to(LocalCacheInvalidationBus.class).asEagerSingleton();
+            }
+        };
+    }
+}
@@ -3,6 +3,7 @@
 package com.smotana.clearflask.store.mysql;
 
 import com.google.common.annotations.VisibleForTesting;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import com.google.inject.AbstractModule;
 import com.google.inject.Inject;
 import com.google.inject.Module;
@@ -19,15 +20,25 @@ import com.smotana.clearflask.core.ServiceInjector.Environment;
 import com.smotana.clearflask.util.Extern;
 import com.smotana.clearflask.util.NetworkUtil;
 import com.smotana.clearflask.web.Application;
+import com.zaxxer.hikari.HikariConfig;
+import com.zaxxer.hikari.HikariDataSource;
+import com.zaxxer.hikari.HikariPoolMXBean;
+import com.zaxxer.hikari.metrics.IMetricsTracker;
 import lombok.SneakyThrows;
 import lombok.extern.slf4j.Slf4j;
 import org.jooq.CloseableDSLContext;
 import org.jooq.DSLContext;
 import org.jooq.SQLDialect;
 import org.jooq.impl.DSL;
+import org.jooq.impl.DefaultConfiguration;
 
 import java.io.IOException;
+import java.time.Duration;
 import java.util.Optional;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 import static com.smotana.clearflask.util.IdUtil.CONTENT_UNIQUE_MAX_LENGTH;
 import static com.smotana.clearflask.util.IdUtil.UUID_DASHLESS_MAX_LENGTH;
@@ -61,6 +72,57 @@ public class DefaultMysqlProvider extends ManagedService implements Provider<DSL
         /** For testing only */
         @DefaultValue("false")
         boolean dropDatabaseOnShutdown();
+
+        @DefaultValue("2")
+        int poolMinIdle();
+
+        @DefaultValue("20")
+        int poolMaxSize();
+
+        /**
+         * How long a query waits for a connection from the pool before failing.
+         */
+        @DefaultValue("PT5S")
+        Duration poolConnectionTimeout();
+
+        @DefaultValue("PT10M")
+        Duration poolIdleTimeout();
+
+        /**
+         * Should be shorter than MySQL's wait_timeout.
+         */
+        @DefaultValue("PT30M")
+        Duration poolMaxLifetime();
+
+        /**
+         * Idle connections are validated this often to keep them from being closed by the network.
+         */
+        @DefaultValue("PT5M")
+        Duration poolKeepaliveTime();
+
+        @DefaultValue("PT3S")
+        Duration poolValidationTimeout();
+
+        @DefaultValue("true")
+        boolean prepStmtCacheEnabled();
+
+        @DefaultValue("250")
+        int prepStmtCacheSize();
+
+        @DefaultValue("2048")
+        int prepStmtCacheSqlLimit();
+
+        /**
+         * Threads executing asynchronous queries such as search index updates.
+         */
+        @DefaultValue("8")
+        int asyncThreads();
+
+        /**
+         * Once full, asynchronous queries run on the calling thread.
+         */
+        @DefaultValue("10000")
+        int asyncQueueSize();
     }
 
     @Inject
@@ -72,32 +134,114 @@ public class DefaultMysqlProvider extends ManagedService implements Provider<DSL
     @Inject
     private Provider<DSLContext> clientProvider;
 
-    private Optional<DSLContext> clientOpt = Optional.empty();
+    private final AtomicLong connectionAcquiredCounter = new AtomicLong();
+    private final AtomicLong connectionAcquiredTotalNanos = new AtomicLong();
+    private final AtomicLong connectionAcquiredMaxNanos = new AtomicLong();
+    private final AtomicLong connectionUsageTotalMillis = new AtomicLong();
+    private final AtomicLong connectionTimeoutCounter = new AtomicLong();
+    private volatile Optional<DSLContext> clientOpt = Optional.empty();
+    private volatile Optional<HikariDataSource> dataSourceOpt = Optional.empty();
+    private volatile Optional<ThreadPoolExecutor> asyncExecutorOpt = Optional.empty();
 
     @SneakyThrows
     @Override
     public DSLContext get() {
         if (clientOpt.isPresent()) return clientOpt.get();
 
-        if (configApp.startupWaitUntilDeps()) {
-            log.info("Waiting for Mysql to be up {}:{}", config.host(), config.port());
-            try {
-                NetworkUtil.waitUntilPortOpen(config.host(), config.port());
-            } catch (IOException ex) {
-                throw new ProvisionException("Failed to wait until Mysql port opened", ex);
+        synchronized (this) {
+            if (clientOpt.isPresent()) return clientOpt.get();
+
+            if (configApp.startupWaitUntilDeps()) {
+                log.info("Waiting for Mysql to be up {}:{}", config.host(), config.port());
+                try {
+                    NetworkUtil.waitUntilPortOpen(config.host(), config.port());
+                } catch (IOException ex) {
+                    throw new ProvisionException("Failed to wait until Mysql port opened", ex);
+                }
             }
+
+            log.info("Opening Mysql client on {}:{}", config.host(), config.port());
+            Class.forName("com.mysql.cj.jdbc.Driver");
+            System.setProperty("org.jooq.no-logo", "true");
+            MysqlDataSource mysqlDataSource = new MysqlDataSource();
+            mysqlDataSource.setURL(getConnectionUrl(true));
+            mysqlDataSource.setPassword(config.pass());
+            mysqlDataSource.setUser(config.user());
+            mysqlDataSource.setDatabaseName(config.databaseName());
+            mysqlDataSource.setCachePrepStmts(config.prepStmtCacheEnabled());
+            mysqlDataSource.setPrepStmtCacheSize(config.prepStmtCacheSize());
+            mysqlDataSource.setPrepStmtCacheSqlLimit(config.prepStmtCacheSqlLimit());
+            mysqlDataSource.setUseServerPrepStmts(config.prepStmtCacheEnabled());
+            // Lets MysqlUtil.batch send a whole batch in a single round trip
+            mysqlDataSource.setRewriteBatchedStatements(true);
+
+            HikariConfig hikariConfig = new HikariConfig();
+            hikariConfig.setPoolName("mysql");
+            hikariConfig.setDataSource(mysqlDataSource);
+            hikariConfig.setMinimumIdle(config.poolMinIdle());
+            hikariConfig.setMaximumPoolSize(config.poolMaxSize());
+            hikariConfig.setConnectionTimeout(config.poolConnectionTimeout().toMillis());
+            hikariConfig.setIdleTimeout(config.poolIdleTimeout().toMillis());
+            hikariConfig.setMaxLifetime(config.poolMaxLifetime().toMillis());
+            hikariConfig.setKeepaliveTime(config.poolKeepaliveTime().toMillis());
+            hikariConfig.setValidationTimeout(config.poolValidationTimeout().toMillis());
+            // Do not fail startup if MySQL is not yet reachable, connections are established lazily
+            hikariConfig.setInitializationFailTimeout(-1);
+            hikariConfig.setMetricsTrackerFactory((poolName, poolStats) -> new IMetricsTracker() {
+                @Override
+                public void recordConnectionAcquiredNanos(long elapsedAcquiredNanos) {
+                    connectionAcquiredCounter.incrementAndGet();
+                    connectionAcquiredTotalNanos.addAndGet(elapsedAcquiredNanos);
+                    connectionAcquiredMaxNanos.accumulateAndGet(elapsedAcquiredNanos, Math::max);
+                }
+
+                @Override
+                public void recordConnectionUsageMillis(long elapsedBorrowedMillis) {
+                    connectionUsageTotalMillis.addAndGet(elapsedBorrowedMillis);
+                }
+
+                @Override
+                public void recordConnectionTimeout() {
+                    connectionTimeoutCounter.incrementAndGet();
+                }
+            });
+            HikariDataSource dataSource = new HikariDataSource(hikariConfig);
+            dataSourceOpt = Optional.of(dataSource);
+
+            ThreadPoolExecutor asyncExecutor = new ThreadPoolExecutor(
+                    config.asyncThreads(), config.asyncThreads(), 0L, TimeUnit.MILLISECONDS,
+                    new ArrayBlockingQueue<>(config.asyncQueueSize()),
+                    new ThreadFactoryBuilder().setNameFormat("DefaultMysqlProvider-async-%d").build(),
+                    new ThreadPoolExecutor.CallerRunsPolicy());
+            asyncExecutorOpt = Optional.of(asyncExecutor);
+
+            clientOpt = Optional.of(DSL.using(new DefaultConfiguration()
+                    .set(dataSource)
+                    .set(SQLDialect.MYSQL)
+                    // Async queries otherwise run on the common ForkJoinPool
+                    .set(() -> asyncExecutor)));
+            return clientOpt.get();
         }
+    }
 
-        log.info("Opening Mysql client on {}:{}", config.host(), config.port());
-        Class.forName("com.mysql.cj.jdbc.Driver");
-        System.setProperty("org.jooq.no-logo", "true");
-        MysqlDataSource dataSource = new MysqlDataSource();
-        dataSource.setURL(getConnectionUrl(true));
-        dataSource.setPassword(config.pass());
-        dataSource.setUser(config.user());
-        dataSource.setDatabaseName(config.databaseName());
-        clientOpt = Optional.of(DSL.using(dataSource, SQLDialect.MYSQL));
-        return clientOpt.get();
+    @Extern
+    public String getPoolStats() {
+        if (dataSourceOpt.isEmpty()) {
+            return "Not started";
+        }
+        HikariPoolMXBean pool = dataSourceOpt.get().getHikariPoolMXBean();
+        long acquiredCount = connectionAcquiredCounter.get();
+        return "total " + pool.getTotalConnections()
+                + " active " + pool.getActiveConnections()
+                + " idle " + pool.getIdleConnections()
+                + " awaiting " + pool.getThreadsAwaitingConnection()
+                + " acquired " + acquiredCount
+                + " avgWaitMs " + (acquiredCount == 0 ? 0 : TimeUnit.NANOSECONDS.toMillis(connectionAcquiredTotalNanos.get() / acquiredCount))
+                + " maxWaitMs " + TimeUnit.NANOSECONDS.toMillis(connectionAcquiredMaxNanos.get())
+                + " avgUsageMs " + (acquiredCount == 0 ? 0 : connectionUsageTotalMillis.get() / acquiredCount)
+                + " timeouts " + connectionTimeoutCounter.get()
+                + " asyncQueueDepth " + asyncExecutorOpt.map(e -> e.getQueue().size()).orElse(0)
+                + " asyncActive " + asyncExecutorOpt.map(ThreadPoolExecutor::getActiveCount).orElse(0);
     }
 
     @Override
@@ -115,9 +259,14 @@ public class DefaultMysqlProvider extends ManagedService implements Provider<DSL
 
     @Override
     protected void serviceStop() throws Exception {
+        if (asyncExecutorOpt.isPresent()) {
+            asyncExecutorOpt.get().shutdown();
+            asyncExecutorOpt.get().awaitTermination(30, TimeUnit.SECONDS);
+        }
         if (config.dropDatabaseOnShutdown() && configApp.defaultSearchEngine().isWriteMysql()) {
             dropDatabase();
         }
+        dataSourceOpt.ifPresent(HikariDataSource::close);
     }
 
     @Extern
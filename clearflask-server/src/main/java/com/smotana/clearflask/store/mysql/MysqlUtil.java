@@ -2,11 +2,16 @@
 // SPDX-License-Identifier: Apache-2.0
 package com.smotana.clearflask.store.mysql;
 
+import com.google.common.base.Splitter;
 import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.io.BaseEncoding;
 import com.google.common.primitives.Ints;
 import com.google.inject.Module;
 import com.google.inject.*;
 import com.google.inject.name.Named;
+import com.kik.config.ice.ConfigSystem;
+import com.kik.config.ice.annotations.DefaultValue;
 import com.smotana.clearflask.api.model.HistogramInterval;
 import com.smotana.clearflask.api.model.HistogramResponse;
 import com.smotana.clearflask.api.model.HistogramResponsePoints;
@@ -15,18 +20,20 @@ import com.smotana.clearflask.store.elastic.ElasticUtil.ConfigSearch;
 import com.smotana.clearflask.store.impl.DynamoElasticIdeaStore.SearchIdeasConditions;
 import com.smotana.clearflask.util.MathUtil;
 import com.smotana.clearflask.util.ServerSecret;
+import lombok.NonNull;
 import lombok.SneakyThrows;
 import lombok.Value;
 import lombok.extern.slf4j.Slf4j;
-import org.jetbrains.annotations.NotNull;
 import org.jooq.*;
 import org.jooq.exception.DataAccessException;
 import org.jooq.exception.SQLStateClass;
 import org.jooq.impl.DSL;
+import org.jooq.impl.SQLDataType;
 
 import javax.annotation.Nullable;
 import java.io.Reader;
 import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
 import java.sql.SQLException;
 import java.sql.SQLSyntaxErrorException;
 import java.time.Instant;
@@ -38,17 +45,52 @@ import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.CompletionStage;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+
+import static com.google.common.base.Preconditions.checkArgument;
 
 @Slf4j
 @Singleton
 public class MysqlUtil {
+
+    public interface Config {
+        /**
+         * Search text using FULLTEXT indexes, otherwise falls back to LIKE predicates which cannot use an index.
+         */
+        @DefaultValue("true")
+        boolean fulltextSearchEnabled();
+
+        /**
+         * Words shorter than this are not indexed, should match MySQL's innodb_ft_min_token_size.
+         */
+        @DefaultValue("3")
+        int fulltextMinTokenSize();
+
+        @DefaultValue("10")
+        int fulltextMaxWords();
+    }
+
+    @Inject
+    private Config config;
     @Inject
     private Provider<DSLContext> mysql;
     @Inject
     @Named("cursor")
     private ServerSecret serverSecretCursor;
 
+    private static final String SEEK_CURSOR_PREFIX = "seek:";
+    private static final String SEEK_CURSOR_DELIMITER = ".";
+    private static final String SEEK_CURSOR_NULL = "~";
+
     private final Pattern similarTextExtractor = Pattern.compile("(\\w{2,})");
+    private final Pattern fulltextWordExtractor = Pattern.compile("[\\p{L}\\p{N}_]+");
+    /**
+     * InnoDB's default stopword list. A required stopword term in boolean mode never matches, so these are left out.
+     */
+    private static final ImmutableSet<String> FULLTEXT_STOPWORDS = ImmutableSet.of(
+            "a", "about", "an", "are", "as", "at", "be", "by", "com", "de", "en", "for", "from", "how", "i", "in", "is",
+            "it", "la", "of", "on", "or", "that", "the", "this", "to", "was", "what", "when", "where", "who", "will",
+            "with", "und", "www");
 
     @SafeVarargs
     public final Condition similarToCondition(String text, TableField<?, String>... fields) {
@@ -63,20 +105,128 @@ public class MysqlUtil {
         return condition;
     }
 
-    public CompletionStage<Integer> sequentialBatch(Queries queries) {
-        @NotNull Query[] qs = queries.queries();
-        if (qs.length <= 0) {
+    @Value
+    public static class TextSearch {
+        Condition condition;
+        /** Relevance score of each row, higher is more relevant */
+        Field<Double> relevance;
+    }
+
+    /**
+     * Search as you type using a FULLTEXT index covering exactly the given fields. All words must be present, the
+     * last one possibly incomplete. Empty if disabled or there are no indexable words in the text.
+     * <p>
+     * Relevance is not a stored column, so paginate a query sorted by it using {@link #seekOffset}.
+     */
+    @SafeVarargs
+    public final Optional<TextSearch> fulltextSearch(String text, TableField<?, String>... fields) {
+        if (!config.fulltextSearchEnabled()) {
+            return Optional.empty();
+        }
+        ImmutableList<String> words = fulltextWords(text);
+        if (words.isEmpty()) {
+            return Optional.empty();
+        }
+        String booleanQuery = words.stream()
+                .map(word -> "+" + word + "*")
+                .collect(Collectors.joining(" "));
+        return Optional.of(new TextSearch(
+                matchAgainst(fields, booleanQuery, "IN BOOLEAN MODE").greaterThan(0d),
+                // Boolean mode relevance is coarse, rank using natural language mode instead
+                matchAgainst(fields, String.join(" ", words), "IN NATURAL LANGUAGE MODE")));
+    }
+
+    /**
+     * Rows sharing words with given text using a FULLTEXT index covering exactly the given fields. Empty if disabled
+     * or there are no indexable words in the text.
+     */
+    @SafeVarargs
+    public final Optional<TextSearch> fulltextSimilarTo(String text, TableField<?, String>... fields) {
+        if (!config.fulltextSearchEnabled()) {
+            return Optional.empty();
+        }
+        ImmutableList<String> words = fulltextWords(text);
+        if (words.isEmpty()) {
+            return Optional.empty();
+        }
+        Field<Double> relevance = matchAgainst(fields, String.join(" ", words), "IN NATURAL LANGUAGE MODE");
+        return Optional.of(new TextSearch(relevance.greaterThan(0d), relevance));
+    }
+
+    private ImmutableList<String> fulltextWords(String text) {
+        Matcher matcher = fulltextWordExtractor.matcher(text);
+        ImmutableList.Builder<String> wordsBuilder = ImmutableList.builder();
+        int words = 0;
+        while (matcher.find() && words < config.fulltextMaxWords()) {
+            String word = matcher.group();
+            if (word.codePointCount(0, word.length()) >= config.fulltextMinTokenSize()
+                    && !FULLTEXT_STOPWORDS.contains(word.toLowerCase(Locale.ROOT))) {
+                wordsBuilder.add(word);
+                words++;
+            }
+        }
+        return wordsBuilder.build();
+    }
+
+    private Field<Double> matchAgainst(TableField<?, String>[] fields, String query, String mode) {
+        return DSL.field("MATCH({0}) AGAINST ({1} " + mode + ")", SQLDataType.DOUBLE,
+                DSL.list(fields), DSL.val(query));
+    }
+
+    /**
+     * Executes queries in order within a single transaction as one JDBC batch. Since the driver rewrites batched
+     * statements, the whole batch is sent to MySQL in a single round trip.
+     *
+     * @return Sum of affected rows, where reported by the driver
+     */
+    public CompletionStage<Integer> batch(Collection<? extends Query> queries) {
+        if (queries.isEmpty()) {
             return CompletableFuture.completedFuture(0);
         }
-        CompletionStage<Integer> completionStage = qs[0].executeAsync();
-        for (int i = 1; i < qs.length; i++) {
-            Query nextQuery = qs[i];
-            completionStage = completionStage.thenComposeAsync(count -> nextQuery.executeAsync());
+        if (queries.size() == 1) {
+            return queries.iterator().next().executeAsync();
+        }
+        return mysql.get().transactionResultAsync(configuration -> Arrays.stream(DSL.using(configuration)
+                        .batch(queries)
+                        .execute())
+                .filter(count -> count > 0)
+                .sum());
+    }
+
+    /**
+     * Single multi-row INSERT of all records, replacing all non-key columns of rows that already exist.
+     */
+    public <R extends TableRecord<R>> Query upsert(Table<R> table, Collection<R> records) {
+        checkArgument(!records.isEmpty());
+        InsertValuesStepN<R> insert = mysql.get().insertInto(table, table.fields());
+        for (R record : records) {
+            insert = insert.values(record.intoArray());
+        }
+        Set<Field<?>> keyFields = Optional.ofNullable(table.getPrimaryKey())
+                .map(key -> ImmutableSet.<Field<?>>copyOf(key.getFields()))
+                .orElse(ImmutableSet.of());
+        Map<Field<?>, Field<?>> updates = new LinkedHashMap<>();
+        for (Field<?> field : table.fields()) {
+            if (!keyFields.contains(field)) {
+                updates.put(field, DSL.field("VALUES({0})", field.getDataType(), DSL.name(field.getName())));
+            }
         }
-        return completionStage;
+        return updates.isEmpty()
+                ? insert.onDuplicateKeyIgnore()
+                : insert.onDuplicateKeyUpdate().set(updates);
     }
 
-    public void createIndexIfNotExists(CreateIndexIncludeStep query) {
+    @SafeVarargs
+    public final void createFulltextIndexIfNotExists(String indexName, Table<?> table, TableField<?, String>... fields) {
+        createIndexIfNotExists(mysql.get().query("CREATE FULLTEXT INDEX {0} ON {1} ({2})",
+                DSL.name(indexName),
+                table,
+                DSL.list(Arrays.stream(fields)
+                        .map(field -> DSL.name(field.getName()))
+                        .toArray(Name[]::new))));
+    }
+
+    public void createIndexIfNotExists(Query query) {
         try {
             query.execute();
         } catch (DataAccessException ex) {
@@ -246,11 +396,221 @@ public class MysqlUtil {
                 .map(serverSecretCursor::encryptString);
     }
 
+    /**
+     * Column of a deterministic sort order, usable for keyset pagination.
+     */
+    @Value(staticConstructor = "of")
+    public static class SeekField<T> {
+        @NonNull
+        Field<T> field;
+        @NonNull
+        SortOrder order;
+
+        public SortField<T> sortField() {
+            return field.sort(order);
+        }
+
+        boolean isDesc() {
+            return SortOrder.DESC.equals(order);
+        }
+    }
+
+    /**
+     * Keyset (seek) pagination. Instead of skipping OFFSET rows, the cursor holds the sort key of the last row
+     * returned and the next page only selects rows ordered after it, letting MySQL start from the right place in a
+     * matching composite index.
+     */
+    @Value
+    public static class Seek {
+        /** Sort fields followed by a unique key; empty if the order is not deterministic */
+        ImmutableList<SeekField<?>> seekFields;
+        ImmutableList<SortField<?>> sortFields;
+        Condition condition;
+        /** Only non-zero for offset paginated queries or cursors issued before keyset pagination */
+        int offset;
+        int limit;
+        /** Paginated by offset rather than by the sort key of the last row */
+        boolean offsetPaginated;
+
+        public ImmutableList<Field<?>> selectFields(Field<?>... resultFields) {
+            LinkedHashSet<Field<?>> fields = new LinkedHashSet<>(Arrays.asList(resultFields));
+            seekFields.forEach(seekField -> fields.add(seekField.getField()));
+            return ImmutableList.copyOf(fields);
+        }
+    }
+
+    /**
+     * Prepares a keyset paginated query ordered by given sort fields, tie-broken by the unique key.
+     */
+    public Seek seek(ConfigSearch configSearch, Optional<Integer> sizeOpt, Optional<String> cursorOpt, ImmutableList<SeekField<?>> sortFields, Field<?>... uniqueKeyFields) {
+        ImmutableList<SeekField<?>> seekFields = withUniqueKey(sortFields, uniqueKeyFields);
+        Optional<String> decryptedCursorOpt = cursorOpt.map(serverSecretCursor::decryptString);
+        Optional<Object[]> seekValuesOpt = decryptedCursorOpt.flatMap(cursor -> decodeSeekCursor(seekFields, cursor));
+        return new Seek(
+                seekFields,
+                seekFields.stream()
+                        .map(SeekField::sortField)
+                        .collect(ImmutableList.toImmutableList()),
+                seekValuesOpt.map(seekValues -> seekCondition(seekFields, seekValues))
+                        .orElseGet(DSL::noCondition),
+                seekValuesOpt.isPresent() ? 0 : offset(cursorOpt),
+                pageSizeMax(configSearch, sizeOpt),
+                false);
+    }
+
+    /**
+     * Prepares a query ordered by given sort fields, tie-broken by the unique key, and paginated by offset. For sort
+     * fields that cannot be compared reliably across queries, such as FULLTEXT relevance which depends on index
+     * statistics at the time of the query.
+     */
+    public Seek seekOffset(ConfigSearch configSearch, Optional<Integer> sizeOpt, Optional<String> cursorOpt, ImmutableList<SeekField<?>> sortFields, Field<?>... uniqueKeyFields) {
+        ImmutableList<SeekField<?>> seekFields = withUniqueKey(sortFields, uniqueKeyFields);
+        return new Seek(
+                seekFields,
+                seekFields.stream()
+                        .map(SeekField::sortField)
+                        .collect(ImmutableList.toImmutableList()),
+                DSL.noCondition(),
+                offset(cursorOpt),
+                pageSizeMax(configSearch, sizeOpt),
+                true);
+    }
+
+    private ImmutableList<SeekField<?>> withUniqueKey(ImmutableList<SeekField<?>> sortFields, Field<?>... uniqueKeyFields) {
+        SortOrder uniqueKeyOrder = sortFields.isEmpty()
+                ? SortOrder.ASC
+                : sortFields.get(sortFields.size() - 1).getOrder();
+        ImmutableList.Builder<SeekField<?>> seekFieldsBuilder = ImmutableList.<SeekField<?>>builder().addAll(sortFields);
+        for (Field<?> uniqueKeyField : uniqueKeyFields) {
+            seekFieldsBuilder.add(SeekField.of(uniqueKeyField, uniqueKeyOrder));
+        }
+        return seekFieldsBuilder.build();
+    }
+
+    /**
+     * Prepares a randomly ordered query, paginated by offset as there is no order to seek.
+     */
+    public Seek seekRandom(ConfigSearch configSearch, Optional<Integer> sizeOpt, Optional<String> cursorOpt) {
+        return new Seek(
+                ImmutableList.of(),
+                ImmutableList.of(DSL.rand().sort(SortOrder.DESC)),
+                DSL.noCondition(),
+                offset(cursorOpt),
+                pageSizeMax(configSearch, sizeOpt),
+                true);
+    }
+
+    public Optional<String> nextCursor(Seek seek, List<? extends Record> results) {
+        if (results.size() < seek.getLimit()) {
+            return Optional.empty();
+        }
+        if (seek.isOffsetPaginated() || seek.getSeekFields().isEmpty()) {
+            return Optional.of(String.valueOf(seek.getOffset() + seek.getLimit()))
+                    .map(serverSecretCursor::encryptString);
+        }
+        Record lastRecord = results.get(results.size() - 1);
+        return Optional.of(seek.getSeekFields().stream()
+                        .map(seekField -> encodeSeekValue(lastRecord.get(seekField.getField())))
+                        .collect(Collectors.joining(SEEK_CURSOR_DELIMITER, SEEK_CURSOR_PREFIX, "")))
+                .map(serverSecretCursor::encryptString);
+    }
+
+    /**
+     * Rows ordered after the given sort key, treating NULL as the lowest value as MySQL does.
+     * <p>
+     * Expands to (a after x) OR (a = x AND b after y) OR ... with the first column's range repeated on the outside so
+     * it can be used for an index range scan.
+     */
+    private Condition seekCondition(ImmutableList<SeekField<?>> seekFields, Object[] seekValues) {
+        Condition anyAfter = DSL.falseCondition();
+        Condition allEqualPrefix = DSL.noCondition();
+        for (int i = 0; i < seekFields.size(); i++) {
+            SeekField<?> seekField = seekFields.get(i);
+            anyAfter = anyAfter.or(allEqualPrefix.and(seekAfter(seekField, seekValues[i])));
+            allEqualPrefix = allEqualPrefix.and(seekEqual(seekField, seekValues[i]));
+        }
+        return seekAfterOrEqual(seekFields.get(0), seekValues[0]).and(anyAfter);
+    }
+
+    private <T> Condition seekAfter(SeekField<T> seekField, @Nullable Object value) {
+        Field<T> field = seekField.getField();
+        if (seekField.isDesc()) {
+            return value == null
+                    ? DSL.falseCondition()
+                    : field.lessThan(field.getType().cast(value)).or(field.isNull());
+        } else {
+            return value == null
+                    ? field.isNotNull()
+                    : field.greaterThan(field.getType().cast(value));
+        }
+    }
+
+    private <T> Condition seekAfterOrEqual(SeekField<T> seekField, @Nullable Object value) {
+        Field<T> field = seekField.getField();
+        if (seekField.isDesc()) {
+            return value == null
+                    ? field.isNull()
+                    : field.lessOrEqual(field.getType().cast(value)).or(field.isNull());
+        } else {
+            return value == null
+                    ? DSL.noCondition()
+                    : field.greaterOrEqual(field.getType().cast(value));
+        }
+    }
+
+    private <T> Condition seekEqual(SeekField<T> seekField, @Nullable Object value) {
+        Field<T> field = seekField.getField();
+        return value == null
+                ? field.isNull()
+                : field.eq(field.getType().cast(value));
+    }
+
+    private String encodeSeekValue(@Nullable Object value) {
+        if (value == null) {
+            return SEEK_CURSOR_NULL;
+        }
+        return BaseEncoding.base64Url().omitPadding().encode(value.toString().getBytes(StandardCharsets.UTF_8));
+    }
+
+    private Optional<Object[]> decodeSeekCursor(ImmutableList<SeekField<?>> seekFields, String cursor) {
+        if (!cursor.startsWith(SEEK_CURSOR_PREFIX)) {
+            return Optional.empty();
+        }
+        List<String> encodedValues = Splitter.on(SEEK_CURSOR_DELIMITER).splitToList(cursor.substring(SEEK_CURSOR_PREFIX.length()));
+        if (encodedValues.size() != seekFields.size()) {
+            log.debug("Ignoring seek cursor for a different sort order, expected {} values got {}", seekFields.size(), encodedValues.size());
+            return Optional.empty();
+        }
+        try {
+            Object[] values = new Object[seekFields.size()];
+            for (int i = 0; i < seekFields.size(); i++) {
+                values[i] = decodeSeekValue(seekFields.get(i).getField(), encodedValues.get(i));
+            }
+            return Optional.of(values);
+        } catch (RuntimeException ex) {
+            log.debug("Ignoring invalid seek cursor", ex);
+            return Optional.empty();
+        }
+    }
+
+    @Nullable
+    private Object decodeSeekValue(Field<?> field, String encodedValue) {
+        if (SEEK_CURSOR_NULL.equals(encodedValue)) {
+            return null;
+        }
+        String value = new String(BaseEncoding.base64Url().omitPadding().decode(encodedValue), StandardCharsets.UTF_8);
+        if (Instant.class.equals(field.getType())) {
+            return Instant.parse(value);
+        }
+        return field.getDataType().convert(value);
+    }
+
     public static Module module() {
         return new AbstractModule() {
             @Override
             protected void configure() {
                 bind(MysqlUtil.class).asEagerSingleton();
+                install(ConfigSystem.configModule(Config.class));
             }
         };
     }
@@ -2,19 +2,34 @@
 // SPDX-License-Identifier: Apache-2.0
 package com.smotana.clearflask.util;
 
+import com.google.common.base.Charsets;
 import com.google.common.hash.BloomFilter;
 import com.google.common.hash.Funnel;
+import com.google.common.hash.Funnels;
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hashing;
 import lombok.extern.slf4j.Slf4j;
 
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 
 /**
- * Used for intercepting registration of already registered beans. Handles it by re-registering instead of throwing.
+ * Serialization of Guava {@link BloomFilter}s as well as operations directly on the serialized form.
+ * <p>
+ * Serialized form of a string Bloom filter is a header consisting of a strategy ordinal byte, number of hash
+ * functions unsigned byte and number of longs int; followed by big-endian longs holding the bits. Operating on the
+ * serialized form allows checking membership and setting bits without decoding and re-encoding the whole filter.
  */
 @Slf4j
 public class BloomFilters {
+    /** Ordinal of Guava's BloomFilterStrategies.MURMUR128_MITZ_64, the default strategy */
+    private static final int STRATEGY_MURMUR128_MITZ_64 = 1;
+    private static final int HEADER_SIZE_IN_BYTES = 6;
+    private static final HashFunction MURMUR3_128 = Hashing.murmur3_128();
+
     public static <T> byte[] toByteArray(BloomFilter<T> bloomFilter) {
         try (ByteArrayOutputStream baos = new ByteArrayOutputStream()) {
             bloomFilter.writeTo(baos);
@@ -31,4 +46,87 @@ public class BloomFilters {
             throw new RuntimeException(ex);
         }
     }
+
+    /**
+     * Serialized empty string Bloom filter.
+     */
+    public static byte[] createStringFilter(long expectedInsertions, double falsePositiveProbability) {
+        return toByteArray(BloomFilter.create(Funnels.stringFunnel(Charsets.UTF_8), expectedInsertions, falsePositiveProbability));
+    }
+
+    public static long bitSize(byte[] bloomFilterBytes) {
+        checkStrategy(bloomFilterBytes);
+        return (long) ByteBuffer.wrap(bloomFilterBytes, 2, 4).getInt() * Long.SIZE;
+    }
+
+    /**
+     * Bit indexes a string value maps to in a serialized string Bloom filter. Equivalent to the indexes Guava's
+     * {@link BloomFilter#put} and {@link BloomFilter#mightContain} use with a UTF-8 string funnel.
+     */
+    public static long[] bitIndexes(byte[] bloomFilterBytes, CharSequence value) {
+        long bitSize = bitSize(bloomFilterBytes);
+        int numHashFunctions = bloomFilterBytes[1] & 0xFF;
+        ByteBuffer hash = ByteBuffer.wrap(MURMUR3_128.hashString(value, Charsets.UTF_8).asBytes())
+                .order(ByteOrder.LITTLE_ENDIAN);
+        long hash1 = hash.getLong(0);
+        long hash2 = hash.getLong(8);
+        long[] bitIndexes = new long[numHashFunctions];
+        long combinedHash = hash1;
+        for (int i = 0; i < numHashFunctions; i++) {
+            bitIndexes[i] = (combinedHash & Long.MAX_VALUE) % bitSize;
+            combinedHash += hash2;
+        }
+        return bitIndexes;
+    }
+
+    public static boolean mightContain(byte[] bloomFilterBytes, CharSequence value) {
+        return isSet(bloomFilterBytes, bitIndexes(bloomFilterBytes, value));
+    }
+
+    public static boolean isSet(byte[] bloomFilterBytes, long[] bitIndexes) {
+        for (long bitIndex : bitIndexes) {
+            if (!isSet(bloomFilterBytes, bitIndex)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public static boolean isSet(byte[] bloomFilterBytes, long bitIndex) {
+        return (bloomFilterBytes[byteOffset(bitIndex)] & bitMask(bitIndex)) != 0;
+    }
+
+    /**
+     * Sets a bit in place. Bit indexes outside of the filter are ignored.
+     *
+     * @return true if bit was not previously set
+     */
+    public static boolean set(byte[] bloomFilterBytes, long bitIndex) {
+        if (bitIndex < 0 || bitIndex >= bitSize(bloomFilterBytes)) {
+            return false;
+        }
+        int byteOffset = byteOffset(bitIndex);
+        byte bitMask = bitMask(bitIndex);
+        if ((bloomFilterBytes[byteOffset] & bitMask) != 0) {
+            return false;
+        }
+        bloomFilterBytes[byteOffset] |= bitMask;
+        return true;
+    }
+
+    private static int byteOffset(long bitIndex) {
+        return HEADER_SIZE_IN_BYTES
+                + (int) (bitIndex >>> 6) * Long.BYTES
+                + (Long.BYTES - 1) - (int) ((bitIndex & 63) >>> 3);
+    }
+
+    private static byte bitMask(long bitIndex) {
+        return (byte) (1 << (bitIndex & 7));
+    }
+
+    private static void checkStrategy(byte[] bloomFilterBytes) {
+        if (bloomFilterBytes.length < HEADER_SIZE_IN_BYTES || bloomFilterBytes[0] != STRATEGY_MURMUR128_MITZ_64) {
+            throw new IllegalArgumentException("Unsupported Bloom filter serialization");
+        }
+    }
 }
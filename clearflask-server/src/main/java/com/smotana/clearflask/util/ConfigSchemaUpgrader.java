@@ -16,6 +16,11 @@ import java.util.Optional;
 @Singleton
 public class ConfigSchemaUpgrader {
 
+    /**
+     * Version of the upgrades below. Projects stamped with the current version skip the upgrade entirely.
+     */
+    public static final long CURRENT_VERSION = 1L;
+
     @Inject
     private Gson gson;
 
@@ -97,6 +102,7 @@ public class ConfigSchemaUpgrader {
         // Important notes:
         // - Make sure the upgrade is idempotent, update hasChanged if necessary
         // - Add a test assertion in ConfigSchemaUpgraderTest.assertUpgraded
+        // - Bump CURRENT_VERSION
 
         return hasChanged ? Optional.of(gson.toJson(config)) : Optional.empty();
     }
@@ -23,4 +23,14 @@ public class ExpDecayScore {
         double v = Math.min(prevScore, rate * timeInMillis);
         return u + Math.log1p(Math.exp(v - u));
     }
+
+    /**
+     * Collapses a series of updates into a single update time. Start with
+     * {@link Double#NEGATIVE_INFINITY} and fold each update through
+     * {@link #updateScore(double, long)}, then applying the resulting time
+     * once is equivalent to applying each update in turn.
+     */
+    public long toEquivalentTimeInMillis(double accumulatedScore) {
+        return Math.round(accumulatedScore / rate);
+    }
 }
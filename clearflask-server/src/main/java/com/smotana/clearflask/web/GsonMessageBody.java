@@ -2,16 +2,24 @@
 // SPDX-License-Identifier: Apache-2.0
 package com.smotana.clearflask.web;
 
-
+import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Charsets;
+import com.google.common.collect.ImmutableList;
 import com.google.gson.Gson;
 import com.google.gson.JsonIOException;
 import com.google.gson.JsonSyntaxException;
+import com.google.gson.stream.JsonWriter;
 import com.google.inject.Inject;
+import com.smotana.clearflask.api.model.ConfigAdmin;
+import com.smotana.clearflask.api.model.ConfigAndUserBindSlugResult;
+import com.smotana.clearflask.api.model.IdeaWithVoteSearchResponse;
+import com.smotana.clearflask.api.model.VersionedConfig;
+import com.smotana.clearflask.api.model.VersionedConfigAdmin;
 import com.smotana.clearflask.core.ServiceInjector;
 
 import javax.ws.rs.Consumes;
 import javax.ws.rs.Produces;
+import javax.ws.rs.core.HttpHeaders;
 import javax.ws.rs.core.MediaType;
 import javax.ws.rs.core.MultivaluedMap;
 import javax.ws.rs.ext.MessageBodyReader;
@@ -19,22 +27,54 @@ import javax.ws.rs.ext.MessageBodyWriter;
 import javax.ws.rs.ext.Provider;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.InputStreamReader;
 import java.io.OutputStream;
-import java.io.OutputStreamWriter;
+import java.io.Writer;
 import java.lang.annotation.Annotation;
 import java.lang.reflect.Type;
+import java.util.Arrays;
 
 @Provider
 @Consumes(MediaType.APPLICATION_JSON)
 @Produces(MediaType.APPLICATION_JSON)
 public class GsonMessageBody implements MessageBodyWriter<Object>, MessageBodyReader<Object> {
 
+    /**
+     * Buffers grown beyond this size by a large response are dropped rather than kept around per thread.
+     */
+    private static final int BUFFER_RETAIN_MAX_SIZE = 1024 * 1024;
+    private static final int BUFFER_INITIAL_SIZE = 8 * 1024;
+    /**
+     * Models serialized on nearly every request, adapters are created upfront instead of on the first request.
+     * <p>
+     * These keep Gson's reflective adapters rather than hand-written ones: the models are generated from the API spec
+     * and ConfigAdmin alone spans dozens of generated classes, so a hand-written adapter would silently drop fields
+     * on every spec change. Only add one with GsonMessageBodyBenchmark numbers showing the reflective adapter is
+     * the bottleneck.
+     */
+    private static final ImmutableList<Class<?>> HOT_MODELS = ImmutableList.of(
+            IdeaWithVoteSearchResponse.class,
+            ConfigAndUserBindSlugResult.class,
+            VersionedConfig.class,
+            VersionedConfigAdmin.class,
+            ConfigAdmin.class);
+    private static final ThreadLocal<Utf8BufferWriter> BUFFER = ThreadLocal.withInitial(Utf8BufferWriter::new);
+
     @Inject
     private Gson gson;
 
     public GsonMessageBody() {
         ServiceInjector.INSTANCE.get().injectMembers(this);
+        warmAdapters();
+    }
+
+    @VisibleForTesting
+    GsonMessageBody(Gson gson) {
+        this.gson = gson;
+        warmAdapters();
+    }
+
+    private void warmAdapters() {
+        HOT_MODELS.forEach(gson::getAdapter);
     }
 
     @Override
@@ -50,8 +90,14 @@ public class GsonMessageBody implements MessageBodyWriter<Object>, MessageBodyRe
             MediaType mediaType,
             MultivaluedMap<String, String> httpHeaders,
             InputStream entityStream) throws IOException {
-        try (InputStreamReader streamReader = new InputStreamReader(entityStream, Charsets.UTF_8)) {
-            return gson.fromJson(streamReader, genericType);
+        // Decode the whole body at once instead of through an InputStreamReader, which allocates its own decoder and
+        // buffers per request and decodes in small chunks; String's UTF-8 decoding takes an intrinsic fast path.
+        String json;
+        try (entityStream) {
+            json = new String(entityStream.readAllBytes(), Charsets.UTF_8);
+        }
+        try {
+            return gson.fromJson(json, genericType);
         } catch (JsonSyntaxException ex) {
             throw new IOException("Failed to parse JSON", ex);
         }
@@ -72,10 +118,134 @@ public class GsonMessageBody implements MessageBodyWriter<Object>, MessageBodyRe
             MediaType mediaType,
             MultivaluedMap<String, Object> httpHeaders,
             OutputStream entityStream) throws IOException {
-        try (OutputStreamWriter writer = new OutputStreamWriter(entityStream, Charsets.UTF_8)) {
-            gson.toJson(object, genericType, writer);
+        // Serialize into a per-thread buffer encoding straight to UTF-8 bytes, then write it out in one go. Avoids
+        // the per-response encoder of an OutputStreamWriter and lets us send a Content-Length instead of chunking.
+        Utf8BufferWriter buffer = BUFFER.get();
+        try {
+            JsonWriter jsonWriter = gson.newJsonWriter(buffer);
+            gson.toJson(object, genericType, jsonWriter);
+            jsonWriter.flush();
+            httpHeaders.putSingle(HttpHeaders.CONTENT_LENGTH, buffer.size());
+            buffer.writeTo(entityStream);
         } catch (JsonIOException ex) {
             throw new IOException("Failed to construct JSON", ex);
+        } finally {
+            if (buffer.capacity() > BUFFER_RETAIN_MAX_SIZE) {
+                BUFFER.remove();
+            } else {
+                buffer.reset();
+            }
+        }
+    }
+
+    /**
+     * Growable byte buffer that encodes chars directly to UTF-8 as they are written. Not thread safe.
+     */
+    @VisibleForTesting
+    static final class Utf8BufferWriter extends Writer {
+        private byte[] bytes = new byte[BUFFER_INITIAL_SIZE];
+        private int size = 0;
+        private char pendingHighSurrogate = 0;
+
+        @Override
+        public void write(int c) {
+            ensure(4);
+            encode((char) c);
+        }
+
+        @Override
+        public void write(char[] cbuf, int off, int len) {
+            ensure(len * 3 + 1);
+            for (int i = off; i < off + len; i++) {
+                encode(cbuf[i]);
+            }
+        }
+
+        @Override
+        public void write(String str, int off, int len) {
+            ensure(len * 3 + 1);
+            for (int i = off; i < off + len; i++) {
+                encode(str.charAt(i));
+            }
+        }
+
+        @Override
+        public Writer append(CharSequence csq) {
+            String str = String.valueOf(csq);
+            write(str, 0, str.length());
+            return this;
+        }
+
+        @Override
+        public void flush() {
+            // Nothing buffered beyond the byte array
+        }
+
+        @Override
+        public void close() {
+            // Buffer is reused, see reset
+        }
+
+        int size() {
+            return size;
+        }
+
+        int capacity() {
+            return bytes.length;
+        }
+
+        void reset() {
+            size = 0;
+            pendingHighSurrogate = 0;
+        }
+
+        void writeTo(OutputStream out) throws IOException {
+            if (pendingHighSurrogate != 0) {
+                pendingHighSurrogate = 0;
+                ensure(1);
+                bytes[size++] = '?';
+            }
+            out.write(bytes, 0, size);
+        }
+
+        /**
+         * Caller ensures enough room, at most three bytes per char plus one for a dangling high surrogate.
+         */
+        private void encode(char c) {
+            if (pendingHighSurrogate != 0) {
+                char high = pendingHighSurrogate;
+                pendingHighSurrogate = 0;
+                if (Character.isLowSurrogate(c)) {
+                    int codePoint = Character.toCodePoint(high, c);
+                    bytes[size++] = (byte) (0xf0 | (codePoint >> 18));
+                    bytes[size++] = (byte) (0x80 | ((codePoint >> 12) & 0x3f));
+                    bytes[size++] = (byte) (0x80 | ((codePoint >> 6) & 0x3f));
+                    bytes[size++] = (byte) (0x80 | (codePoint & 0x3f));
+                    return;
+                }
+                // Unpaired surrogate, same replacement as the JDK encoder
+                bytes[size++] = '?';
+            }
+            if (c < 0x80) {
+                bytes[size++] = (byte) c;
+            } else if (c < 0x800) {
+                bytes[size++] = (byte) (0xc0 | (c >> 6));
+                bytes[size++] = (byte) (0x80 | (c & 0x3f));
+            } else if (Character.isHighSurrogate(c)) {
+                pendingHighSurrogate = c;
+            } else if (Character.isLowSurrogate(c)) {
+                bytes[size++] = '?';
+            } else {
+                bytes[size++] = (byte) (0xe0 | (c >> 12));
+                bytes[size++] = (byte) (0x80 | ((c >> 6) & 0x3f));
+                bytes[size++] = (byte) (0x80 | (c & 0x3f));
+            }
+        }
+
+        private void ensure(int additional) {
+            if (size + additional > bytes.length) {
+                bytes = Arrays.copyOf(bytes, Math.max(bytes.length * 2, size + additional));
+            }
         }
     }
 }
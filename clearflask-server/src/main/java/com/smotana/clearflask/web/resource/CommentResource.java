@@ -2,7 +2,6 @@
 // SPDX-License-Identifier: Apache-2.0
 package com.smotana.clearflask.web.resource;
 
-import com.google.common.base.Charsets;
 import com.google.common.base.Strings;
 import com.google.common.collect.ImmutableCollection;
 import com.google.common.collect.ImmutableList;
@@ -10,8 +9,6 @@ import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.Maps;
 import com.google.common.collect.Sets;
-import com.google.common.hash.BloomFilter;
-import com.google.common.hash.Funnels;
 import com.google.inject.AbstractModule;
 import com.google.inject.Module;
 import com.google.inject.multibindings.Multibinder;
@@ -263,12 +260,11 @@ public class CommentResource extends AbstractResource implements CommentAdminApi
                 .flatMap(userId -> userStore.getUser(projectId, userId));
         Map<String, VoteOption> voteResults = ImmutableMap.of();
         if (userOpt.isPresent()) {
-            Optional<BloomFilter<CharSequence>> bloomFilterOpt = userOpt.map(UserModel::getCommentVoteBloom)
-                    .map(bytes -> BloomFilters.fromByteArray(bytes, Funnels.stringFunnel(Charsets.UTF_8)));
+            Optional<byte[]> bloomFilterOpt = userOpt.map(UserModel::getCommentVoteBloom);
             voteResults = Maps.transformValues(
                     voteStore.voteSearch(projectId, userOpt.get().getUserId(), comments.stream()
                             .filter(comment -> userOpt.get().getUserId().equals(comment.getAuthorUserId())
-                                    || bloomFilterOpt.isPresent() && bloomFilterOpt.get().mightContain(comment.getCommentId()))
+                                    || bloomFilterOpt.isPresent() && BloomFilters.mightContain(bloomFilterOpt.get(), comment.getCommentId()))
                             .map(CommentModel::getCommentId)
                             .collect(ImmutableSet.toImmutableSet())
                     ), v -> v == null ? null : VoteValue.fromValue(v.getVote()).toVoteOption());
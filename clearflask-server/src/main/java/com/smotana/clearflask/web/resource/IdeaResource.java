@@ -2,13 +2,11 @@
 // SPDX-License-Identifier: Apache-2.0
 package com.smotana.clearflask.web.resource;
 
-import com.google.common.base.Charsets;
 import com.google.common.base.Strings;
 import com.google.common.collect.ImmutableCollection;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableSet;
-import com.google.common.hash.Funnels;
 import com.google.inject.AbstractModule;
 import com.google.inject.Module;
 import com.google.inject.multibindings.Multibinder;
@@ -674,8 +672,7 @@ public class IdeaResource extends AbstractResource implements IdeaApi, IdeaAdmin
         Optional<VoteOption> voteOptionOpt = Optional.empty();
         if (isAuthor
                 || user.getVoteBloom() != null
-                && BloomFilters.fromByteArray(user.getVoteBloom(), Funnels.stringFunnel(Charsets.UTF_8))
-                .mightContain(idea.getIdeaId())) {
+                && BloomFilters.mightContain(user.getVoteBloom(), idea.getIdeaId())) {
             voteOptionOpt = Optional.ofNullable(voteStore.voteSearch(user.getProjectId(), user.getUserId(), ImmutableSet.of(idea.getIdeaId()))
                             .get(idea.getIdeaId()))
                     .map(voteModel -> VoteValue.fromValue(voteModel.getVote()).toVoteOption());
@@ -683,8 +680,7 @@ public class IdeaResource extends AbstractResource implements IdeaApi, IdeaAdmin
         Optional<List<String>> expressionOpt = Optional.empty();
         if (isAuthor
                 || user.getExpressBloom() != null
-                && BloomFilters.fromByteArray(user.getExpressBloom(), Funnels.stringFunnel(Charsets.UTF_8))
-                .mightContain(idea.getIdeaId())) {
+                && BloomFilters.mightContain(user.getExpressBloom(), idea.getIdeaId())) {
             expressionOpt = Optional.ofNullable(voteStore.expressSearch(user.getProjectId(), user.getUserId(), ImmutableSet.of(idea.getIdeaId()))
                             .get(idea.getIdeaId()))
                     .map(expressModel -> expressModel.getExpressions().asList());
@@ -692,8 +688,7 @@ public class IdeaResource extends AbstractResource implements IdeaApi, IdeaAdmin
         Optional<Long> fundAmountOpt = Optional.empty();
         if (isAuthor
                 || user.getFundBloom() != null
-                && BloomFilters.fromByteArray(user.getFundBloom(), Funnels.stringFunnel(Charsets.UTF_8))
-                .mightContain(idea.getIdeaId())) {
+                && BloomFilters.mightContain(user.getFundBloom(), idea.getIdeaId())) {
             fundAmountOpt = Optional.ofNullable(voteStore.fundSearch(user.getProjectId(), user.getUserId(), ImmutableSet.of(idea.getIdeaId()))
                             .get(idea.getIdeaId()))
                     .map(VoteStore.FundModel::getFundAmount);
@@ -709,27 +704,24 @@ public class IdeaResource extends AbstractResource implements IdeaApi, IdeaAdmin
 
     private ImmutableList<IdeaWithVote> toIdeasWithVotes(UserModel user, ImmutableCollection<IdeaModel> ideas) {
         ImmutableMap<String, VoteStore.VoteModel> voteResults = Optional.ofNullable(user.getVoteBloom())
-                .map(bytes -> BloomFilters.fromByteArray(bytes, Funnels.stringFunnel(Charsets.UTF_8)))
-                .map(bloomFilter -> ideas.stream()
-                        .filter(idea -> user.getUserId().equals(idea.getAuthorUserId()) || bloomFilter.mightContain(idea.getIdeaId()))
+                .map(bytes -> ideas.stream()
+                        .filter(idea -> user.getUserId().equals(idea.getAuthorUserId()) || BloomFilters.mightContain(bytes, idea.getIdeaId()))
                         .map(IdeaModel::getIdeaId)
                         .collect(ImmutableSet.toImmutableSet()))
                 .map(ideaIds -> voteStore.voteSearch(user.getProjectId(), user.getUserId(), ideaIds))
                 .orElse(ImmutableMap.of());
 
         ImmutableMap<String, VoteStore.ExpressModel> expressResults = Optional.ofNullable(user.getExpressBloom())
-                .map(bytes -> BloomFilters.fromByteArray(bytes, Funnels.stringFunnel(Charsets.UTF_8)))
-                .map(bloomFilter -> ideas.stream()
-                        .filter(idea -> user.getUserId().equals(idea.getAuthorUserId()) || bloomFilter.mightContain(idea.getIdeaId()))
+                .map(bytes -> ideas.stream()
+                        .filter(idea -> user.getUserId().equals(idea.getAuthorUserId()) || BloomFilters.mightContain(bytes, idea.getIdeaId()))
                         .map(IdeaModel::getIdeaId)
                         .collect(ImmutableSet.toImmutableSet()))
                 .map(ideaIds -> voteStore.expressSearch(user.getProjectId(), user.getUserId(), ideaIds))
                 .orElse(ImmutableMap.of());
 
         ImmutableMap<String, VoteStore.FundModel> fundResults = Optional.ofNullable(user.getFundBloom())
-                .map(bytes -> BloomFilters.fromByteArray(bytes, Funnels.stringFunnel(Charsets.UTF_8)))
-                .map(bloomFilter -> ideas.stream()
-                        .filter(idea -> user.getUserId().equals(idea.getAuthorUserId()) || bloomFilter.mightContain(idea.getIdeaId()))
+                .map(bytes -> ideas.stream()
+                        .filter(idea -> user.getUserId().equals(idea.getAuthorUserId()) || BloomFilters.mightContain(bytes, idea.getIdeaId()))
                         .map(IdeaModel::getIdeaId)
                         .collect(ImmutableSet.toImmutableSet()))
                 .map(ideaIds -> voteStore.fundSearch(user.getProjectId(), user.getUserId(), ideaIds))
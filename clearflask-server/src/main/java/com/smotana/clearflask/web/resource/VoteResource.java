@@ -2,14 +2,11 @@
 // SPDX-License-Identifier: Apache-2.0
 package com.smotana.clearflask.web.resource;
 
-import com.google.common.base.Charsets;
 import com.google.common.base.Strings;
 import com.google.common.base.Suppliers;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.Maps;
-import com.google.common.hash.BloomFilter;
-import com.google.common.hash.Funnels;
 import com.google.inject.AbstractModule;
 import com.google.inject.Module;
 import com.google.inject.multibindings.Multibinder;
@@ -122,12 +119,11 @@ public class VoteResource extends AbstractResource implements VoteApi {
                 .flatMap(userId -> userStore.getUser(projectId, userId))
                 .get();
 
-        Optional<BloomFilter<CharSequence>> bloomFilterOpt = Optional.ofNullable(user.getCommentVoteBloom())
-                .map(bytes -> BloomFilters.fromByteArray(bytes, Funnels.stringFunnel(Charsets.UTF_8)));
+        Optional<byte[]> bloomFilterOpt = Optional.ofNullable(user.getCommentVoteBloom());
         Map<String, VoteOption> votesByCommentId = Maps.transformValues(
                 voteStore.voteSearch(projectId, user.getUserId(), commentIds.stream()
                         .filter(commentId -> myOwnCommentIds.contains(commentId)
-                                || bloomFilterOpt.isPresent() && bloomFilterOpt.get().mightContain(commentId))
+                                || bloomFilterOpt.isPresent() && BloomFilters.mightContain(bloomFilterOpt.get(), commentId))
                         .collect(ImmutableSet.toImmutableSet())), voteModel -> VoteValue.fromValue(voteModel.getVote()).toVoteOption());
         return new CommentVoteGetOwnResponse(votesByCommentId);
     }
@@ -156,28 +152,25 @@ public class VoteResource extends AbstractResource implements VoteApi {
                 .flatMap(userId -> userStore.getUser(projectId, userId))
                 .get();
 
-        Optional<BloomFilter<CharSequence>> voteBloomFilterOpt = Optional.ofNullable(user.getVoteBloom())
-                .map(bytes -> BloomFilters.fromByteArray(bytes, Funnels.stringFunnel(Charsets.UTF_8)));
+        Optional<byte[]> voteBloomFilterOpt = Optional.ofNullable(user.getVoteBloom());
         Map<String, VoteOption> votesByIdeaId = Maps.transformValues(
                 voteStore.voteSearch(projectId, user.getUserId(), ideaIds.stream()
                         .filter(ideaId -> myOwnIdeaIds.contains(ideaId)
-                                || voteBloomFilterOpt.isPresent() && voteBloomFilterOpt.get().mightContain(ideaId))
+                                || voteBloomFilterOpt.isPresent() && BloomFilters.mightContain(voteBloomFilterOpt.get(), ideaId))
                         .collect(ImmutableSet.toImmutableSet())), voteModel -> VoteValue.fromValue(voteModel.getVote()).toVoteOption());
 
-        Optional<BloomFilter<CharSequence>> expressBloomFilterOpt = Optional.ofNullable(user.getExpressBloom())
-                .map(bytes -> BloomFilters.fromByteArray(bytes, Funnels.stringFunnel(Charsets.UTF_8)));
+        Optional<byte[]> expressBloomFilterOpt = Optional.ofNullable(user.getExpressBloom());
         Map<String, List<String>> expressionByIdeaId = Maps.transformValues(
                 voteStore.expressSearch(projectId, user.getUserId(), ideaIds.stream()
                         .filter(ideaId -> myOwnIdeaIds.contains(ideaId)
-                                || expressBloomFilterOpt.isPresent() && expressBloomFilterOpt.get().mightContain(ideaId))
+                                || expressBloomFilterOpt.isPresent() && BloomFilters.mightContain(expressBloomFilterOpt.get(), ideaId))
                         .collect(ImmutableSet.toImmutableSet())), expressModel -> expressModel.getExpressions().asList());
 
-        Optional<BloomFilter<CharSequence>> fundBloomFilterOpt = Optional.ofNullable(user.getFundBloom())
-                .map(bytes -> BloomFilters.fromByteArray(bytes, Funnels.stringFunnel(Charsets.UTF_8)));
+        Optional<byte[]> fundBloomFilterOpt = Optional.ofNullable(user.getFundBloom());
         Map<String, Long> fundAmountByIdeaId = Maps.transformValues(
                 voteStore.fundSearch(projectId, user.getUserId(), ideaIds.stream()
                         .filter(ideaId -> myOwnIdeaIds.contains(ideaId)
-                                || fundBloomFilterOpt.isPresent() && fundBloomFilterOpt.get().mightContain(ideaId))
+                                || fundBloomFilterOpt.isPresent() && BloomFilters.mightContain(fundBloomFilterOpt.get(), ideaId))
                         .collect(ImmutableSet.toImmutableSet())), FundModel::getFundAmount);
 
         return new IdeaVoteGetOwnResponse(
@@ -19,6 +19,7 @@ import com.smotana.clearflask.store.ProjectStore;
 import com.smotana.clearflask.store.ProjectStore.Project;
 import com.smotana.clearflask.store.UserStore;
 import com.smotana.clearflask.store.UserStore.UserSession;
+import com.smotana.clearflask.store.elastic.ElasticUtil;
 import com.smotana.clearflask.util.IpUtil;
 import com.smotana.clearflask.web.resource.AccountResource;
 import com.smotana.clearflask.web.resource.UserResource;
@@ -31,6 +32,8 @@ import javax.servlet.http.HttpServletResponse;
 import javax.ws.rs.Priorities;
 import javax.ws.rs.container.ContainerRequestContext;
 import javax.ws.rs.container.ContainerRequestFilter;
+import javax.ws.rs.container.ContainerResponseContext;
+import javax.ws.rs.container.ContainerResponseFilter;
 import javax.ws.rs.core.Context;
 import javax.ws.rs.core.Cookie;
 import javax.ws.rs.ext.Provider;
@@ -41,7 +44,7 @@ import java.util.Optional;
 @Slf4j
 @Provider
 @Priority(Priorities.AUTHENTICATION)
-public class AuthenticationFilter implements ContainerRequestFilter {
+public class AuthenticationFilter implements ContainerRequestFilter, ContainerResponseFilter {
     public static final String EXTERNAL_API_AUTH_HEADER_NAME_TOKEN = "x-cf-token";
     public static final String EXTERNAL_API_AUTH_HEADER_NAME_CONNECT_TOKEN = "x-cf-connect-token";
 
@@ -70,9 +73,13 @@ public class AuthenticationFilter implements ContainerRequestFilter {
     private CommentStore commentStore;
     @Inject
     private ProjectStore projectStore;
+    @Inject
+    private ElasticUtil elasticUtil;
 
     @Override
     public void filter(ContainerRequestContext requestContext) throws IOException {
+        // In case a previous request on this thread did not reach the response filter
+        elasticUtil.clearReadYourWritesSession();
         try {
             requestContext.setSecurityContext(authenticate(requestContext));
         } catch (Exception ex) {
@@ -81,6 +88,12 @@ public class AuthenticationFilter implements ContainerRequestFilter {
         }
     }
 
+    @Override
+    public void filter(ContainerRequestContext requestContext, ContainerResponseContext responseContext) throws IOException {
+        // Threads are reused across requests, don't leave the session behind
+        elasticUtil.clearReadYourWritesSession();
+    }
+
     private ExtendedSecurityContext authenticate(ContainerRequestContext requestContext) throws IOException {
         Optional<Account> accountByApiKey = getAccountByApiKey(requestContext);
         Optional<AccountSession> accountSessionOpt = getAccountSessionForCookieName(requestContext, AccountResource.ACCOUNT_AUTH_COOKIE_NAME);
@@ -100,6 +113,9 @@ public class AuthenticationFilter implements ContainerRequestFilter {
                                 .map(Project::getProjectId)))
                 .flatMap(projectId -> authenticateUser(projectId, requestContext));
 
+        elasticUtil.setReadYourWritesSession(authenticatedUserSessionOpt.map(UserSession::getSessionId)
+                .or(() -> authenticatedAccountIdOpt));
+
         return ExtendedSecurityContext.create(
                 IpUtil.getRemoteIp(request, env),
                 authenticatedAccountIdOpt,
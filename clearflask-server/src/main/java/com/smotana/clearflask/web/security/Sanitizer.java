@@ -2,10 +2,16 @@
 // SPDX-License-Identifier: Apache-2.0
 package com.smotana.clearflask.web.security;
 
+import com.google.common.base.Charsets;
 import com.google.common.base.Strings;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
 import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.Maps;
 import com.google.common.collect.Sets;
+import com.google.common.hash.HashCode;
+import com.google.common.hash.Hashing;
+import com.google.common.html.HtmlEscapers;
 import com.google.common.net.InternetDomainName;
 import com.google.inject.AbstractModule;
 import com.google.inject.Inject;
@@ -14,9 +20,13 @@ import com.google.inject.Singleton;
 import com.kik.config.ice.ConfigSystem;
 import com.kik.config.ice.annotations.DefaultValue;
 import com.smotana.clearflask.store.ContentStore;
+import com.smotana.clearflask.util.Extern;
 import com.smotana.clearflask.util.LogUtil;
 import com.smotana.clearflask.web.ApiException;
+import lombok.NonNull;
+import lombok.Value;
 import lombok.extern.slf4j.Slf4j;
+import org.owasp.html.Encoding;
 import org.owasp.html.Handler;
 import org.owasp.html.HtmlChangeListener;
 import org.owasp.html.HtmlPolicyBuilder;
@@ -32,11 +42,13 @@ import org.xbill.DNS.Type;
 import javax.mail.internet.AddressException;
 import javax.mail.internet.InternetAddress;
 import javax.ws.rs.core.Response;
+import java.time.Duration;
 import java.util.Arrays;
 import java.util.Map;
 import java.util.Optional;
 import java.util.Set;
 import java.util.function.Predicate;
+import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
 import static javax.ws.rs.core.Response.Status.BAD_REQUEST;
@@ -68,6 +80,29 @@ public class Sanitizer {
 
         @DefaultValue("<p style=\"color: #e60000;\">Cannot display corrupted message</p>")
         boolean htmlSanitizerInvalidHtmlMessage();
+
+        /**
+         * Cache sanitized HTML by content. Image URLs are presigned on every call regardless.
+         */
+        @DefaultValue("true")
+        boolean htmlSanitizerCacheEnabled();
+
+        /**
+         * Maximum total characters of sanitized HTML to keep cached.
+         */
+        @DefaultValue("20000000")
+        long htmlSanitizerCacheMaximumWeight();
+
+        @DefaultValue("PT1H")
+        Duration htmlSanitizerCacheExpireAfterAccess();
+    }
+
+    @Value
+    private static class RichHtmlCacheKey {
+        @NonNull
+        String projectId;
+        @NonNull
+        HashCode contentHash;
     }
 
     @Inject
@@ -87,12 +122,20 @@ public class Sanitizer {
     private static final String SUBDOMAIN_REGEX = "^[a-z0-9](?:[a-z0-9\\-]*[a-z0-9])?$";
     private static final long SEARCH_TEXT_MAX_LENGTH = 200;
     private static final Pattern IS_NUMERIC_PATTERN = Pattern.compile("^[0-9]+$");
+    private static final Pattern IMG_SRC_PATTERN = Pattern.compile("(<img\\b[^>]*?\\ssrc=\")([^\"]*)(\")");
 
     private Predicate<String> subdomainPredicate;
     private PolicyFactory richHtmlPolicyFactory;
+    private Cache<RichHtmlCacheKey, String> richHtmlCache;
 
     @Inject
     private void setup() {
+        richHtmlCache = CacheBuilder.newBuilder()
+                .maximumWeight(config.htmlSanitizerCacheMaximumWeight())
+                .<RichHtmlCacheKey, String>weigher((key, value) -> value.length())
+                .expireAfterAccess(config.htmlSanitizerCacheExpireAfterAccess())
+                .recordStats()
+                .build();
         subdomainPredicate = Pattern.compile(SUBDOMAIN_REGEX).asPredicate();
         richHtmlPolicyFactory = new HtmlPolicyBuilder()
                 .allowAttributes("class").matching(Pattern.compile("ql-indent-[0-9]")).onElements("li")
@@ -250,6 +293,39 @@ public class Sanitizer {
         if (!config.htmlSanitizerEnabled()) {
             return html;
         }
+        String sanitizedHtml;
+        if (config.htmlSanitizerCacheEnabled()) {
+            RichHtmlCacheKey cacheKey = new RichHtmlCacheKey(projectId, Hashing.sha256().hashString(html, Charsets.UTF_8));
+            sanitizedHtml = richHtmlCache.getIfPresent(cacheKey);
+            if (sanitizedHtml == null) {
+                sanitizedHtml = richHtmlUnsigned(html, identifierType, identifierId, projectId);
+                richHtmlCache.put(cacheKey, sanitizedHtml);
+            }
+        } else {
+            sanitizedHtml = richHtmlUnsigned(html, identifierType, identifierId, projectId);
+        }
+        return richHtmlSignUrls(sanitizedHtml, projectId);
+    }
+
+    @Extern
+    public String getRichHtmlCacheStats() {
+        return richHtmlCache.stats().toString();
+    }
+
+    @Extern
+    public double getRichHtmlCacheHitRate() {
+        return richHtmlCache.stats().hitRate();
+    }
+
+    @Extern
+    public void invalidateRichHtmlCache() {
+        richHtmlCache.invalidateAll();
+    }
+
+    /**
+     * Sanitizes HTML leaving image URLs unsigned. Result only depends on the content and project so it can be cached.
+     */
+    private String richHtmlUnsigned(String html, String identifierType, String identifierId, String projectId) {
         StringBuilder sanitizedHtmlBuilder = new StringBuilder();
 
         Map<String, Set<String>> discarded = Maps.newHashMap();
@@ -291,13 +367,31 @@ public class Sanitizer {
     }
 
     /**
-     * - Only allow images uploaded to our service
-     * - Attach S3 presigned URL query params.
+     * Attach S3 presigned URL query params to images of already sanitized HTML.
+     */
+    private String richHtmlSignUrls(String sanitizedHtml, String projectId) {
+        if (!sanitizedHtml.contains("<img")) {
+            return sanitizedHtml;
+        }
+        Matcher matcher = IMG_SRC_PATTERN.matcher(sanitizedHtml);
+        StringBuilder signedHtmlBuilder = new StringBuilder(sanitizedHtml.length());
+        while (matcher.find()) {
+            String signedSrc = contentStore.signUrl(projectId, Encoding.decodeHtml(matcher.group(2)))
+                    .map(HtmlEscapers.htmlEscaper()::escape)
+                    .orElse(matcher.group(2));
+            matcher.appendReplacement(signedHtmlBuilder, Matcher.quoteReplacement(matcher.group(1) + signedSrc + matcher.group(3)));
+        }
+        matcher.appendTail(signedHtmlBuilder);
+        return signedHtmlBuilder.toString();
+    }
+
+    /**
+     * Only allow images uploaded to our service. URLs are signed separately in {@link #richHtmlSignUrls}.
      */
     private PolicyFactory contentSignUrlsPolicy(String projectId) {
         return new HtmlPolicyBuilder()
                 .allowAttributes("src")
-                .matching((elementName, attributeName, value) -> contentStore.signUrl(projectId, value).orElse(null))
+                .matching((elementName, attributeName, value) -> contentStore.signUrl(projectId, value).isPresent() ? value : null)
                 .onElements("img")
 
                 .allowAttributes("width")
@@ -3,7 +3,12 @@
 package com.smotana.clearflask.web.util;
 
 import com.google.common.base.Charsets;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.LoadingCache;
+import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
 import com.google.common.util.concurrent.*;
 import com.google.gson.Gson;
@@ -25,19 +30,38 @@ import com.smotana.clearflask.store.ProjectStore;
 import com.smotana.clearflask.store.ProjectStore.WebhookListener;
 import com.smotana.clearflask.store.ProjectStore.WebhookListener.ResourceType;
 import com.smotana.clearflask.store.UserStore;
+import com.smotana.clearflask.util.Extern;
 import com.smotana.clearflask.util.LogUtil;
 import com.smotana.clearflask.web.security.Sanitizer;
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Getter;
+import lombok.NonNull;
+import lombok.Value;
 import lombok.extern.slf4j.Slf4j;
+import org.apache.http.client.config.RequestConfig;
 import org.apache.http.client.methods.CloseableHttpResponse;
 import org.apache.http.client.methods.HttpPost;
 import org.apache.http.entity.StringEntity;
 import org.apache.http.impl.client.CloseableHttpClient;
 import org.apache.http.impl.client.HttpClientBuilder;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.util.EntityUtils;
 
+import java.net.URI;
+import java.time.Duration;
+import java.util.List;
 import java.util.Map;
-import java.util.concurrent.SynchronousQueue;
+import java.util.Optional;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadLocalRandom;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.function.Supplier;
 
 @Slf4j
@@ -47,6 +71,70 @@ public class WebhookServiceImpl extends ManagedService implements WebhookService
     public interface Config {
         @DefaultValue("false")
         boolean enabled();
+
+        @DefaultValue("16")
+        int deliveryThreads();
+
+        /**
+         * Once full, further events are dropped.
+         */
+        @DefaultValue("10000")
+        int deliveryQueueSize();
+
+        @DefaultValue("200")
+        int maxConnections();
+
+        /**
+         * Limits concurrent deliveries to a single host so a slow endpoint cannot occupy all delivery threads.
+         */
+        @DefaultValue("4")
+        int maxConcurrencyPerDestination();
+
+        /**
+         * When a destination is at its concurrency limit, how long to wait before trying again.
+         */
+        @DefaultValue("PT0.2S")
+        Duration destinationBusyDelay();
+
+        /**
+         * Times a delivery is put back while its destination is busy before it is dropped.
+         */
+        @DefaultValue("300")
+        int destinationBusyMaxRequeues();
+
+        @DefaultValue("PT5S")
+        Duration connectTimeout();
+
+        @DefaultValue("PT10S")
+        Duration socketTimeout();
+
+        @DefaultValue("PT5S")
+        Duration connectionRequestTimeout();
+
+        /**
+         * Total attempts including the first one. Only timeouts, connection errors, 429 and 5xx are retried.
+         */
+        @DefaultValue("4")
+        int maxAttempts();
+
+        @DefaultValue("PT1S")
+        Duration retryInitialBackoff();
+
+        @DefaultValue("PT1M")
+        Duration retryMaxBackoff();
+
+        /**
+         * Vote changes on a post are collected for this long and only the latest vote of each user is sent.
+         * Zero sends every vote change as it happens.
+         */
+        @DefaultValue("PT0S")
+        Duration voteChangedBatchWindow();
+
+        /**
+         * Flush a post's vote changes early once this many are pending.
+         */
+        @DefaultValue("1000")
+        int voteChangedBatchMaxSize();
     }
 
     @Inject
@@ -58,24 +146,76 @@ public class WebhookServiceImpl extends ManagedService implements WebhookService
     @Inject
     private Sanitizer sanitizer;
 
+    private final ConcurrentMap<String, PendingVoteChanges> pendingVoteChanges = Maps.newConcurrentMap();
+    private final AtomicLong deliveredCounter = new AtomicLong();
+    private final AtomicLong failedCounter = new AtomicLong();
+    private final AtomicLong retriedCounter = new AtomicLong();
+    private final AtomicLong droppedCounter = new AtomicLong();
+    private final AtomicLong coalescedCounter = new AtomicLong();
+    private final AtomicLong deliveryLatencyTotalMillis = new AtomicLong();
+    private final AtomicLong deliveryLatencyMaxMillis = new AtomicLong();
+    private ThreadPoolExecutor deliveryThreadPool;
     private ListeningExecutorService executor;
+    private ScheduledThreadPoolExecutor scheduler;
+    private LoadingCache<String, Semaphore> destinationSemaphores;
     private CloseableHttpClient client;
 
     @Override
     protected void serviceStart() throws Exception {
-        executor = MoreExecutors.listeningDecorator(new ThreadPoolExecutor(
-                2, Integer.MAX_VALUE, 60L, TimeUnit.SECONDS, new SynchronousQueue<>(),
-                new ThreadFactoryBuilder().setNameFormat("WebhookServiceImpl-worker-%d").build()));
-        client = HttpClientBuilder.create().build();
+        deliveryThreadPool = new ThreadPoolExecutor(
+                config.deliveryThreads(), config.deliveryThreads(), 0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(config.deliveryQueueSize()),
+                new ThreadFactoryBuilder().setNameFormat("WebhookServiceImpl-worker-%d").build());
+        executor = MoreExecutors.listeningDecorator(deliveryThreadPool);
+        scheduler = new ScheduledThreadPoolExecutor(1,
+                new ThreadFactoryBuilder().setNameFormat("WebhookServiceImpl-scheduler-%d").build());
+        scheduler.setExecuteExistingDelayedTasksAfterShutdownPolicy(false);
+        destinationSemaphores = CacheBuilder.newBuilder()
+                .expireAfterAccess(Duration.ofMinutes(10))
+                .build(CacheLoader.from(destination -> new Semaphore(config.maxConcurrencyPerDestination())));
+
+        PoolingHttpClientConnectionManager connectionManager = new PoolingHttpClientConnectionManager();
+        connectionManager.setMaxTotal(config.maxConnections());
+        connectionManager.setDefaultMaxPerRoute(config.maxConcurrencyPerDestination());
+        client = HttpClientBuilder.create()
+                .setConnectionManager(connectionManager)
+                .setDefaultRequestConfig(RequestConfig.custom()
+                        .setConnectTimeout((int) config.connectTimeout().toMillis())
+                        .setSocketTimeout((int) config.socketTimeout().toMillis())
+                        .setConnectionRequestTimeout((int) config.connectionRequestTimeout().toMillis())
+                        .build())
+                .disableAutomaticRetries()
+                .evictIdleConnections(1L, TimeUnit.MINUTES)
+                .build();
     }
 
     @Override
     protected void serviceStop() throws Exception {
-        executor.shutdownNow();
-        executor.awaitTermination(30, TimeUnit.SECONDS);
+        // Send out pending vote changes, pending retries are dropped
+        ImmutableSet.copyOf(pendingVoteChanges.keySet()).forEach(this::flushVoteChanges);
+        scheduler.shutdownNow();
+        executor.shutdown();
+        if (!executor.awaitTermination(30, TimeUnit.SECONDS)) {
+            log.warn("Webhook deliveries did not complete in time, dropping {} queued",
+                    executor.shutdownNow().size());
+        }
         client.close();
     }
 
+    @Extern
+    public String getWebhookStats() {
+        long deliveredCount = deliveredCounter.get();
+        return "queueDepth " + deliveryThreadPool.getQueue().size()
+                + " active " + deliveryThreadPool.getActiveCount()
+                + " delivered " + deliveredCount
+                + " failed " + failedCounter.get()
+                + " retried " + retriedCounter.get()
+                + " dropped " + droppedCounter.get()
+                + " coalesced " + coalescedCounter.get()
+                + " avgDeliveryLatencyMs " + (deliveredCount == 0 ? 0 : deliveryLatencyTotalMillis.get() / deliveredCount)
+                + " maxDeliveryLatencyMs " + deliveryLatencyMaxMillis.get();
+    }
+
     @Override
     public ListenableFuture<Void> eventUserNew(UserStore.UserModel user) {
         if (!config.enabled()) {
@@ -123,14 +263,65 @@ public class WebhookServiceImpl extends ManagedService implements WebhookService
         if (!config.enabled()) {
             return Futures.immediateFuture(null);
         }
-        return handleEvent(ResourceType.POST, SubscriptionEventTypeIdea.VOTE_CHANGED.name(), idea.getProjectId(), () -> {
-            Map<String, Object> map = Maps.newHashMap();
-            map.put("event_type", SubscriptionEventTypeIdea.VOTE_CHANGED.name());
-            map.put("post", ideaPayload(idea));
-            map.put("user", userPayload(userSupplier.get()));
-            map.put("vote", vote.name());
-            return map;
+        if (config.voteChangedBatchWindow().isZero()) {
+            return handleEvent(ResourceType.POST, SubscriptionEventTypeIdea.VOTE_CHANGED.name(), idea.getProjectId(),
+                    () -> voteChangedPayload(idea, userSupplier.get(), vote));
+        }
+        if (getListeners(ResourceType.POST, SubscriptionEventTypeIdea.VOTE_CHANGED.name(), idea.getProjectId()).isEmpty()) {
+            return Futures.immediateFuture(null);
+        }
+
+        String key = idea.getProjectId() + "/" + idea.getIdeaId();
+        PendingVoteChanges pending = pendingVoteChanges.compute(key, (k, p) -> {
+            if (p == null) {
+                p = new PendingVoteChanges();
+                try {
+                    scheduler.schedule(() -> flushVoteChanges(key),
+                            config.voteChangedBatchWindow().toMillis(), TimeUnit.MILLISECONDS);
+                } catch (RejectedExecutionException ex) {
+                    // Shutting down, flushed below
+                }
+            }
+            p.add(idea, userSupplier, vote);
+            return p;
         });
+        if (pending.size() >= config.voteChangedBatchMaxSize() || scheduler.isShutdown()) {
+            flushVoteChanges(key);
+        }
+        return pending.getFlushedFuture();
+    }
+
+    private Map<String, Object> voteChangedPayload(IdeaStore.IdeaModel idea, UserStore.UserModel user, VoteOption vote) {
+        Map<String, Object> map = Maps.newHashMap();
+        map.put("event_type", SubscriptionEventTypeIdea.VOTE_CHANGED.name());
+        map.put("post", ideaPayload(idea));
+        map.put("user", userPayload(user));
+        map.put("vote", vote.name());
+        return map;
+    }
+
+    private void flushVoteChanges(String key) {
+        PendingVoteChanges pending = pendingVoteChanges.remove(key);
+        if (pending == null) {
+            return;
+        }
+        pending.getFlushedFuture().setFuture(submit(() -> {
+            IdeaStore.IdeaModel idea = pending.getLatestIdea();
+            // Only the latest vote of each user is sent, alongside the latest state of the post
+            Map<String, Map.Entry<UserStore.UserModel, VoteOption>> latestVoteByUserId = Maps.newLinkedHashMap();
+            for (Map.Entry<Supplier<UserStore.UserModel>, VoteOption> change : pending.getChanges()) {
+                UserStore.UserModel user = change.getKey().get();
+                if (latestVoteByUserId.put(user.getUserId(), Maps.immutableEntry(user, change.getValue())) != null) {
+                    coalescedCounter.incrementAndGet();
+                }
+            }
+            ImmutableSet<WebhookListener> listeners = getListeners(ResourceType.POST, SubscriptionEventTypeIdea.VOTE_CHANGED.name(), idea.getProjectId());
+            latestVoteByUserId.values().forEach(userAndVote -> {
+                String payload = gson.toJson(voteChangedPayload(idea, userAndVote.getKey(), userAndVote.getValue()));
+                listeners.forEach(listener -> deliver(new Delivery(
+                        idea.getProjectId(), SubscriptionEventTypeIdea.VOTE_CHANGED.name(), listener, payload, 1, 0, System.currentTimeMillis())));
+            });
+        }));
     }
 
     @Override
@@ -245,53 +436,144 @@ public class WebhookServiceImpl extends ManagedService implements WebhookService
         return map;
     }
 
-    private ListenableFuture<Void> handleEvent(ResourceType resourceType, String eventType, String projectId, Supplier<Map<String, Object>> payloadSupplier) {
-        ImmutableSet<WebhookListener> listeners = projectStore.getProject(projectId, true)
+    private ImmutableSet<WebhookListener> getListeners(ResourceType resourceType, String eventType, String projectId) {
+        return projectStore.getProject(projectId, true)
                 .map(project -> project.getWebhookListenerUrls(resourceType, eventType))
                 .orElse(ImmutableSet.of());
+    }
+
+    private ListenableFuture<Void> handleEvent(ResourceType resourceType, String eventType, String projectId, Supplier<Map<String, Object>> payloadSupplier) {
+        ImmutableSet<WebhookListener> listeners = getListeners(resourceType, eventType, projectId);
 
         if (listeners.isEmpty()) {
             return Futures.immediateFuture(null);
         } else {
+            // Each listener is delivered to independently
             return submit(() -> {
                 String payload = gson.toJson(payloadSupplier.get());
-                for (WebhookListener listener : listeners) {
-                    log.trace("Sending webhook callback, url {} payload {}", listener.getUrl(), payload);
-                    HttpPost req = new HttpPost(listener.getUrl());
-                    req.setEntity(new StringEntity(payload, Charsets.UTF_8));
-                    try (CloseableHttpResponse res = client.execute(req)) {
-                        if (res.getStatusLine().getStatusCode() == 410) {
-                            projectStore.removeWebhookListener(projectId, listener);
-                        } else if (res.getStatusLine().getStatusCode() < 200
-                                || res.getStatusLine().getStatusCode() > 299) {
-                            if (LogUtil.rateLimitAllowLog("webhookService-send-status-non-200")) {
-                                // TODO notify account owner
-                                log.info("Send to webhook got status {}, url {} projectId {} event {}",
-                                        res.getStatusLine().getStatusCode(), listener.getUrl(), projectId, eventType);
-                            }
-                        }
-                    } catch (Exception ex) {
-                        if (LogUtil.rateLimitAllowLog("webhookService-send-failed")) {
-                            log.warn("Failed to send to webhook url {} for projectId {} event {}",
-                                    listener.getUrl(), projectId, eventType);
-                        }
-                    }
-                }
+                long createdAt = System.currentTimeMillis();
+                listeners.forEach(listener -> deliver(new Delivery(
+                        projectId, eventType, listener, payload, 1, 0, createdAt)));
             });
         }
     }
 
+    private void deliver(Delivery delivery) {
+        try {
+            executor.execute(() -> send(delivery));
+        } catch (RejectedExecutionException ex) {
+            droppedCounter.incrementAndGet();
+            if (LogUtil.rateLimitAllowLog("webhookService-queue-full")) {
+                log.warn("Webhook queue full, dropping url {} projectId {} event {}",
+                        delivery.getListener().getUrl(), delivery.getProjectId(), delivery.getEventType());
+            }
+        }
+    }
+
+    private void deliverLater(Delivery delivery, Duration delay) {
+        try {
+            scheduler.schedule(() -> deliver(delivery), delay.toMillis(), TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException ex) {
+            droppedCounter.incrementAndGet();
+        }
+    }
+
+    private void send(Delivery delivery) {
+        WebhookListener listener = delivery.getListener();
+        Semaphore destinationSemaphore = destinationSemaphores.getUnchecked(getDestination(listener.getUrl()));
+        if (!destinationSemaphore.tryAcquire()) {
+            if (delivery.getBusyRequeues() >= config.destinationBusyMaxRequeues()) {
+                droppedCounter.incrementAndGet();
+                if (LogUtil.rateLimitAllowLog("webhookService-destination-busy")) {
+                    log.warn("Webhook destination busy for too long, dropping url {} projectId {} event {}",
+                            listener.getUrl(), delivery.getProjectId(), delivery.getEventType());
+                }
+                return;
+            }
+            // Destination is busy, free up this thread for other destinations
+            deliverLater(delivery.toBuilder().busyRequeues(delivery.getBusyRequeues() + 1).build(),
+                    config.destinationBusyDelay());
+            return;
+        }
+        boolean retry;
+        try {
+            log.trace("Sending webhook callback, url {} payload {}", listener.getUrl(), delivery.getPayload());
+            HttpPost req = new HttpPost(listener.getUrl());
+            req.setEntity(new StringEntity(delivery.getPayload(), Charsets.UTF_8));
+            try (CloseableHttpResponse res = client.execute(req)) {
+                int statusCode = res.getStatusLine().getStatusCode();
+                EntityUtils.consumeQuietly(res.getEntity());
+                if (statusCode >= 200 && statusCode <= 299) {
+                    long latencyMillis = System.currentTimeMillis() - delivery.getCreatedAt();
+                    deliveredCounter.incrementAndGet();
+                    deliveryLatencyTotalMillis.addAndGet(latencyMillis);
+                    deliveryLatencyMaxMillis.accumulateAndGet(latencyMillis, Math::max);
+                    return;
+                } else if (statusCode == 410) {
+                    projectStore.removeWebhookListener(delivery.getProjectId(), listener);
+                    return;
+                }
+                retry = statusCode == 429 || statusCode >= 500;
+                if (LogUtil.rateLimitAllowLog("webhookService-send-status-non-200")) {
+                    // TODO notify account owner
+                    log.info("Send to webhook got status {}, url {} projectId {} event {} attempt {}",
+                            statusCode, listener.getUrl(), delivery.getProjectId(), delivery.getEventType(), delivery.getAttempt());
+                }
+            }
+        } catch (Exception ex) {
+            retry = true;
+            if (LogUtil.rateLimitAllowLog("webhookService-send-failed")) {
+                log.warn("Failed to send to webhook url {} for projectId {} event {} attempt {}",
+                        listener.getUrl(), delivery.getProjectId(), delivery.getEventType(), delivery.getAttempt());
+            }
+        } finally {
+            destinationSemaphore.release();
+        }
+
+        if (retry && delivery.getAttempt() < config.maxAttempts()) {
+            retriedCounter.incrementAndGet();
+            deliverLater(delivery.toBuilder().attempt(delivery.getAttempt() + 1).build(),
+                    getRetryBackoff(delivery.getAttempt()));
+        } else {
+            failedCounter.incrementAndGet();
+        }
+    }
+
+    private Duration getRetryBackoff(int attempt) {
+        long backoffMillis = Math.min(
+                config.retryMaxBackoff().toMillis(),
+                config.retryInitialBackoff().toMillis() << Math.min(attempt - 1, 20));
+        // Full jitter
+        return Duration.ofMillis(ThreadLocalRandom.current().nextLong(backoffMillis / 2, backoffMillis + 1));
+    }
+
+    private String getDestination(String url) {
+        try {
+            return Optional.ofNullable(URI.create(url).getHost()).orElse(url);
+        } catch (IllegalArgumentException ex) {
+            return url;
+        }
+    }
+
     private ListenableFuture<Void> submit(Runnable task) {
-        return executor.submit(() -> {
-            try {
-                task.run();
-            } catch (Throwable th) {
-                if (LogUtil.rateLimitAllowLog("webhookService-submit-failed")) {
-                    log.warn("Failed to complete task", th);
+        try {
+            return executor.submit(() -> {
+                try {
+                    task.run();
+                } catch (Throwable th) {
+                    if (LogUtil.rateLimitAllowLog("webhookService-submit-failed")) {
+                        log.warn("Failed to complete task", th);
+                    }
                 }
+                return null;
+            });
+        } catch (RejectedExecutionException ex) {
+            droppedCounter.incrementAndGet();
+            if (LogUtil.rateLimitAllowLog("webhookService-queue-full")) {
+                log.warn("Webhook queue full, dropping event", ex);
             }
-            return null;
-        });
+            return Futures.immediateFailedFuture(ex);
+        }
     }
 
     public static Module module() {
@@ -304,4 +586,57 @@ public class WebhookServiceImpl extends ManagedService implements WebhookService
             }
         };
     }
+
+    @Value
+    @Builder(toBuilder = true)
+    @AllArgsConstructor
+    private static class Delivery {
+        @NonNull
+        String projectId;
+
+        @NonNull
+        String eventType;
+
+        @NonNull
+        WebhookListener listener;
+
+        @NonNull
+        String payload;
+
+        int attempt;
+
+        /**
+         * Times put back because the destination was busy
+         */
+        int busyRequeues;
+
+        /**
+         * For measuring delivery latency including retries
+         */
+        long createdAt;
+    }
+
+    private static class PendingVoteChanges {
+        @Getter
+        private final SettableFuture<Void> flushedFuture = SettableFuture.create();
+        private final List<Map.Entry<Supplier<UserStore.UserModel>, VoteOption>> changes = Lists.newArrayList();
+        private IdeaStore.IdeaModel latestIdea;
+
+        synchronized void add(IdeaStore.IdeaModel idea, Supplier<UserStore.UserModel> userSupplier, VoteOption vote) {
+            latestIdea = idea;
+            changes.add(Maps.immutableEntry(userSupplier, vote));
+        }
+
+        synchronized int size() {
+            return changes.size();
+        }
+
+        synchronized IdeaStore.IdeaModel getLatestIdea() {
+            return latestIdea;
+        }
+
+        synchronized ImmutableList<Map.Entry<Supplier<UserStore.UserModel>, VoteOption>> getChanges() {
+            return ImmutableList.copyOf(changes);
+        }
+    }
 }
@@ -72,6 +72,9 @@ import static org.bouncycastle.jce.provider.BouncyCastleProvider.PROVIDER_NAME;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
 import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
 @Slf4j
@@ -189,6 +192,8 @@ public class NotificationServiceTest extends AbstractTest {
         assertFalse(push.getBody().contains("__"));
         assertNotNull(inApp);
         assertFalse(inApp.getDescription().contains("__"));
+        // Email and browser push share one token
+        verify(this.mockUserStore, times(1)).createToken(eq(projectId), eq(user.getUserId()), any());
     }
 
     @Test(timeout = 10_000L)
@@ -0,0 +1,63 @@
+// SPDX-FileCopyrightText: 2019-2022 Matus Faro <matus@smotana.com>
+// SPDX-License-Identifier: Apache-2.0
+package com.smotana.clearflask.security.limiter.rate;
+
+import org.junit.Test;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class GcraRateLimiterTableTest {
+
+    private final AtomicLong nowMicros = new AtomicLong(1_000_000_000L);
+    private final GcraRateLimiterTable table = new GcraRateLimiterTable(1024, nowMicros::get);
+
+    @Test(timeout = 10_000L)
+    public void testBurstAndRefill() throws Exception {
+        // 2 per second with 5 seconds of capacity, precharged 1 second
+        double[] altPermCap = {2, 5};
+        assertTrue(table.tryAcquire("a", 1, 1, altPermCap));
+        assertTrue(table.tryAcquire("a", 1, 1, altPermCap));
+        // Same as Guava, last request may borrow ahead once stored permits run out
+        assertTrue(table.tryAcquire("a", 1, 1, altPermCap));
+        assertFalse(table.tryAcquire("a", 1, 1, altPermCap));
+        assertTrue(table.tryAcquire("b", 1, 1, altPermCap));
+
+        nowMicros.addAndGet(500_000L);
+        assertTrue(table.tryAcquire("a", 1, 1, altPermCap));
+        assertFalse(table.tryAcquire("a", 1, 1, altPermCap));
+
+        // Refills up to capacity only
+        nowMicros.addAndGet(100_000_000L);
+        for (int i = 0; i < 11; i++) {
+            assertTrue(table.tryAcquire("a", 1, 1, altPermCap));
+        }
+        assertFalse(table.tryAcquire("a", 1, 1, altPermCap));
+    }
+
+    @Test(timeout = 10_000L)
+    public void testTiers() throws Exception {
+        // Second tier is stricter
+        double[] altPermCap = {10, 1, 1, 2};
+        assertTrue(table.tryAcquire("a", 1, 100, altPermCap));
+        assertTrue(table.tryAcquire("a", 1, 100, altPermCap));
+        assertTrue(table.tryAcquire("a", 1, 100, altPermCap));
+        assertFalse(table.tryAcquire("a", 1, 100, altPermCap));
+        assertTrue(table.tryAcquire("a", 1, 100, new double[]{10, 1}));
+    }
+
+    @Test(timeout = 10_000L)
+    public void testEvictionBounded() throws Exception {
+        double[] altPermCap = {1, 1};
+        for (int i = 0; i < 100_000; i++) {
+            assertTrue(table.tryAcquire("target" + i, 1, 0, altPermCap));
+        }
+        assertTrue(table.tryAcquire("recent", 1, 0, altPermCap));
+        assertFalse(table.tryAcquire("recent", 1, 0, altPermCap));
+
+        table.clear();
+        assertTrue(table.tryAcquire("recent", 1, 0, altPermCap));
+    }
+}
@@ -0,0 +1,100 @@
+// SPDX-FileCopyrightText: 2019-2022 Matus Faro <matus@smotana.com>
+// SPDX-License-Identifier: Apache-2.0
+package com.smotana.clearflask.security.limiter.rate;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.util.concurrent.GuavaRateLimiters;
+import com.google.inject.Guice;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Multi-tier rate limit check as done by TieredWebLimiter on every limited request, comparing the previous Guava rate
+ * limiter caches against {@link GcraRateLimiterTable}. Targets are drawn from a large pool of IPs as seen during a
+ * scraping attack.
+ * <p>
+ * Run with: mvn test-compile exec:java -Dexec.classpathScope=test -Dexec.mainClass=com.smotana.clearflask.security.limiter.rate.LocalRateLimiterBenchmark
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Threads(8)
+@Fork(1)
+public class LocalRateLimiterBenchmark {
+
+    private static final int TARGET_COUNT = 200_000;
+    private static final double PRECHARGED_IN_SECONDS = 600;
+    /**
+     * Default tiers of TieredWebLimiter
+     */
+    private static final double[] ALT_PERM_CAP = {10, 86400, 100, 3600, 1000, 60};
+
+    private String[] targets;
+    private GuavaRateLimiters guavaRateLimiters;
+    private ConcurrentMap<Double, Cache<String, com.google.common.util.concurrent.RateLimiter>> guavaCaches;
+    private GcraRateLimiterTable gcraTable;
+
+    @Setup
+    public void setup() {
+        targets = new String[TARGET_COUNT];
+        for (int i = 0; i < TARGET_COUNT; i++) {
+            targets[i] = "10." + (i >> 16 & 0xff) + "." + (i >> 8 & 0xff) + "." + (i & 0xff);
+        }
+        guavaRateLimiters = Guice.createInjector(GuavaRateLimiters.module()).getInstance(GuavaRateLimiters.class);
+        guavaCaches = CacheBuilder.newBuilder()
+                .<Double, Cache<String, com.google.common.util.concurrent.RateLimiter>>build()
+                .asMap();
+        gcraTable = new GcraRateLimiterTable(524288, guavaRateLimiters.createMicrosTimer());
+    }
+
+    @Benchmark
+    public boolean guavaCaches() throws ExecutionException {
+        String target = targets[ThreadLocalRandom.current().nextInt(TARGET_COUNT)];
+        for (int i = 0; i < ALT_PERM_CAP.length; i += 2) {
+            double permitsPerSecond = ALT_PERM_CAP[i];
+            double capacityInSeconds = ALT_PERM_CAP[i + 1];
+            com.google.common.util.concurrent.RateLimiter rateLimiter = guavaCaches
+                    .computeIfAbsent(capacityInSeconds, capacityInSec -> CacheBuilder.newBuilder()
+                            .expireAfterAccess(capacityInSec.longValue(), TimeUnit.SECONDS)
+                            .maximumSize(100000)
+                            .build())
+                    .get(target, () -> guavaRateLimiters.create(
+                            permitsPerSecond, capacityInSeconds, Math.min(capacityInSeconds, PRECHARGED_IN_SECONDS)));
+            if (!rateLimiter.tryAcquire(1)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Benchmark
+    public boolean gcraTable() {
+        String target = targets[ThreadLocalRandom.current().nextInt(TARGET_COUNT)];
+        return gcraTable.tryAcquire(target, 1, PRECHARGED_IN_SECONDS, ALT_PERM_CAP);
+    }
+
+    public static void main(String[] args) throws Exception {
+        new Runner(new OptionsBuilder()
+                .include(LocalRateLimiterBenchmark.class.getSimpleName())
+                .build()).run();
+    }
+}
@@ -26,6 +26,7 @@ import com.smotana.clearflask.store.impl.DynamoElasticIdeaStore;
 import com.smotana.clearflask.store.impl.DynamoElasticUserStore;
 import com.smotana.clearflask.store.impl.DynamoProjectStore;
 import com.smotana.clearflask.store.impl.DynamoVoteStore;
+import com.smotana.clearflask.store.impl.LocalCacheInvalidationBus;
 import com.smotana.clearflask.store.mysql.MysqlCustomFunction;
 import com.smotana.clearflask.store.mysql.MysqlUtil;
 import com.smotana.clearflask.store.mysql.model.tables.JooqIdea;
@@ -107,6 +108,8 @@ public class AccountStoreIT extends AbstractIT {
                 InMemoryDynamoDbProvider.module(),
                 SingleTableProvider.module(),
                 DynamoElasticIdeaStore.module(),
+                LocalCacheInvalidationBus.module(),
+                Reindexer.module(),
                 DynamoElasticAccountStore.module(),
                 DynamoProjectStore.module(),
                 DynamoVoteStore.module(),
@@ -303,6 +306,12 @@ public class AccountStoreIT extends AbstractIT {
 
         store.revokeSessions(account.getAccountId());
         assertFalse(store.getSession(accountSession3.getSessionId()).isPresent());
+
+        String unknownSessionId = store.genSessionId();
+        assertFalse(store.getSession(unknownSessionId).isPresent());
+        long readsSaved = storeImpl.getSessionCacheReadsSaved();
+        assertFalse(store.getSession(unknownSessionId).isPresent());
+        assertEquals(readsSaved + 2, storeImpl.getSessionCacheReadsSaved());
     }
 
     @Test(timeout = 30_000L)
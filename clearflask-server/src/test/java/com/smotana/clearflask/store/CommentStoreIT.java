@@ -24,6 +24,7 @@ import com.smotana.clearflask.store.impl.DynamoElasticIdeaStore;
 import com.smotana.clearflask.store.impl.DynamoElasticUserStore;
 import com.smotana.clearflask.store.impl.DynamoProjectStore;
 import com.smotana.clearflask.store.impl.DynamoVoteStore;
+import com.smotana.clearflask.store.impl.LocalCacheInvalidationBus;
 import com.smotana.clearflask.store.mysql.MysqlUtil;
 import com.smotana.clearflask.testutil.AbstractIT;
 import com.smotana.clearflask.util.ChatwootUtil;
@@ -39,6 +40,7 @@ import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.junit.runners.Parameterized;
 
+import java.time.Duration;
 import java.time.Instant;
 import java.util.List;
 import java.util.Optional;
@@ -79,6 +81,8 @@ public class CommentStoreIT extends AbstractIT {
                 InMemoryDynamoDbProvider.module(),
                 SingleTableProvider.module(),
                 DynamoElasticCommentStore.module(),
+                LocalCacheInvalidationBus.module(),
+                Reindexer.module(),
                 DynamoElasticAccountStore.module(),
                 DynamoElasticUserStore.module(),
                 DynamoVoteStore.module(),
@@ -97,6 +101,7 @@ public class CommentStoreIT extends AbstractIT {
             protected void configure() {
                 install(ConfigSystem.overrideModule(DynamoElasticCommentStore.Config.class, om -> {
                     om.override(om.id().elasticForceRefresh()).withValue(true);
+                    om.override(om.id().commentThreadCacheSettlePeriod()).withValue(Duration.ZERO);
                 }));
                 install(ConfigSystem.overrideModule(DefaultServerSecret.Config.class, Names.named("cursor"), om -> {
                     om.override(om.id().sharedKey()).withValue(ServerSecretTest.getRandomSharedKey());
@@ -231,6 +236,50 @@ public class CommentStoreIT extends AbstractIT {
         assertEquals(ImmutableSet.of(), ImmutableSet.copyOf(store.getComments(projectId, ideaId, ImmutableSet.of(c0.getCommentId(), c1.getCommentId(), c01.getCommentId(), cOther.getCommentId())).values()));
     }
 
+    @Test(timeout = 10_000L)
+    public void testCommentThreadCache() throws Exception {
+        String projectId = IdUtil.randomId();
+        store.createIndex(projectId).get();
+        ideaStore.createIndex(projectId);
+        String ideaId = createRandomIdea(projectId).getIdeaId();
+        String mergedIdeaId = createRandomIdea(projectId).getIdeaId();
+        userStore.createIndex(projectId);
+        String userId = userStore.createUser(MockModelUtil.getRandomUser().toBuilder().projectId(projectId).build()).getUser().getUserId();
+
+        CommentModel c0 = createRandomComment(projectId, ideaId, ImmutableList.of());
+        assertEquals(ImmutableSet.of(c0), getCommentsForPost(projectId, ideaId));
+        assertEquals(ImmutableSet.of(c0), getCommentsForPost(projectId, ideaId));
+
+        CommentModel c1 = createRandomComment(projectId, ideaId, ImmutableList.of());
+        assertEquals(ImmutableSet.of(c0, c1), getCommentsForPost(projectId, ideaId));
+
+        c0 = store.voteComment(projectId, ideaId, c0.getCommentId(), userId, VoteValue.Upvote).getCommentModel();
+        assertEquals(ImmutableSet.of(c0, c1), getCommentsForPost(projectId, ideaId));
+
+        CommentStore.CommentAndIndexingFuture<Void> updateResponse = store.updateComment(projectId, ideaId, c1.getCommentId(), Instant.now(), new CommentUpdate(textToSimpleHtml("newContent")));
+        updateResponse.getIndexingFuture().get();
+        c1 = updateResponse.getCommentModel();
+        assertEquals(ImmutableSet.of(c0, c1), getCommentsForPost(projectId, ideaId));
+
+        CommentStore.CommentAndIndexingFuture<Void> deleteResponse = store.markAsDeletedComment(projectId, ideaId, c1.getCommentId());
+        deleteResponse.getIndexingFuture().get();
+        c1 = deleteResponse.getCommentModel();
+        assertEquals(ImmutableSet.of(c0, c1), getCommentsForPost(projectId, ideaId));
+
+        // Write to a merged post invalidates the thread of the post it was merged into
+        assertEquals(ImmutableSet.of(c0, c1), getCommentsForPost(projectId, ideaId, ImmutableSet.of(mergedIdeaId)));
+        CommentModel cMerged = createRandomComment(projectId, mergedIdeaId, ImmutableList.of());
+        assertEquals(ImmutableSet.of(c0, c1, cMerged), getCommentsForPost(projectId, ideaId, ImmutableSet.of(mergedIdeaId)));
+    }
+
+    private ImmutableSet<CommentModel> getCommentsForPost(String projectId, String ideaId) {
+        return getCommentsForPost(projectId, ideaId, ImmutableSet.of());
+    }
+
+    private ImmutableSet<CommentModel> getCommentsForPost(String projectId, String ideaId, ImmutableSet<String> mergedPostIds) {
+        return store.getCommentsForPost(projectId, ideaId, mergedPostIds, Optional.empty(), ImmutableSet.of());
+    }
+
     private CommentModel createRandomComment(String projectId, String ideaId, ImmutableList<String> parentCommentIds) throws Exception {
         CommentStore.CommentAndIndexingFuture<List<Void>> commentAndFuture = store.createCommentAndUpvote(getRandomComment(projectId, ideaId, parentCommentIds));
         commentAndFuture.getIndexingFuture().get();
@@ -5,6 +5,7 @@ package com.smotana.clearflask.store;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableSet;
+import com.google.common.util.concurrent.ListenableFuture;
 import com.google.inject.AbstractModule;
 import com.google.inject.Inject;
 import com.google.inject.name.Names;
@@ -68,6 +69,8 @@ public class IdeaStoreIT extends AbstractIT {
                 InMemoryDynamoDbProvider.module(),
                 SingleTableProvider.module(),
                 DynamoElasticIdeaStore.module(),
+                LocalCacheInvalidationBus.module(),
+                Reindexer.module(),
                 DynamoElasticAccountStore.module(),
                 DynamoElasticUserStore.module(),
                 DynamoVoteStore.module(),
@@ -206,6 +209,11 @@ public class IdeaStoreIT extends AbstractIT {
                         .similarToIdeaId(idea1.getIdeaId()).build(),
                 ImmutableSet.of(idea2.getIdeaId()));
 
+        // Test search text
+        assertSearchResult(projectId, IdeaSearchAdmin.builder()
+                        .searchText("cccccc").build(),
+                ImmutableSet.of(idea3.getIdeaId()));
+
         // Test category
         assertSearchResult(projectId, IdeaSearchAdmin.builder()
                         .filterCategoryIds(ImmutableList.of("cat1")).build(),
@@ -225,6 +233,49 @@ public class IdeaStoreIT extends AbstractIT {
                 ImmutableSet.of(idea2.getIdeaId(), idea3.getIdeaId()));
     }
 
+    @Test(timeout = 30_000L)
+    public void testSearchPaging() throws Exception {
+        String projectId = IdUtil.randomId();
+        store.createIndex(projectId).get();
+        Instant now = Instant.now();
+        ImmutableList.Builder<String> newestFirstBuilder = ImmutableList.builder();
+        for (int i = 0; i < 5; i++) {
+            IdeaModel idea = MockModelUtil.getRandomIdea().toBuilder()
+                    .projectId(projectId)
+                    .created(now.minus(i, ChronoUnit.HOURS))
+                    .funded(0L)
+                    .voteValue(i % 2 == 0 ? 10L : 20L)
+                    .expressionsValue(0d)
+                    .build();
+            store.createIdea(idea).get();
+            newestFirstBuilder.add(idea.getIdeaId());
+        }
+        ImmutableList<String> newestFirst = newestFirstBuilder.build();
+
+        assertEquals(newestFirst, searchAllPages(projectId, IdeaSearchAdmin.builder()
+                .sortBy(IdeaSearchAdmin.SortByEnum.NEW)
+                .limit(2L).build()));
+
+        // Ties on vote value must neither repeat nor skip ideas across pages
+        ImmutableList<String> top = searchAllPages(projectId, IdeaSearchAdmin.builder()
+                .sortBy(IdeaSearchAdmin.SortByEnum.TOP)
+                .limit(2L).build());
+        assertEquals(ImmutableSet.copyOf(newestFirst), ImmutableSet.copyOf(top));
+        assertEquals(newestFirst.size(), top.size());
+        assertEquals(ImmutableSet.of(newestFirst.get(1), newestFirst.get(3)), ImmutableSet.copyOf(top.subList(0, 2)));
+    }
+
+    ImmutableList<String> searchAllPages(String projectId, IdeaSearchAdmin search) {
+        ImmutableList.Builder<String> ideaIdsBuilder = ImmutableList.builder();
+        Optional<String> cursorOpt = Optional.empty();
+        do {
+            IdeaStore.SearchResponse response = store.searchIdeas(projectId, search, true, cursorOpt);
+            ideaIdsBuilder.addAll(response.getIdeaIds());
+            cursorOpt = response.getCursorOpt();
+        } while (cursorOpt.isPresent());
+        return ideaIdsBuilder.build();
+    }
+
     @Test(timeout = 30_000L)
     public void testDragNDrop() throws Exception {
         String projectId = IdUtil.randomId();
@@ -537,6 +588,67 @@ public class IdeaStoreIT extends AbstractIT {
         assertEquals(Long.valueOf(-1L), store.getIdea(projectId, idea.getIdeaId()).get().getVoteValue());
     }
 
+    @Test(timeout = 30_000L)
+    public void testVoteWriteBehind() throws Exception {
+        configSet(DynamoElasticIdeaStore.Config.class, "voteWriteBehindEnabled", "true");
+        configSet(DynamoElasticIdeaStore.Config.class, "voteWriteBehindFlushFrequency", "PT1H");
+        configSet(DynamoElasticIdeaStore.Config.class, "voteWriteBehindFlushMaxPendingIdeas", "2");
+        // Write-behind is set up on start, use a fresh instance started with it enabled
+        DynamoElasticIdeaStore writeBehindStore = new DynamoElasticIdeaStore();
+        injector.injectMembers(writeBehindStore);
+        writeBehindStore.startAsync().awaitRunning();
+
+        String projectId = IdUtil.randomId();
+        writeBehindStore.createIndex(projectId).get();
+        IdeaModel idea1 = MockModelUtil.getRandomIdea().toBuilder().projectId(projectId).build();
+        IdeaModel idea2 = MockModelUtil.getRandomIdea().toBuilder().projectId(projectId).build();
+        writeBehindStore.createIdea(idea1).get();
+        writeBehindStore.createIdea(idea2).get();
+        userStore.createIndex(projectId);
+        String userId1 = userStore.createUser(MockModelUtil.getRandomUser().toBuilder().projectId(projectId).build()).getUser().getUserId();
+        String userId2 = userStore.createUser(MockModelUtil.getRandomUser().toBuilder().projectId(projectId).build()).getUser().getUserId();
+        String userId3 = userStore.createUser(MockModelUtil.getRandomUser().toBuilder().projectId(projectId).build()).getUser().getUserId();
+
+        // Votes on the same idea coalesce into a single pending update, counters are written right away
+        ListenableFuture<Void> indexingFuture1 = writeBehindStore.voteIdea(projectId, idea1.getIdeaId(), userId1, Upvote).getIndexingFuture();
+        ListenableFuture<Void> indexingFuture2 = writeBehindStore.voteIdea(projectId, idea1.getIdeaId(), userId2, Upvote).getIndexingFuture();
+        assertEquals(1L, writeBehindStore.getVoteWriteBehindPendingCount());
+        assertEquals(Long.valueOf(2L), writeBehindStore.getIdea(projectId, idea1.getIdeaId()).get().getVoteValue());
+        assertFalse(indexingFuture1.isDone());
+        assertFalse(indexingFuture2.isDone());
+
+        writeBehindStore.flushVoteWriteBehind();
+        indexingFuture1.get();
+        indexingFuture2.get();
+        assertEquals(0L, writeBehindStore.getVoteWriteBehindPendingCount());
+        assertEquals(ImmutableList.of(idea1.getIdeaId(), idea2.getIdeaId()), searchTop(writeBehindStore, projectId));
+
+        // Reaching the max pending ideas flushes early
+        writeBehindStore.voteIdea(projectId, idea2.getIdeaId(), userId1, Upvote);
+        writeBehindStore.voteIdea(projectId, idea2.getIdeaId(), userId2, Upvote);
+        writeBehindStore.voteIdea(projectId, idea2.getIdeaId(), userId3, Upvote);
+        assertEquals(1L, writeBehindStore.getVoteWriteBehindPendingCount());
+        writeBehindStore.voteIdea(projectId, idea1.getIdeaId(), userId1, Downvote).getIndexingFuture().get();
+        assertEquals(Long.valueOf(0L), writeBehindStore.getIdea(projectId, idea1.getIdeaId()).get().getVoteValue());
+        assertEquals(Long.valueOf(3L), writeBehindStore.getIdea(projectId, idea2.getIdeaId()).get().getVoteValue());
+        assertEquals(ImmutableList.of(idea2.getIdeaId(), idea1.getIdeaId()), searchTop(writeBehindStore, projectId));
+
+        // Pending updates are drained on shutdown
+        writeBehindStore.voteIdea(projectId, idea2.getIdeaId(), userId1, Downvote);
+        ListenableFuture<Void> indexingFuture3 = writeBehindStore.voteIdea(projectId, idea2.getIdeaId(), userId2, Downvote).getIndexingFuture();
+        assertFalse(indexingFuture3.isDone());
+        writeBehindStore.stopAsync().awaitTerminated();
+        indexingFuture3.get();
+        assertEquals(Long.valueOf(-1L), store.getIdea(projectId, idea2.getIdeaId()).get().getVoteValue());
+        assertEquals(ImmutableList.of(idea1.getIdeaId(), idea2.getIdeaId()), searchTop(store, projectId));
+    }
+
+    private ImmutableList<String> searchTop(IdeaStore store, String projectId) {
+        return ImmutableList.copyOf(store.searchIdeas(projectId, IdeaSearchAdmin.builder()
+                        .sortBy(IdeaSearchAdmin.SortByEnum.TOP).build(), false, Optional.empty())
+                .getIdeaIds());
+    }
+
     @Test(timeout = 30_000L)
     public void testExpress() throws Exception {
         String projectId = IdUtil.randomId();
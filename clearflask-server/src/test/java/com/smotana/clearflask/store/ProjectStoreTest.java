@@ -16,6 +16,7 @@ import com.smotana.clearflask.store.ProjectStore.SearchEngine;
 import com.smotana.clearflask.store.dynamo.InMemoryDynamoDbProvider;
 import com.smotana.clearflask.store.dynamo.SingleTableProvider;
 import com.smotana.clearflask.store.impl.DynamoProjectStore;
+import com.smotana.clearflask.store.impl.LocalCacheInvalidationBus;
 import com.smotana.clearflask.testutil.AbstractTest;
 import com.smotana.clearflask.util.*;
 import com.smotana.clearflask.web.security.Sanitizer;
@@ -45,6 +46,7 @@ public class ProjectStoreTest extends AbstractTest {
         bindMock(AccountStore.class);
 
         install(Modules.override(
+                LocalCacheInvalidationBus.module(),
                 DynamoProjectStore.module(),
                 InMemoryDynamoDbProvider.module(),
                 SingleTableProvider.module(),
@@ -105,6 +107,26 @@ public class ProjectStoreTest extends AbstractTest {
         assertEquals(Optional.of(c1), store.getProject(newProject, false).map(Project::getVersionedConfig));
     }
 
+    @Test(timeout = 10_000L)
+    public void testConfigMaterializedOncePerVersion() throws Exception {
+        String projectId = "projectId";
+        store.createProject(IdUtil.randomId(), projectId, ModelUtil.createEmptyConfig(projectId));
+
+        Project project1 = store.getProject(projectId, false).get();
+        Project project2 = store.getProject(projectId, false).get();
+        assertEquals(Long.valueOf(ConfigSchemaUpgrader.CURRENT_VERSION), project2.getModel().getConfigUpgradeVersion());
+        assertSame(project1.getVersionedConfigAdmin(), project2.getVersionedConfigAdmin());
+        assertSame(project1.getVersionedConfig(), project2.getVersionedConfig());
+
+        VersionedConfigAdmin configAdminUpdated = project1.getVersionedConfigAdmin().toBuilder()
+                .version(IdUtil.randomId())
+                .config(project1.getVersionedConfigAdmin().getConfig().toBuilder()
+                        .name("New name")
+                        .build()).build();
+        store.updateConfig(projectId, Optional.of(project1.getVersion()), configAdminUpdated, false);
+        assertEquals(Optional.of(configAdminUpdated), store.getProject(projectId, false).map(Project::getVersionedConfigAdmin));
+    }
+
     @Test(timeout = 10_000L)
     public void testInvitations() throws Exception {
         String projectId = "projectId";
@@ -0,0 +1,193 @@
+// SPDX-FileCopyrightText: 2019-2022 Matus Faro <matus@smotana.com>
+// SPDX-License-Identifier: Apache-2.0
+package com.smotana.clearflask.store;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.util.concurrent.Futures;
+import com.google.gson.Gson;
+import com.google.inject.AbstractModule;
+import com.google.inject.Inject;
+import com.google.inject.name.Names;
+import com.google.inject.util.Modules;
+import com.kik.config.ice.ConfigSystem;
+import com.smotana.clearflask.store.Reindexer.ElasticTarget;
+import com.smotana.clearflask.store.elastic.ElasticUtil;
+import com.smotana.clearflask.store.impl.LocalCacheInvalidationBus;
+import com.smotana.clearflask.store.mysql.MysqlUtil;
+import com.smotana.clearflask.testutil.AbstractIT;
+import com.smotana.clearflask.util.DefaultServerSecret;
+import com.smotana.clearflask.util.GsonProvider;
+import com.smotana.clearflask.util.IdUtil;
+import com.smotana.clearflask.util.ServerSecretTest;
+import com.smotana.clearflask.web.security.Sanitizer;
+import lombok.extern.slf4j.Slf4j;
+import org.elasticsearch.action.delete.DeleteRequest;
+import org.elasticsearch.action.get.GetRequest;
+import org.elasticsearch.action.get.GetResponse;
+import org.elasticsearch.action.index.IndexRequest;
+import org.elasticsearch.action.support.WriteRequest;
+import org.elasticsearch.client.RequestOptions;
+import org.elasticsearch.client.indices.CreateIndexRequest;
+import org.elasticsearch.client.indices.GetIndexRequest;
+import org.elasticsearch.common.xcontent.XContentType;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.*;
+
+@Slf4j
+public class ReindexerIT extends AbstractIT {
+
+    @Inject
+    private Reindexer reindexer;
+    @Inject
+    private ElasticUtil elasticUtil;
+    @Inject
+    private Gson gson;
+
+    @Override
+    protected void configure() {
+        enableKillBillClient = false;
+        super.configure();
+
+        bindMock(ContentStore.class);
+
+        install(Modules.override(
+                Reindexer.module(),
+                ElasticUtil.module(),
+                MysqlUtil.module(),
+                LocalCacheInvalidationBus.module(),
+                DefaultServerSecret.module(Names.named("cursor")),
+                Sanitizer.module(),
+                GsonProvider.module()
+        ).with(new AbstractModule() {
+            @Override
+            protected void configure() {
+                install(ConfigSystem.overrideModule(DefaultServerSecret.Config.class, Names.named("cursor"), om -> {
+                    om.override(om.id().sharedKey()).withValue(ServerSecretTest.getRandomSharedKey());
+                }));
+                install(ConfigSystem.overrideModule(Reindexer.Config.class, om -> {
+                    om.override(om.id().catchUpSettlePeriod()).withValue(Duration.ofMillis(200));
+                }));
+            }
+        }));
+    }
+
+    @Test(timeout = 30_000L)
+    public void testWritesDuringRebuildSurviveSwap() throws Exception {
+        String alias = elasticUtil.getIndexName("test-reindexer", IdUtil.randomId());
+        String previousIndex = alias + "_v1";
+        createIndex(previousIndex, Optional.of(alias));
+        for (String docId : ImmutableSet.of("a", "b", "c")) {
+            elastic.get().index(new IndexRequest(alias)
+                    .id(docId)
+                    .source(gson.toJson(ImmutableMap.of("value", "initial")), XContentType.JSON)
+                    .setRefreshPolicy(WriteRequest.RefreshPolicy.IMMEDIATE), RequestOptions.DEFAULT);
+        }
+
+        // Another node sharing the same bus
+        ElasticUtil remoteElasticUtil = new ElasticUtil();
+        injector.injectMembers(remoteElasticUtil);
+
+        // Keep writing from both nodes for the whole rebuild, including the swap
+        AtomicBoolean writing = new AtomicBoolean(true);
+        AtomicLong localWriteCount = new AtomicLong();
+        AtomicLong remoteWriteCount = new AtomicLong();
+        AtomicReference<Throwable> writerFailure = new AtomicReference<>();
+        Thread writer = new Thread(() -> {
+            try {
+                while (writing.get()) {
+                    index(elasticUtil, alias, "local", String.valueOf(localWriteCount.incrementAndGet()));
+                    index(remoteElasticUtil, alias, "remote", String.valueOf(remoteWriteCount.incrementAndGet()));
+                    Thread.sleep(10);
+                }
+            } catch (Throwable th) {
+                writerFailure.set(th);
+            }
+        });
+        writer.start();
+
+        try {
+            reindexer.<Map<String, String>>reindex(
+                    "test-" + alias,
+                    consumer -> {
+                        // Snapshot read from the source before the writes below
+                        consumer.accept(ImmutableMap.of("id", "a", "value", "initial"));
+                        consumer.accept(ImmutableMap.of("id", "b", "value", "initial"));
+                        consumer.accept(ImmutableMap.of("id", "c", "value", "initial"));
+                        try {
+                            index(elasticUtil, alias, "a", "updated");
+                            index(remoteElasticUtil, alias, "b", "updated");
+                            elastic.get().delete(remoteElasticUtil.trackWrite(new DeleteRequest(alias, "c")), RequestOptions.DEFAULT);
+                            index(remoteElasticUtil, alias, "d", "created");
+                        } catch (IOException ex) {
+                            throw new RuntimeException(ex);
+                        }
+                    },
+                    Optional.of(new ElasticTarget<>(
+                            alias,
+                            Optional.of(newIndexName -> {
+                                try {
+                                    createIndex(newIndexName, Optional.empty());
+                                } catch (IOException ex) {
+                                    return Futures.immediateFailedFuture(ex);
+                                }
+                                return Futures.immediateFuture(null);
+                            }),
+                            doc -> new IndexRequest()
+                                    .id(doc.get("id"))
+                                    .source(gson.toJson(ImmutableMap.of("value", doc.get("value"))), XContentType.JSON))),
+                    Optional.empty());
+        } finally {
+            writing.set(false);
+            writer.join();
+        }
+        assertNull(writerFailure.get());
+        assertTrue(localWriteCount.get() > 0);
+        assertTrue(remoteWriteCount.get() > 0);
+
+        ImmutableSet<String> concreteIndices = elasticUtil.getConcreteIndices(alias);
+        assertEquals(1, concreteIndices.size());
+        assertNotEquals(previousIndex, concreteIndices.iterator().next());
+        assertFalse(elastic.get().indices().exists(new GetIndexRequest(previousIndex), RequestOptions.DEFAULT));
+
+        assertEquals(Optional.of("updated"), getValue(alias, "a"));
+        assertEquals(Optional.of("updated"), getValue(alias, "b"));
+        assertEquals(Optional.empty(), getValue(alias, "c"));
+        assertEquals(Optional.of("created"), getValue(alias, "d"));
+        assertEquals(Optional.of(String.valueOf(localWriteCount.get())), getValue(alias, "local"));
+        assertEquals(Optional.of(String.valueOf(remoteWriteCount.get())), getValue(alias, "remote"));
+    }
+
+    private void createIndex(String index, Optional<String> aliasOpt) throws IOException {
+        CreateIndexRequest request = elasticUtil.createIndexRequest(index, aliasOpt)
+                .mapping(gson.toJson(ImmutableMap.of(
+                        "dynamic", "false",
+                        "properties", ImmutableMap.of(
+                                "value", ImmutableMap.of(
+                                        "type", "keyword")))), XContentType.JSON);
+        elastic.get().indices().create(request, RequestOptions.DEFAULT);
+    }
+
+    private void index(ElasticUtil elasticUtil, String alias, String docId, String value) throws IOException {
+        elastic.get().index(elasticUtil.trackWrite(new IndexRequest(alias)
+                        .id(docId)
+                        .source(gson.toJson(ImmutableMap.of("value", value)), XContentType.JSON)),
+                RequestOptions.DEFAULT);
+    }
+
+    private Optional<String> getValue(String alias, String docId) throws IOException {
+        GetResponse response = elastic.get().get(new GetRequest(alias, docId), RequestOptions.DEFAULT);
+        return response.isExists()
+                ? Optional.of((String) response.getSourceAsMap().get("value"))
+                : Optional.empty();
+    }
+}
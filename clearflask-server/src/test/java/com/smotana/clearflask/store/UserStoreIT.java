@@ -25,6 +25,7 @@ import com.smotana.clearflask.store.impl.DynamoElasticIdeaStore;
 import com.smotana.clearflask.store.impl.DynamoElasticUserStore;
 import com.smotana.clearflask.store.impl.DynamoProjectStore;
 import com.smotana.clearflask.store.impl.DynamoVoteStore;
+import com.smotana.clearflask.store.impl.LocalCacheInvalidationBus;
 import com.smotana.clearflask.store.mysql.MysqlUtil;
 import com.smotana.clearflask.testutil.AbstractIT;
 import com.smotana.clearflask.util.ChatwootUtil;
@@ -69,6 +70,8 @@ public class UserStoreIT extends AbstractIT {
 
     @Inject
     private UserStore store;
+    @Inject
+    private DynamoElasticUserStore storeImpl;
 
     @Override
     protected void configure() {
@@ -82,6 +85,8 @@ public class UserStoreIT extends AbstractIT {
                 SingleTableProvider.module(),
                 DynamoElasticUserStore.module(),
                 DynamoElasticIdeaStore.module(),
+                LocalCacheInvalidationBus.module(),
+                Reindexer.module(),
                 DynamoElasticAccountStore.module(),
                 DynamoVoteStore.module(),
                 Sanitizer.module(),
@@ -443,4 +448,48 @@ public class UserStoreIT extends AbstractIT {
         store.revokeSessions(user.getProjectId(), user.getUserId(), Optional.empty());
         assertFalse(store.getSession(session3.getSessionId()).isPresent());
     }
+
+    @Test(timeout = 10_000L)
+    public void testUserSessionCache() throws Exception {
+        String projectId = IdUtil.randomId();
+        store.createIndex(projectId).get();
+        UserModel user = store.createUser(MockModelUtil.getRandomUser().toBuilder().projectId(projectId).build()).getUser();
+        long expiry = Instant.now().plus(1, ChronoUnit.DAYS).getEpochSecond();
+
+        // Served from cache right after creation
+        UserSession session1 = store.createSession(user, expiry);
+        UserSession session2 = store.createSession(user, expiry);
+        UserSession session3 = store.createSession(user, expiry);
+        long readsSaved = storeImpl.getSessionCacheReadsSaved();
+        assertEquals(Optional.of(session1), store.getSession(session1.getSessionId()));
+        assertEquals(Optional.of(session2), store.getSession(session2.getSessionId()));
+        assertEquals(Optional.of(session3), store.getSession(session3.getSessionId()));
+        assertEquals(readsSaved + 3, storeImpl.getSessionCacheReadsSaved());
+
+        // Revoked session misses the cache, then is remembered as not found
+        store.revokeSession(session1);
+        readsSaved = storeImpl.getSessionCacheReadsSaved();
+        assertEquals(Optional.empty(), store.getSession(session1.getSessionId()));
+        assertEquals(readsSaved, storeImpl.getSessionCacheReadsSaved());
+        assertEquals(Optional.empty(), store.getSession(session1.getSessionId()));
+        assertEquals(readsSaved + 2, storeImpl.getSessionCacheReadsSaved());
+
+        // Revoking all but one session only evicts the revoked ones
+        store.revokeSessions(projectId, user.getUserId(), Optional.of(session3.getSessionId()));
+        readsSaved = storeImpl.getSessionCacheReadsSaved();
+        assertEquals(Optional.empty(), store.getSession(session2.getSessionId()));
+        assertEquals(readsSaved, storeImpl.getSessionCacheReadsSaved());
+        assertEquals(Optional.of(session3), store.getSession(session3.getSessionId()));
+        assertEquals(readsSaved + 1, storeImpl.getSessionCacheReadsSaved());
+
+        // Refreshed expiry is served from cache
+        long refreshedExpiry = Instant.now().plus(2, ChronoUnit.DAYS).getEpochSecond();
+        store.refreshSession(session3, refreshedExpiry);
+        readsSaved = storeImpl.getSessionCacheReadsSaved();
+        assertEquals(Optional.of(refreshedExpiry), store.getSession(session3.getSessionId()).map(UserSession::getTtlInEpochSec));
+        assertEquals(readsSaved + 1, storeImpl.getSessionCacheReadsSaved());
+
+        store.revokeSessions(projectId, user.getUserId(), Optional.empty());
+        assertEquals(Optional.empty(), store.getSession(session3.getSessionId()));
+    }
 }
\ No newline at end of file
@@ -15,18 +15,22 @@ import com.kik.config.ice.ConfigSystem;
 import com.smotana.clearflask.store.ContentStore;
 import com.smotana.clearflask.store.elastic.ElasticUtil.ConfigSearch;
 import com.smotana.clearflask.store.elastic.ElasticUtil.PaginationType;
+import com.smotana.clearflask.store.impl.LocalCacheInvalidationBus;
 import com.smotana.clearflask.testutil.AbstractIT;
 import com.smotana.clearflask.util.DefaultServerSecret;
 import com.smotana.clearflask.util.GsonProvider;
 import com.smotana.clearflask.util.IdUtil;
+import com.smotana.clearflask.util.ServerSecret;
 import com.smotana.clearflask.util.ServerSecretTest;
 import com.smotana.clearflask.web.security.Sanitizer;
 import lombok.extern.slf4j.Slf4j;
 import org.elasticsearch.action.index.IndexRequest;
 import org.elasticsearch.action.search.SearchRequest;
+import org.elasticsearch.action.search.SearchResponse;
 import org.elasticsearch.action.support.WriteRequest;
 import org.elasticsearch.client.RequestOptions;
 import org.elasticsearch.client.indices.CreateIndexRequest;
+import org.elasticsearch.common.unit.TimeValue;
 import org.elasticsearch.common.xcontent.XContentType;
 import org.elasticsearch.index.query.QueryBuilders;
 import org.elasticsearch.search.builder.SearchSourceBuilder;
@@ -49,6 +53,9 @@ public class ElasticUtilIT extends AbstractIT {
     @Inject
     private Gson gson;
     @Inject
+    @Named("cursor")
+    private ServerSecret serverSecretCursor;
+    @Inject
     @Named("ElasticUtilIT")
     private ConfigSearch configSearch;
 
@@ -69,6 +76,7 @@ public class ElasticUtilIT extends AbstractIT {
 
         install(Modules.override(
                 ElasticUtil.module(),
+                LocalCacheInvalidationBus.module(),
                 DefaultServerSecret.module(Names.named("cursor")),
                 Sanitizer.module(),
                 GsonProvider.module(),
@@ -129,7 +137,7 @@ public class ElasticUtilIT extends AbstractIT {
         boolean useAccurateCursor;
         ImmutableList<String> sortFields;
         switch (paginationType) {
-            case SCROLL:
+            case POINT_IN_TIME:
                 useAccurateCursor = true;
                 sortFields = ImmutableList.of();
                 break;
@@ -141,14 +149,33 @@ public class ElasticUtilIT extends AbstractIT {
                 useAccurateCursor = false;
                 sortFields = ImmutableList.of();
                 break;
+            case SCROLL_LEGACY:
+                useAccurateCursor = true;
+                sortFields = ImmutableList.of();
+                break;
             default:
                 throw new Exception();
         }
 
-        ElasticUtil.SearchResponseWithCursor searchResponseWithCursor = elasticUtil.searchWithCursor(new SearchRequest(indexName)
-                        .source(new SearchSourceBuilder()
-                                .query(QueryBuilders.matchAllQuery())),
-                Optional.empty(), sortFields, Optional.empty(), useAccurateCursor, Optional.of(2), configSearch, ImmutableSet.of());
+        ElasticUtil.SearchResponseWithCursor searchResponseWithCursor;
+        if (paginationType == PaginationType.SCROLL_LEGACY) {
+            // Legacy scroll cursors cannot be started anymore, start one the way it used to be handed out
+            SearchResponse scrollResponse = elastic.get().search(new SearchRequest(indexName)
+                            .scroll(TimeValue.timeValueMillis(configSearch.elasticScrollKeepAlive().toMillis()))
+                            .source(new SearchSourceBuilder()
+                                    .query(QueryBuilders.matchAllQuery())
+                                    .size(2)
+                                    .fetchSource(false)),
+                    RequestOptions.DEFAULT);
+            searchResponseWithCursor = new ElasticUtil.SearchResponseWithCursor(
+                    scrollResponse,
+                    Optional.of(serverSecretCursor.encryptString(scrollResponse.getScrollId())));
+        } else {
+            searchResponseWithCursor = elasticUtil.searchWithCursor(new SearchRequest(indexName)
+                            .source(new SearchSourceBuilder()
+                                    .query(QueryBuilders.matchAllQuery())),
+                    Optional.empty(), sortFields, Optional.empty(), useAccurateCursor, Optional.of(2), configSearch, ImmutableSet.of());
+        }
         log.info("Pagination cursor for {}: {}", paginationType.name(), searchResponseWithCursor.getCursorOpt());
         log.info("Search results: {}", (Object) searchResponseWithCursor.getSearchResponse().getHits().getHits());
         assertEquals(2, searchResponseWithCursor.getSearchResponse().getHits().getHits().length);
@@ -0,0 +1,139 @@
+// SPDX-FileCopyrightText: 2019-2022 Matus Faro <matus@smotana.com>
+// SPDX-License-Identifier: Apache-2.0
+package com.smotana.clearflask.store.elastic;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.google.gson.Gson;
+import com.google.inject.AbstractModule;
+import com.google.inject.Inject;
+import com.google.inject.name.Named;
+import com.google.inject.name.Names;
+import com.google.inject.util.Modules;
+import com.kik.config.ice.ConfigSystem;
+import com.smotana.clearflask.store.ContentStore;
+import com.smotana.clearflask.store.elastic.ElasticUtil.ConfigSearch;
+import com.smotana.clearflask.store.impl.LocalCacheInvalidationBus;
+import com.smotana.clearflask.testutil.AbstractIT;
+import com.smotana.clearflask.util.DefaultServerSecret;
+import com.smotana.clearflask.util.GsonProvider;
+import com.smotana.clearflask.util.IdUtil;
+import com.smotana.clearflask.util.ServerSecretTest;
+import com.smotana.clearflask.web.security.Sanitizer;
+import lombok.extern.slf4j.Slf4j;
+import org.elasticsearch.action.delete.DeleteRequest;
+import org.elasticsearch.action.index.IndexRequest;
+import org.elasticsearch.action.search.SearchRequest;
+import org.elasticsearch.client.RequestOptions;
+import org.elasticsearch.client.indices.CreateIndexRequest;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.xcontent.XContentType;
+import org.elasticsearch.index.query.QueryBuilders;
+import org.elasticsearch.search.SearchHit;
+import org.elasticsearch.search.builder.SearchSourceBuilder;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Optional;
+
+import static org.junit.Assert.assertEquals;
+
+@Slf4j
+public class ReadYourWritesIT extends AbstractIT {
+
+    @Inject
+    private ElasticUtil elasticUtil;
+    @Inject
+    private Gson gson;
+    @Inject
+    @Named("ReadYourWritesIT")
+    private ConfigSearch configSearch;
+
+    @Override
+    protected void configure() {
+        enableKillBillClient = false;
+        super.configure();
+
+        bindMock(ContentStore.class);
+
+        install(Modules.override(
+                ElasticUtil.module(),
+                LocalCacheInvalidationBus.module(),
+                DefaultServerSecret.module(Names.named("cursor")),
+                Sanitizer.module(),
+                GsonProvider.module(),
+                ConfigSystem.configModule(ConfigSearch.class, Names.named("ReadYourWritesIT"))
+        ).with(new AbstractModule() {
+            @Override
+            protected void configure() {
+                install(ConfigSystem.overrideModule(DefaultServerSecret.Config.class, Names.named("cursor"), om -> {
+                    om.override(om.id().sharedKey()).withValue(ServerSecretTest.getRandomSharedKey());
+                }));
+                install(ConfigSystem.overrideModule(ElasticUtil.Config.class, om -> {
+                    om.override(om.id().readYourWritesEnabled()).withValue(true);
+                }));
+            }
+        }));
+    }
+
+    @Test(timeout = 10_000L)
+    public void testSessionSeesOwnWrites() throws Exception {
+        String indexName = elasticUtil.getIndexName("test-read-your-writes", IdUtil.randomId());
+        // Without periodic refreshes, documents only become searchable when read your writes refreshes
+        elastic.get().indices().create(new CreateIndexRequest(indexName)
+                .settings(Settings.builder().put("index.refresh_interval", "-1"))
+                .mapping(gson.toJson(ImmutableMap.of(
+                        "dynamic", "false",
+                        "properties", ImmutableMap.of(
+                                "name", ImmutableMap.of(
+                                        "type", "keyword")))), XContentType.JSON), RequestOptions.DEFAULT);
+        String docId = IdUtil.randomId();
+        try {
+            elasticUtil.setReadYourWritesSession(Optional.of("writer"));
+            elastic.get().index(elasticUtil.trackWrite(new IndexRequest(indexName)
+                            .id(docId)
+                            .setRefreshPolicy(elasticUtil.getWriteRefreshPolicy(false))
+                            .source(gson.toJson(ImmutableMap.of("name", "bob")), XContentType.JSON)),
+                    RequestOptions.DEFAULT);
+
+            // Other sessions do not force a refresh
+            elasticUtil.setReadYourWritesSession(Optional.of("other"));
+            assertEquals(ImmutableSet.of(), search(indexName));
+            assertEquals(0L, elasticUtil.getReadYourWritesRefreshCount());
+
+            elasticUtil.setReadYourWritesSession(Optional.of("writer"));
+            assertEquals(ImmutableSet.of(docId), search(indexName));
+            assertEquals(1L, elasticUtil.getReadYourWritesRefreshCount());
+
+            // Nothing written since, no more refreshes
+            assertEquals(ImmutableSet.of(docId), search(indexName));
+            assertEquals(1L, elasticUtil.getReadYourWritesRefreshCount());
+
+            // Deletes are excluded without a refresh
+            elastic.get().delete(elasticUtil.trackWrite(new DeleteRequest(indexName, docId)
+                            .setRefreshPolicy(elasticUtil.getWriteRefreshPolicy(false))),
+                    RequestOptions.DEFAULT);
+            assertEquals(ImmutableSet.of(), search(indexName));
+            assertEquals(1L, elasticUtil.getReadYourWritesRefreshCount());
+
+            elasticUtil.setReadYourWritesSession(Optional.of("other"));
+            assertEquals(ImmutableSet.of(docId), search(indexName));
+        } finally {
+            elasticUtil.clearReadYourWritesSession();
+        }
+    }
+
+    private ImmutableSet<String> search(String indexName) {
+        SearchHit[] hits = elasticUtil.searchWithCursor(new SearchRequest(indexName)
+                                .source(new SearchSourceBuilder()
+                                        .query(QueryBuilders.matchAllQuery())),
+                        Optional.empty(), ImmutableList.of(), Optional.empty(), false, Optional.empty(), configSearch, ImmutableSet.of())
+                .getSearchResponse()
+                .getHits()
+                .getHits();
+        return Arrays.stream(hits)
+                .map(SearchHit::getId)
+                .collect(ImmutableSet.toImmutableSet());
+    }
+}
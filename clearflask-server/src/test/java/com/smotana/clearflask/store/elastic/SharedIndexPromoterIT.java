@@ -0,0 +1,189 @@
+// SPDX-FileCopyrightText: 2019-2022 Matus Faro <matus@smotana.com>
+// SPDX-License-Identifier: Apache-2.0
+package com.smotana.clearflask.store.elastic;
+
+import com.amazonaws.services.dynamodbv2.document.spec.DeleteItemSpec;
+import com.amazonaws.services.dynamodbv2.document.spec.PutItemSpec;
+import com.google.common.collect.ImmutableSet;
+import com.google.inject.AbstractModule;
+import com.google.inject.Inject;
+import com.google.inject.name.Names;
+import com.google.inject.util.Modules;
+import com.kik.config.ice.ConfigSystem;
+import com.smotana.clearflask.api.model.IdeaSearchAdmin;
+import com.smotana.clearflask.store.ContentStore;
+import com.smotana.clearflask.store.IdeaStore;
+import com.smotana.clearflask.store.IdeaStore.IdeaModel;
+import com.smotana.clearflask.store.MockModelUtil;
+import com.smotana.clearflask.store.ProjectStore.SearchEngine;
+import com.smotana.clearflask.store.Reindexer;
+import com.smotana.clearflask.store.dynamo.InMemoryDynamoDbProvider;
+import com.smotana.clearflask.store.dynamo.SingleTableProvider;
+import com.smotana.clearflask.store.elastic.SharedIndexPromoter.PromotionLease;
+import com.smotana.clearflask.store.impl.DynamoElasticAccountStore;
+import com.smotana.clearflask.store.impl.DynamoElasticCommentStore;
+import com.smotana.clearflask.store.impl.DynamoElasticIdeaStore;
+import com.smotana.clearflask.store.impl.DynamoElasticUserStore;
+import com.smotana.clearflask.store.impl.DynamoProjectStore;
+import com.smotana.clearflask.store.impl.DynamoVoteStore;
+import com.smotana.clearflask.store.impl.LocalCacheInvalidationBus;
+import com.smotana.clearflask.store.impl.ProjectUpgraderImpl;
+import com.smotana.clearflask.store.mysql.MysqlUtil;
+import com.smotana.clearflask.testutil.AbstractIT;
+import com.smotana.clearflask.util.ChatwootUtil;
+import com.smotana.clearflask.util.DefaultServerSecret;
+import com.smotana.clearflask.util.IdUtil;
+import com.smotana.clearflask.util.IntercomUtil;
+import com.smotana.clearflask.util.ServerSecretTest;
+import com.smotana.clearflask.web.security.Sanitizer;
+import com.smotana.clearflask.web.util.WebhookServiceImpl;
+import io.dataspray.singletable.SingleTable;
+import io.dataspray.singletable.TableSchema;
+import lombok.extern.slf4j.Slf4j;
+import org.elasticsearch.action.admin.indices.refresh.RefreshRequest;
+import org.elasticsearch.client.RequestOptions;
+import org.elasticsearch.client.core.CountRequest;
+import org.elasticsearch.index.query.QueryBuilders;
+import org.junit.Test;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Map;
+import java.util.Optional;
+
+import static org.junit.Assert.*;
+
+@Slf4j
+public class SharedIndexPromoterIT extends AbstractIT {
+
+    @Inject
+    private SharedIndexPromoter promoter;
+    @Inject
+    private IdeaStore ideaStore;
+    @Inject
+    private ElasticUtil elasticUtil;
+    @Inject
+    private SingleTable singleTable;
+
+    @Override
+    protected void configure() {
+        overrideSearchEngine = SearchEngine.READWRITE_ELASTICSEARCH;
+        super.configure();
+
+        bindMock(ContentStore.class);
+
+        install(Modules.override(
+                InMemoryDynamoDbProvider.module(),
+                SingleTableProvider.module(),
+                SharedIndexPromoter.module(),
+                DynamoElasticCommentStore.module(),
+                LocalCacheInvalidationBus.module(),
+                Reindexer.module(),
+                DynamoElasticAccountStore.module(),
+                DynamoElasticUserStore.module(),
+                DynamoVoteStore.module(),
+                Sanitizer.module(),
+                MysqlUtil.module(),
+                ElasticUtil.module(),
+                DynamoElasticIdeaStore.module(),
+                DefaultServerSecret.module(Names.named("cursor")),
+                WebhookServiceImpl.module(),
+                DynamoProjectStore.module(),
+                ProjectUpgraderImpl.module(),
+                IntercomUtil.module(),
+                ChatwootUtil.module()
+        ).with(new AbstractModule() {
+            @Override
+            protected void configure() {
+                install(ConfigSystem.overrideModule(DefaultServerSecret.Config.class, Names.named("cursor"), om -> {
+                    om.override(om.id().sharedKey()).withValue(ServerSecretTest.getRandomSharedKey());
+                }));
+                install(ConfigSystem.overrideModule(DynamoElasticIdeaStore.Config.class, om -> {
+                    om.override(om.id().elasticForceRefresh()).withValue(true);
+                }));
+                install(ConfigSystem.overrideModule(ElasticUtil.Config.class, om -> {
+                    om.override(om.id().sharedIndexEnabled()).withValue(true);
+                }));
+                install(ConfigSystem.overrideModule(SharedIndexPromoter.Config.class, om -> {
+                    om.override(om.id().promoteDocCount()).withValue(3L);
+                }));
+                install(ConfigSystem.overrideModule(Reindexer.Config.class, om -> {
+                    om.override(om.id().catchUpSettlePeriod()).withValue(Duration.ofMillis(100));
+                }));
+            }
+        }));
+    }
+
+    @Test(timeout = 30_000L)
+    public void testIsolationAndPromotion() throws Exception {
+        String projectIdLarge = IdUtil.randomId();
+        String projectIdSmall = IdUtil.randomId();
+        ideaStore.createIndex(projectIdLarge).get();
+        ideaStore.createIndex(projectIdSmall).get();
+        String sharedIndex = elasticUtil.getSharedIndexName(DynamoElasticIdeaStore.IDEA_INDEX);
+        assertTrue(isOnSharedIndex(projectIdLarge));
+        assertTrue(isOnSharedIndex(projectIdSmall));
+
+        ImmutableSet.Builder<String> ideaIdsLargeBuilder = ImmutableSet.builder();
+        for (int i = 0; i < 3; i++) {
+            IdeaModel idea = MockModelUtil.getRandomIdea().toBuilder().projectId(projectIdLarge).build();
+            ideaStore.createIdea(idea).get();
+            ideaIdsLargeBuilder.add(idea.getIdeaId());
+        }
+        ImmutableSet<String> ideaIdsLarge = ideaIdsLargeBuilder.build();
+        IdeaModel ideaSmall = MockModelUtil.getRandomIdea().toBuilder().projectId(projectIdSmall).build();
+        ideaStore.createIdea(ideaSmall).get();
+
+        // Projects only see their own documents
+        assertEquals(ideaIdsLarge, search(projectIdLarge));
+        assertEquals(ImmutableSet.of(ideaSmall.getIdeaId()), search(projectIdSmall));
+
+        // Another node holds the lease
+        TableSchema<PromotionLease> leaseSchema = singleTable.parseTableSchema(PromotionLease.class);
+        Instant leaseExpiry = Instant.now().plus(Duration.ofHours(1));
+        leaseSchema.table().putItem(new PutItemSpec().withItem(leaseSchema.toItem(new PromotionLease(
+                "promotion", "other-node", leaseExpiry.toEpochMilli(), leaseExpiry.getEpochSecond()))));
+        promoter.check();
+        assertEquals(0L, promoter.getPromotedCount());
+        assertTrue(isOnSharedIndex(projectIdLarge));
+
+        // Lease released
+        leaseSchema.table().deleteItem(new DeleteItemSpec().withPrimaryKey(leaseSchema.primaryKey(Map.of(
+                "leaseName", "promotion"))));
+        promoter.check();
+        assertEquals(1L, promoter.getPromotedCount());
+        assertFalse(isOnSharedIndex(projectIdLarge));
+        assertTrue(isOnSharedIndex(projectIdSmall));
+
+        // Both projects keep their documents, the promoted project's are gone from the shared index
+        assertEquals(ideaIdsLarge, search(projectIdLarge));
+        assertEquals(ImmutableSet.of(ideaSmall.getIdeaId()), search(projectIdSmall));
+        assertEquals(Optional.of(ideaSmall), ideaStore.getIdea(projectIdSmall, ideaSmall.getIdeaId()));
+        assertEquals(0L, countOnSharedIndex(sharedIndex, projectIdLarge));
+        assertEquals(1L, countOnSharedIndex(sharedIndex, projectIdSmall));
+
+        // Writes after promotion go to the right index
+        IdeaModel ideaLargeNew = MockModelUtil.getRandomIdea().toBuilder().projectId(projectIdLarge).build();
+        ideaStore.createIdea(ideaLargeNew).get();
+        assertEquals(ImmutableSet.builder().addAll(ideaIdsLarge).add(ideaLargeNew.getIdeaId()).build(), search(projectIdLarge));
+        assertEquals(0L, countOnSharedIndex(sharedIndex, projectIdLarge));
+    }
+
+    private ImmutableSet<String> search(String projectId) {
+        return ImmutableSet.copyOf(ideaStore.searchIdeas(projectId, IdeaSearchAdmin.builder().build(), false, Optional.empty())
+                .getIdeaIds());
+    }
+
+    private boolean isOnSharedIndex(String projectId) throws Exception {
+        return elasticUtil.getConcreteIndices(elasticUtil.getIndexName(DynamoElasticIdeaStore.IDEA_INDEX, projectId))
+                .stream()
+                .allMatch(elasticUtil::isSharedIndex);
+    }
+
+    private long countOnSharedIndex(String sharedIndex, String projectId) throws Exception {
+        elastic.get().indices().refresh(new RefreshRequest(sharedIndex), RequestOptions.DEFAULT);
+        return elastic.get().count(new CountRequest(sharedIndex)
+                        .query(QueryBuilders.termQuery("projectId", projectId)),
+                RequestOptions.DEFAULT).getCount();
+    }
+}
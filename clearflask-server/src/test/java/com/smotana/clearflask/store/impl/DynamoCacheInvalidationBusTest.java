@@ -0,0 +1,169 @@
+// SPDX-FileCopyrightText: 2019-2022 Matus Faro <matus@smotana.com>
+// SPDX-License-Identifier: Apache-2.0
+package com.smotana.clearflask.store.impl;
+
+import com.amazonaws.services.dynamodbv2.document.spec.PutItemSpec;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.google.inject.AbstractModule;
+import com.google.inject.Inject;
+import com.google.inject.util.Modules;
+import com.kik.config.ice.ConfigSystem;
+import com.smotana.clearflask.store.CacheInvalidationBus.CacheInvalidationEvent;
+import com.smotana.clearflask.store.dynamo.InMemoryDynamoDbProvider;
+import com.smotana.clearflask.store.dynamo.SingleTableProvider;
+import com.smotana.clearflask.testutil.AbstractTest;
+import io.dataspray.singletable.SingleTable;
+import io.dataspray.singletable.TableSchema;
+import lombok.extern.slf4j.Slf4j;
+import org.junit.Test;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import static org.junit.Assert.assertEquals;
+
+@Slf4j
+public class DynamoCacheInvalidationBusTest extends AbstractTest {
+
+    private static final String CACHE_NAME = "test";
+
+    @Inject
+    private DynamoCacheInvalidationBus bus;
+    @Inject
+    private SingleTable singleTable;
+
+    @Override
+    protected void configure() {
+        super.configure();
+
+        install(Modules.override(
+                DynamoCacheInvalidationBus.module(),
+                InMemoryDynamoDbProvider.module(),
+                SingleTableProvider.module()
+        ).with(new AbstractModule() {
+            @Override
+            protected void configure() {
+                install(ConfigSystem.overrideModule(DynamoCacheInvalidationBus.Config.class, om -> {
+                    om.override(om.id().channelShards()).withValue(1);
+                    // Tests poll explicitly
+                    om.override(om.id().pollFrequency()).withValue(Duration.ofHours(1));
+                    om.override(om.id().pollLookback()).withValue(Duration.ofSeconds(1));
+                }));
+            }
+        }));
+    }
+
+    @Test(timeout = 10_000L)
+    public void testCursorAndDedupe() throws Exception {
+        List<String> receivedByPublisher = subscribe(bus);
+        DynamoCacheInvalidationBus otherBus = createOtherNode();
+        List<String> received = subscribe(otherBus);
+
+        bus.publish(CACHE_NAME, "a");
+        otherBus.poll();
+        assertEquals(ImmutableList.of("a"), received);
+
+        // Seen events are not delivered again
+        otherBus.poll();
+        assertEquals(ImmutableList.of("a"), received);
+
+        bus.publish(CACHE_NAME, ImmutableSet.of("b", "c"));
+        otherBus.poll();
+        otherBus.poll();
+        assertEquals(ImmutableSet.of("a", "b", "c"), ImmutableSet.copyOf(received));
+        assertEquals(3, received.size());
+        assertEquals(2L, otherBus.getReceivedCount());
+
+        // Own events are skipped
+        bus.poll();
+        assertEquals(ImmutableList.of(), receivedByPublisher);
+    }
+
+    @Test(timeout = 10_000L)
+    public void testSameMillisecondLowerEventId() throws Exception {
+        DynamoCacheInvalidationBus otherBus = createOtherNode();
+        List<String> received = subscribe(otherBus);
+        Instant now = Instant.now();
+
+        putEvent(now, "ffffffff-ffff-ffff-ffff-ffffffffffff", "a");
+        otherBus.poll();
+        assertEquals(ImmutableList.of("a"), received);
+
+        // Published in the same millisecond but sorts before the cursor
+        putEvent(now, "00000000-0000-0000-0000-000000000000", "b");
+        otherBus.poll();
+        assertEquals(ImmutableList.of("a", "b"), received);
+
+        otherBus.poll();
+        assertEquals(ImmutableList.of("a", "b"), received);
+    }
+
+    @Test(timeout = 10_000L)
+    public void testRescanLaggingClock() throws Exception {
+        DynamoCacheInvalidationBus otherBus = createOtherNode();
+        List<String> received = subscribe(otherBus);
+
+        // Publisher with a leading clock moves the cursor ahead
+        putEvent(Instant.now().plusSeconds(5), "00000000-0000-0000-0000-000000000000", "a");
+        otherBus.poll();
+        Instant firstPollEnd = Instant.now();
+        assertEquals(ImmutableList.of("a"), received);
+
+        // Publisher with a lagging clock publishes behind the cursor, but within the next rescan's window
+        putEvent(Instant.now().plusMillis(500), "00000000-0000-0000-0000-000000000000", "b");
+        otherBus.poll();
+        assertEquals(ImmutableList.of("a"), received);
+
+        // Picked up once the lookback window is re-read
+        Thread.sleep(Math.max(0L, Duration.between(Instant.now(), firstPollEnd.plusMillis(1_050)).toMillis()));
+        otherBus.poll();
+        assertEquals(ImmutableList.of("a", "b"), received);
+
+        otherBus.poll();
+        assertEquals(ImmutableList.of("a", "b"), received);
+    }
+
+    @Test(timeout = 10_000L)
+    public void testPagesWithinSameMillisecond() throws Exception {
+        configSet(DynamoCacheInvalidationBus.Config.class, "pollMaxEvents", "2");
+        DynamoCacheInvalidationBus otherBus = createOtherNode();
+        List<String> received = subscribe(otherBus);
+        Instant now = Instant.now();
+
+        ImmutableSet<String> keys = ImmutableSet.of("a", "b", "c", "d", "e");
+        int i = 0;
+        for (String key : keys) {
+            putEvent(now, String.format("00000000-0000-0000-0000-%012d", i++), key);
+        }
+        for (int poll = 0; poll < 6; poll++) {
+            otherBus.poll();
+        }
+        assertEquals(keys.asList(), received);
+    }
+
+    private DynamoCacheInvalidationBus createOtherNode() {
+        DynamoCacheInvalidationBus otherBus = new DynamoCacheInvalidationBus();
+        injector.injectMembers(otherBus);
+        return otherBus;
+    }
+
+    private List<String> subscribe(DynamoCacheInvalidationBus bus) {
+        List<String> received = new CopyOnWriteArrayList<>();
+        bus.subscribe(CACHE_NAME, received::addAll);
+        return received;
+    }
+
+    private void putEvent(Instant publishedAt, String uuid, String key) {
+        TableSchema<CacheInvalidationEvent> eventSchema = singleTable.parseTableSchema(CacheInvalidationEvent.class);
+        eventSchema.table().putItem(new PutItemSpec().withItem(eventSchema.toItem(new CacheInvalidationEvent(
+                "default",
+                String.format("%013d", publishedAt.toEpochMilli()) + "-" + uuid,
+                "other-node",
+                CACHE_NAME,
+                ImmutableSet.of(key),
+                publishedAt.plus(Duration.ofMinutes(5)).getEpochSecond()))));
+    }
+}
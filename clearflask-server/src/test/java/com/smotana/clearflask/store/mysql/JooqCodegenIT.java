@@ -8,13 +8,16 @@ import com.kik.config.ice.ConfigSystem;
 import com.smotana.clearflask.store.ContentStore;
 import com.smotana.clearflask.store.ProjectStore;
 import com.smotana.clearflask.store.ProjectStore.SearchEngine;
+import com.smotana.clearflask.store.Reindexer;
 import com.smotana.clearflask.store.VoteStore;
 import com.smotana.clearflask.store.dynamo.InMemoryDynamoDbProvider;
 import com.smotana.clearflask.store.dynamo.SingleTableProvider;
+import com.smotana.clearflask.store.elastic.ElasticUtil;
 import com.smotana.clearflask.store.impl.DynamoElasticAccountStore;
 import com.smotana.clearflask.store.impl.DynamoElasticCommentStore;
 import com.smotana.clearflask.store.impl.DynamoElasticIdeaStore;
 import com.smotana.clearflask.store.impl.DynamoElasticUserStore;
+import com.smotana.clearflask.store.impl.LocalCacheInvalidationBus;
 import com.smotana.clearflask.testutil.AbstractIT;
 import com.smotana.clearflask.util.DefaultServerSecret;
 import com.smotana.clearflask.util.IntercomUtil;
@@ -66,11 +69,15 @@ public class JooqCodegenIT extends AbstractIT {
 
         install(Modules.override(
                 DynamoElasticIdeaStore.module(),
+                LocalCacheInvalidationBus.module(),
+                Reindexer.module(),
                 DynamoElasticAccountStore.module(),
                 DynamoElasticUserStore.module(),
                 DynamoElasticCommentStore.module(),
                 InMemoryDynamoDbProvider.module(),
                 SingleTableProvider.module(),
+                MysqlUtil.module(),
+                ElasticUtil.module(),
                 Sanitizer.module(),
                 IntercomUtil.module(),
                 DefaultServerSecret.module(Names.named("cursor"))
@@ -0,0 +1,87 @@
+// SPDX-FileCopyrightText: 2019-2022 Matus Faro <matus@smotana.com>
+// SPDX-License-Identifier: Apache-2.0
+package com.smotana.clearflask.util;
+
+import com.google.common.base.Charsets;
+import com.google.common.hash.BloomFilter;
+import com.google.common.hash.Funnels;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Membership check of a page of ideas against a user's Bloom filter as done when listing ideas.
+ * <p>
+ * Run with: mvn test-compile exec:java -Dexec.classpathScope=test -Dexec.mainClass=com.smotana.clearflask.util.BloomFiltersBenchmark
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class BloomFiltersBenchmark {
+
+    private static final int PAGE_SIZE = 20;
+
+    private byte[] bloomFilterBytes;
+    private BloomFilter<CharSequence> bloomFilterDecoded;
+    private String[] ideaIds;
+
+    @Setup
+    public void setup() {
+        bloomFilterDecoded = BloomFilter.create(Funnels.stringFunnel(Charsets.UTF_8), 200, 0.001);
+        ideaIds = new String[PAGE_SIZE];
+        for (int i = 0; i < PAGE_SIZE; i++) {
+            ideaIds[i] = UUID.randomUUID().toString();
+            if (i % 2 == 0) {
+                bloomFilterDecoded.put(ideaIds[i]);
+            }
+        }
+        for (int i = 0; i < 100; i++) {
+            bloomFilterDecoded.put(UUID.randomUUID().toString());
+        }
+        bloomFilterBytes = BloomFilters.toByteArray(bloomFilterDecoded);
+    }
+
+    @Benchmark
+    public void decodePerRequest(Blackhole blackhole) {
+        BloomFilter<CharSequence> bloomFilter = BloomFilters.fromByteArray(bloomFilterBytes, Funnels.stringFunnel(Charsets.UTF_8));
+        for (String ideaId : ideaIds) {
+            blackhole.consume(bloomFilter.mightContain(ideaId));
+        }
+    }
+
+    @Benchmark
+    public void decodedCached(Blackhole blackhole) {
+        for (String ideaId : ideaIds) {
+            blackhole.consume(bloomFilterDecoded.mightContain(ideaId));
+        }
+    }
+
+    @Benchmark
+    public void serializedProbe(Blackhole blackhole) {
+        for (String ideaId : ideaIds) {
+            blackhole.consume(BloomFilters.mightContain(bloomFilterBytes, ideaId));
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        new Runner(new OptionsBuilder()
+                .include(BloomFiltersBenchmark.class.getSimpleName())
+                .build()).run();
+    }
+}
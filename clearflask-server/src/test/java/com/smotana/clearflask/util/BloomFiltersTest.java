@@ -0,0 +1,57 @@
+// SPDX-FileCopyrightText: 2019-2022 Matus Faro <matus@smotana.com>
+// SPDX-License-Identifier: Apache-2.0
+package com.smotana.clearflask.util;
+
+import com.google.common.base.Charsets;
+import com.google.common.hash.BloomFilter;
+import com.google.common.hash.Funnels;
+import lombok.extern.slf4j.Slf4j;
+import org.junit.Test;
+
+import java.util.UUID;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+@Slf4j
+public class BloomFiltersTest {
+
+    @Test(timeout = 10_000L)
+    public void testParityWithGuava() {
+        BloomFilter<CharSequence> bloomFilter = BloomFilter.create(Funnels.stringFunnel(Charsets.UTF_8), 200, 0.001);
+        byte[] bytes = BloomFilters.toByteArray(bloomFilter);
+        for (int i = 0; i < 300; i++) {
+            String value = UUID.randomUUID().toString();
+            assertEquals(bloomFilter.mightContain(value), BloomFilters.mightContain(bytes, value));
+
+            boolean expectedChanged = bloomFilter.put(value);
+            boolean actualChanged = false;
+            for (long bitIndex : BloomFilters.bitIndexes(bytes, value)) {
+                actualChanged |= BloomFilters.set(bytes, bitIndex);
+            }
+            assertEquals(expectedChanged, actualChanged);
+            assertTrue(BloomFilters.mightContain(bytes, value));
+            assertArrayEquals(BloomFilters.toByteArray(bloomFilter), bytes);
+        }
+    }
+
+    @Test(timeout = 10_000L)
+    public void testDecodeAfterSet() {
+        byte[] bytes = BloomFilters.createStringFilter(100, 0.001);
+        for (long bitIndex : BloomFilters.bitIndexes(bytes, "myIdeaId")) {
+            BloomFilters.set(bytes, bitIndex);
+        }
+        BloomFilter<CharSequence> bloomFilter = BloomFilters.fromByteArray(bytes, Funnels.stringFunnel(Charsets.UTF_8));
+        assertTrue(bloomFilter.mightContain("myIdeaId"));
+        assertFalse(bloomFilter.mightContain("otherIdeaId"));
+    }
+
+    @Test(timeout = 10_000L)
+    public void testSetOutOfBounds() {
+        byte[] bytes = BloomFilters.createStringFilter(100, 0.001);
+        assertFalse(BloomFilters.set(bytes, BloomFilters.bitSize(bytes)));
+        assertFalse(BloomFilters.set(bytes, -1L));
+    }
+}
@@ -0,0 +1,40 @@
+// SPDX-FileCopyrightText: 2019-2022 Matus Faro <matus@smotana.com>
+// SPDX-License-Identifier: Apache-2.0
+package com.smotana.clearflask.util;
+
+import lombok.extern.slf4j.Slf4j;
+import org.junit.Test;
+
+import java.time.Duration;
+
+import static org.junit.Assert.assertEquals;
+
+@Slf4j
+public class ExpDecayScoreTest {
+
+    @Test(timeout = 10_000L)
+    public void testEquivalentTime() {
+        ExpDecayScore expDecayScore = new ExpDecayScore(Duration.ofDays(7));
+        long now = System.currentTimeMillis();
+        long[] updateTimes = {now, now + 1_000L, now + 1_000L, now + 60_000L, now + 3_600_000L};
+
+        double expectedScore = 13.7d;
+        double accumulated = Double.NEGATIVE_INFINITY;
+        for (long updateTime : updateTimes) {
+            expectedScore = expDecayScore.updateScore(expectedScore, updateTime);
+            accumulated = expDecayScore.updateScore(accumulated, updateTime);
+        }
+        double actualScore = expDecayScore.updateScore(13.7d, expDecayScore.toEquivalentTimeInMillis(accumulated));
+        log.info("Expected score {} actual score {}", expectedScore, actualScore);
+
+        assertEquals(expectedScore, actualScore, 0.000001d);
+    }
+
+    @Test(timeout = 10_000L)
+    public void testEquivalentTimeSingleUpdate() {
+        ExpDecayScore expDecayScore = new ExpDecayScore(Duration.ofDays(7));
+        long now = System.currentTimeMillis();
+
+        assertEquals(now, expDecayScore.toEquivalentTimeInMillis(expDecayScore.updateScore(Double.NEGATIVE_INFINITY, now)));
+    }
+}
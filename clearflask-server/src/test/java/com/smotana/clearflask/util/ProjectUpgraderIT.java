@@ -5,6 +5,7 @@ package com.smotana.clearflask.util;
 import com.amazonaws.services.dynamodbv2.document.spec.GetItemSpec;
 import com.amazonaws.services.dynamodbv2.document.spec.UpdateItemSpec;
 import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Iterables;
 import com.google.inject.Inject;
 import com.smotana.clearflask.store.ProjectStore;
 import com.smotana.clearflask.store.ProjectStore.ProjectModel;
@@ -81,9 +82,10 @@ public class ProjectUpgraderIT extends AbstractBlackboxIT {
         GetMappingsResponse mappings = elastic.get().indices().getMapping(new GetMappingsRequest()
                         .indices(elasticUtil.getIndexName(index, projectId)),
                 RequestOptions.DEFAULT);
-        Map<String, Object> indexMappings = (Map<String, Object>) mappings
-                .mappings()
-                .get(elasticUtil.getIndexName(index, projectId))
+        // Keyed by the versioned index behind the alias
+        Map<String, Object> indexMappings = (Map<String, Object>) Iterables.getOnlyElement(mappings
+                        .mappings()
+                        .values())
                 .getSourceAsMap()
                 .get("properties");
         properties.forEach((field, expectedProperties) -> {
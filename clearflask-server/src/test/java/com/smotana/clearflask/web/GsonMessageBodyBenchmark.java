@@ -0,0 +1,143 @@
+// SPDX-FileCopyrightText: 2019-2022 Matus Faro <matus@smotana.com>
+// SPDX-License-Identifier: Apache-2.0
+package com.smotana.clearflask.web;
+
+import com.google.common.base.Charsets;
+import com.google.common.collect.ImmutableList;
+import com.google.gson.Gson;
+import com.google.inject.Guice;
+import com.google.inject.Injector;
+import com.kik.config.ice.ConfigConfigurator;
+import com.kik.config.ice.convert.MoreConfigValueConverters;
+import com.smotana.clearflask.api.model.Hits;
+import com.smotana.clearflask.api.model.IdeaVote;
+import com.smotana.clearflask.api.model.IdeaWithVote;
+import com.smotana.clearflask.api.model.IdeaWithVoteSearchResponse;
+import com.smotana.clearflask.api.model.VersionedConfigAdmin;
+import com.smotana.clearflask.store.ContentStore;
+import com.smotana.clearflask.store.MockModelUtil;
+import com.smotana.clearflask.util.GsonProvider;
+import com.smotana.clearflask.util.ModelUtil;
+import com.smotana.clearflask.web.security.Sanitizer;
+import org.mockito.Mockito;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.MultivaluedHashMap;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.lang.annotation.Annotation;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.IntStream;
+
+/**
+ * Serialization of representative responses through {@link GsonMessageBody} compared against the previous approach of
+ * wrapping the entity stream in an {@link OutputStreamWriter}: a page of search results and a project config. Parsing a
+ * project config is compared against the previous {@link InputStreamReader} as well.
+ * <p>
+ * Run with: mvn test-compile exec:java -Dexec.classpathScope=test -Dexec.mainClass=com.smotana.clearflask.web.GsonMessageBodyBenchmark
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class GsonMessageBodyBenchmark {
+
+    private static final int SEARCH_PAGE_SIZE = 20;
+    private static final Annotation[] NO_ANNOTATIONS = new Annotation[0];
+
+    private Gson gson;
+    private GsonMessageBody gsonMessageBody;
+    private IdeaWithVoteSearchResponse searchResponse;
+    private VersionedConfigAdmin configResponse;
+    private byte[] configRequest;
+    private OutputStream out;
+
+    @Setup
+    public void setup() {
+        Injector injector = Guice.createInjector(
+                ConfigConfigurator.testModules(),
+                MoreConfigValueConverters.module(),
+                GsonProvider.module(),
+                Sanitizer.module(),
+                binder -> binder.bind(ContentStore.class).toInstance(Mockito.mock(ContentStore.class)));
+        gson = injector.getInstance(Gson.class);
+        gsonMessageBody = new GsonMessageBody(gson);
+
+        Sanitizer sanitizer = injector.getInstance(Sanitizer.class);
+        ImmutableList<IdeaWithVote> ideas = IntStream.range(0, SEARCH_PAGE_SIZE)
+                .mapToObj(i -> MockModelUtil.getRandomIdea().toIdeaWithVote(new IdeaVote(null, null, null), sanitizer))
+                .collect(ImmutableList.toImmutableList());
+        searchResponse = new IdeaWithVoteSearchResponse("cursor", ideas, new Hits((long) SEARCH_PAGE_SIZE, null));
+        configResponse = ModelUtil.createEmptyConfig("benchmark-project-id");
+        configRequest = gson.toJson(configResponse).getBytes(Charsets.UTF_8);
+        out = OutputStream.nullOutputStream();
+    }
+
+    @Benchmark
+    public void searchOutputStreamWriter() throws IOException {
+        writeOutputStreamWriter(searchResponse);
+    }
+
+    @Benchmark
+    public void searchGsonMessageBody() throws IOException {
+        writeGsonMessageBody(searchResponse);
+    }
+
+    @Benchmark
+    public void configOutputStreamWriter() throws IOException {
+        writeOutputStreamWriter(configResponse);
+    }
+
+    @Benchmark
+    public void configGsonMessageBody() throws IOException {
+        writeGsonMessageBody(configResponse);
+    }
+
+    @Benchmark
+    public Object configReadInputStreamReader() throws IOException {
+        try (InputStreamReader reader = new InputStreamReader(new ByteArrayInputStream(configRequest), Charsets.UTF_8)) {
+            return gson.fromJson(reader, VersionedConfigAdmin.class);
+        }
+    }
+
+    @Benchmark
+    @SuppressWarnings("unchecked")
+    public Object configReadGsonMessageBody() throws IOException {
+        return gsonMessageBody.readFrom((Class<Object>) (Class<?>) VersionedConfigAdmin.class, VersionedConfigAdmin.class,
+                NO_ANNOTATIONS, MediaType.APPLICATION_JSON_TYPE, new MultivaluedHashMap<>(), new ByteArrayInputStream(configRequest));
+    }
+
+    private void writeOutputStreamWriter(Object object) throws IOException {
+        try (OutputStreamWriter writer = new OutputStreamWriter(out, Charsets.UTF_8)) {
+            gson.toJson(object, object.getClass(), writer);
+        }
+    }
+
+    private void writeGsonMessageBody(Object object) throws IOException {
+        gsonMessageBody.writeTo(object, object.getClass(), object.getClass(), NO_ANNOTATIONS,
+                MediaType.APPLICATION_JSON_TYPE, new MultivaluedHashMap<>(), out);
+    }
+
+    public static void main(String[] args) throws Exception {
+        new Runner(new OptionsBuilder()
+                .include(GsonMessageBodyBenchmark.class.getSimpleName())
+                .build()).run();
+    }
+}
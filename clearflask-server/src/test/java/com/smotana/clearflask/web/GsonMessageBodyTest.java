@@ -0,0 +1,94 @@
+// SPDX-FileCopyrightText: 2019-2022 Matus Faro <matus@smotana.com>
+// SPDX-License-Identifier: Apache-2.0
+package com.smotana.clearflask.web;
+
+import com.google.common.base.Charsets;
+import com.google.common.collect.ImmutableMap;
+import com.google.gson.Gson;
+import com.google.gson.reflect.TypeToken;
+import org.junit.Test;
+
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.MultivaluedHashMap;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.lang.annotation.Annotation;
+import java.lang.reflect.Type;
+import java.util.Map;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class GsonMessageBodyTest {
+
+    @Test(timeout = 10_000L)
+    public void testUtf8Encoding() throws Exception {
+        assertEncoding("");
+        assertEncoding("plain ascii {\"a\":1}");
+        assertEncoding("\u00F1 \u00FC \u00DF \u00E9");
+        assertEncoding("\u4E2D\u6587 \u65E5\u672C\u8A9E \uD55C\uAD6D\uC5B4");
+        assertEncoding("emoji \uD83E\uDD23 pair");
+        assertEncoding("\uD83E\uDD23");
+        assertEncoding("lone high \uD83E end");
+        assertEncoding("lone low \uDD23 end");
+        assertEncoding("trailing high \uD83E");
+    }
+
+    @Test(timeout = 10_000L)
+    public void testSurrogatePairSplitAcrossWrites() throws Exception {
+        GsonMessageBody.Utf8BufferWriter writer = new GsonMessageBody.Utf8BufferWriter();
+        writer.write("a\uD83E");
+        writer.write('\uDD23');
+        writer.write("b".toCharArray());
+        assertArrayEquals("a\uD83E\uDD23b".getBytes(Charsets.UTF_8), toBytes(writer));
+    }
+
+    @Test(timeout = 10_000L)
+    public void testGrowAndReset() throws Exception {
+        GsonMessageBody.Utf8BufferWriter writer = new GsonMessageBody.Utf8BufferWriter();
+        StringBuilder large = new StringBuilder();
+        for (int i = 0; i < 10_000; i++) {
+            large.append("\u00E9\uD83E\uDD23x");
+        }
+        writer.write(large.toString());
+        assertArrayEquals(large.toString().getBytes(Charsets.UTF_8), toBytes(writer));
+
+        writer.reset();
+        assertEquals(0, writer.size());
+        writer.write("again");
+        assertArrayEquals("again".getBytes(Charsets.UTF_8), toBytes(writer));
+    }
+
+    @Test(timeout = 10_000L)
+    public void testReadUtf8() throws Exception {
+        Type type = new TypeToken<Map<String, String>>() {
+        }.getType();
+        assertEquals(ImmutableMap.of("a", "\u00F1 \u4E2D\u6587 \uD83E\uDD23"), read("{\"a\":\"\u00F1 \u4E2D\u6587 \uD83E\uDD23\"}", type));
+        assertNull(read("", type));
+    }
+
+    @Test(timeout = 10_000L, expected = IOException.class)
+    public void testReadInvalid() throws Exception {
+        read("{\"a\":", Map.class);
+    }
+
+    private Object read(String json, Type type) throws Exception {
+        return new GsonMessageBody(new Gson()).readFrom(Object.class, type, new Annotation[0],
+                MediaType.APPLICATION_JSON_TYPE, new MultivaluedHashMap<>(),
+                new ByteArrayInputStream(json.getBytes(Charsets.UTF_8)));
+    }
+
+    private void assertEncoding(String str) throws Exception {
+        GsonMessageBody.Utf8BufferWriter writer = new GsonMessageBody.Utf8BufferWriter();
+        writer.write(str);
+        assertArrayEquals(str, str.getBytes(Charsets.UTF_8), toBytes(writer));
+    }
+
+    private byte[] toBytes(GsonMessageBody.Utf8BufferWriter writer) throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        writer.writeTo(out);
+        return out.toByteArray();
+    }
+}
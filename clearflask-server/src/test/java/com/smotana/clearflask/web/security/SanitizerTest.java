@@ -16,6 +16,7 @@ import org.mockito.Mockito;
 
 import javax.ws.rs.core.Response;
 import java.util.Optional;
+import java.util.concurrent.atomic.AtomicLong;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.fail;
@@ -170,6 +171,24 @@ public class SanitizerTest extends AbstractTest {
                 "o<img src=\"data:image/png;base64,iVBORw0KGgoAAAANSUhEUgAAAAEAAAABCAYAAAAfFcSJAAAADUlEQVR42mP8z/C/HgAGgwJ/lK3Q6wAAAABJRU5ErkJggg==\" />");
     }
 
+    @Test(timeout = 10_000L)
+    public void testImgCachedResigned() throws Exception {
+        String url = "https://upload.clearflask.com/" + PROJECT_ID + "/user-id/image.jpeg";
+        AtomicLong signCounter = new AtomicLong();
+        Mockito.when(contentStoreMock.signUrl(Mockito.anyString(), Mockito.anyString()))
+                .thenAnswer(i -> Optional.of(i.getArgument(1) + "?a=" + signCounter.incrementAndGet() + "&b"));
+
+        String html = "o<img src=\"" + url + "\" />";
+        String first = sanitizer.richHtml(html, "msg", "first", PROJECT_ID, false);
+        long signCountAfterFirst = signCounter.get();
+        String second = sanitizer.richHtml(html, "msg", "second", PROJECT_ID, false);
+
+        assertEquals("o<img src=\"" + url + "?a=" + signCountAfterFirst + "&amp;b\" />", first);
+        assertEquals("Cached HTML should be signed again",
+                "o<img src=\"" + url + "?a=" + (signCountAfterFirst + 1) + "&amp;b\" />", second);
+        assertEquals("Only signing should happen on cache hit", signCountAfterFirst + 1, signCounter.get());
+    }
+
     void assertSanitizeDomain(String domain, boolean expectFailure) {
         try {
             sanitizer.domain(domain, false);